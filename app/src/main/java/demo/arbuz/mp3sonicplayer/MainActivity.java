@@ -24,19 +24,26 @@ import android.widget.Button;
 import android.widget.RadioGroup;
 import android.widget.TextView;
 
+import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Locale;
 
 import demo.arbuz.mp3sonicplayer.audio.AudioPlayer;
+import demo.arbuz.mp3sonicplayer.core.PcmCache;
 
 public class MainActivity extends AppCompatActivity {
 
-    private static final long TIMER_REFRESH_MS = 50;
+    private static final int TIMER_REFRESH_MS = 50;
+
+    private static final long PCM_CACHE_SIZE = 64 * 1024 * 1024;
 
     private AudioPlayer mAudioPlayer;
 
+    // Replays of a file skip decoding
+    private PcmCache mPcmCache;
+
     private TextView mTxtTimer;
+    // Reused for each timer update, "mm:ss.SS"
+    private final char[] mTimerChars = new char[8];
 
     private TextInputLayout mInputSpeed;
     private TextInputLayout mInputPitch;
@@ -71,6 +78,8 @@ public class MainActivity extends AppCompatActivity {
         mRadioGrpPlayer = findViewById(R.id.radioGrpPlayer);
         mRadioGrpFile = findViewById(R.id.radioGrpFile);
 
+        mPcmCache = new PcmCache(new File(getCacheDir(), "pcm"), PCM_CACHE_SIZE);
+
         mBtnPlay.setOnClickListener(v -> play());
         mBtnPause.setOnClickListener(v -> pause());
         mBtnResume.setOnClickListener(v -> resume());
@@ -79,6 +88,7 @@ public class MainActivity extends AppCompatActivity {
 
         findViewById(R.id.radioSimple).setOnClickListener(v -> updateUI());
         findViewById(R.id.radioSonic).setOnClickListener(v -> updateUI());
+        findViewById(R.id.radioSonicFloat).setOnClickListener(v -> updateUI());
     }
 
     @Override
@@ -95,6 +105,9 @@ public class MainActivity extends AppCompatActivity {
         }
 
         mAudioPlayer = new AudioPlayer(getPlayerType());
+        mAudioPlayer.setFrameIndexDirectory(getCacheDir());
+        mAudioPlayer.setPcmCache(mPcmCache);
+        mAudioPlayer.setOnPositionChangedListener(this::showTime, TIMER_REFRESH_MS);
 
         try
         {
@@ -114,32 +127,28 @@ public class MainActivity extends AppCompatActivity {
 
         setPlaybackParameters();
 
-        // Start thread that will update track time
-        new Thread(() -> {
-            while (mAudioPlayer != null && mAudioPlayer.isPlaying())
-            {
-                try
-                {
-                    String time = new SimpleDateFormat("mm:ss.SS", Locale.US).format(mAudioPlayer.getElapsedTimeInMillis());
-                    runOnUiThread(() -> mTxtTimer.setText(time));
-                } catch (IllegalStateException e)
-                {
-                    e.printStackTrace();
-                }
-
-                try
-                {
-                    Thread.sleep(TIMER_REFRESH_MS);
-                } catch (InterruptedException e)
-                {
-                    e.printStackTrace();
-                }
-            }
-        }).start();
-
         updateUI();
     }
 
+    /**
+     * Called by the player on the main thread as the track plays
+     */
+    private void showTime(long positionMs) {
+        long minutes = positionMs / 60000 % 100;
+        long seconds = positionMs / 1000 % 60;
+        long hundredths = positionMs / 10 % 100;
+
+        mTimerChars[0] = (char) ('0' + minutes / 10);
+        mTimerChars[1] = (char) ('0' + minutes % 10);
+        mTimerChars[2] = ':';
+        mTimerChars[3] = (char) ('0' + seconds / 10);
+        mTimerChars[4] = (char) ('0' + seconds % 10);
+        mTimerChars[5] = '.';
+        mTimerChars[6] = (char) ('0' + hundredths / 10);
+        mTimerChars[7] = (char) ('0' + hundredths % 10);
+        mTxtTimer.setText(mTimerChars, 0, mTimerChars.length);
+    }
+
     private void pause() {
         if (mAudioPlayer != null)
         {
@@ -194,6 +203,8 @@ public class MainActivity extends AppCompatActivity {
                 return AudioPlayer.PLAYER_TYPE_SIMPLE;
             case R.id.radioSonic:
                 return AudioPlayer.PLAYER_TYPE_SONIC;
+            case R.id.radioSonicFloat:
+                return AudioPlayer.PLAYER_TYPE_SONIC_FLOAT;
             default:
                 return AudioPlayer.PLAYER_TYPE_SONIC;
         }
@@ -217,6 +228,6 @@ public class MainActivity extends AppCompatActivity {
         mBtnStop.setEnabled(mAudioPlayer != null && mAudioPlayer.isPlaying());
         mBtnPause.setEnabled(mAudioPlayer != null && !mAudioPlayer.isPaused());
         mBtnResume.setEnabled(mAudioPlayer != null && mAudioPlayer.isPaused());
-        mBtnSetParams.setEnabled(getPlayerType() == AudioPlayer.PLAYER_TYPE_SONIC);
+        mBtnSetParams.setEnabled(getPlayerType() != AudioPlayer.PLAYER_TYPE_SIMPLE);
     }
 }
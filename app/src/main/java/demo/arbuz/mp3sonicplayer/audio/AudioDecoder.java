@@ -17,54 +17,189 @@
 package demo.arbuz.mp3sonicplayer.audio;
 
 import android.content.res.AssetFileDescriptor;
+import android.media.AudioFormat;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.support.annotation.Nullable;
+import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+import demo.arbuz.mp3sonicplayer.core.Mp3FrameIndex;
+import demo.arbuz.mp3sonicplayer.core.Mp3FrameReader;
+import demo.arbuz.mp3sonicplayer.core.PcmCache;
+import demo.arbuz.mp3sonicplayer.core.PlaybackStats;
+import demo.arbuz.mp3sonicplayer.core.TraceRecorder;
 
 public class AudioDecoder {
 
+    private static final String TAG = "AudioDecoder";
+
+    /**
+     * The decoding thread polls the codec for buffers, with a short timeout
+     */
+    public static final int MODE_SYNC  = 0;
+    /**
+     * The codec passes buffers to callbacks and the decoding thread sleeps until one arrives. API 23+, sync is used
+     * below.
+     */
+    public static final int MODE_ASYNC = 1;
+
     private static final String AUDIO_MIME = "audio";
+    private static final String MP3_MIME   = "audio/mpeg";
 
     private final static int  BUFFER_DEFAULT_SIZE = 4096;
     private final static long TIMEOUT_US          = 1000;
 
+    // Set by the MP3 extractor from the LAME header, frames added by the encoder at start and end of the stream
+    private final static String KEY_ENCODER_DELAY   = "encoder-delay";
+    private final static String KEY_ENCODER_PADDING = "encoder-padding";
+
+    // Frames decoded and dropped before a seek target, so the decoder has the bit reservoir and overlap of the target
+    // frame. MPEG audio frames have up to 1152 samples.
+    private final static int SEEK_PREROLL_SAMPLES = 8 * 1152;
+
     private MediaExtractor mExtractor;
     private MediaCodec     mCodec;
+    private MediaFormat    mFormat;
+
+    // Source, kept for reading MP3 frames directly
+    private final String              mFilePath;
+    private final AssetFileDescriptor mAssetFileDescriptor;
+
+    // Extractor reads through mapped windows on API 23+, null otherwise
+    private MappedMediaDataSource mDataSource;
+
+    // Set by buildFrameIndex() on any thread, used by the decoding thread from the next seek
+    private volatile Mp3FrameIndex mFrameIndex;
+    // Replaces the extractor after the first indexed seek, used by the decoding thread only
+    private Mp3FrameReader mFrameReader;
+
+    // Requested seek, written under this. Position is -1 when none is pending, read without the lock to check.
+    private volatile long mSeekRequestUs = -1;
+    private          int  mSeekRequestId;
+    // Id of the seek taken by the decoding thread
+    private int  mSeekId;
+
+    // Decoded PCM of earlier plays is read from here instead of decoding
+    private PcmCache        mPcmCache;
+    private PcmCache.Entry  mCachedPcm;
+    private PcmCache.Writer mCacheWriter;
+
+    private PlaybackStats mPlaybackStats;
+    // Start of the work on the current block, waiting for the listener and pauses don't count
+    private long          mBlockStartNs;
+
+    // Presentation time of the input queued last, or the target of the last seek
+    private volatile long mPositionUs = 0;
 
     private int mBufferSize;
 
-    private boolean mIsPlaying = false;
-    private boolean mIsPaused  = false;
+    private int mCodecMode = MODE_SYNC;
+
+    // Async mode only, the codec's callbacks run on this thread
+    private HandlerThread mCallbackThread;
+    private CodecCallback mCodecCallback;
+
+    // Encoding of the PCM passed to the listener
+    private int mPcmEncoding      = AudioFormat.ENCODING_PCM_16BIT;
+    // Encoding of the PCM the codec actually outputs
+    private int mCodecPcmEncoding = AudioFormat.ENCODING_PCM_16BIT;
+
+    private boolean mIsPrepared = false;
+    private boolean mIsReleased = false;
+    private volatile boolean mIsPlaying = false;
+    private volatile boolean mIsPaused  = false;
+
+    // How the last start ended, the whole stream was passed to the listener, or decoding failed
+    private volatile boolean     mIsEndOfStream = false;
+    private volatile IOException mError;
 
     private int mSampleRate;
     private int mNumOfChannels;
 
+    // Block buffers, allocated once when decoding starts
+    private byte[]      mDataBuffer;
+    private FloatBuffer mFloatView;
+    private ShortBuffer mShortView;
+    private float[]     mFloatData;
+    private short[]     mShortData;
+
     public interface DecodedDataListener {
 
-        void onDataReady(byte[] data);
+        /**
+         * @param sizeInBytes number of valid bytes, less than data length only for the last block of the stream
+         */
+        void onDataReady(byte[] data, int sizeInBytes);
+
+        /**
+         * Called instead of {@link #onDataReady(byte[], int)} when decoding with {@link AudioFormat#ENCODING_PCM_FLOAT}
+         */
+        void onDataReady(float[] data, int sizeInFloats);
 
         void onSampleRateChanged(int sampleRate);
+
+        /**
+         * Called on the decoding thread when a seek is done. Data passed after this call starts at positionUs,
+         * anything decoded before it was from the old position.
+         *
+         * @param seekId id given to {@link #seekTo(long, int)}, seeks requested before the decoder got to them are
+         *               merged and only the last id is reported
+         */
+        void onSeek(long positionUs, int seekId);
     }
 
     public AudioDecoder(String filePath) throws IOException {
         mBufferSize = BUFFER_DEFAULT_SIZE;
+        mFilePath = filePath;
+        mAssetFileDescriptor = null;
 
         mExtractor = new MediaExtractor();
-        mExtractor.setDataSource(filePath);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && new File(filePath).isFile())
+        {
+            mDataSource = new MappedMediaDataSource(new File(filePath));
+            mExtractor.setDataSource(mDataSource);
+        }
+        else
+        {
+            mExtractor.setDataSource(filePath);
+        }
 
         initExtractor();
     }
 
     public AudioDecoder(AssetFileDescriptor assetFileDescriptor) throws IOException {
         mBufferSize = BUFFER_DEFAULT_SIZE;
+        mFilePath = null;
+        mAssetFileDescriptor = assetFileDescriptor;
 
         mExtractor = new MediaExtractor();
 
-        mExtractor.setDataSource(assetFileDescriptor.getFileDescriptor(), assetFileDescriptor.getStartOffset(),
-                assetFileDescriptor.getLength());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+        {
+            mDataSource = new MappedMediaDataSource(assetFileDescriptor);
+            mExtractor.setDataSource(mDataSource);
+        }
+        else
+        {
+            mExtractor.setDataSource(assetFileDescriptor.getFileDescriptor(), assetFileDescriptor.getStartOffset(),
+                    assetFileDescriptor.getLength());
+        }
 
         initExtractor();
     }
@@ -72,18 +207,91 @@ public class AudioDecoder {
     private void initExtractor() throws IOException {
         int audioTrackIndex = getAudioTrackIndex(mExtractor);
 
-        MediaFormat format = mExtractor.getTrackFormat(audioTrackIndex);
-        String mime = format.getString(MediaFormat.KEY_MIME);
+        mFormat = mExtractor.getTrackFormat(audioTrackIndex);
+        mSampleRate = mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        mNumOfChannels = mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
 
-        mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-        mNumOfChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        mExtractor.selectTrack(audioTrackIndex);
+    }
 
-        mCodec = MediaCodec.createDecoderByType(mime);
+    /**
+     * Set encoding of decoded data, {@link AudioFormat#ENCODING_PCM_16BIT} (default) or {@link AudioFormat#ENCODING_PCM_FLOAT}.
+     * <p>
+     * Float output is requested from the codec on API 24+. If the codec doesn't support it, 16-bit output is converted.
+     */
+    public void setPcmEncoding(int pcmEncoding) {
+        if (mIsPrepared)
+        {
+            throw new IllegalStateException("Can't change encoding after prepare");
+        }
+        if (pcmEncoding != AudioFormat.ENCODING_PCM_16BIT && pcmEncoding != AudioFormat.ENCODING_PCM_FLOAT)
+        {
+            throw new IllegalArgumentException("Unsupported encoding " + pcmEncoding);
+        }
+        mPcmEncoding = pcmEncoding;
+    }
 
-        // No surface, no crypto, used for decoding
-        mCodec.configure(format, null, null, 0);
+    /**
+     * Set how buffers are taken from the codec, {@link #MODE_SYNC} (default) or {@link #MODE_ASYNC}. Set before
+     * prepare.
+     */
+    public void setCodecMode(int codecMode) {
+        if (mIsPrepared)
+        {
+            throw new IllegalStateException("Can't change codec mode after prepare");
+        }
+        if (codecMode != MODE_SYNC && codecMode != MODE_ASYNC)
+        {
+            throw new IllegalArgumentException("Unsupported codec mode " + codecMode);
+        }
+        mCodecMode = codecMode;
+    }
 
-        mExtractor.selectTrack(audioTrackIndex);
+    /**
+     * @return mode the codec actually runs in, known after prepare
+     */
+    public int getCodecMode() {
+        return mCodecCallback != null ? MODE_ASYNC : MODE_SYNC;
+    }
+
+    /**
+     * Set before prepare. If the cache has the PCM of the source, it is played from there without the codec.
+     * Otherwise the decoded PCM is written to the cache, and added when the whole stream was decoded.
+     */
+    public void setPcmCache(@Nullable PcmCache pcmCache) {
+        if (mIsPrepared)
+        {
+            throw new IllegalStateException("Can't change cache after prepare");
+        }
+        mPcmCache = pcmCache;
+    }
+
+    /**
+     * Record codec waits and decoding speed, set before start
+     */
+    public void setPlaybackStats(@Nullable PlaybackStats playbackStats) {
+        mPlaybackStats = playbackStats;
+    }
+
+    /**
+     * Source the extractor reads through, with its read statistics
+     *
+     * @return null below API 23, or for paths that aren't local files
+     */
+    @Nullable
+    public MappedMediaDataSource getMappedDataSource() {
+        return mDataSource;
+    }
+
+    /**
+     * @return true if the stream plays from the PCM cache, known after prepare
+     */
+    public boolean isPlayingFromCache() {
+        return mCachedPcm != null;
+    }
+
+    public int getPcmEncoding() {
+        return mPcmEncoding;
     }
 
     public void setBufferSize(int bufferSize) {
@@ -102,14 +310,207 @@ public class AudioDecoder {
         return mNumOfChannels;
     }
 
+    /**
+     * @return duration of the stream in microseconds, or -1 if unknown
+     */
+    public long getDurationUs() {
+        return mFormat.containsKey(MediaFormat.KEY_DURATION) ? mFormat.getLong(MediaFormat.KEY_DURATION) : -1;
+    }
+
     public long getElapsedTimeInMillis() {
-        return mExtractor.getSampleTime() / 1000;
+        return mPositionUs / 1000;
+    }
+
+    /**
+     * @return true if the last {@link #start(DecodedDataListener)} passed the whole stream to the listener, false if
+     * it was stopped before or failed
+     */
+    public boolean isEndOfStream() {
+        return mIsEndOfStream;
+    }
+
+    /**
+     * @return error that ended the last {@link #start(DecodedDataListener)}, or null
+     */
+    @Nullable
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Scan the MP3 frames of the source, so seeks land on the exact sample instead of the extractor's estimate.
+     * Blocks for the scan, can be called on any thread before or while decoding. Does nothing for other formats.
+     *
+     * @param cacheDir directory to keep the index in for the next time the file is opened, or null to always scan.
+     *                 Indexes of assets are not kept.
+     */
+    public void buildFrameIndex(@Nullable File cacheDir) throws IOException {
+        if (!MP3_MIME.equals(mFormat.getString(MediaFormat.KEY_MIME)) || mFrameIndex != null)
+        {
+            return;
+        }
+
+        if (mFilePath != null && cacheDir != null)
+        {
+            mFrameIndex = Mp3FrameIndex.load(cacheDir, new File(mFilePath));
+            return;
+        }
+
+        try (FileChannel channel = openChannel())
+        {
+            long start = mAssetFileDescriptor != null ? mAssetFileDescriptor.getStartOffset() : 0;
+            long length = mAssetFileDescriptor != null ? mAssetFileDescriptor.getLength() : channel.size();
+            mFrameIndex = Mp3FrameIndex.build(channel, start, length);
+        }
+    }
+
+    public boolean hasFrameIndex() {
+        return mFrameIndex != null;
+    }
+
+    /**
+     * Move decoding to positionMs. Can be called on any thread, the decoding thread does the seek before decoding
+     * more, also when paused.
+     * <p>
+     * With a frame index the position is sample accurate, otherwise decoding starts from the extractor's sync sample
+     * before the position and the samples up to it are dropped.
+     *
+     * @param seekId passed back to {@link DecodedDataListener#onSeek(long, int)}
+     */
+    public synchronized void seekTo(long positionMs, int seekId) {
+        mSeekRequestUs = Math.max(0, positionMs) * 1000;
+        mSeekRequestId = seekId;
+        mPositionUs = mSeekRequestUs;
+
+        // Wake a paused decoder, or one waiting for the codec, to do the seek
+        notifyAll();
+    }
+
+    /**
+     * Configure and start the codec, so {@link #start(DecodedDataListener)} can decode right away.
+     * Can be called on another thread, to have the next track ready while the current one plays.
+     */
+    public void prepare() throws IOException {
+        if (mIsPrepared)
+        {
+            return;
+        }
+
+        String cacheKey = mPcmCache != null ? getCacheKey() : null;
+        if (cacheKey != null)
+        {
+            PcmCache.Entry cachedPcm = mPcmCache.open(cacheKey);
+            if (cachedPcm != null && cachedPcm.getNumOfChannels() == mNumOfChannels &&
+                    cachedPcm.isFloat() == (mPcmEncoding == AudioFormat.ENCODING_PCM_FLOAT))
+            {
+                // No codec needed
+                mCachedPcm = cachedPcm;
+                mIsPrepared = true;
+                return;
+            }
+        }
+
+        mCodec = MediaCodec.createDecoderByType(mFormat.getString(MediaFormat.KEY_MIME));
+
+        if (mPcmEncoding == AudioFormat.ENCODING_PCM_FLOAT && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+        {
+            mFormat.setInteger(MediaFormat.KEY_PCM_ENCODING, AudioFormat.ENCODING_PCM_FLOAT);
+        }
+
+        if (mCodecMode == MODE_ASYNC && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+        {
+            // Set before configure, buffers are passed to the callback from then on
+            mCallbackThread = new HandlerThread("AudioDecoderCallbacks");
+            mCallbackThread.start();
+            mCodecCallback = new CodecCallback(new Handler(mCallbackThread.getLooper()));
+            mCodec.setCallback(mCodecCallback, mCodecCallback.mHandler);
+        }
+
+        // No surface, no crypto, used for decoding
+        mCodec.configure(mFormat, null, null, 0);
+        mCodec.start();
+
+        mIsPrepared = true;
+    }
+
+    /**
+     * Free the codec and extractor of a decoder that won't be started
+     */
+    public void release() {
+        if (mIsPlaying)
+        {
+            throw new IllegalStateException("Stop decoding to release");
+        }
+        if (mIsReleased)
+        {
+            return;
+        }
+
+        if (mCodec != null)
+        {
+            if (mIsPrepared)
+            {
+                mCodec.stop();
+            }
+            mCodec.release();
+        }
+        if (mCallbackThread != null)
+        {
+            mCallbackThread.quit();
+            mCallbackThread = null;
+        }
+        mExtractor.release();
+        closeDataSource();
+        closeFrameReader();
+        mCachedPcm = null;
+
+        mIsPrepared = false;
+        mIsReleased = true;
     }
 
+    /**
+     * Decode until end of stream or {@link #stop()}, and release the decoder. Errors end decoding too, they are
+     * reported by {@link #getError()}.
+     */
     public void start(DecodedDataListener decodedDataListener) {
         mIsPlaying = true;
+        mIsEndOfStream = false;
+        mError = null;
 
-        mCodec.start();
+        try
+        {
+            prepare();
+            mBlockStartNs = System.nanoTime();
+
+            if (mCachedPcm != null)
+            {
+                playCachedPcm(decodedDataListener);
+            }
+            else
+            {
+                decode(decodedDataListener);
+            }
+        } catch (IOException e)
+        {
+            Log.e(TAG, "Can't start decoding", e);
+            mError = e;
+        } finally
+        {
+            abortCacheWriter();
+        }
+
+        mIsPlaying = false;
+        release();
+    }
+
+    private void decode(DecodedDataListener decodedDataListener) {
+        mCacheWriter = createCacheWriter();
+
+        // Encoder delay and padding are cut, so consecutive tracks join without a gap
+        int frameSize = mNumOfChannels * (mCodecPcmEncoding == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2);
+        int skipBytes = getFormatInteger(KEY_ENCODER_DELAY) * frameSize;
+        int paddingFrames = getFormatInteger(KEY_ENCODER_PADDING);
+        int paddingBytes = paddingFrames * frameSize;
 
         MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
         ByteBuffer outputBuffer = null;
@@ -118,40 +519,69 @@ public class AudioDecoder {
         int availableOutBytes = 0;
 
         // Stores samples that will be written to audio track
-        final byte[] dataBuffer = new byte[mBufferSize];
-        int dataBufferFreeBytes = dataBuffer.length;
+        // The padding is held back after the block, as it can't be told apart from data before end of stream
+        final byte[] dataBuffer = allocateBlockBuffers(paddingFrames * mNumOfChannels * 4);
+        int dataBufferFreeBytes = mBufferSize + paddingBytes;
 
         boolean EOS = false;
 
+        // Decoder delay, as the frame index counts samples from the first frame
+        int encoderDelay = getFormatInteger(KEY_ENCODER_DELAY);
+
         while (mIsPlaying)
         {
 
-            // Pause decoding
-            if (mIsPaused)
+            waitIfPaused();
+
+            long seekUs = takeSeekRequest();
+            if (seekUs >= 0)
             {
-                synchronized (this)
-                {
-                    try
-                    {
-                        wait();
-                    } catch (InterruptedException e)
-                    {
-                        e.printStackTrace();
-                    }
-                }
+                // The cached stream must be complete and in order
+                abortCacheWriter();
+
+                // Drop everything decoded from the old position, including held back padding
+                flushCodec();
+                outputBuffer = null;
+                availableOutBytes = 0;
+                info.flags = 0;
+                EOS = false;
+                dataBufferFreeBytes = mBufferSize + paddingBytes;
+
+                TraceRecorder.instant(TraceRecorder.SEEK, seekUs / 1000);
+                skipBytes = seekInput(seekUs, encoderDelay) * frameSize;
+                decodedDataListener.onSeek(seekUs, mSeekId);
+                continue;
             }
 
+            // Nothing to do in this pass, async mode waits for the codec before the next one
+            boolean isIdle = true;
+
             if (!EOS)
             {
+                TraceRecorder.begin(TraceRecorder.DECODER_INPUT);
+
                 // Dequeue an input buffer
-                int inIndex = mCodec.dequeueInputBuffer(TIMEOUT_US);
+                int inIndex = dequeueInputBuffer();
+                isIdle = inIndex < 0;
                 if (inIndex >= 0)
                 {
                     // Get buffer with stream data
                     ByteBuffer buffer = mCodec.getInputBuffer(inIndex);
                     if (buffer != null)
                     {
-                        int sampleSize = mExtractor.readSampleData(buffer, 0);
+                        long sampleTimeUs;
+                        int sampleSize;
+                        if (mFrameReader != null)
+                        {
+                            sampleTimeUs = Math.max(0, (mFrameReader.getSamplePosition() - encoderDelay) * 1000000L
+                                    / mSampleRate);
+                            sampleSize = readFrame(buffer);
+                        }
+                        else
+                        {
+                            sampleTimeUs = mExtractor.getSampleTime();
+                            sampleSize = mExtractor.readSampleData(buffer, 0);
+                        }
 
                         // Pass the stream data to the codec
                         if (sampleSize < 0)
@@ -162,17 +592,36 @@ public class AudioDecoder {
                         }
                         else
                         {
-                            mCodec.queueInputBuffer(inIndex, 0, sampleSize, mExtractor.getSampleTime(), 0);
-                            mExtractor.advance();
+                            mCodec.queueInputBuffer(inIndex, 0, sampleSize, sampleTimeUs, 0);
+                            mPositionUs = sampleTimeUs;
+                            if (mFrameReader == null)
+                            {
+                                mExtractor.advance();
+                            }
                         }
                     }
                 }
+
+                TraceRecorder.end(TraceRecorder.DECODER_INPUT);
             }
 
             // Dequeue next output buffer when no bytes available for write
             if (availableOutBytes == 0)
             {
-                activeBufferIndex = mCodec.dequeueOutputBuffer(info, TIMEOUT_US);
+                TraceRecorder.begin(TraceRecorder.DECODER_OUTPUT);
+                if (mPlaybackStats != null)
+                {
+                    long dequeueStartNs = System.nanoTime();
+                    activeBufferIndex = dequeueOutputBuffer(info);
+                    mPlaybackStats.getCodecDequeueHistogram().record(System.nanoTime() - dequeueStartNs);
+                }
+                else
+                {
+                    activeBufferIndex = dequeueOutputBuffer(info);
+                }
+                TraceRecorder.end(TraceRecorder.DECODER_OUTPUT);
+
+                isIdle &= activeBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER;
 
                 if (activeBufferIndex >= 0)
                 {
@@ -187,28 +636,64 @@ public class AudioDecoder {
 
                 if (activeBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED)
                 {
-                    mSampleRate = mCodec.getOutputFormat().getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    MediaFormat outputFormat = mCodec.getOutputFormat();
+                    if (outputFormat.containsKey(MediaFormat.KEY_PCM_ENCODING))
+                    {
+                        mCodecPcmEncoding = outputFormat.getInteger(MediaFormat.KEY_PCM_ENCODING);
+                    }
+
+                    mSampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    TraceRecorder.instant(TraceRecorder.DECODER_FORMAT, mSampleRate);
                     decodedDataListener.onSampleRateChanged(mSampleRate);
+
+                    // The cache file has one rate, start it again with the rate the codec reports
+                    boolean isCaching = mCacheWriter != null && mCacheWriter.getDataSize() == 0;
+                    abortCacheWriter();
+                    if (isCaching)
+                    {
+                        mCacheWriter = createCacheWriter();
+                    }
+
+                    // Sizes are in bytes of the codec's encoding, which is known only now
+                    int codecFrameSize = mNumOfChannels * (mCodecPcmEncoding == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2);
+                    if (codecFrameSize != frameSize && dataBufferFreeBytes == mBufferSize + paddingBytes)
+                    {
+                        skipBytes = skipBytes / frameSize * codecFrameSize;
+                        paddingBytes = paddingFrames * codecFrameSize;
+                        dataBufferFreeBytes = mBufferSize + paddingBytes;
+                        frameSize = codecFrameSize;
+                    }
                 }
             }
 
+            // Drop encoder delay at the start of the stream
+            if (outputBuffer != null && availableOutBytes > 0 && skipBytes > 0)
+            {
+                int length = Math.min(availableOutBytes, skipBytes);
+                outputBuffer.position(outputBuffer.position() + length);
+
+                availableOutBytes -= length;
+                skipBytes -= length;
+            }
+
             // Get bytes from output buffer and write to data buffer
             if (outputBuffer != null && availableOutBytes > 0)
             {
                 // Get all available bytes or enough to fill the buffer
                 int length = Math.min(availableOutBytes, dataBufferFreeBytes);
-                int offset = dataBuffer.length - dataBufferFreeBytes;
+                int offset = mBufferSize + paddingBytes - dataBufferFreeBytes;
                 outputBuffer.get(dataBuffer, offset, length);
 
                 availableOutBytes -= length;
                 dataBufferFreeBytes -= length;
             }
 
-            // Write buffer to track when full
+            // Write buffer to track when full, and move the held back bytes to the start
             if (dataBufferFreeBytes == 0)
             {
-                decodedDataListener.onDataReady(dataBuffer);
-                dataBufferFreeBytes = dataBuffer.length;
+                deliverData(decodedDataListener, mBufferSize);
+                System.arraycopy(dataBuffer, mBufferSize, dataBuffer, 0, paddingBytes);
+                dataBufferFreeBytes = mBufferSize;
             }
 
             // Return buffer to codec when done reading all data
@@ -221,19 +706,383 @@ public class AudioDecoder {
                 }
             }
 
-            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+            // Stop after all bytes of the last buffer were read, and pass what is left in data buffer without padding
+            if (availableOutBytes == 0 && (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
             {
+                int remainingBytes = mBufferSize - dataBufferFreeBytes;
+                if (remainingBytes > 0)
+                {
+                    deliverData(decodedDataListener, remainingBytes);
+                }
+                commitCacheWriter();
+                mIsEndOfStream = true;
                 stop();
             }
+            else if (isIdle && availableOutBytes == 0 && mCodecCallback != null)
+            {
+                mCodecCallback.waitForBuffer(EOS);
+            }
         }
+    }
 
-        mCodec.stop();
-        mCodec.release();
-        mExtractor.release();
+    private int dequeueInputBuffer() {
+        return mCodecCallback != null ? mCodecCallback.takeInputBuffer() : mCodec.dequeueInputBuffer(TIMEOUT_US);
+    }
+
+    private int dequeueOutputBuffer(MediaCodec.BufferInfo info) {
+        return mCodecCallback != null ? mCodecCallback.takeOutputBuffer(info) : mCodec.dequeueOutputBuffer(info,
+                TIMEOUT_US);
+    }
+
+    private void flushCodec() {
+        if (mCodecCallback != null)
+        {
+            mCodecCallback.flush();
+        }
+        else
+        {
+            mCodec.flush();
+        }
+    }
+
+    /**
+     * Pass the PCM of the cache in blocks, as decoding would
+     */
+    private void playCachedPcm(DecodedDataListener decodedDataListener) {
+        ByteBuffer data = mCachedPcm.getData();
+        int frameSize = mCachedPcm.getFrameSize();
+        int blockSize = mBufferSize - mBufferSize % frameSize;
+
+        // Cached PCM is in the listener's encoding already
+        mCodecPcmEncoding = mPcmEncoding;
+        allocateBlockBuffers(0);
+
+        mSampleRate = mCachedPcm.getSampleRate();
+        decodedDataListener.onSampleRateChanged(mSampleRate);
+
+        while (mIsPlaying)
+        {
+            waitIfPaused();
+
+            long seekUs = takeSeekRequest();
+            if (seekUs >= 0)
+            {
+                long frame = Math.min(mCachedPcm.getNumOfFrames(), seekUs * mSampleRate / 1000000);
+                data.position((int) (frame * frameSize));
+                decodedDataListener.onSeek(seekUs, mSeekId);
+            }
+
+            int length = Math.min(blockSize, data.remaining());
+            if (length == 0)
+            {
+                mIsEndOfStream = true;
+                stop();
+                break;
+            }
+
+            mPositionUs = (long) (data.position() / frameSize) * 1000000 / mSampleRate;
+            data.get(mDataBuffer, 0, length);
+            deliverData(decodedDataListener, length);
+        }
+    }
+
+    /**
+     * Allocate the block buffers once per stream, with extraBytes after the block
+     */
+    private byte[] allocateBlockBuffers(int extraBytes) {
+        mDataBuffer = new byte[mBufferSize + extraBytes];
+
+        // Float data is read from the same buffer, without extra allocations per block
+        ByteBuffer dataView = ByteBuffer.wrap(mDataBuffer).order(ByteOrder.nativeOrder());
+        mFloatView = dataView.asFloatBuffer();
+        mShortView = dataView.asShortBuffer();
+        mFloatData = new float[mBufferSize / 2];
+        mShortData = new short[mBufferSize / 2];
+        return mDataBuffer;
+    }
+
+    private void waitIfPaused() {
+        if (mIsPaused)
+        {
+            synchronized (this)
+            {
+                // Codec callbacks notify too, keep waiting through them
+                while (mIsPaused && mIsPlaying && mSeekRequestUs < 0)
+                {
+                    try
+                    {
+                        wait();
+                    } catch (InterruptedException e)
+                    {
+                        e.printStackTrace();
+                        break;
+                    }
+                }
+            }
+            mBlockStartNs = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return position of the pending seek, or -1. Its id is put in mSeekId.
+     */
+    private long takeSeekRequest() {
+        // Checked once per codec buffer, don't lock unless there is a request
+        if (mSeekRequestUs < 0)
+        {
+            return -1;
+        }
+        synchronized (this)
+        {
+            long seekUs = mSeekRequestUs;
+            mSeekRequestUs = -1;
+            mSeekId = mSeekRequestId;
+            return seekUs;
+        }
+    }
+
+    /**
+     * Files are keyed by identity, assets by their place in the package and the package file, which changes when the
+     * app is updated. Encodings are cached apart.
+     *
+     * @return null if the package file can't be identified, the track is not cached then
+     */
+    @Nullable
+    private String getCacheKey() {
+        if (mFilePath != null)
+        {
+            File file = new File(mFilePath);
+            return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified() + ":" + mPcmEncoding;
+        }
+
+        // The asset's descriptor is open on the package file
+        StructStat packageStat;
+        try
+        {
+            packageStat = Os.fstat(mAssetFileDescriptor.getFileDescriptor());
+        } catch (ErrnoException e)
+        {
+            Log.w(TAG, "Can't identify the package of the asset", e);
+            return null;
+        }
+        return "asset:" + packageStat.st_size + ":" + packageStat.st_mtime + ":" + mAssetFileDescriptor.getStartOffset() +
+                ":" + mAssetFileDescriptor.getLength() + ":" + mPcmEncoding;
+    }
+
+    private PcmCache.Writer createCacheWriter() {
+        String cacheKey = mPcmCache != null ? getCacheKey() : null;
+        if (cacheKey == null)
+        {
+            return null;
+        }
+        try
+        {
+            return mPcmCache.createWriter(cacheKey, mSampleRate, mNumOfChannels,
+                    mPcmEncoding == AudioFormat.ENCODING_PCM_FLOAT);
+        } catch (IOException e)
+        {
+            Log.w(TAG, "Can't write PCM cache", e);
+            return null;
+        }
+    }
+
+    private void writeToCache(byte[] data, int sizeInBytes) {
+        try
+        {
+            mCacheWriter.write(data, sizeInBytes);
+        } catch (IOException e)
+        {
+            Log.w(TAG, "Can't write PCM cache", e);
+            abortCacheWriter();
+        }
+    }
+
+    private void writeToCache(float[] data, int sizeInFloats) {
+        try
+        {
+            mCacheWriter.write(data, sizeInFloats);
+        } catch (IOException e)
+        {
+            Log.w(TAG, "Can't write PCM cache", e);
+            abortCacheWriter();
+        }
+    }
+
+    private void commitCacheWriter() {
+        if (mCacheWriter != null)
+        {
+            try
+            {
+                mCacheWriter.commit();
+            } catch (IOException e)
+            {
+                Log.w(TAG, "Can't write PCM cache", e);
+            }
+            mCacheWriter = null;
+        }
+    }
+
+    private void abortCacheWriter() {
+        if (mCacheWriter != null)
+        {
+            mCacheWriter.abort();
+            mCacheWriter = null;
+        }
+    }
+
+    /**
+     * Move the input to the frame index entry before the target, or to the extractor's sync sample before it
+     *
+     * @return frames to drop from the decoded output to reach the target
+     */
+    private int seekInput(long positionUs, int encoderDelay) {
+        Mp3FrameIndex frameIndex = mFrameIndex;
+        if (frameIndex != null && openFrameReader(frameIndex))
+        {
+            long targetSample = positionUs * mSampleRate / 1000000 + encoderDelay;
+            int entry = frameIndex.findEntry(Math.max(0, targetSample - SEEK_PREROLL_SAMPLES));
+            mFrameReader.seekToEntry(entry);
+            return (int) Math.max(0, targetSample - frameIndex.getSamplePosition(entry));
+        }
+
+        mExtractor.seekTo(positionUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long sampleTimeUs = mExtractor.getSampleTime();
+        return sampleTimeUs < 0 ? 0 : (int) (Math.max(0, positionUs - sampleTimeUs) * mSampleRate / 1000000);
+    }
+
+    private boolean openFrameReader(Mp3FrameIndex frameIndex) {
+        if (mFrameReader != null)
+        {
+            return true;
+        }
+        try
+        {
+            long start = mAssetFileDescriptor != null ? mAssetFileDescriptor.getStartOffset() : 0;
+            mFrameReader = new Mp3FrameReader(openChannel(), start, frameIndex);
+            return true;
+        } catch (IOException e)
+        {
+            Log.w(TAG, "Can't read MP3 frames, seeking with the extractor", e);
+            return false;
+        }
+    }
+
+    private int readFrame(ByteBuffer buffer) {
+        try
+        {
+            buffer.clear();
+            int length = mFrameReader.readFrame(buffer);
+            buffer.flip();
+            return length;
+        } catch (IOException e)
+        {
+            Log.e(TAG, "Reading MP3 frame failed", e);
+            return -1;
+        }
+    }
+
+    private void closeDataSource() {
+        if (mDataSource != null)
+        {
+            // The extractor closes it too, closing again does nothing
+            try
+            {
+                mDataSource.close();
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void closeFrameReader() {
+        if (mFrameReader != null)
+        {
+            try
+            {
+                mFrameReader.close();
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            mFrameReader = null;
+        }
+    }
+
+    /**
+     * A channel of its own, reads don't move the extractor's file position
+     */
+    private FileChannel openChannel() throws IOException {
+        if (mFilePath != null)
+        {
+            return new RandomAccessFile(mFilePath, "r").getChannel();
+        }
+        // Closing the stream closes the duplicate only, the asset descriptor stays open
+        ParcelFileDescriptor descriptor = ParcelFileDescriptor.dup(mAssetFileDescriptor.getFileDescriptor());
+        return new ParcelFileDescriptor.AutoCloseInputStream(descriptor).getChannel();
+    }
+
+    private int getFormatInteger(String key) {
+        return mFormat.containsKey(key) ? mFormat.getInteger(key) : 0;
+    }
+
+    private void deliverData(DecodedDataListener decodedDataListener, int sizeInBytes) {
+        if (mPlaybackStats != null)
+        {
+            int frameSize = mNumOfChannels * (mCodecPcmEncoding == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2);
+            mPlaybackStats.recordDecodedBlock(sizeInBytes / frameSize, mSampleRate, System.nanoTime() - mBlockStartNs);
+        }
+
+        passData(decodedDataListener, sizeInBytes);
+
+        mBlockStartNs = System.nanoTime();
+    }
+
+    private void passData(DecodedDataListener decodedDataListener, int sizeInBytes) {
+        if (mPcmEncoding == AudioFormat.ENCODING_PCM_16BIT)
+        {
+            if (mCacheWriter != null)
+            {
+                writeToCache(mDataBuffer, sizeInBytes);
+            }
+            decodedDataListener.onDataReady(mDataBuffer, sizeInBytes);
+        }
+        else if (mCodecPcmEncoding == AudioFormat.ENCODING_PCM_FLOAT)
+        {
+            int sizeInFloats = sizeInBytes / 4;
+            mFloatView.rewind();
+            mFloatView.get(mFloatData, 0, sizeInFloats);
+            if (mCacheWriter != null)
+            {
+                writeToCache(mFloatData, sizeInFloats);
+            }
+            decodedDataListener.onDataReady(mFloatData, sizeInFloats);
+        }
+        else
+        {
+            // Codec ignored the float request, convert here
+            int sizeInShorts = sizeInBytes / 2;
+            mShortView.rewind();
+            mShortView.get(mShortData, 0, sizeInShorts);
+            for (int i = 0; i < sizeInShorts; i++)
+            {
+                mFloatData[i] = mShortData[i] / 32768f;
+            }
+            if (mCacheWriter != null)
+            {
+                writeToCache(mFloatData, sizeInShorts);
+            }
+            decodedDataListener.onDataReady(mFloatData, sizeInShorts);
+        }
     }
 
     public void stop() {
         mIsPlaying = false;
+        synchronized (this)
+        {
+            // Wake the decoding thread if it waits for the codec or a resume
+            notifyAll();
+        }
     }
 
 
@@ -249,7 +1098,224 @@ public class AudioDecoder {
         mIsPaused = false;
         synchronized (this)
         {
-            notify();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Queues the buffers the codec passes in async mode, until the decoding thread takes them. Queues are guarded by
+     * the decoder's lock, the decoding thread waits on it.
+     * <p>
+     * Callbacks that were posted to the handler before a flush carry buffers the flush invalidated. A flush counts as
+     * pending until a message posted after it runs on the handler thread, and callbacks are dropped until then. That
+     * message also starts the codec again, as async mode requires after a flush.
+     */
+    private class CodecCallback extends MediaCodec.Callback {
+
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final Handler mHandler;
+
+        // Flushes whose message didn't run yet on the handler thread
+        private int mPendingFlushCount;
+
+        private int[] mInputIndices = new int[INITIAL_CAPACITY];
+        private int   mInputHead;
+        private int   mInputCount;
+
+        // Index and info of each output buffer, or INFO_OUTPUT_FORMAT_CHANGED
+        private int[]  mOutputIndices = new int[INITIAL_CAPACITY];
+        private int[]  mOutputSizes   = new int[INITIAL_CAPACITY];
+        private int[]  mOutputFlags   = new int[INITIAL_CAPACITY];
+        private long[] mOutputTimesUs = new long[INITIAL_CAPACITY];
+        private int    mOutputHead;
+        private int    mOutputCount;
+
+        CodecCallback(Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            synchronized (AudioDecoder.this)
+            {
+                if (mPendingFlushCount > 0)
+                {
+                    return;
+                }
+                if (mInputCount == mInputIndices.length)
+                {
+                    mInputIndices = grow(mInputIndices, mInputHead);
+                    mInputHead = 0;
+                }
+                mInputIndices[(mInputHead + mInputCount++) % mInputIndices.length] = index;
+                AudioDecoder.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            synchronized (AudioDecoder.this)
+            {
+                if (mPendingFlushCount == 0)
+                {
+                    addOutput(index, info.size, info.flags, info.presentationTimeUs);
+                }
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            synchronized (AudioDecoder.this)
+            {
+                // Read with getOutputFormat(), in order with the buffers
+                if (mPendingFlushCount == 0)
+                {
+                    addOutput(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED, 0, 0, 0);
+                }
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "Codec error", e);
+            mError = new IOException("Codec error", e);
+            stop();
+        }
+
+        /**
+         * @return index of an input buffer, or -1 if there is none
+         */
+        int takeInputBuffer() {
+            synchronized (AudioDecoder.this)
+            {
+                if (mInputCount == 0)
+                {
+                    return -1;
+                }
+                int index = mInputIndices[mInputHead];
+                mInputHead = (mInputHead + 1) % mInputIndices.length;
+                mInputCount--;
+                return index;
+            }
+        }
+
+        /**
+         * @return as {@link MediaCodec#dequeueOutputBuffer(MediaCodec.BufferInfo, long)} without waiting
+         */
+        int takeOutputBuffer(MediaCodec.BufferInfo info) {
+            synchronized (AudioDecoder.this)
+            {
+                if (mOutputCount == 0)
+                {
+                    return MediaCodec.INFO_TRY_AGAIN_LATER;
+                }
+                int head = mOutputHead;
+                int index = mOutputIndices[head];
+                if (index >= 0)
+                {
+                    info.set(0, mOutputSizes[head], mOutputTimesUs[head], mOutputFlags[head]);
+                }
+                mOutputHead = (head + 1) % mOutputIndices.length;
+                mOutputCount--;
+                return index;
+            }
+        }
+
+        /**
+         * Sleep until the codec passes a buffer the decoding thread can use, or decoding is stopped, seeks or pauses
+         *
+         * @param isInputDone input buffers aren't needed after end of stream was queued
+         */
+        void waitForBuffer(boolean isInputDone) {
+            synchronized (AudioDecoder.this)
+            {
+                while (mIsPlaying && !mIsPaused && mSeekRequestUs < 0 && mOutputCount == 0 &&
+                        (isInputDone || mInputCount == 0))
+                {
+                    try
+                    {
+                        AudioDecoder.this.wait();
+                    } catch (InterruptedException e)
+                    {
+                        e.printStackTrace();
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Flush the codec, called by the decoding thread. Buffers are passed again after the codec was started on the
+         * handler thread.
+         */
+        void flush() {
+            synchronized (AudioDecoder.this)
+            {
+                // Set before the flush, callbacks that arrive during it are stale too
+                mPendingFlushCount++;
+                mInputCount = 0;
+                mOutputCount = 0;
+            }
+            mCodec.flush();
+            // Runs after every callback that was posted before or during the flush
+            mHandler.post(this::onFlushCompleted);
+        }
+
+        private void onFlushCompleted() {
+            synchronized (AudioDecoder.this)
+            {
+                mInputCount = 0;
+                mOutputCount = 0;
+                if (--mPendingFlushCount > 0)
+                {
+                    // Started by the message of the last flush
+                    return;
+                }
+            }
+            try
+            {
+                mCodec.start();
+            } catch (IllegalStateException e)
+            {
+                // Decoding stopped and the codec was released in the meantime
+                Log.w(TAG, "Can't start codec after flush", e);
+                stop();
+            }
+        }
+
+        private void addOutput(int index, int size, int flags, long timeUs) {
+            if (mOutputCount == mOutputIndices.length)
+            {
+                mOutputIndices = grow(mOutputIndices, mOutputHead);
+                mOutputSizes = grow(mOutputSizes, mOutputHead);
+                mOutputFlags = grow(mOutputFlags, mOutputHead);
+                long[] outputTimesUs = new long[mOutputTimesUs.length * 2];
+                for (int i = 0; i < mOutputTimesUs.length; i++)
+                {
+                    outputTimesUs[i] = mOutputTimesUs[(mOutputHead + i) % mOutputTimesUs.length];
+                }
+                mOutputTimesUs = outputTimesUs;
+                mOutputHead = 0;
+            }
+            int tail = (mOutputHead + mOutputCount++) % mOutputIndices.length;
+            mOutputIndices[tail] = index;
+            mOutputSizes[tail] = size;
+            mOutputFlags[tail] = flags;
+            mOutputTimesUs[tail] = timeUs;
+            AudioDecoder.this.notifyAll();
+        }
+
+        /**
+         * Copy a full ring to one of twice the size, with the head at 0
+         */
+        private int[] grow(int[] ring, int head) {
+            int[] grown = new int[ring.length * 2];
+            for (int i = 0; i < ring.length; i++)
+            {
+                grown[i] = ring[(head + i) % ring.length];
+            }
+            return grown;
         }
     }
 
@@ -18,40 +18,193 @@ package demo.arbuz.mp3sonicplayer.audio;
 
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Handler;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+import demo.arbuz.mp3sonicplayer.core.PlaybackPositionTracker;
+import demo.arbuz.mp3sonicplayer.core.PlaybackStats;
+import demo.arbuz.mp3sonicplayer.core.TraceRecorder;
 
 public class AudioDevice {
 
     private static final int BUFFER_MIN_MAGNITUDE = 4;
 
-    private AudioTrack mAudioTrack;
+    private static final long DRAIN_POLL_MS = 50;
+
+    private volatile AudioTrack mAudioTrack;
 
     private int mBufferMinSize;
 
+    private int mPcmEncoding;
+
+    private int mNumOfChannels;
+
+    private int mSampleRate;
+
+    private PlaybackStats mPlaybackStats;
+    // Total time writes to the track blocked, written by the audio thread only
+    private long          mTrackWriteNs = 0;
+    // Underruns the track reported up to the last write, or that were skipped
+    private int           mTrackUnderrunCount = 0;
+
+    // Maps played frames to the stream position, the reported position is what is heard
+    private final PlaybackPositionTracker mPositionTracker = new PlaybackPositionTracker();
+    private final AudioTimestamp          mTimestamp       = new AudioTimestamp();
+    // Timestamps from before a flush count from another start
+    private volatile long                 mFlushTimeNs     = 0;
+    private long                          mLastPositionMs  = 0;
+
+    public AudioDevice(int sampleRate, int numOfChannels) {
+        this(sampleRate, numOfChannels, AudioFormat.ENCODING_PCM_16BIT);
+    }
+
     // AudioTrack constructor is deprecated but the Builder is available only from SDK-23
     @SuppressWarnings("deprecation")
-    public AudioDevice(int sampleRate, int numOfChannels) {
+    public AudioDevice(int sampleRate, int numOfChannels, int pcmEncoding) {
         if (numOfChannels < 0 || numOfChannels > 2)
         {
             throw new IllegalArgumentException("Invalid num of channels (1,2): " + numOfChannels);
         }
+        if (pcmEncoding != AudioFormat.ENCODING_PCM_16BIT && pcmEncoding != AudioFormat.ENCODING_PCM_FLOAT)
+        {
+            throw new IllegalArgumentException("Unsupported encoding " + pcmEncoding);
+        }
 
         int format = numOfChannels == 2 ? AudioFormat.CHANNEL_OUT_STEREO : AudioFormat.CHANNEL_OUT_MONO;
-        mBufferMinSize = BUFFER_MIN_MAGNITUDE * AudioTrack.getMinBufferSize(sampleRate, format, AudioFormat.ENCODING_PCM_16BIT);
+        mBufferMinSize = BUFFER_MIN_MAGNITUDE * AudioTrack.getMinBufferSize(sampleRate, format, pcmEncoding);
+        mPcmEncoding = pcmEncoding;
+        mNumOfChannels = numOfChannels;
+        mSampleRate = sampleRate;
 
         mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC,
                 sampleRate,
                 format,
-                AudioFormat.ENCODING_PCM_16BIT,
+                pcmEncoding,
                 mBufferMinSize,
                 AudioTrack.MODE_STREAM);
     }
 
+    /**
+     * Buffer size in bytes
+     */
     public int getBufferMinSize() {
         return mBufferMinSize;
     }
 
+    public int getPcmEncoding() {
+        return mPcmEncoding;
+    }
+
+    public int getNumOfChannels() {
+        return mNumOfChannels;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * Record how long writes to the track block
+     */
+    public void setPlaybackStats(@Nullable PlaybackStats playbackStats) {
+        mPlaybackStats = playbackStats;
+    }
+
+    @Nullable
+    PlaybackStats getPlaybackStats() {
+        return mPlaybackStats;
+    }
+
+    long getTrackWriteTimeNs() {
+        return mTrackWriteNs;
+    }
+
+    /**
+     * Whether the time writes to the track block is measured, for the stats or a subclass that needs it
+     */
+    boolean isTimingTrackWrites() {
+        return mPlaybackStats != null;
+    }
+
+    /**
+     * Get position updates while audio plays, driven by the track's playback head
+     *
+     * @param handler      thread the listener is called on
+     * @param periodFrames played frames between updates
+     */
+    public void setOnPositionChangedListener(@Nullable final AudioPlayer.OnPositionChangedListener listener,
+                                             Handler handler, int periodFrames) {
+        checkState();
+
+        if (listener == null)
+        {
+            mAudioTrack.setPlaybackPositionUpdateListener(null);
+            return;
+        }
+
+        mAudioTrack.setPlaybackPositionUpdateListener(new AudioTrack.OnPlaybackPositionUpdateListener() {
+
+            @Override
+            public void onMarkerReached(AudioTrack track) {
+            }
+
+            @Override
+            public void onPeriodicNotification(AudioTrack track) {
+                listener.onPositionChanged(getPositionMs());
+            }
+        }, handler);
+        mAudioTrack.setPositionNotificationPeriod(periodFrames);
+    }
+
+    /**
+     * The frames written next start at streamFrame of the stream, after a seek or when the next track starts
+     */
+    public void markStreamPosition(long streamFrame) {
+        mPositionTracker.markStreamPosition(streamFrame);
+    }
+
+    /**
+     * Position in the stream of the sample being heard. Samples written but not played yet, and samples Sonic holds,
+     * don't count. Can be called on any thread.
+     */
+    public synchronized long getPositionMs() {
+        AudioTrack audioTrack = mAudioTrack;
+        if (audioTrack == null)
+        {
+            return mLastPositionMs;
+        }
+
+        long playedFrames;
+        try
+        {
+            // The timestamp is when the frame left the device, the head position is when the mixer took it
+            if (audioTrack.getTimestamp(mTimestamp) && mTimestamp.nanoTime > mFlushTimeNs)
+            {
+                playedFrames = mTimestamp.framePosition +
+                        (System.nanoTime() - mTimestamp.nanoTime) * mSampleRate / 1000000000L;
+            }
+            else
+            {
+                playedFrames = audioTrack.getPlaybackHeadPosition();
+            }
+        } catch (IllegalStateException e)
+        {
+            // Released meanwhile
+            return mLastPositionMs;
+        }
+
+        // Not past what was written, the track stops there when the decoder is paused
+        playedFrames = Math.min(playedFrames, mPositionTracker.getOutputFrames());
+        mLastPositionMs = mPositionTracker.getStreamFrame(playedFrames) * 1000 / mSampleRate;
+        return mLastPositionMs;
+    }
+
     public void play() {
         checkState();
 
@@ -61,12 +214,126 @@ public class AudioDevice {
     public void write(@NonNull byte[] audioData, int sizeInBytes) {
         checkState();
 
+        mPositionTracker.onInput(sizeInBytes / (2 * mNumOfChannels));
+        writeToTrack(audioData, sizeInBytes);
+    }
+
+    /**
+     * Write from the buffer's position, the position is advanced by the number of written bytes
+     */
+    public void write(@NonNull ByteBuffer audioData, int sizeInBytes) {
+        checkState();
+
+        mPositionTracker.onInput(sizeInBytes / (2 * mNumOfChannels));
+        writeToTrack(audioData, sizeInBytes);
+    }
+
+    public void write(@NonNull float[] audioData, int sizeInFloats) {
+        checkState();
+
+        mPositionTracker.onInput(sizeInFloats / mNumOfChannels);
+        writeToTrack(audioData, sizeInFloats);
+    }
+
+    /**
+     * Count frames given to the device, for devices that process them before they reach the track
+     */
+    protected void onInput(int frames) {
+        mPositionTracker.onInput(frames);
+    }
+
+    /**
+     * Source frames per frame written to the track, devices that change speed override it
+     */
+    protected double getSpeedFactor() {
+        return 1.0;
+    }
+
+    /**
+     * Write processed PCM to the track, the frames were counted as input already
+     */
+    protected void writeToTrack(@NonNull ByteBuffer audioData, int sizeInBytes) {
+        mPositionTracker.onOutput(sizeInBytes / (2 * mNumOfChannels), getSpeedFactor());
+
+        long startNs = startWrite(sizeInBytes);
+        mAudioTrack.write(audioData, sizeInBytes, AudioTrack.WRITE_BLOCKING);
+        endWrite(startNs);
+    }
+
+    protected void writeToTrack(@NonNull float[] audioData, int sizeInFloats) {
+        mPositionTracker.onOutput(sizeInFloats / mNumOfChannels, getSpeedFactor());
+
+        long startNs = startWrite(sizeInFloats * 4);
+        mAudioTrack.write(audioData, 0, sizeInFloats, AudioTrack.WRITE_BLOCKING);
+        endWrite(startNs);
+    }
+
+    private void writeToTrack(@NonNull byte[] audioData, int sizeInBytes) {
+        mPositionTracker.onOutput(sizeInBytes / (2 * mNumOfChannels), getSpeedFactor());
+
+        long startNs = startWrite(sizeInBytes);
         mAudioTrack.write(audioData, 0, sizeInBytes);
+        endWrite(startNs);
+    }
+
+    /**
+     * Play everything that was written and wait until it was played, use at end of stream before {@link #stop()}
+     */
+    public void drain() {
+        checkState();
+
+        // In stream mode AudioTrack plays what is left after stop, the head stops moving when done
+        mAudioTrack.stop();
+
+        int lastPosition = -1;
+        int position = mAudioTrack.getPlaybackHeadPosition();
+        while (position != lastPosition)
+        {
+            try
+            {
+                Thread.sleep(DRAIN_POLL_MS);
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            lastPosition = position;
+            position = mAudioTrack.getPlaybackHeadPosition();
+        }
+    }
+
+    /**
+     * Drop everything written that wasn't played yet, and keep playing what is written next
+     */
+    public void flush() {
+        checkState();
+
+        // AudioTrack flushes only when paused or stopped
+        mAudioTrack.pause();
+        mAudioTrack.flush();
+        mFlushTimeNs = System.nanoTime();
+        mPositionTracker.onFlush(mAudioTrack.getPlaybackHeadPosition());
+        mAudioTrack.play();
+        // Nothing was written from the old position while the new one was decoded
+        skipUnderruns();
+    }
+
+    /**
+     * The track ran out of data on purpose, like while paused, underruns up to now aren't recorded
+     */
+    public void skipUnderruns() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+        {
+            mTrackUnderrunCount = mAudioTrack.getUnderrunCount();
+        }
     }
 
     public void stop() {
         checkState();
 
+        // Keep the last position for after release
+        getPositionMs();
+
         // Pause will stop playback immediately
         mAudioTrack.pause();
         // Discard data
@@ -80,6 +347,38 @@ public class AudioDevice {
 
     public void setSampleRate(int sampleRate) {
         mAudioTrack.setPlaybackRate(sampleRate);
+        mSampleRate = sampleRate;
+    }
+
+    private long startWrite(int sizeInBytes) {
+        TraceRecorder.begin(TraceRecorder.TRACK_WRITE, sizeInBytes);
+        return isTimingTrackWrites() ? System.nanoTime() : 0;
+    }
+
+    private void endWrite(long startNs) {
+        TraceRecorder.end(TraceRecorder.TRACK_WRITE);
+        if (isTimingTrackWrites())
+        {
+            long durationNs = System.nanoTime() - startNs;
+            mTrackWriteNs += durationNs;
+            if (mPlaybackStats != null)
+            {
+                mPlaybackStats.getTrackWriteHistogram().record(durationNs);
+                recordUnderruns(mPlaybackStats);
+            }
+        }
+    }
+
+    private void recordUnderruns(PlaybackStats playbackStats) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+        {
+            int count = mAudioTrack.getUnderrunCount();
+            if (count != mTrackUnderrunCount)
+            {
+                playbackStats.recordUnderruns(count - mTrackUnderrunCount);
+                mTrackUnderrunCount = count;
+            }
+        }
     }
 
     private void checkState() {
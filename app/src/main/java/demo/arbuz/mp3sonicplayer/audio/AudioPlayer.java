@@ -17,16 +17,36 @@
 package demo.arbuz.mp3sonicplayer.audio;
 
 import android.content.res.AssetFileDescriptor;
+import android.media.AudioFormat;
 import android.support.annotation.Nullable;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import demo.arbuz.mp3sonicplayer.core.PcmCache;
+import demo.arbuz.mp3sonicplayer.core.PcmRingBuffer;
+import demo.arbuz.mp3sonicplayer.core.PlaybackStats;
+import demo.arbuz.mp3sonicplayer.core.QualityGovernor;
+import demo.arbuz.mp3sonicplayer.core.SilenceCompressor;
+import demo.arbuz.mp3sonicplayer.core.VisualizerFeed;
 
 /**
- * Simple class for playing extracted audio from codec (PCM), using one thread {@link PlayerThread}
+ * Simple class for playing extracted audio from codec (PCM), decoding on {@link PlayerThread} and writing to the
+ * device on a separate audio thread, connected by a {@link PcmRingBuffer}
  * <p>
  * Class can use {@link AudioDevice} that simply writes PCM to Android AudioTrack or {@link SonicAudioDevice}
  * that passes the data through Sonic buffer before writing to AudioTrack and makes it possible to change speed, pitch and rate.
  * <p>
+ * Tracks added with {@link #enqueue(String)} play after the current one without a gap. The next track's decoder is
+ * prepared in the background before the current track ends, and its PCM goes to the same device.
+ * <p>
+ * {@link #seekTo(long)} is sample accurate for MP3, using a frame index that is built in the background when a track
+ * starts and kept in the directory set with {@link #setFrameIndexDirectory(File)}.
+ * <p>
+ * With a {@link PcmCache} set, tracks that were played to the end before play from the cached PCM without decoding.
+ * <p>
  * The purpose of this class is to be a simple example for audio player. This shouldn't be used as fully working player :)
  */
 public class AudioPlayer {
@@ -35,18 +55,72 @@ public class AudioPlayer {
     public static final int PLAYER_TYPE_SIMPLE = 0;
     // Use AudioTrack with Sonic
     public static final int PLAYER_TYPE_SONIC  = 1;
+    // Use AudioTrack with Sonic, decoding and processing float PCM
+    public static final int PLAYER_TYPE_SONIC_FLOAT = 2;
 
     private int mPlayerType;
 
+    private int mBufferDepth = PlayerThread.DEFAULT_BUFFER_DEPTH;
+
     private PlayerThread mPlayerThread;
 
+    private final Queue<TrackSource> mTrackQueue = new ConcurrentLinkedQueue<>();
+
+    private OnTrackChangedListener mOnTrackChangedListener;
+
+    private OnPositionChangedListener mOnPositionChangedListener;
+    private int                       mPositionPeriodMs;
+
+    private File mFrameIndexDirectory;
+
+    private PcmCache mPcmCache;
+
+    private int mCodecMode = AudioDecoder.MODE_SYNC;
+
+    private final PlaybackStats mPlaybackStats = new PlaybackStats();
+
+    private QualityGovernor mQualityGovernor;
+
+    private VisualizerFeed mVisualizerFeed;
+    private int            mVisualizerTap = SonicAudioDevice.VISUALIZER_TAP_OUTPUT;
+
+    private SilenceCompressor mSilenceCompressor;
+
     public interface OnAudioStoppedListener {
         void onAudioStopped();
     }
 
+    public interface OnTrackChangedListener {
+
+        /**
+         * Called on the audio thread when the first sample of a track is written to the device
+         *
+         * @param trackIndex 0 for the track passed to play, then 1, 2... for queued tracks
+         */
+        void onTrackChanged(int trackIndex);
+    }
+
+    public interface OnPositionChangedListener {
+
+        /**
+         * Called on the main thread while audio plays, not while paused or stopped
+         *
+         * @param positionMs position in the current track of the sample being heard
+         */
+        void onPositionChanged(long positionMs);
+    }
+
+    /**
+     * Opens a track, called on a background thread when the track is about to play
+     */
+    interface TrackSource {
+        AudioDecoder createDecoder() throws IOException;
+    }
+
     public AudioPlayer(int type) {
         if (type != PLAYER_TYPE_SIMPLE &&
-                type != PLAYER_TYPE_SONIC)
+                type != PLAYER_TYPE_SONIC &&
+                type != PLAYER_TYPE_SONIC_FLOAT)
         {
             throw new IllegalArgumentException("Illegal type " + type);
         }
@@ -54,6 +128,105 @@ public class AudioPlayer {
         mPlayerType = type;
     }
 
+    /**
+     * Set number of decoded blocks buffered between decoder and audio device, takes effect on next play
+     */
+    public void setBufferDepth(int bufferDepth) {
+        if (bufferDepth < 1)
+        {
+            throw new IllegalArgumentException("Illegal buffer depth " + bufferDepth);
+        }
+
+        mBufferDepth = bufferDepth;
+    }
+
+    /**
+     * Set before play, to be told when playback moves to a queued track
+     */
+    public void setOnTrackChangedListener(@Nullable OnTrackChangedListener onTrackChangedListener) {
+        mOnTrackChangedListener = onTrackChangedListener;
+    }
+
+    /**
+     * Set before play, to be told the position as it is heard, without polling. Updates come from the audio track's
+     * playback head, so they follow speed changes and stop when playback pauses.
+     *
+     * @param periodMs played time between updates
+     */
+    public void setOnPositionChangedListener(@Nullable OnPositionChangedListener onPositionChangedListener,
+                                             int periodMs) {
+        mOnPositionChangedListener = onPositionChangedListener;
+        mPositionPeriodMs = periodMs;
+    }
+
+    /**
+     * Set before play, to keep MP3 frame indexes for the next time a file plays, for example in the cache directory.
+     * Without it files are scanned each time they play.
+     */
+    public void setFrameIndexDirectory(@Nullable File frameIndexDirectory) {
+        mFrameIndexDirectory = frameIndexDirectory;
+    }
+
+    /**
+     * Set before play, to keep decoded PCM of tracks and replay it without decoding. One cache can be shared by
+     * several players.
+     */
+    public void setPcmCache(@Nullable PcmCache pcmCache) {
+        mPcmCache = pcmCache;
+    }
+
+    /**
+     * Set before play, how decoders take buffers from MediaCodec: {@link AudioDecoder#MODE_SYNC} polls the codec,
+     * {@link AudioDecoder#MODE_ASYNC} sleeps until the codec's callbacks pass a buffer (API 23+).
+     */
+    public void setCodecMode(int codecMode) {
+        mCodecMode = codecMode;
+    }
+
+    /**
+     * Set before play, steps Sonic's pitch search down when processing takes too much of the real-time budget and back
+     * up when there is headroom. The governor keeps its level from one play to the next, null plays at Sonic's
+     * default. Ignored by the simple player.
+     */
+    public void setQualityGovernor(@Nullable QualityGovernor qualityGovernor) {
+        mQualityGovernor = qualityGovernor;
+    }
+
+    /**
+     * Set before play, band levels of the audio for a visualizer, analysed off the audio thread. Poll the feed from
+     * the UI with {@link VisualizerFeed#getLatestFrame(float[])}. Ignored by the simple player.
+     *
+     * @param tap {@link SonicAudioDevice#VISUALIZER_TAP_OUTPUT} for what is played, or
+     *            {@link SonicAudioDevice#VISUALIZER_TAP_INPUT} for the source before Sonic
+     */
+    public void setVisualizerFeed(@Nullable VisualizerFeed visualizerFeed, int tap) {
+        mVisualizerFeed = visualizerFeed;
+        mVisualizerTap = tap;
+    }
+
+    /**
+     * Set before play, long pauses in speech are shortened before they reach the device, so Sonic doesn't stretch
+     * them. Positions and seeks stay in source time, {@link SilenceCompressor#getTimeSavedUs()} tells how much was
+     * dropped. Null plays everything.
+     */
+    public void setSilenceCompressor(@Nullable SilenceCompressor silenceCompressor) {
+        mSilenceCompressor = silenceCompressor;
+    }
+
+    /**
+     * Queue a file to play after the current track, or after the track passed to the next play
+     */
+    public void enqueue(String filePath) {
+        mTrackQueue.add(() -> new AudioDecoder(filePath));
+    }
+
+    /**
+     * Queue an Assets raw file to play after the current track, or after the track passed to the next play
+     */
+    public void enqueue(AssetFileDescriptor assetFileDescriptor) {
+        mTrackQueue.add(() -> new AudioDecoder(assetFileDescriptor));
+    }
+
     /**
      * Play from Assets raw file
      */
@@ -89,6 +262,9 @@ public class AudioPlayer {
         {
             case PLAYER_TYPE_SONIC:
                 return new SonicAudioDevice(audioDecoder.getSampleRate(), audioDecoder.getNumOfChannels());
+            case PLAYER_TYPE_SONIC_FLOAT:
+                return new SonicAudioDevice(audioDecoder.getSampleRate(), audioDecoder.getNumOfChannels(),
+                        AudioFormat.ENCODING_PCM_FLOAT);
             case PLAYER_TYPE_SIMPLE:
                 return new AudioDevice(audioDecoder.getSampleRate(), audioDecoder.getNumOfChannels());
         }
@@ -99,12 +275,22 @@ public class AudioPlayer {
     private void startPlayerThread(AudioDecoder audioDecoder,
                                    AudioDevice audioDevice,
                                    @Nullable OnAudioStoppedListener onAudioStoppedListener) {
-        mPlayerThread = new PlayerThread(audioDecoder, audioDevice, onAudioStoppedListener);
+        mPlayerThread = new PlayerThread(audioDecoder, audioDevice, onAudioStoppedListener, mBufferDepth, mTrackQueue,
+                mOnTrackChangedListener);
+        mPlayerThread.setFrameIndexDirectory(mFrameIndexDirectory);
+        mPlayerThread.setPcmCache(mPcmCache);
+        mPlayerThread.setCodecMode(mCodecMode);
+        mPlayerThread.setQualityGovernor(mQualityGovernor);
+        mPlayerThread.setVisualizerFeed(mVisualizerFeed, mVisualizerTap);
+        mPlayerThread.setSilenceCompressor(mSilenceCompressor);
+        mPlaybackStats.reset();
+        mPlayerThread.setPlaybackStats(mPlaybackStats);
+        mPlayerThread.setOnPositionChangedListener(mOnPositionChangedListener, mPositionPeriodMs);
         mPlayerThread.start();
     }
 
     public boolean isSpeedChangeSupported() {
-        return mPlayerType == PLAYER_TYPE_SONIC;
+        return mPlayerType == PLAYER_TYPE_SONIC || mPlayerType == PLAYER_TYPE_SONIC_FLOAT;
     }
 
     public boolean isPlaying() {
@@ -118,7 +304,7 @@ public class AudioPlayer {
     public void setSpeed(float speed) {
         checkState();
 
-        if (mPlayerType == PLAYER_TYPE_SONIC)
+        if (isSpeedChangeSupported())
         {
             mPlayerThread.setSpeed(speed);
         }
@@ -127,7 +313,7 @@ public class AudioPlayer {
     public void setPitch(float pitch) {
         checkState();
 
-        if (mPlayerType == PLAYER_TYPE_SONIC)
+        if (isSpeedChangeSupported())
         {
             mPlayerThread.setPitch(pitch);
         }
@@ -136,15 +322,19 @@ public class AudioPlayer {
     public void setRate(float rate) {
         checkState();
 
-        if (mPlayerType == PLAYER_TYPE_SONIC)
+        if (isSpeedChangeSupported())
         {
             mPlayerThread.setRate(rate);
         }
     }
 
+    /**
+     * Stop playback, queued tracks are removed
+     */
     public void stop() {
         checkState();
 
+        mTrackQueue.clear();
         mPlayerThread.stopPlayback();
         mPlayerThread = null;
     }
@@ -161,12 +351,57 @@ public class AudioPlayer {
         mPlayerThread.resumePlayback();
     }
 
+    /**
+     * Jump to a position in the current track, also when paused
+     */
+    public void seekTo(long positionMs) {
+        checkState();
+
+        mPlayerThread.seekTo(positionMs);
+    }
+
+    /**
+     * Position in the current track of the sample being heard
+     */
     public long getElapsedTimeInMillis() {
         checkState();
 
         return mPlayerThread.getElapsedTimeInMillis();
     }
 
+    /**
+     * Timing of the decoder, Sonic and AudioTrack, reset on play and kept after playback stopped. Recording is always
+     * on, it doesn't lock or allocate.
+     */
+    public PlaybackStats getPlaybackStats() {
+        return mPlaybackStats;
+    }
+
+    /**
+     * Number of decoded blocks waiting to be written to the audio device
+     */
+    public int getBufferFillLevel() {
+        checkState();
+
+        return mPlayerThread.getBufferFillLevel();
+    }
+
+    public int getBufferCapacity() {
+        checkState();
+
+        return mPlayerThread.getBufferCapacity();
+    }
+
+    /**
+     * Number of times the audio thread ran out of decoded data, not counting seeks and track changes. Audible
+     * underruns of the device are in {@link #getPlaybackStats()}.
+     */
+    public long getBufferStarvationCount() {
+        checkState();
+
+        return mPlayerThread.getBufferStarvationCount();
+    }
+
     private void checkState() {
         if (mPlayerThread == null)
         {
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package demo.arbuz.mp3sonicplayer.audio;
+
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaDataSource;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.RequiresApi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Media source for {@link android.media.MediaExtractor} that reads a local file or an uncompressed asset through
+ * memory-mapped windows.
+ * <p>
+ * Reads are copies from the mapped window, without a system call each. When reading passes the middle of a window,
+ * the next window is mapped and its pages are loaded on a background thread, so a slow storage stalls the read-ahead
+ * thread instead of the extractor. If the extractor gets to the window before it is loaded, the window is mapped
+ * again and only the pages read are faulted in, the read doesn't wait for the whole window.
+ */
+@RequiresApi(Build.VERSION_CODES.M)
+public class MappedMediaDataSource extends MediaDataSource {
+
+    private static final int WINDOW_SIZE = 2 * 1024 * 1024;
+
+    // Threads are shared by all sources and created when needed, so the load of one source doesn't wait for another's
+    private static final ExecutorService sReadAheadExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "MediaReadAhead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final FileChannel mChannel;
+    private final long        mStart;
+    private final long        mLength;
+
+    // Window that reads are copied from
+    private MappedByteBuffer mWindow;
+    private long             mWindowOffset = -1;
+
+    // Window that is loaded in the background
+    private Future<MappedByteBuffer> mNextWindow;
+    private long                     mNextWindowOffset = -1;
+
+    private volatile long mReadCount     = 0;
+    private volatile long mBytesRead     = 0;
+    private volatile long mWindowCount   = 0;
+    private volatile long mReadAheadHits = 0;
+
+    public MappedMediaDataSource(File file) throws IOException {
+        mChannel = new RandomAccessFile(file, "r").getChannel();
+        mStart = 0;
+        mLength = mChannel.size();
+    }
+
+    /**
+     * The asset must be stored uncompressed, like raw resources are
+     */
+    public MappedMediaDataSource(AssetFileDescriptor assetFileDescriptor) throws IOException {
+        // The duplicate is closed with the channel, the asset descriptor stays open
+        ParcelFileDescriptor descriptor = ParcelFileDescriptor.dup(assetFileDescriptor.getFileDescriptor());
+        mChannel = new ParcelFileDescriptor.AutoCloseInputStream(descriptor).getChannel();
+        mStart = assetFileDescriptor.getStartOffset();
+        mLength = assetFileDescriptor.getLength();
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (position >= mLength)
+        {
+            return -1;
+        }
+
+        int length = (int) Math.min(size, mLength - position);
+        int read = 0;
+        while (read < length)
+        {
+            long windowOffset = position + read - (position + read) % WINDOW_SIZE;
+            if (windowOffset != mWindowOffset)
+            {
+                moveWindow(windowOffset);
+            }
+
+            int windowPosition = (int) (position + read - mWindowOffset);
+            int windowLength = Math.min(length - read, mWindow.limit() - windowPosition);
+            mWindow.position(windowPosition);
+            mWindow.get(buffer, offset + read, windowLength);
+            read += windowLength;
+        }
+
+        // Extractor reads mostly forward, prepare the next window early
+        long nextWindowOffset = mWindowOffset + WINDOW_SIZE;
+        if (position + read - mWindowOffset > WINDOW_SIZE / 2 && nextWindowOffset < mLength &&
+                nextWindowOffset != mNextWindowOffset)
+        {
+            readAhead(nextWindowOffset);
+        }
+
+        mReadCount++;
+        mBytesRead += read;
+        return read;
+    }
+
+    @Override
+    public long getSize() {
+        return mLength;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mNextWindow != null)
+        {
+            mNextWindow.cancel(false);
+            mNextWindow = null;
+        }
+        mWindow = null;
+        mChannel.close();
+    }
+
+    /**
+     * Number of reads the extractor made
+     */
+    public long getReadCount() {
+        return mReadCount;
+    }
+
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * Number of windows mapped, including read-ahead
+     */
+    public long getWindowCount() {
+        return mWindowCount;
+    }
+
+    /**
+     * Number of windows that were loaded in the background before they were read
+     */
+    public long getReadAheadHitCount() {
+        return mReadAheadHits;
+    }
+
+    private void moveWindow(long windowOffset) throws IOException {
+        if (windowOffset == mNextWindowOffset)
+        {
+            // Loading the rest of the window takes longer than faulting the pages that are read
+            if (mNextWindow.isDone())
+            {
+                try
+                {
+                    mWindow = mNextWindow.get();
+                    mWindowOffset = windowOffset;
+                    mReadAheadHits++;
+                    return;
+                } catch (InterruptedException | ExecutionException e)
+                {
+                    // Mapped here instead
+                } finally
+                {
+                    mNextWindow = null;
+                    mNextWindowOffset = -1;
+                }
+            }
+            else
+            {
+                // A load that started goes on and still brings pages into the page cache
+                mNextWindow.cancel(false);
+                mNextWindow = null;
+                mNextWindowOffset = -1;
+            }
+        }
+
+        mWindow = map(windowOffset);
+        mWindowOffset = windowOffset;
+        mWindowCount++;
+    }
+
+    private void readAhead(final long windowOffset) {
+        if (mNextWindow != null)
+        {
+            // Seek away from the window that was loading
+            mNextWindow.cancel(false);
+        }
+        mNextWindowOffset = windowOffset;
+        mWindowCount++;
+        mNextWindow = sReadAheadExecutor.submit(() -> {
+            MappedByteBuffer window = map(windowOffset);
+            // Touches every page, so the extractor finds them in memory
+            window.load();
+            return window;
+        });
+    }
+
+    private MappedByteBuffer map(long windowOffset) throws IOException {
+        long length = Math.min(WINDOW_SIZE, mLength - windowOffset);
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, mStart + windowOffset, length);
+    }
+}
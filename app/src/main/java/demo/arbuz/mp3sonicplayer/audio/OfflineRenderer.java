@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.arbuz.mp3sonicplayer.audio;
+
+import android.media.AudioFormat;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+
+import demo.arbuz.mp3sonicplayer.core.SonicProcessor;
+import demo.arbuz.mp3sonicplayer.core.WavFileSink;
+
+/**
+ * Renders a file through Sonic to a WAV file, as fast as the CPU allows.
+ * <p>
+ * Uses the same {@link AudioDecoder} loop and {@link SonicProcessor} as {@link SonicAudioDevice}, but the processed
+ * PCM goes to a {@link WavFileSink} instead of AudioTrack. {@link #render(File, OnProgressListener)} blocks, call it
+ * from a background thread.
+ */
+public class OfflineRenderer {
+
+    // Bigger blocks than playback, there is no latency to care about
+    private static final int RENDER_BUFFER_SIZE = 64 * 1024;
+
+    private static final long PROGRESS_INTERVAL_NS = 250_000_000;
+
+    public interface OnProgressListener {
+
+        /**
+         * @param sourceTimeUs   position in the source that was rendered
+         * @param durationUs     duration of the source, or -1 if unknown
+         * @param realTimeFactor source time rendered per wall clock time, 10 means ten times faster than playback
+         */
+        void onProgress(long sourceTimeUs, long durationUs, float realTimeFactor);
+    }
+
+    private final AudioDecoder mAudioDecoder;
+
+    private float mSpeed = 1.0f;
+    private float mPitch = 1.0f;
+    private float mRate  = 1.0f;
+
+    private int mPcmEncoding = AudioFormat.ENCODING_PCM_16BIT;
+
+    private long mDecodedFrames = 0;
+
+    private volatile boolean mIsCancelled = false;
+
+    public OfflineRenderer(AudioDecoder audioDecoder) {
+        mAudioDecoder = audioDecoder;
+    }
+
+    public void setSpeed(float speed) {
+        mSpeed = speed;
+    }
+
+    public void setPitch(float pitch) {
+        mPitch = pitch;
+    }
+
+    public void setRate(float rate) {
+        mRate = rate;
+    }
+
+    /**
+     * {@link AudioFormat#ENCODING_PCM_16BIT} (default) or {@link AudioFormat#ENCODING_PCM_FLOAT}, also used for the WAV file
+     */
+    public void setPcmEncoding(int pcmEncoding) {
+        mPcmEncoding = pcmEncoding;
+    }
+
+    /**
+     * Decode, process and write everything to outputFile. Returns when done or cancelled.
+     *
+     * @return true if the whole source was rendered, false if rendering was cancelled
+     * @throws IOException if decoding or writing failed, the WAV file has what was rendered until then
+     */
+    public boolean render(File outputFile, @Nullable OnProgressListener onProgressListener) throws IOException {
+        final boolean isFloat = mPcmEncoding == AudioFormat.ENCODING_PCM_FLOAT;
+        final int numOfChannels = mAudioDecoder.getNumOfChannels();
+        final long durationUs = mAudioDecoder.getDurationUs();
+        final long startNs = System.nanoTime();
+
+        mDecodedFrames = 0;
+
+        mAudioDecoder.setBufferSize(RENDER_BUFFER_SIZE);
+        mAudioDecoder.setPcmEncoding(mPcmEncoding);
+
+        try (WavFileSink sink = new WavFileSink(outputFile, mAudioDecoder.getSampleRate(), numOfChannels, isFloat))
+        {
+            final SonicProcessor sonicProcessor = new SonicProcessor(mAudioDecoder.getSampleRate(), numOfChannels,
+                    isFloat, sink);
+            try
+            {
+                sonicProcessor.setSpeed(mSpeed);
+                sonicProcessor.setPitch(mPitch);
+                sonicProcessor.setRate(mRate);
+
+                mAudioDecoder.start(new AudioDecoder.DecodedDataListener() {
+
+                    private long mLastProgressNs = startNs;
+
+                    @Override
+                    public void onDataReady(byte[] data, int sizeInBytes) {
+                        sonicProcessor.write(data, sizeInBytes);
+                        onDecoded(sizeInBytes / (2 * numOfChannels));
+                    }
+
+                    @Override
+                    public void onDataReady(float[] data, int sizeInFloats) {
+                        sonicProcessor.write(data, sizeInFloats);
+                        onDecoded(sizeInFloats / numOfChannels);
+                    }
+
+                    @Override
+                    public void onSampleRateChanged(int sampleRate) {
+                        sonicProcessor.setSampleRate(sampleRate);
+                        sink.setSampleRate(sampleRate);
+                    }
+
+                    @Override
+                    public void onSeek(long positionUs, int seekId) {
+                        // Rendering doesn't seek
+                    }
+
+                    private void onDecoded(int frames) {
+                        mDecodedFrames += frames;
+
+                        // Also stops a decoder that started after cancel
+                        if (mIsCancelled)
+                        {
+                            mAudioDecoder.stop();
+                        }
+
+                        long nowNs = System.nanoTime();
+                        if (onProgressListener != null && nowNs - mLastProgressNs >= PROGRESS_INTERVAL_NS)
+                        {
+                            mLastProgressNs = nowNs;
+                            long sourceTimeUs = getDecodedTimeUs();
+                            onProgressListener.onProgress(sourceTimeUs, durationUs, realTimeFactor(sourceTimeUs, nowNs - startNs));
+                        }
+                    }
+                });
+
+                // Get what Sonic still holds
+                sonicProcessor.flush();
+            } finally
+            {
+                sonicProcessor.release();
+            }
+        }
+
+        // The decoder logs errors and ends as if the stream ended
+        IOException error = mAudioDecoder.getError();
+        if (error != null)
+        {
+            throw error;
+        }
+
+        if (onProgressListener != null)
+        {
+            long sourceTimeUs = getDecodedTimeUs();
+            onProgressListener.onProgress(sourceTimeUs, durationUs, realTimeFactor(sourceTimeUs, System.nanoTime() - startNs));
+        }
+        return mAudioDecoder.isEndOfStream();
+    }
+
+    /**
+     * Stop rendering, render returns false and the WAV file has what was rendered so far
+     */
+    public void cancel() {
+        mIsCancelled = true;
+        mAudioDecoder.stop();
+    }
+
+    private long getDecodedTimeUs() {
+        return mDecodedFrames * 1000000L / mAudioDecoder.getSampleRate();
+    }
+
+    private static float realTimeFactor(long sourceTimeUs, long elapsedNs) {
+        return elapsedNs == 0 ? 0 : sourceTimeUs * 1000f / elapsedNs;
+    }
+}
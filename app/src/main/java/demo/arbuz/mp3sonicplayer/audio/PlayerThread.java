@@ -1,40 +1,287 @@
 package demo.arbuz.mp3sonicplayer.audio;
 
+import android.media.AudioFormat;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import demo.arbuz.mp3sonicplayer.core.CommandQueue;
+import demo.arbuz.mp3sonicplayer.core.PcmCache;
+import demo.arbuz.mp3sonicplayer.core.PcmRingBuffer;
+import demo.arbuz.mp3sonicplayer.core.PlaybackStats;
+import demo.arbuz.mp3sonicplayer.core.QualityGovernor;
+import demo.arbuz.mp3sonicplayer.core.SilenceCompressor;
+import demo.arbuz.mp3sonicplayer.core.VisualizerFeed;
+
 public class PlayerThread extends Thread {
 
-    private AudioDecoder                       mAudioDecoder;
-    private AudioDevice                        mAudioDevice;
-    private AudioPlayer.OnAudioStoppedListener mOnAudioStoppedListener;
+    private static final String TAG = "PlayerThread";
+
+    public static final int DEFAULT_BUFFER_DEPTH = 4;
+
+    // Next track is prepared when the current one has less than this left to decode
+    private static final long PREPARE_AHEAD_US = 5_000_000;
+
+    // Control commands, posted by any thread and run by the output thread between blocks. Pause and stop are state
+    // instead, they can't be lost or wait behind other commands.
+    private static final int COMMAND_SPEED = 0;
+    private static final int COMMAND_PITCH = 1;
+    private static final int COMMAND_RATE  = 2;
+    private static final int COMMAND_SEEK  = 3;
+    private static final int COMMAND_COUNT = 4;
+
+    private volatile AudioDecoder                 mAudioDecoder;
+    private volatile AudioDevice                  mAudioDevice;
+    private AudioPlayer.OnAudioStoppedListener    mOnAudioStoppedListener;
+    private AudioPlayer.OnTrackChangedListener    mOnTrackChangedListener;
+
+    private final int mBufferDepth;
+
+    // Tracks that play after the current one, without a gap
+    private final Queue<AudioPlayer.TrackSource> mTrackQueue;
+    // Decoder of the next track, prepared on its own thread
+    private       FutureTask<AudioDecoder>       mNextDecoder;
+
+    // Where MP3 frame indexes are kept, null to scan the file each time it plays
+    private File mFrameIndexDirectory;
+
+    // Decoded PCM of tracks, null to always decode
+    private PcmCache mPcmCache;
+
+    private int mCodecMode = AudioDecoder.MODE_SYNC;
+
+    private PlaybackStats mPlaybackStats;
+
+    private QualityGovernor mQualityGovernor;
+
+    private VisualizerFeed mVisualizerFeed;
+    private int            mVisualizerTap;
+
+    private SilenceCompressor mSilenceCompressor;
+
+    private AudioPlayer.OnPositionChangedListener mOnPositionChangedListener;
+    private int                                   mPositionPeriodMs;
+
+    private volatile PcmRingBuffer mRingBuffer;
+
+    // Id of the last seek, written by the output thread. Blocks of older epochs are from before it and are dropped.
+    private volatile int mSeekId = 0;
+
+    // The Sonic stream and the decoder's transport are changed only by the output thread, so parameters never change
+    // while Sonic processes a block. Each command keeps only its latest argument and is queued once until it runs, so
+    // the queue never fills.
+    private final CommandQueue          mCommands         = new CommandQueue(COMMAND_COUNT);
+    private final CommandQueue.Consumer mCommandConsumer  = this::runCommand;
+    private final AtomicLongArray       mCommandArguments = new AtomicLongArray(COMMAND_COUNT);
+    private final AtomicIntegerArray    mQueuedCommands   = new AtomicIntegerArray(COMMAND_COUNT);
+
+    private volatile boolean mIsStopped = false;
+    // Requested state, the output thread gets to it at the next block
+    private volatile boolean mIsPaused  = false;
+    private volatile Thread  mOutputThread;
+
+    // Used by the output thread only
+    private boolean mIsOutputPaused   = false;
+    private int     mOutputTrackIndex = 0;
+
+    // Track the decoder decodes, set before the decoder so a seek never sees a decoder with the previous track's index
+    private volatile int mDecoderTrackIndex = 0;
 
     public PlayerThread(AudioDecoder audioDecoder, AudioDevice audioDevice, AudioPlayer.OnAudioStoppedListener onAudioStoppedListener) {
+        this(audioDecoder, audioDevice, onAudioStoppedListener, DEFAULT_BUFFER_DEPTH);
+    }
+
+    public PlayerThread(AudioDecoder audioDecoder,
+                        AudioDevice audioDevice,
+                        AudioPlayer.OnAudioStoppedListener onAudioStoppedListener,
+                        int bufferDepth) {
+        this(audioDecoder, audioDevice, onAudioStoppedListener, bufferDepth,
+                new ConcurrentLinkedQueue<AudioPlayer.TrackSource>(), null);
+    }
+
+    /**
+     * @param trackQueue tracks to play after the first one, can be added to while playing
+     */
+    public PlayerThread(AudioDecoder audioDecoder,
+                        AudioDevice audioDevice,
+                        AudioPlayer.OnAudioStoppedListener onAudioStoppedListener,
+                        int bufferDepth,
+                        Queue<AudioPlayer.TrackSource> trackQueue,
+                        AudioPlayer.OnTrackChangedListener onTrackChangedListener) {
+        super("AudioDecoder");
+
         mAudioDevice = audioDevice;
         mAudioDecoder = audioDecoder;
         mOnAudioStoppedListener = onAudioStoppedListener;
+        mBufferDepth = bufferDepth;
+        mTrackQueue = trackQueue;
+        mOnTrackChangedListener = onTrackChangedListener;
+    }
+
+    /**
+     * Set before start, updates are sent on the main thread
+     */
+    void setOnPositionChangedListener(AudioPlayer.OnPositionChangedListener onPositionChangedListener, int periodMs) {
+        mOnPositionChangedListener = onPositionChangedListener;
+        mPositionPeriodMs = periodMs;
+    }
+
+    /**
+     * Set before start, all stages of the pipeline record into it
+     */
+    void setPlaybackStats(PlaybackStats playbackStats) {
+        mPlaybackStats = playbackStats;
+    }
+
+    /**
+     * Set before start, steps Sonic's quality with the processing load of a Sonic device
+     */
+    void setQualityGovernor(QualityGovernor qualityGovernor) {
+        mQualityGovernor = qualityGovernor;
+    }
+
+    /**
+     * Set before start, the audio of a Sonic device is copied to the feed
+     */
+    void setVisualizerFeed(VisualizerFeed visualizerFeed, int tap) {
+        mVisualizerFeed = visualizerFeed;
+        mVisualizerTap = tap;
+    }
+
+    /**
+     * Set before start, long pauses are shortened before the data reaches the device
+     */
+    void setSilenceCompressor(SilenceCompressor silenceCompressor) {
+        mSilenceCompressor = silenceCompressor;
+    }
+
+    /**
+     * Set before start, tracks play from the cache or are written to it
+     */
+    void setPcmCache(PcmCache pcmCache) {
+        mPcmCache = pcmCache;
+    }
+
+    /**
+     * Set before start, applies to all tracks
+     */
+    void setCodecMode(int codecMode) {
+        mCodecMode = codecMode;
+    }
+
+    /**
+     * Set before start, frame indexes for exact seeking are kept in the directory
+     */
+    void setFrameIndexDirectory(File frameIndexDirectory) {
+        mFrameIndexDirectory = frameIndexDirectory;
     }
 
     @Override
     public void run() {
         mAudioDevice.play();
 
-        mAudioDecoder.setBufferSize(mAudioDevice.getBufferMinSize());
+        final PcmRingBuffer ringBuffer = new PcmRingBuffer(mBufferDepth,
+                mAudioDevice.getBufferMinSize(),
+                mAudioDevice.getPcmEncoding() == AudioFormat.ENCODING_PCM_FLOAT);
+        mRingBuffer = ringBuffer;
+        if (mPlaybackStats != null)
+        {
+            mPlaybackStats.setRingBuffer(ringBuffer);
+        }
+        mAudioDevice.setPlaybackStats(mPlaybackStats);
+        if (mQualityGovernor != null && mAudioDevice instanceof SonicAudioDevice)
+        {
+            ((SonicAudioDevice) mAudioDevice).setQualityGovernor(mQualityGovernor);
+        }
+        if (mVisualizerFeed != null && mAudioDevice instanceof SonicAudioDevice)
+        {
+            ((SonicAudioDevice) mAudioDevice).setVisualizerFeed(mVisualizerFeed, mVisualizerTap);
+        }
+        if (mOnPositionChangedListener != null)
+        {
+            mAudioDevice.setOnPositionChangedListener(mOnPositionChangedListener, new Handler(Looper.getMainLooper()),
+                    Math.max(1, mAudioDevice.getSampleRate() * mPositionPeriodMs / 1000));
+        }
 
-        // Runs synchronous loop that decodes mp3 and sends events with decoded data
-        // The data is immediately written to AudioTrack
-        mAudioDecoder.start(new AudioDecoder.DecodedDataListener() {
+        // Writing to AudioTrack blocks, so it runs on its own thread and doesn't stall decoding
+        mOutputThread = new Thread(() -> writeToDevice(ringBuffer), "AudioOutput");
+        mOutputThread.start();
 
-            @Override
-            public void onDataReady(byte[] data) {
-                mAudioDevice.write(data, data.length);
-            }
+        // Tracks are decoded one after the other into the same ring buffer and device, so there is no gap between them
+        TrackWriter trackWriter = new TrackWriter(ringBuffer);
+        AudioDecoder audioDecoder = mAudioDecoder;
+        audioDecoder.setBufferSize(mAudioDevice.getBufferMinSize());
+        audioDecoder.setPcmEncoding(mAudioDevice.getPcmEncoding());
+        audioDecoder.setPcmCache(mPcmCache);
+        audioDecoder.setCodecMode(mCodecMode);
+        audioDecoder.setPlaybackStats(mPlaybackStats);
+        try
+        {
+            audioDecoder.prepare();
+        } catch (IOException e)
+        {
+            Log.e(TAG, "Can't prepare decoder", e);
+        }
 
-            @Override
-            public void onSampleRateChanged(int sampleRate) {
-                mAudioDevice.setSampleRate(sampleRate);
+        // Seeks use the extractor until the index is ready, cached PCM doesn't need it
+        if (!audioDecoder.isPlayingFromCache())
+        {
+            final AudioDecoder firstDecoder = audioDecoder;
+            new Thread(() -> buildFrameIndex(firstDecoder), "FrameIndexer").start();
+        }
+
+        int trackIndex = 0;
+        while (audioDecoder != null)
+        {
+            mDecoderTrackIndex = trackIndex++;
+            // Set before checking, so stopPlayback either sees this decoder or is seen here
+            mAudioDecoder = audioDecoder;
+            if (mIsStopped)
+            {
+                audioDecoder.release();
+                break;
             }
-        });
+            trackWriter.startTrack(audioDecoder);
+
+            // Runs synchronous loop that decodes mp3 and sends events with decoded data
+            // The data is copied to the ring buffer and written to AudioTrack by the output thread
+            audioDecoder.start(trackWriter);
+            // The ring runs empty while the next track opens, or at the end
+            ringBuffer.expectGap();
 
+            audioDecoder = mIsStopped ? null : takeNextDecoder();
+        }
+
+        // Let output thread play what is left
+        ringBuffer.close();
+        try
+        {
+            mOutputThread.join();
+        } catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+
+        if (!mIsStopped)
+        {
+            mAudioDevice.drain();
+        }
         mAudioDevice.stop();
 
+        releaseNextDecoder();
+
         mAudioDecoder = null;
         mAudioDevice = null;
 
@@ -44,32 +291,604 @@ public class PlayerThread extends Thread {
         }
     }
 
+    /**
+     * Copies decoded data of the current track to the ring buffer, converting channels if the track doesn't match the device
+     */
+    private class TrackWriter implements AudioDecoder.DecodedDataListener {
+
+        private final PcmRingBuffer mRingBuffer;
+
+        private AudioDecoder mDecoder;
+        private int          mTrackIndex = -1;
+        private int          mSourceChannels;
+        private int          mDeviceChannels;
+        private int          mEpoch;
+        // Stream position of the next frame
+        private long         mPosition;
+
+        // Sample rate change is passed with the next block, to keep it in order with the data
+        private int mPendingSampleRate = 0;
+
+        TrackWriter(PcmRingBuffer ringBuffer) {
+            mRingBuffer = ringBuffer;
+            mDeviceChannels = mAudioDevice.getNumOfChannels();
+        }
+
+        void startTrack(AudioDecoder decoder) {
+            mDecoder = decoder;
+            mTrackIndex++;
+            mSourceChannels = decoder.getNumOfChannels();
+
+            // A seek that came while the last track ended is dropped, its blocks would never arrive
+            mEpoch = mSeekId;
+            mPosition = 0;
+            if (mSilenceCompressor != null)
+            {
+                mSilenceCompressor.start(decoder.getSampleRate(), mSourceChannels);
+            }
+        }
+
+        @Override
+        public void onDataReady(byte[] data, int sizeInBytes) {
+            int frames = sizeInBytes / (2 * mSourceChannels);
+            int frameOffset = 0;
+            while (frameOffset < frames)
+            {
+                int run = mSilenceCompressor == null ? frames - frameOffset :
+                        mSilenceCompressor.nextRun(data, frameOffset, frames);
+                if (run < 0)
+                {
+                    // Dropped frames still move the stream position, so the next block maps to its source time
+                    mPosition -= run;
+                    frameOffset -= run;
+                }
+                else if (writeFrames(data, frameOffset, run))
+                {
+                    frameOffset += run;
+                }
+                else
+                {
+                    return;
+                }
+            }
+            prepareNextTrackIfNeeded();
+        }
+
+        /**
+         * @return false if playback was stopped
+         */
+        private boolean writeFrames(byte[] data, int frameOffset, int frames) {
+            int end = frameOffset + frames;
+            while (frameOffset < end)
+            {
+                PcmRingBuffer.Block block = mRingBuffer.awaitWriteBlock();
+                if (block == null)
+                {
+                    // Playback was stopped, also if the stop came before this decoder started
+                    mDecoder.stop();
+                    return false;
+                }
+
+                int blockFrames = Math.min(end - frameOffset, block.buffer.capacity() / (2 * mDeviceChannels));
+                if (mSourceChannels == mDeviceChannels)
+                {
+                    block.buffer.clear();
+                    block.buffer.put(data, frameOffset * 2 * mSourceChannels, blockFrames * 2 * mSourceChannels);
+                }
+                else
+                {
+                    convertChannels(data, frameOffset, block.buffer, blockFrames);
+                }
+                block.size = blockFrames * 2 * mDeviceChannels;
+                commit(block, blockFrames);
+
+                frameOffset += blockFrames;
+            }
+            return true;
+        }
+
+        @Override
+        public void onDataReady(float[] data, int sizeInFloats) {
+            int frames = sizeInFloats / mSourceChannels;
+            int frameOffset = 0;
+            while (frameOffset < frames)
+            {
+                int run = mSilenceCompressor == null ? frames - frameOffset :
+                        mSilenceCompressor.nextRun(data, frameOffset, frames);
+                if (run < 0)
+                {
+                    // Dropped frames still move the stream position, so the next block maps to its source time
+                    mPosition -= run;
+                    frameOffset -= run;
+                }
+                else if (writeFrames(data, frameOffset, run))
+                {
+                    frameOffset += run;
+                }
+                else
+                {
+                    return;
+                }
+            }
+            prepareNextTrackIfNeeded();
+        }
+
+        /**
+         * @return false if playback was stopped
+         */
+        private boolean writeFrames(float[] data, int frameOffset, int frames) {
+            int end = frameOffset + frames;
+            while (frameOffset < end)
+            {
+                PcmRingBuffer.Block block = mRingBuffer.awaitWriteBlock();
+                if (block == null)
+                {
+                    // Playback was stopped, also if the stop came before this decoder started
+                    mDecoder.stop();
+                    return false;
+                }
+
+                int blockFrames = Math.min(end - frameOffset, block.floats.length / mDeviceChannels);
+                if (mSourceChannels == mDeviceChannels)
+                {
+                    System.arraycopy(data, frameOffset * mSourceChannels, block.floats, 0, blockFrames * mSourceChannels);
+                }
+                else
+                {
+                    convertChannels(data, frameOffset, block.floats, blockFrames);
+                }
+                block.size = blockFrames * mDeviceChannels;
+                commit(block, blockFrames);
+
+                frameOffset += blockFrames;
+            }
+            return true;
+        }
+
+        @Override
+        public void onSampleRateChanged(int sampleRate) {
+            mPendingSampleRate = sampleRate;
+            if (mSilenceCompressor != null)
+            {
+                mSilenceCompressor.setSampleRate(sampleRate);
+            }
+        }
+
+        @Override
+        public void onSeek(long positionUs, int seekId) {
+            // The output thread drops older blocks and waits for the first block from the new position
+            mRingBuffer.expectGap();
+            mEpoch = seekId;
+            mPosition = positionUs * mDecoder.getSampleRate() / 1000000;
+            if (mSilenceCompressor != null)
+            {
+                mSilenceCompressor.reset();
+            }
+        }
+
+        private void commit(PcmRingBuffer.Block block, int frames) {
+            block.sampleRate = mPendingSampleRate;
+            block.streamIndex = mTrackIndex;
+            block.epoch = mEpoch;
+            block.position = mPosition;
+            mPosition += frames;
+            mPendingSampleRate = 0;
+            mRingBuffer.commitWrite();
+        }
+
+        private void prepareNextTrackIfNeeded() {
+            long durationUs = mDecoder.getDurationUs();
+            if (mNextDecoder == null && !mTrackQueue.isEmpty() && durationUs > 0 &&
+                    durationUs - mDecoder.getElapsedTimeInMillis() * 1000 < PREPARE_AHEAD_US)
+            {
+                prepareNextDecoder();
+            }
+        }
+
+        // Mono to stereo copies the channel, more channels to mono are mixed
+        // Android devices are little-endian
+        private void convertChannels(byte[] source, int frameOffset, ByteBuffer target, int frames) {
+            for (int frame = 0; frame < frames; frame++)
+            {
+                int sourceIndex = (frameOffset + frame) * mSourceChannels * 2;
+                int targetIndex = frame * mDeviceChannels * 2;
+                if (mDeviceChannels == 1)
+                {
+                    int sum = 0;
+                    for (int channel = 0; channel < mSourceChannels; channel++)
+                    {
+                        int index = sourceIndex + channel * 2;
+                        sum += (short) ((source[index] & 0xFF) | (source[index + 1] << 8));
+                    }
+                    int value = sum / mSourceChannels;
+                    target.put(targetIndex, (byte) value);
+                    target.put(targetIndex + 1, (byte) (value >> 8));
+                }
+                else
+                {
+                    for (int channel = 0; channel < mDeviceChannels; channel++)
+                    {
+                        int index = sourceIndex + Math.min(channel, mSourceChannels - 1) * 2;
+                        target.put(targetIndex + channel * 2, source[index]);
+                        target.put(targetIndex + channel * 2 + 1, source[index + 1]);
+                    }
+                }
+            }
+        }
+
+        private void convertChannels(float[] source, int frameOffset, float[] target, int frames) {
+            for (int frame = 0; frame < frames; frame++)
+            {
+                int sourceIndex = (frameOffset + frame) * mSourceChannels;
+                int targetIndex = frame * mDeviceChannels;
+                if (mDeviceChannels == 1)
+                {
+                    float sum = 0;
+                    for (int channel = 0; channel < mSourceChannels; channel++)
+                    {
+                        sum += source[sourceIndex + channel];
+                    }
+                    target[targetIndex] = sum / mSourceChannels;
+                }
+                else
+                {
+                    for (int channel = 0; channel < mDeviceChannels; channel++)
+                    {
+                        target[targetIndex + channel] = source[sourceIndex + Math.min(channel, mSourceChannels - 1)];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Create and prepare the decoder of the next queued track on a background thread
+     */
+    private void prepareNextDecoder() {
+        final AudioPlayer.TrackSource trackSource = mTrackQueue.poll();
+        if (trackSource == null)
+        {
+            return;
+        }
+
+        final int bufferSize = mAudioDevice.getBufferMinSize();
+        final int pcmEncoding = mAudioDevice.getPcmEncoding();
+        final PcmCache pcmCache = mPcmCache;
+        final int codecMode = mCodecMode;
+        final PlaybackStats playbackStats = mPlaybackStats;
+
+        mNextDecoder = new FutureTask<>(() -> {
+            AudioDecoder audioDecoder = trackSource.createDecoder();
+            audioDecoder.setBufferSize(bufferSize);
+            audioDecoder.setPcmEncoding(pcmEncoding);
+            audioDecoder.setPcmCache(pcmCache);
+            audioDecoder.setCodecMode(codecMode);
+            audioDecoder.setPlaybackStats(playbackStats);
+            audioDecoder.prepare();
+            if (!audioDecoder.isPlayingFromCache())
+            {
+                buildFrameIndex(audioDecoder);
+            }
+            return audioDecoder;
+        });
+        new Thread(mNextDecoder, "TrackPreparer").start();
+    }
+
+    /**
+     * Wait for the next track's decoder, tracks that fail to open are skipped
+     *
+     * @return null when there are no more tracks
+     */
+    private AudioDecoder takeNextDecoder() {
+        while (true)
+        {
+            if (mNextDecoder == null)
+            {
+                prepareNextDecoder();
+                if (mNextDecoder == null)
+                {
+                    return null;
+                }
+            }
+
+            FutureTask<AudioDecoder> nextDecoder = mNextDecoder;
+            mNextDecoder = null;
+            try
+            {
+                return nextDecoder.get();
+            } catch (ExecutionException e)
+            {
+                Log.e(TAG, "Can't open next track", e.getCause());
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private void buildFrameIndex(AudioDecoder audioDecoder) {
+        try
+        {
+            audioDecoder.buildFrameIndex(mFrameIndexDirectory);
+        } catch (IOException e)
+        {
+            Log.w(TAG, "Can't index MP3 frames, seeking is approximate", e);
+        }
+    }
+
+    private void releaseNextDecoder() {
+        if (mNextDecoder != null)
+        {
+            try
+            {
+                mNextDecoder.get().release();
+            } catch (ExecutionException | InterruptedException e)
+            {
+                // Nothing was opened
+            }
+            mNextDecoder = null;
+        }
+    }
+
+    private void writeToDevice(PcmRingBuffer ringBuffer) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        int sampleRate = mAudioDevice.getSampleRate();
+        int channels = mAudioDevice.getNumOfChannels();
+        int epoch = 0;
+        // Position of the next block written starts a new segment of the stream
+        boolean isNewStream = false;
+        // Stream position that follows the last block written, a block at another position was cut from the stream
+        long nextPosition = 0;
+
+        while (true)
+        {
+            // Commands also run when the ring is empty, like a seek during an underrun, post wakes the wait up
+            PcmRingBuffer.Block block = ringBuffer.awaitReadBlock();
+            if (mIsStopped || (block == null && ringBuffer.isFinished()))
+            {
+                break;
+            }
+            mCommands.drain(mCommandConsumer);
+            updatePause();
+            if (block == null)
+            {
+                continue;
+            }
+
+            // Each track reports its rate, the device changes only if it is different
+            if (block.sampleRate != 0 && block.sampleRate != sampleRate)
+            {
+                sampleRate = block.sampleRate;
+                mAudioDevice.setSampleRate(sampleRate);
+            }
+
+            if (block.streamIndex != mOutputTrackIndex)
+            {
+                mOutputTrackIndex = block.streamIndex;
+                isNewStream = true;
+                if (mOnTrackChangedListener != null)
+                {
+                    mOnTrackChangedListener.onTrackChanged(mOutputTrackIndex);
+                }
+            }
+
+            if (block.epoch < mSeekId)
+            {
+                // Decoded before the last seek
+            }
+            else
+            {
+                if (block.epoch != epoch)
+                {
+                    // First block after a seek, drop what the device still holds from the old position
+                    epoch = block.epoch;
+                    mAudioDevice.flush();
+                    isNewStream = true;
+                }
+
+                if (isNewStream || block.position != nextPosition)
+                {
+                    // Position reports count from here
+                    mAudioDevice.markStreamPosition(block.position);
+                    isNewStream = false;
+                }
+                nextPosition = block.position + block.size / (block.buffer != null ? 2 * channels : channels);
+
+                if (block.buffer != null)
+                {
+                    // The device reads the block in place, a Sonic device passes it to native code as it is
+                    block.buffer.clear();
+                    mAudioDevice.write(block.buffer, block.size);
+                }
+                else
+                {
+                    mAudioDevice.write(block.floats, block.size);
+                }
+            }
+
+            ringBuffer.releaseRead();
+
+            // Decoder is paused too, stop draining the ring so resume continues where pause happened
+            updatePause();
+            while (mIsOutputPaused && !mIsStopped)
+            {
+                LockSupport.park(this);
+                mCommands.drain(mCommandConsumer);
+                updatePause();
+            }
+        }
+    }
+
+    /**
+     * Follow the requested pause state, called by the output thread
+     */
+    private void updatePause() {
+        boolean isPaused = mIsPaused;
+        if (isPaused == mIsOutputPaused)
+        {
+            return;
+        }
+
+        mIsOutputPaused = isPaused;
+        AudioDecoder audioDecoder = mAudioDecoder;
+        if (audioDecoder != null)
+        {
+            if (isPaused)
+            {
+                audioDecoder.pause();
+            }
+            else
+            {
+                audioDecoder.resume();
+            }
+        }
+        if (!isPaused)
+        {
+            // The track ran out of data while paused
+            mAudioDevice.skipUnderruns();
+        }
+    }
+
+    /**
+     * Run a command on the output thread with its latest argument, between blocks
+     */
+    private void runCommand(int command, long queuedArgument) {
+        // Cleared before reading, so an argument posted from now on queues the command again
+        mQueuedCommands.set(command, 0);
+        long argument = mCommandArguments.get(command);
+
+        AudioDecoder audioDecoder = mAudioDecoder;
+        switch (command)
+        {
+            case COMMAND_SPEED:
+                ((SonicAudioDevice) mAudioDevice).setSpeed(Float.intBitsToFloat((int) argument));
+                break;
+            case COMMAND_PITCH:
+                ((SonicAudioDevice) mAudioDevice).setPitch(Float.intBitsToFloat((int) argument));
+                break;
+            case COMMAND_RATE:
+                ((SonicAudioDevice) mAudioDevice).setRate(Float.intBitsToFloat((int) argument));
+                break;
+            case COMMAND_SEEK:
+                if (mDecoderTrackIndex != mOutputTrackIndex)
+                {
+                    // The end of the previous track plays while the next one is decoded, the decoder of the track
+                    // that is heard is gone
+                    Log.w(TAG, "Seek at the end of a track dropped");
+                }
+                else if (audioDecoder != null)
+                {
+                    mSeekId++;
+                    audioDecoder.seekTo(argument, mSeekId);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Set the latest argument of a command, queue it for the output thread if it isn't queued yet
+     */
+    private void post(int command, long argument) {
+        mCommandArguments.set(command, argument);
+        if (mQueuedCommands.compareAndSet(command, 0, 1))
+        {
+            // Holds every command once, offer can't fail
+            mCommands.offer(command, argument);
+        }
+        wakeUpOutput();
+    }
+
+    /**
+     * Wake the output thread if it waits for a block, or is paused
+     */
+    private void wakeUpOutput() {
+        PcmRingBuffer ringBuffer = mRingBuffer;
+        if (ringBuffer != null)
+        {
+            ringBuffer.wakeUpConsumer();
+        }
+        Thread outputThread = mOutputThread;
+        if (outputThread != null)
+        {
+            LockSupport.unpark(outputThread);
+        }
+    }
+
     void setSpeed(float speed) {
-        ((SonicAudioDevice) mAudioDevice).setSpeed(speed);
+        post(COMMAND_SPEED, Float.floatToRawIntBits(speed));
     }
 
     void setPitch(float pitch) {
-        ((SonicAudioDevice) mAudioDevice).setPitch(pitch);
+        post(COMMAND_PITCH, Float.floatToRawIntBits(pitch));
     }
 
     void setRate(float rate) {
-        ((SonicAudioDevice) mAudioDevice).setRate(rate);
+        post(COMMAND_RATE, Float.floatToRawIntBits(rate));
     }
 
+    /**
+     * Stop is immediate, also while the output thread is in a blocking write, and ends the thread
+     */
     void stopPlayback() {
-        mAudioDecoder.stop();
+        // Read by the decoding thread between tracks and by the output thread before each block
+        mIsStopped = true;
+
+        // Safe from any thread, and after stop nothing else runs on the decoder or the ring
+        AudioDecoder audioDecoder = mAudioDecoder;
+        if (audioDecoder != null)
+        {
+            audioDecoder.stop();
+        }
+        // Drop buffered blocks
+        PcmRingBuffer ringBuffer = mRingBuffer;
+        if (ringBuffer != null)
+        {
+            ringBuffer.cancel();
+        }
+        wakeUpOutput();
     }
 
     void pausePlayback() {
-        mAudioDecoder.pause();
+        mIsPaused = true;
+        wakeUpOutput();
     }
 
     void resumePlayback() {
-        mAudioDecoder.resume();
+        mIsPaused = false;
+        wakeUpOutput();
+    }
+
+    /**
+     * Jump to positionMs in the current track. Blocks already decoded are dropped and playback continues from the
+     * new position as soon as it is decoded. While the end of a track plays and the next one is already decoded, the
+     * seek is dropped, the track that is heard can't be decoded again.
+     */
+    void seekTo(long positionMs) {
+        post(COMMAND_SEEK, positionMs);
+    }
+
+    int getBufferFillLevel() {
+        PcmRingBuffer ringBuffer = mRingBuffer;
+        return ringBuffer == null ? 0 : ringBuffer.getFillLevel();
+    }
+
+    int getBufferCapacity() {
+        return mBufferDepth;
+    }
+
+    long getBufferStarvationCount() {
+        PcmRingBuffer ringBuffer = mRingBuffer;
+        return ringBuffer == null ? 0 : ringBuffer.getStarvationCount();
     }
 
+    /**
+     * Position that is heard, the decoder is ahead by what is buffered
+     */
     long getElapsedTimeInMillis() {
-        return mAudioDecoder == null ? 0 : mAudioDecoder.getElapsedTimeInMillis();
+        AudioDevice audioDevice = mAudioDevice;
+        return audioDevice == null ? 0 : audioDevice.getPositionMs();
     }
 
     boolean isPlaying() {
@@ -77,6 +896,6 @@ public class PlayerThread extends Thread {
     }
 
     boolean isPaused() {
-        return mAudioDecoder != null && mAudioDecoder.isPaused();
+        return mAudioDecoder != null && mIsPaused;
     }
-}
\ No newline at end of file
+}
@@ -13,89 +13,272 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package demo.arbuz.mp3sonicplayer.audio;
 
+import android.media.AudioFormat;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
 
-import org.vinuxproject.sonic.Sonic;
+import demo.arbuz.mp3sonicplayer.core.PcmSink;
+import demo.arbuz.mp3sonicplayer.core.PlaybackStats;
+import demo.arbuz.mp3sonicplayer.core.QualityGovernor;
+import demo.arbuz.mp3sonicplayer.core.SonicProcessor;
+import demo.arbuz.mp3sonicplayer.core.TraceRecorder;
+import demo.arbuz.mp3sonicplayer.core.VisualizerFeed;
 
 public class SonicAudioDevice extends AudioDevice {
 
-    private static final int SONIC_SAMPLES_SIZE = 2048;
+    // Where the visualizer feed taps the audio
+    public static final int VISUALIZER_TAP_INPUT  = 0; // Before Sonic, at source speed
+    public static final int VISUALIZER_TAP_OUTPUT = 1; // After Sonic, as it is played
+
+    private SonicProcessor mSonicProcessor;
 
-    private Sonic mSonic;
+    private QualityGovernor mQualityGovernor;
 
-    private byte mModifiedSamples[];
+    private VisualizerFeed mVisualizerFeed;
+    private int            mVisualizerTap;
 
     public SonicAudioDevice(int sampleRate, int numOfChannels) {
-        super(sampleRate, numOfChannels);
+        this(sampleRate, numOfChannels, AudioFormat.ENCODING_PCM_16BIT);
+    }
+
+    public SonicAudioDevice(int sampleRate, int numOfChannels, int pcmEncoding) {
+        super(sampleRate, numOfChannels, pcmEncoding);
 
-        mSonic = new Sonic(sampleRate, numOfChannels);
+        // Processed samples are written to the audio track
+        mSonicProcessor = new SonicProcessor(sampleRate, numOfChannels, pcmEncoding == AudioFormat.ENCODING_PCM_FLOAT,
+                new PcmSink() {
 
-        mModifiedSamples = new byte[SONIC_SAMPLES_SIZE];
+                    @Override
+                    public void write(ByteBuffer audioData, int sizeInBytes) {
+                        if (mVisualizerTap == VISUALIZER_TAP_OUTPUT && mVisualizerFeed != null)
+                        {
+                            mVisualizerFeed.write(audioData, sizeInBytes);
+                        }
+                        writeToTrack(audioData, sizeInBytes);
+                    }
 
-        setSpeed(1.0f);
-        setPitch(1.0f);
-        setRate(1.0f);
+                    @Override
+                    public void write(float[] audioData, int sizeInFloats) {
+                        if (mVisualizerTap == VISUALIZER_TAP_OUTPUT && mVisualizerFeed != null)
+                        {
+                            mVisualizerFeed.write(audioData, sizeInFloats);
+                        }
+                        writeToTrack(audioData, sizeInFloats);
+                    }
+                });
     }
 
     public void setSpeed(float speed) {
         checkState();
 
-        mSonic.setSpeed(speed);
+        mSonicProcessor.setSpeed(speed);
     }
 
     public void setPitch(float pitch) {
         checkState();
 
-        mSonic.setPitch(pitch);
+        mSonicProcessor.setPitch(pitch);
     }
 
     public void setRate(float rate) {
         checkState();
 
-        mSonic.setRate(rate);
+        mSonicProcessor.setRate(rate);
+    }
+
+    /**
+     * Step Sonic's quality with the processing load, the device starts at the governor's level. Null keeps the
+     * current level.
+     */
+    public void setQualityGovernor(@Nullable QualityGovernor qualityGovernor) {
+        checkState();
+
+        mQualityGovernor = qualityGovernor;
+        if (qualityGovernor != null)
+        {
+            mSonicProcessor.setQualityLevel(qualityGovernor.getLevel());
+        }
+    }
+
+    /**
+     * Copy the audio to a feed that analyses it on its own thread, the audio thread only copies each block. The feed
+     * is started here and stopped with the device. Set before the device is written to.
+     *
+     * @param tap {@link #VISUALIZER_TAP_INPUT} or {@link #VISUALIZER_TAP_OUTPUT}
+     */
+    public void setVisualizerFeed(@Nullable VisualizerFeed visualizerFeed, int tap) {
+        checkState();
+
+        if (tap != VISUALIZER_TAP_INPUT && tap != VISUALIZER_TAP_OUTPUT)
+        {
+            throw new IllegalArgumentException("Invalid tap " + tap);
+        }
+        if (mVisualizerFeed != null)
+        {
+            mVisualizerFeed.stop();
+        }
+
+        mVisualizerFeed = visualizerFeed;
+        mVisualizerTap = tap;
+        if (visualizerFeed != null)
+        {
+            visualizerFeed.start(getSampleRate(), getNumOfChannels(),
+                    getPcmEncoding() == AudioFormat.ENCODING_PCM_FLOAT);
+        }
     }
 
     public void setSampleRate(int sampleRate) {
+        // Sonic writes what it holds before the track changes rate
+        mSonicProcessor.setSampleRate(sampleRate);
         super.setSampleRate(sampleRate);
-        mSonic.setSampleRate(sampleRate);
+        if (mVisualizerFeed != null)
+        {
+            mVisualizerFeed.setSampleRate(sampleRate);
+        }
     }
 
     public void write(@NonNull byte[] audioData, int sizeInBytes) {
+        long startNs = isTimingTrackWrites() ? System.nanoTime() : 0;
+        long trackWriteNs = getTrackWriteTimeNs();
+
+        onInput(sizeInBytes / (2 * getNumOfChannels()));
+
         // Before writing PCM data to audio track, pass it through Sonic buffer
-        // Consider using different thread for reading from Sonic buffer
-        if (audioData.length > 0)
+        if (mVisualizerTap == VISUALIZER_TAP_INPUT && mVisualizerFeed != null)
         {
-            mSonic.putBytes(audioData, audioData.length);
+            mVisualizerFeed.write(audioData, 0, sizeInBytes);
         }
 
-        int available = mSonic.availableBytes();
-        if (available > 0)
+        TraceRecorder.begin(TraceRecorder.SONIC_WRITE, sizeInBytes);
+        mSonicProcessor.write(audioData, sizeInBytes);
+        TraceRecorder.end(TraceRecorder.SONIC_WRITE);
+
+        if (isTimingTrackWrites())
         {
-            if (mModifiedSamples.length < available)
-            {
-                mModifiedSamples = new byte[available * 2];
-            }
-            mSonic.receiveBytes(mModifiedSamples, available);
-            super.write(mModifiedSamples, available);
+            recordProcessing(sizeInBytes / (2 * getNumOfChannels()), startNs, trackWriteNs);
         }
     }
 
+    /**
+     * Write from the buffer's position, the position is advanced by sizeInBytes. A direct buffer goes to Sonic in
+     * place, without the copy that an array needs.
+     */
+    @Override
+    public void write(@NonNull ByteBuffer audioData, int sizeInBytes) {
+        long startNs = isTimingTrackWrites() ? System.nanoTime() : 0;
+        long trackWriteNs = getTrackWriteTimeNs();
+
+        onInput(sizeInBytes / (2 * getNumOfChannels()));
+
+        if (mVisualizerTap == VISUALIZER_TAP_INPUT && mVisualizerFeed != null)
+        {
+            mVisualizerFeed.write(audioData, sizeInBytes);
+        }
+
+        TraceRecorder.begin(TraceRecorder.SONIC_WRITE, sizeInBytes);
+        mSonicProcessor.write(audioData, sizeInBytes);
+        TraceRecorder.end(TraceRecorder.SONIC_WRITE);
+
+        if (isTimingTrackWrites())
+        {
+            recordProcessing(sizeInBytes / (2 * getNumOfChannels()), startNs, trackWriteNs);
+        }
+    }
+
+    public void write(@NonNull float[] audioData, int sizeInFloats) {
+        long startNs = isTimingTrackWrites() ? System.nanoTime() : 0;
+        long trackWriteNs = getTrackWriteTimeNs();
+
+        onInput(sizeInFloats / getNumOfChannels());
+
+        if (mVisualizerTap == VISUALIZER_TAP_INPUT && mVisualizerFeed != null)
+        {
+            mVisualizerFeed.write(audioData, sizeInFloats);
+        }
+
+        TraceRecorder.begin(TraceRecorder.SONIC_WRITE, sizeInFloats * 4);
+        mSonicProcessor.write(audioData, sizeInFloats);
+        TraceRecorder.end(TraceRecorder.SONIC_WRITE);
+
+        if (isTimingTrackWrites())
+        {
+            recordProcessing(sizeInFloats / getNumOfChannels(), startNs, trackWriteNs);
+        }
+    }
+
+    @Override
+    boolean isTimingTrackWrites() {
+        return super.isTimingTrackWrites() || mQualityGovernor != null;
+    }
+
+    // Time the output waited for the track during the write is not Sonic's
+    private void recordProcessing(int frames, long startNs, long trackWriteNs) {
+        long durationNs = System.nanoTime() - startNs - (getTrackWriteTimeNs() - trackWriteNs);
+
+        PlaybackStats playbackStats = getPlaybackStats();
+        if (playbackStats != null)
+        {
+            playbackStats.recordProcessedBlock(frames, getSampleRate(), durationNs);
+        }
+
+        // Blocks Sonic bypasses cost nothing, they would only read as headroom
+        QualityGovernor qualityGovernor = mQualityGovernor;
+        if (qualityGovernor != null && !mSonicProcessor.isBypassed() &&
+                qualityGovernor.recordBlock(frames, getSampleRate(), getSpeedFactor(), durationNs))
+        {
+            mSonicProcessor.setQualityLevel(qualityGovernor.getLevel());
+        }
+    }
+
+    /**
+     * Sonic plays speed times rate source frames per output frame, pitch doesn't change the duration
+     */
+    @Override
+    protected double getSpeedFactor() {
+        return (double) mSonicProcessor.getSpeed() * mSonicProcessor.getRate();
+    }
+
+    @Override
+    public void drain() {
+        checkState();
+
+        // Play what Sonic still holds too
+        mSonicProcessor.flush();
+
+        super.drain();
+    }
+
+    @Override
+    public void flush() {
+        checkState();
+
+        mSonicProcessor.discard();
+
+        super.flush();
+    }
+
     @Override
     public void stop() {
         super.stop();
 
         checkState();
 
-        mSonic.flush();
-        mSonic = null;
-        mModifiedSamples = null;
+        if (mVisualizerFeed != null)
+        {
+            mVisualizerFeed.stop();
+            mVisualizerFeed = null;
+        }
+
+        mSonicProcessor.release();
+        mSonicProcessor = null;
     }
 
     private void checkState() {
-        if (mSonic == null) {
+        if (mSonicProcessor == null) {
             throw new IllegalStateException();
         }
     }
@@ -7,6 +7,8 @@
 */
 
 #include "sonic.h"
+#include "sonicfft.h"
+#include "sonicsimd.h"
 
 #include <limits.h>
 #include <math.h>
@@ -55,6 +57,9 @@
 #define SINC_FILTER_POINTS \
   12 /* I am not able to hear improvement with higher N. */
 #define SINC_TABLE_SIZE 601
+/* Rate pairs with more filter phases than this compute the weights of each
+   output sample instead of keeping a table, which would be bigger than 192KB. */
+#define SONIC_MAX_RATE_TABLE_PHASES 4096
 
 /* Lookup table for windowed sinc function of SINC_FILTER_POINTS points. */
 static short sincTable[SINC_TABLE_SIZE] = {
@@ -128,8 +133,22 @@ struct sonicStreamStruct {
   float rate;
   int oldRatePosition;
   int newRatePosition;
+  /* Filter weights of each phase of the rate pair below, SINC_FILTER_POINTS
+     each.  Phase p is for ratio (p + 1)*rateTableStep - 1. */
+  int* rateTable;
+  int rateTableOldRate;
+  int rateTableNewRate;
+  int rateTableStep;
+  int rateTablePhases;
   int useChordPitch;
   int quality;
+  int pitchMethod;
+  /* Autocorrelation pitch search, allocated when first used. */
+  sonicFft pitchFft;
+  float* fftBuffer;
+  float* nsdfBuffer;
+  int minPitch;
+  int maxPitch;
   int numChannels;
   int inputBufferSize;
   int pitchBufferSize;
@@ -220,6 +239,16 @@ void sonicSetQuality(sonicStream stream, int quality) {
   stream->quality = quality;
 }
 
+/* Get the pitch period search method. */
+int sonicGetPitchMethod(sonicStream stream) { return stream->pitchMethod; }
+
+/* Set the pitch period search method.  Differences found by one method don't
+   compare to the other's, so forget the previous period. */
+void sonicSetPitchMethod(sonicStream stream, int method) {
+  stream->pitchMethod = method;
+  stream->prevPeriod = 0;
+}
+
 /* Get the scaling factor of the stream. */
 float sonicGetVolume(sonicStream stream) { return stream->volume; }
 
@@ -242,6 +271,23 @@ static void freeStreamBuffers(sonicStream stream) {
   if (stream->downSampleBuffer != NULL) {
     free(stream->downSampleBuffer);
   }
+  if (stream->rateTable != NULL) {
+    free(stream->rateTable);
+    stream->rateTable = NULL;
+    stream->rateTablePhases = 0;
+  }
+  if (stream->pitchFft != NULL) {
+    sonicDestroyFft(stream->pitchFft);
+    stream->pitchFft = NULL;
+  }
+  if (stream->fftBuffer != NULL) {
+    free(stream->fftBuffer);
+    stream->fftBuffer = NULL;
+  }
+  if (stream->nsdfBuffer != NULL) {
+    free(stream->nsdfBuffer);
+    stream->nsdfBuffer = NULL;
+  }
 }
 
 /* Destroy the sonic stream. */
@@ -255,11 +301,28 @@ void sonicDestroyStream(sonicStream stream) {
   free(stream);
 }
 
+/* Return the number of bytes allocated for the stream and its buffers. */
+int sonicGetAllocatedBytes(sonicStream stream) {
+  int frameSize = sizeof(short) * stream->numChannels;
+  int fftBytes = 0;
+
+  if (stream->pitchFft != NULL) {
+    fftBytes = sonicGetFftAllocatedBytes(stream->pitchFft) +
+               (sonicGetFftSize(stream->pitchFft) + stream->maxPeriod + 1) *
+                   sizeof(float);
+  }
+  return sizeof(struct sonicStreamStruct) +
+         (stream->inputBufferSize + stream->outputBufferSize +
+          stream->pitchBufferSize) * frameSize +
+         stream->maxRequired * sizeof(short) +
+         stream->rateTablePhases * SINC_FILTER_POINTS * sizeof(int) + fftBytes;
+}
+
 /* Allocate stream buffers. */
 static int allocateStreamBuffers(sonicStream stream, int sampleRate,
                                  int numChannels) {
-  int minPeriod = sampleRate / SONIC_MAX_PITCH;
-  int maxPeriod = sampleRate / SONIC_MIN_PITCH;
+  int minPeriod = sampleRate / stream->maxPitch;
+  int maxPeriod = sampleRate / stream->minPitch;
   int maxRequired = 2 * maxPeriod;
 
   stream->inputBufferSize = maxRequired;
@@ -307,6 +370,8 @@ sonicStream sonicCreateStream(int sampleRate, int numChannels) {
   if (stream == NULL) {
     return NULL;
   }
+  stream->minPitch = SONIC_MIN_PITCH;
+  stream->maxPitch = SONIC_MAX_PITCH;
   if (!allocateStreamBuffers(stream, sampleRate, numChannels)) {
     return NULL;
   }
@@ -318,6 +383,7 @@ sonicStream sonicCreateStream(int sampleRate, int numChannels) {
   stream->newRatePosition = 0;
   stream->useChordPitch = 0;
   stream->quality = 0;
+  stream->pitchMethod = SONIC_PITCH_AMDF;
   stream->avePower = 50.0f;
   return stream;
 }
@@ -332,6 +398,21 @@ void sonicSetSampleRate(sonicStream stream, int sampleRate) {
   allocateStreamBuffers(stream, sampleRate, stream->numChannels);
 }
 
+/* Get the lowest pitch searched. */
+int sonicGetMinPitch(sonicStream stream) { return stream->minPitch; }
+
+/* Get the highest pitch searched. */
+int sonicGetMaxPitch(sonicStream stream) { return stream->maxPitch; }
+
+/* Set the range of pitch searched, in Hz.  Buffers are sized for the lowest
+   pitch, so this will cause samples buffered in the stream to be lost. */
+void sonicSetPitchRange(sonicStream stream, int minPitch, int maxPitch) {
+  stream->minPitch = minPitch;
+  stream->maxPitch = maxPitch;
+  freeStreamBuffers(stream);
+  allocateStreamBuffers(stream, stream->sampleRate, stream->numChannels);
+}
+
 /* Get the number of channels. */
 int sonicGetNumChannels(sonicStream stream) { return stream->numChannels; }
 
@@ -614,22 +695,10 @@ static void downSampleInput(sonicStream stream, short* samples, int skip) {
 static int findPitchPeriodInRange(short* samples, int minPeriod, int maxPeriod,
                                   int* retMinDiff, int* retMaxDiff) {
   int period, bestPeriod = 0, worstPeriod = 255;
-  short* s;
-  short* p;
-  short sVal, pVal;
   unsigned long diff, minDiff = 1, maxDiff = 0;
-  int i;
 
   for (period = minPeriod; period <= maxPeriod; period++) {
-    diff = 0;
-    s = samples;
-    p = samples + period;
-    for (i = 0; i < period; i++) {
-      sVal = *s++;
-      pVal = *p++;
-      diff += sVal >= pVal ? (unsigned short)(sVal - pVal)
-                           : (unsigned short)(pVal - sVal);
-    }
+    diff = sonicAbsDiffSum(samples, samples + period, period);
     /* Note that the highest number of samples we add into diff will be less
        than 256, since we skip samples.  Thus, diff is a 24 bit number, and
        we can safely multiply by numSamples without overflow */
@@ -674,11 +743,136 @@ static int prevPeriodBetter(sonicStream stream, int period, int minDiff,
   return 1;
 }
 
+/* Allocate the FFT of the autocorrelation search.  The window is zero padded
+   to at least its size plus the longest period, so the circular correlation
+   doesn't wrap around for any period searched.  Return 0 if out of memory, in
+   which case the AMDF search is used. */
+static int allocateAutocorrelation(sonicStream stream) {
+  int size = 4;
+
+  if (stream->pitchFft != NULL) {
+    return 1;
+  }
+  while (size < stream->maxRequired + stream->maxPeriod) {
+    size <<= 1;
+  }
+  stream->pitchFft = sonicCreateFft(size);
+  stream->fftBuffer = (float*)malloc(size * sizeof(float));
+  stream->nsdfBuffer = (float*)malloc((stream->maxPeriod + 1) * sizeof(float));
+  if (stream->pitchFft == NULL || stream->fftBuffer == NULL ||
+      stream->nsdfBuffer == NULL) {
+    if (stream->pitchFft != NULL) {
+      sonicDestroyFft(stream->pitchFft);
+      stream->pitchFft = NULL;
+    }
+    free(stream->fftBuffer);
+    stream->fftBuffer = NULL;
+    free(stream->nsdfBuffer);
+    stream->nsdfBuffer = NULL;
+    return 0;
+  }
+  return 1;
+}
+
+/* Find the pitch period with the normalized square difference function (NSDF)
+   of McLeod and Wyvill: the autocorrelation at each period, over the energy of
+   the two parts of the window it multiplies.  The autocorrelation of every
+   period is found at once with a forward and an inverse FFT, at full
+   resolution, so the cost grows with the window rather than with the window
+   times the range of periods.  The first peak close to the highest wins, so a
+   multiple of the period doesn't.  The differences returned are 1 - NSDF,
+   scaled to 16 bits, for prevPeriodBetter. */
+static int findPitchPeriodByAutocorrelation(sonicStream stream,
+                                            short* samples, int* retMinDiff,
+                                            int* retMaxDiff) {
+  int windowSize = stream->maxRequired;
+  int minPeriod = stream->minPeriod;
+  int maxPeriod = stream->maxPeriod;
+  int size = sonicGetFftSize(stream->pitchFft);
+  float* even = stream->fftBuffer;
+  float* odd = stream->fftBuffer + size / 2;
+  float* nsdf = stream->nsdfBuffer;
+  short* window = samples;
+  double energy = 0.0;
+  float value, correlation, threshold, best = -2.0f, worst = 2.0f;
+  int period, bestPeriod = minPeriod;
+  int i;
+
+  if (stream->numChannels != 1) {
+    downSampleInput(stream, samples, 1);
+    window = stream->downSampleBuffer;
+  }
+  for (i = 0; i < windowSize; i++) {
+    energy += (double)window[i] * window[i];
+  }
+  for (i = 0; i < windowSize >> 1; i++) {
+    even[i] = window[2 * i];
+    odd[i] = window[2 * i + 1];
+  }
+  if (windowSize & 1) {
+    even[i] = window[windowSize - 1];
+    odd[i++] = 0.0f;
+  }
+  for (; i < size / 2; i++) {
+    even[i] = 0.0f;
+    odd[i] = 0.0f;
+  }
+  sonicFftForward(stream->pitchFft, even, odd);
+  /* The power spectrum is real, bins 0 and size/2 are both real already */
+  even[0] *= even[0];
+  odd[0] *= odd[0];
+  for (i = 1; i < size / 2; i++) {
+    even[i] = even[i] * even[i] + odd[i] * odd[i];
+    odd[i] = 0.0f;
+  }
+  sonicFftInverse(stream->pitchFft, even, odd);
+  /* Now the autocorrelation times size is in even for even periods and odd for
+     odd ones.  The energy of both parts starts at twice the window's, and each
+     period drops one square from either end. */
+  energy *= 2.0;
+  for (period = 0; period <= maxPeriod; period++) {
+    if (period >= minPeriod) {
+      correlation = (period & 1) ? odd[period >> 1] : even[period >> 1];
+      value = 0.0f;
+      if (energy > 0.0) {
+        value = 2.0 * correlation / size / energy;
+      }
+      nsdf[period] = value;
+      if (value > best) {
+        best = value;
+        bestPeriod = period;
+      }
+      if (value < worst) {
+        worst = value;
+      }
+    }
+    energy -= (double)window[windowSize - 1 - period] *
+                  window[windowSize - 1 - period] +
+              (double)window[period] * window[period];
+  }
+  if (best > 0.0f) {
+    threshold = SONIC_NSDF_PEAK_RATIO * best;
+    for (period = minPeriod; period <= maxPeriod; period++) {
+      value = nsdf[period];
+      if (value >= threshold &&
+          (period == minPeriod || value >= nsdf[period - 1]) &&
+          (period == maxPeriod || value >= nsdf[period + 1])) {
+        bestPeriod = period;
+        break;
+      }
+    }
+  }
+  *retMinDiff = (int)((1.0f - nsdf[bestPeriod]) * 32768.0f);
+  *retMaxDiff = (int)((1.0f - worst) * 32768.0f);
+  return bestPeriod;
+}
+
 /* Find the pitch period.  This is a critical step, and we may have to try
    multiple ways to get a good answer.  This version uses Average Magnitude
    Difference Function (AMDF).  To improve speed, we down sample by an integer
    factor get in the 11KHz range, and then do it again with a narrower
-   frequency range without down sampling */
+   frequency range without down sampling.  With SONIC_PITCH_AUTOCORRELATION
+   the period is found with an FFT instead. */
 static int findPitchPeriod(sonicStream stream, short* samples,
                            int preferNewPeriod) {
   int minPeriod = stream->minPeriod;
@@ -691,7 +885,11 @@ static int findPitchPeriod(sonicStream stream, short* samples,
   if (sampleRate > SONIC_AMDF_FREQ && stream->quality == 0) {
     skip = sampleRate / SONIC_AMDF_FREQ;
   }
-  if (stream->numChannels == 1 && skip == 1) {
+  if (stream->pitchMethod == SONIC_PITCH_AUTOCORRELATION &&
+      allocateAutocorrelation(stream)) {
+    period = findPitchPeriodByAutocorrelation(stream, samples, &minDiff,
+                                              &maxDiff);
+  } else if (stream->numChannels == 1 && skip == 1) {
     period = findPitchPeriodInRange(samples, minPeriod, maxPeriod, &minDiff,
                                     &maxDiff);
   } else {
@@ -732,6 +930,7 @@ static int findPitchPeriod(sonicStream stream, short* samples,
    other one from zero up, and add them, storing the result at the output. */
 static void overlapAdd(int numSamples, int numChannels, short* out,
                        short* rampDown, short* rampUp) {
+#ifdef SONIC_USE_SIN
   short* o;
   short* u;
   short* d;
@@ -742,17 +941,17 @@ static void overlapAdd(int numSamples, int numChannels, short* out,
     u = rampUp + i;
     d = rampDown + i;
     for (t = 0; t < numSamples; t++) {
-#ifdef SONIC_USE_SIN
       float ratio = sin(t * M_PI / (2 * numSamples));
       *o = *d * (1.0f - ratio) + *u * ratio;
-#else
-      *o = (*d * (numSamples - t) + *u * t) / numSamples;
-#endif
       o += numChannels;
       d += numChannels;
       u += numChannels;
     }
   }
+#else
+  sonicOverlapAddRange(numSamples, numChannels, out, rampDown, numSamples,
+                       rampUp, 0, numSamples);
+#endif
 }
 
 /* Overlap two sound segments, ramp the volume of one down, while ramping the
@@ -760,28 +959,22 @@ static void overlapAdd(int numSamples, int numChannels, short* out,
 static void overlapAddWithSeparation(int numSamples, int numChannels,
                                      int separation, short* out,
                                      short* rampDown, short* rampUp) {
-  short *o, *u, *d;
-  int i, t;
-
-  for (i = 0; i < numChannels; i++) {
-    o = out + i;
-    u = rampUp + i;
-    d = rampDown + i;
-    for (t = 0; t < numSamples + separation; t++) {
-      if (t < separation) {
-        *o = *d * (numSamples - t) / numSamples;
-        d += numChannels;
-      } else if (t < numSamples) {
-        *o = (*d * (numSamples - t) + *u * (t - separation)) / numSamples;
-        d += numChannels;
-        u += numChannels;
-      } else {
-        *o = *u * (t - separation) / numSamples;
-        u += numChannels;
-      }
-      o += numChannels;
-    }
-  }
+  int upStart = numSamples > separation ? numSamples : separation;
+
+  /* Before separation only rampDown plays, after numSamples only rampUp, and
+     both in between.  Sample t of rampUp is mixed at t + separation. */
+  sonicOverlapAddRange(separation, numChannels, out, rampDown, numSamples,
+                       NULL, 0, numSamples);
+  if (numSamples > separation) {
+    sonicOverlapAddRange(numSamples - separation, numChannels,
+                         out + separation * numChannels,
+                         rampDown + separation * numChannels,
+                         numSamples - separation, rampUp, 0, numSamples);
+  }
+  sonicOverlapAddRange(numSamples + separation - upStart, numChannels,
+                       out + upStart * numChannels, NULL, 0,
+                       rampUp + (upStart - separation) * numChannels,
+                       upStart - separation, numSamples);
 }
 
 /* Just move the new samples in the output buffer to the pitch buffer */
@@ -879,42 +1072,96 @@ static int findSincCoefficient(int i, int ratio, int width) {
   return ((leftVal * (width - position) + rightVal * position) << 1) / width;
 }
 
-/* Return 1 if value >= 0, else -1.  This represents the sign of value. */
-static int getSign(int value) { return value >= 0 ? 1 : -1; }
+/* Return the greatest common divisor of a and b. */
+static int findGcd(int a, int b) {
+  int t;
 
-/* Interpolate the new output sample. */
-static short interpolate(sonicStream stream, short* in, int oldSampleRate,
-                         int newSampleRate) {
-  /* Compute N-point sinc FIR-filter here.  Clip rather than overflow. */
-  int i;
-  int total = 0;
+  while (b != 0) {
+    t = a % b;
+    a = b;
+    b = t;
+  }
+  return a;
+}
+
+/* Build the filter weights of every phase of the rate pair, unless the table
+   is built already.  The ratios of a pair are one less than multiples of the
+   gcd of the rates, so there are newSampleRate/gcd phases. */
+static void prepareRateTable(sonicStream stream, int oldSampleRate,
+                             int newSampleRate) {
+  int step = findGcd(oldSampleRate, newSampleRate);
+  int numPhases = newSampleRate / step;
+  int* table;
+  int phase, i;
+
+  if (stream->rateTable != NULL && stream->rateTableOldRate == oldSampleRate &&
+      stream->rateTableNewRate == newSampleRate) {
+    return;
+  }
+  if (stream->rateTable != NULL) {
+    free(stream->rateTable);
+    stream->rateTable = NULL;
+    stream->rateTablePhases = 0;
+  }
+  if (numPhases > SONIC_MAX_RATE_TABLE_PHASES) {
+    return;
+  }
+  table = (int*)malloc(numPhases * SINC_FILTER_POINTS * sizeof(int));
+  if (table == NULL) {
+    /* Not fatal, the weights are computed for each sample instead */
+    return;
+  }
+  for (phase = 0; phase < numPhases; phase++) {
+    for (i = 0; i < SINC_FILTER_POINTS; i++) {
+      table[phase * SINC_FILTER_POINTS + i] =
+          findSincCoefficient(i, (phase + 1) * step - 1, newSampleRate);
+    }
+  }
+  stream->rateTable = table;
+  stream->rateTableOldRate = oldSampleRate;
+  stream->rateTableNewRate = newSampleRate;
+  stream->rateTableStep = step;
+  stream->rateTablePhases = numPhases;
+}
+
+/* Find the filter weights of the next output sample, in the rate table or
+   computed into weights. */
+static int* findRateWeights(sonicStream stream, int oldSampleRate,
+                            int newSampleRate, int* weights) {
   int position = stream->newRatePosition * oldSampleRate;
   int leftPosition = stream->oldRatePosition * newSampleRate;
   int rightPosition = (stream->oldRatePosition + 1) * newSampleRate;
   int ratio = rightPosition - position - 1;
   int width = rightPosition - leftPosition;
-  int weight, value;
-  int oldSign;
-  int overflowCount = 0;
+  int i;
 
+  if (stream->rateTable != NULL && stream->rateTableOldRate == oldSampleRate &&
+      stream->rateTableNewRate == newSampleRate && ratio >= 0 &&
+      ratio < width && (ratio + 1) % stream->rateTableStep == 0) {
+    return stream->rateTable +
+           ((ratio + 1) / stream->rateTableStep - 1) * SINC_FILTER_POINTS;
+  }
   for (i = 0; i < SINC_FILTER_POINTS; i++) {
-    weight = findSincCoefficient(i, ratio, width);
-    /* printf("%u %f\n", i, weight); */
-    value = in[i * stream->numChannels] * weight;
-    oldSign = getSign(total);
-    total += value;
-    if (oldSign != getSign(total) && getSign(value) == oldSign) {
-      /* We must have overflowed.  This can happen with a sinc filter. */
-      overflowCount += oldSign;
-    }
+    weights[i] = findSincCoefficient(i, ratio, width);
   }
-  /* It is better to clip than to wrap if there was a overflow. */
-  if (overflowCount > 0) {
-    return SHRT_MAX;
-  } else if (overflowCount < 0) {
-    return SHRT_MIN;
+  return weights;
+}
+
+/* Interpolate the new output sample. */
+static short interpolate(short* in, int numChannels, int* weights) {
+  /* Compute N-point sinc FIR-filter here.  Clip rather than overflow: the sum
+     can't overflow 64 bits, and is clipped once at the end.  This gives what
+     counting overflows of a 32 bit sum did. */
+  long long total = 0;
+  int i;
+
+  for (i = 0; i < SINC_FILTER_POINTS; i++) {
+    total += (long long)(in[i * numChannels] * weights[i]);
   }
-  return total >> 16;
+  total >>= 16;
+  total = total > SHRT_MAX ? SHRT_MAX : total;
+  total = total < SHRT_MIN ? SHRT_MIN : total;
+  return (short)total;
 }
 
 /* Change the rate.  Interpolate with a sinc FIR filter using a Hann window. */
@@ -925,6 +1172,8 @@ static int adjustRate(sonicStream stream, float rate,
   int numChannels = stream->numChannels;
   int position = 0;
   short *in, *out;
+  int weights[SINC_FILTER_POINTS];
+  int* frameWeights;
   int i;
   int N = SINC_FILTER_POINTS;
 
@@ -939,6 +1188,7 @@ static int adjustRate(sonicStream stream, float rate,
   if (!moveNewSamplesToPitchBuffer(stream, originalNumOutputSamples)) {
     return 0;
   }
+  prepareRateTable(stream, oldSampleRate, newSampleRate);
   /* Leave at least N pitch sample in the buffer */
   for (position = 0; position < stream->numPitchSamples - N; position++) {
     while ((stream->oldRatePosition + 1) * newSampleRate >
@@ -948,8 +1198,11 @@ static int adjustRate(sonicStream stream, float rate,
       }
       out = stream->outputBuffer + stream->numOutputSamples * numChannels;
       in = stream->pitchBuffer + position * numChannels;
+      /* All channels of a frame use the same weights */
+      frameWeights =
+          findRateWeights(stream, oldSampleRate, newSampleRate, weights);
       for (i = 0; i < numChannels; i++) {
-        *out++ = interpolate(stream, in, oldSampleRate, newSampleRate);
+        *out++ = interpolate(in, numChannels, frameWeights);
         in++;
       }
       stream->newRatePosition++;
@@ -63,6 +63,14 @@ extern "C" {
 /* These are used to down-sample some inputs to improve speed */
 #define SONIC_AMDF_FREQ 4000
 
+/* Ways to find the pitch period, see sonicSetPitchMethod */
+#define SONIC_PITCH_AMDF 0
+#define SONIC_PITCH_AUTOCORRELATION 1
+
+/* The autocorrelation search takes the shortest period whose peak is at least
+   this fraction of the highest, rather than a multiple of it */
+#define SONIC_NSDF_PEAK_RATIO 0.9f
+
 struct sonicStreamStruct;
 typedef struct sonicStreamStruct* sonicStream;
 
@@ -103,6 +111,8 @@ int sonicReadUnsignedCharFromStream(sonicStream stream, unsigned char* samples,
 int sonicFlushStream(sonicStream stream);
 /* Return the number of samples in the output buffer */
 int sonicSamplesAvailable(sonicStream stream);
+/* Return the number of bytes allocated for the stream and its buffers. */
+int sonicGetAllocatedBytes(sonicStream stream);
 /* Get the speed of the stream. */
 float sonicGetSpeed(sonicStream stream);
 /* Set the speed of the stream. */
@@ -129,6 +139,20 @@ int sonicGetQuality(sonicStream stream);
 /* Set the "quality".  Default 0 is virtually as good as 1, but very much
  * faster. */
 void sonicSetQuality(sonicStream stream, int quality);
+/* Get the pitch period search method. */
+int sonicGetPitchMethod(sonicStream stream);
+/* Set how the pitch period is found.  Default SONIC_PITCH_AMDF, its speed set
+   by the quality.  SONIC_PITCH_AUTOCORRELATION searches at full resolution
+   with an FFT, which costs less than AMDF quality 1 at high sample rates. */
+void sonicSetPitchMethod(sonicStream stream, int method);
+/* Get the lowest pitch searched, in Hz. */
+int sonicGetMinPitch(sonicStream stream);
+/* Get the highest pitch searched, in Hz. */
+int sonicGetMaxPitch(sonicStream stream);
+/* Set the range of pitch searched, in Hz.  Default SONIC_MIN_PITCH to
+   SONIC_MAX_PITCH, going lower may overflow the AMDF search.  This will drop
+   any samples that have not been read. */
+void sonicSetPitchRange(sonicStream stream, int minPitch, int maxPitch);
 /* Get the sample rate of the stream. */
 int sonicGetSampleRate(sonicStream stream);
 /* Set the sample rate of the stream.  This will drop any samples that have not
@@ -139,6 +163,11 @@ int sonicGetNumChannels(sonicStream stream);
 /* Set the number of channels.  This will drop any samples that have not been
  * read. */
 void sonicSetNumChannels(sonicStream stream, int numChannels);
+/* Use vector instructions for pitch detection and overlap-add when the CPU has
+   them, for all streams.  Default is on.  The output is the same either way. */
+void sonicSetSimdEnabled(int enabled);
+/* Return the name of the vector instructions in use, or "scalar". */
+const char* sonicGetSimdName(void);
 /* This is a non-stream oriented interface to just change the speed of a sound
    sample.  It works in-place on the sample array, so there must be at least
    speed*numSamples available space in the array. Returns the new number of
@@ -0,0 +1,218 @@
+/* Sonic library
+   Copyright 2010
+   Bill Cox
+   This file is part of the Sonic Library.
+
+   This file is licensed under the Apache 2.0 license.
+*/
+
+#include "sonicfft.h"
+
+#include <math.h>
+#include <stdlib.h>
+
+#ifndef M_PI
+#define M_PI 3.14159265358979323846
+#endif
+
+/* Tells the compiler the halves of a butterfly don't overlap, so it can
+   vectorize them. */
+#if defined(__GNUC__) || defined(_MSC_VER)
+#define SONIC_RESTRICT __restrict
+#else
+#define SONIC_RESTRICT
+#endif
+
+struct sonicFftStruct {
+  int size;
+  /* Twiddle factors of each stage of the complex FFT, contiguous so the
+     butterflies vectorize: entry half + k is exp(-i*pi*k/half) for k below
+     half.  The last size/2 entries are exp(-2*i*pi*k/size), used to split the
+     spectra of even and odd samples. */
+  float* cosTable;
+  float* sinTable;
+  /* Index each complex point is swapped with before the butterflies */
+  int* reversed;
+};
+
+/* Create an FFT of size real samples, a power of two of at least 4.  Return
+   NULL if out of memory. */
+sonicFft sonicCreateFft(int size) {
+  sonicFft fft = (sonicFft)calloc(1, sizeof(struct sonicFftStruct));
+  int half = size / 2;
+  int bits = 0;
+  int i, j, k;
+
+  if (fft == NULL) {
+    return NULL;
+  }
+  fft->size = size;
+  fft->cosTable = (float*)malloc(size * sizeof(float));
+  fft->sinTable = (float*)malloc(size * sizeof(float));
+  fft->reversed = (int*)malloc(half * sizeof(int));
+  if (fft->cosTable == NULL || fft->sinTable == NULL ||
+      fft->reversed == NULL) {
+    sonicDestroyFft(fft);
+    return NULL;
+  }
+  for (i = 1; i < size; i <<= 1) {
+    for (k = 0; k < i; k++) {
+      fft->cosTable[i + k] = cos(M_PI * k / i);
+      fft->sinTable[i + k] = -sin(M_PI * k / i);
+    }
+  }
+  while ((1 << bits) < half) {
+    bits++;
+  }
+  for (i = 0; i < half; i++) {
+    fft->reversed[i] = 0;
+    for (j = 0; j < bits; j++) {
+      if (i & (1 << j)) {
+        fft->reversed[i] |= 1 << (bits - 1 - j);
+      }
+    }
+  }
+  return fft;
+}
+
+/* Destroy the FFT. */
+void sonicDestroyFft(sonicFft fft) {
+  if (fft->cosTable != NULL) {
+    free(fft->cosTable);
+  }
+  if (fft->sinTable != NULL) {
+    free(fft->sinTable);
+  }
+  if (fft->reversed != NULL) {
+    free(fft->reversed);
+  }
+  free(fft);
+}
+
+/* Return the number of real samples. */
+int sonicGetFftSize(sonicFft fft) { return fft->size; }
+
+/* Return the number of bytes allocated for the FFT. */
+int sonicGetFftAllocatedBytes(sonicFft fft) {
+  return sizeof(struct sonicFftStruct) +
+         fft->size * 2 * sizeof(float) + (fft->size / 2) * sizeof(int);
+}
+
+/* Combine two halves of half points each, with the twiddle factors of the
+   stage.  The sign of the sines is -1 for the inverse. */
+static void butterflies(int half, const float* cosTable,
+                        const float* sinTable, float sign,
+                        float* SONIC_RESTRICT real0,
+                        float* SONIC_RESTRICT imag0,
+                        float* SONIC_RESTRICT real1,
+                        float* SONIC_RESTRICT imag1) {
+  float wr, wi, tr, ti;
+  int k;
+
+  for (k = 0; k < half; k++) {
+    wr = cosTable[k];
+    wi = sign * sinTable[k];
+    tr = wr * real1[k] - wi * imag1[k];
+    ti = wr * imag1[k] + wi * real1[k];
+    real1[k] = real0[k] - tr;
+    imag1[k] = imag0[k] - ti;
+    real0[k] += tr;
+    imag0[k] += ti;
+  }
+}
+
+/* Complex FFT of size/2 points in place. */
+static void transform(sonicFft fft, float* real, float* imag, int inverse) {
+  int numPoints = fft->size / 2;
+  float sign = inverse ? -1.0f : 1.0f;
+  int half, start, i, j;
+  float tr, ti;
+
+  for (i = 0; i < numPoints; i++) {
+    j = fft->reversed[i];
+    if (j > i) {
+      tr = real[i];
+      real[i] = real[j];
+      real[j] = tr;
+      ti = imag[i];
+      imag[i] = imag[j];
+      imag[j] = ti;
+    }
+  }
+  /* The first stage has no twiddle factors */
+  for (i = 0; i < numPoints; i += 2) {
+    tr = real[i + 1];
+    ti = imag[i + 1];
+    real[i + 1] = real[i] - tr;
+    imag[i + 1] = imag[i] - ti;
+    real[i] += tr;
+    imag[i] += ti;
+  }
+  for (half = 2; half < numPoints; half <<= 1) {
+    for (start = 0; start < numPoints; start += half << 1) {
+      butterflies(half, fft->cosTable + half, fft->sinTable + half, sign,
+                  real + start, imag + start, real + start + half,
+                  imag + start + half);
+    }
+  }
+}
+
+/* Replace the samples with their spectrum.  The complex FFT of the even
+   samples plus i times the odd ones holds the spectra of both, E and O, which
+   combine as bin k = E[k] + w^k*O[k]. */
+void sonicFftForward(sonicFft fft, float* even, float* odd) {
+  int numPoints = fft->size / 2;
+  float* cosTable = fft->cosTable + numPoints;
+  float* sinTable = fft->sinTable + numPoints;
+  int k, m;
+  float eReal, eImag, oReal, oImag, tr, ti;
+
+  transform(fft, even, odd, 0);
+  tr = even[0];
+  even[0] = tr + odd[0];
+  odd[0] = tr - odd[0];
+  for (k = 1; k <= numPoints / 2; k++) {
+    m = numPoints - k;
+    /* E[k] and O[k], the others are their conjugates */
+    eReal = 0.5f * (even[k] + even[m]);
+    eImag = 0.5f * (odd[k] - odd[m]);
+    oReal = 0.5f * (odd[k] + odd[m]);
+    oImag = 0.5f * (even[m] - even[k]);
+    tr = cosTable[k] * oReal - sinTable[k] * oImag;
+    ti = cosTable[k] * oImag + sinTable[k] * oReal;
+    even[k] = eReal + tr;
+    odd[k] = eImag + ti;
+    /* Bin m is E[m] + w^m*O[m], where w^m = -conj(w^k) */
+    even[m] = eReal - tr;
+    odd[m] = ti - eImag;
+  }
+}
+
+/* Replace the spectrum with its samples, undoing sonicFftForward. */
+void sonicFftInverse(sonicFft fft, float* even, float* odd) {
+  int numPoints = fft->size / 2;
+  float* cosTable = fft->cosTable + numPoints;
+  float* sinTable = fft->sinTable + numPoints;
+  int k, m;
+  float eReal, eImag, oReal, oImag, tr, ti;
+
+  tr = even[0];
+  even[0] = tr + odd[0];
+  odd[0] = tr - odd[0];
+  for (k = 1; k <= numPoints / 2; k++) {
+    m = numPoints - k;
+    /* Twice E[k] and w^k*O[k] */
+    eReal = even[k] + even[m];
+    eImag = odd[k] - odd[m];
+    tr = even[k] - even[m];
+    ti = odd[k] + odd[m];
+    oReal = cosTable[k] * tr + sinTable[k] * ti;
+    oImag = cosTable[k] * ti - sinTable[k] * tr;
+    /* E + i*O, at k and at m, where E and O are conjugated */
+    even[k] = eReal - oImag;
+    odd[k] = eImag + oReal;
+    even[m] = eReal + oImag;
+    odd[m] = oReal - eImag;
+  }
+  transform(fft, even, odd, 1);
+}
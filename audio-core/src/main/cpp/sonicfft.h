@@ -0,0 +1,31 @@
+/* Sonic library
+   Copyright 2010
+   Bill Cox
+   This file is part of the Sonic Library.
+
+   This file is licensed under the Apache 2.0 license.
+*/
+
+/* FFT of real samples, done as a radix-2 complex FFT of half the size, with
+   the twiddle factors and bit reversal computed once.  The samples are split
+   in two arrays of size/2: even holds samples 0, 2, 4... and odd samples 1, 3,
+   5...  The spectrum uses the same arrays: even[k] and odd[k] are the real and
+   imaginary parts of bin k, except odd[0], which holds the real bin size/2. */
+
+struct sonicFftStruct;
+typedef struct sonicFftStruct* sonicFft;
+
+/* Create an FFT of size real samples, a power of two of at least 4.  Return
+   NULL if out of memory. */
+sonicFft sonicCreateFft(int size);
+/* Destroy the FFT. */
+void sonicDestroyFft(sonicFft fft);
+/* Return the number of real samples. */
+int sonicGetFftSize(sonicFft fft);
+/* Return the number of bytes allocated for the FFT. */
+int sonicGetFftAllocatedBytes(sonicFft fft);
+/* Replace the samples with their spectrum. */
+void sonicFftForward(sonicFft fft, float* even, float* odd);
+/* Replace the spectrum with its samples.  The inverse is not scaled, it returns
+   size times the input of the forward transform. */
+void sonicFftInverse(sonicFft fft, float* even, float* odd);
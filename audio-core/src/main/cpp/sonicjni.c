@@ -0,0 +1,739 @@
+/* Sonic library
+   Copyright 2010
+   Bill Cox
+   This file is part of the Sonic Library.
+
+   This file is licensed under the Apache 2.0 license.
+*/
+
+#include <jni.h>
+#ifdef __ANDROID__
+#include <android/log.h>
+#endif
+#include <stdlib.h>
+#include "sonic.h"
+#include "sonicjni.h"
+
+// For debug messages, only available in Android builds:
+#if SONIC_DEBUG && defined(__ANDROID__)
+#define APPNAME "Sonic"
+#define LOGV(...) _android_log_printNative(ANDROID_LOG_VERBOSE, APPNAME, __VA_ARGS__);
+#else
+#define LOGV(...)
+#endif
+
+struct sonicInstStruct {
+    sonicStream stream;
+    short *byteBuf;
+    int byteBufSize;
+    float *floatBuf;
+    int floatBufSize;
+    int allocatedBytes;
+};
+
+typedef struct sonicInstStruct *sonicInst;
+
+#define getInst(sonicID) ((sonicInst)((char *)NULL + (sonicID)))
+
+// Process wide counters of open streams and the native memory they hold.
+// Streams are used from several threads, so they are updated atomically.
+static volatile jint liveStreams = 0;
+static volatile jlong allocatedBytes = 0;
+
+// Recompute the memory held by a stream, and add the difference to the
+// process wide counter.  Call after anything that can grow the buffers.
+static void updateAllocatedBytes(
+    sonicInst inst)
+{
+    int bytes = sizeof(struct sonicInstStruct) + inst->byteBufSize*sizeof(short) +
+        inst->floatBufSize*sizeof(float) + sonicGetAllocatedBytes(inst->stream);
+
+    if(bytes != inst->allocatedBytes) {
+        __sync_fetch_and_add(&allocatedBytes, (jlong)(bytes - inst->allocatedBytes));
+        inst->allocatedBytes = bytes;
+    }
+}
+
+/* Initialize the C data structure */
+jlong Java_org_vinuxproject_sonic_Sonic_initNative(
+    JNIEnv *env,
+    jobject thiz,
+    jint sampleRate,
+    jint channels)
+{
+    sonicInst inst = (sonicInst)calloc(1, sizeof(struct sonicInstStruct));
+
+    if(inst == NULL) {
+        return 0;
+    }
+    LOGV("Creating sonic stream");
+    inst->stream = sonicCreateStream(sampleRate, channels);
+    if(inst->stream == NULL) {
+        free(inst);
+        return 0;
+    }
+    inst->byteBufSize = 100;
+    inst->byteBuf = (short *)calloc(inst->byteBufSize, sizeof(short));
+    if(inst->byteBuf == NULL) {
+        sonicDestroyStream(inst->stream);
+        free(inst);
+        return 0;
+    }
+    __sync_fetch_and_add(&liveStreams, 1);
+    updateAllocatedBytes(inst);
+    return (jlong)((char *)inst - (char *)NULL);
+}
+
+
+// Teardown the C data structure.  Static, so streams can be freed when their
+// Sonic object is already gone.
+void Java_org_vinuxproject_sonic_Sonic_closeNative(
+    JNIEnv *env,
+    jclass clazz,
+    jlong sonicID)
+{
+    sonicInst inst = getInst(sonicID);
+    sonicStream stream = inst->stream;
+
+    LOGV("Destroying stream");
+    __sync_fetch_and_sub(&liveStreams, 1);
+    __sync_fetch_and_sub(&allocatedBytes, (jlong)inst->allocatedBytes);
+    sonicDestroyStream(stream);
+    free(inst->byteBuf);
+    free(inst->floatBuf);
+    free(inst);
+}
+
+// Grow byteBuf to hold at least numShorts values.  Returns 0 if we run out
+// of memory, the old buffer is kept then.
+static int enlargeByteBufIfNeeded(
+    sonicInst inst,
+    int numShorts)
+{
+    short *byteBuf;
+
+    if(numShorts > inst->byteBufSize) {
+        byteBuf = (short *)realloc(inst->byteBuf, numShorts*sizeof(short));
+        if(byteBuf == NULL) {
+            return 0;
+        }
+        inst->byteBuf = byteBuf;
+        inst->byteBufSize = numShorts;
+    }
+    return 1;
+}
+
+// Grow floatBuf to hold at least numFloats values.  Returns 0 if we run out
+// of memory, the old buffer is kept then.
+static int enlargeFloatBufIfNeeded(
+    sonicInst inst,
+    int numFloats)
+{
+    float *floatBuf;
+
+    if(numFloats > inst->floatBufSize) {
+        floatBuf = (float *)realloc(inst->floatBuf, numFloats*sizeof(float));
+        if(floatBuf == NULL) {
+            return 0;
+        }
+        inst->floatBuf = floatBuf;
+        inst->floatBufSize = numFloats;
+    }
+    return 1;
+}
+
+/* Put bytes into the input buffer of the sound alteration object
+   lenBytes bytes will be read from buffer into the sound alteration object
+   buffer is not guaranteed not to change after this function is called,
+   so data should be copied from it */
+jboolean Java_org_vinuxproject_sonic_Sonic_putBytesNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jbyteArray buffer,
+    jint lenBytes)
+{
+    sonicInst inst = getInst(sonicID);
+    sonicStream stream = inst->stream;
+    int samples = lenBytes/(sizeof(short)*sonicGetNumChannels(stream));
+    int remainingBytes = lenBytes - samples*sizeof(short)*sonicGetNumChannels(stream);
+    int result;
+
+// TODO: deal with case where remainingBytes is not 0.
+if(remainingBytes != 0) {
+    LOGV("Remaining bytes == %d!!!", remainingBytes);
+}
+    if(lenBytes > inst->byteBufSize*sizeof(short)) {
+        inst->byteBufSize = lenBytes*(2/sizeof(short));
+        inst->byteBuf = (short *)realloc(inst->byteBuf, inst->byteBufSize*sizeof(short));
+        if(inst->byteBuf == NULL) {
+            return 0;
+        }
+    }
+    LOGV("Writing %d bytes to stream", lenBytes);
+    (*env)->GetByteArrayRegion(env, buffer, 0, lenBytes, (jbyte *)inst->byteBuf);
+    result = sonicWriteShortToStream(stream, inst->byteBuf, samples);
+    updateAllocatedBytes(inst);
+    return result;
+}
+
+// Get bytes representing sped up/slowed down sound and put up to lenBytes
+// into ret.
+// Returns number of bytes read, or -1 if we run out of memory.
+jint Java_org_vinuxproject_sonic_Sonic_receiveBytesNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jbyteArray ret,
+    jint lenBytes)
+{
+    sonicInst inst = getInst(sonicID);
+    sonicStream stream = inst->stream;
+    int available = sonicSamplesAvailable(stream)*sizeof(short)*sonicGetNumChannels(stream);
+    int samplesRead, bytesRead;
+
+    LOGV("Reading %d bytes from stream", lenBytes);
+    if(lenBytes > available) {
+        lenBytes = available;
+    }
+    if(lenBytes > inst->byteBufSize*sizeof(short)) {
+        inst->byteBufSize = lenBytes*(2/sizeof(short));
+        inst->byteBuf = (short *)realloc(inst->byteBuf, inst->byteBufSize*sizeof(short));
+        if(inst->byteBuf == NULL) {
+            return -1;
+        }
+    }
+    //LOGV("Doing read %d", lenBytes);
+    samplesRead = sonicReadShortFromStream(stream, inst->byteBuf,
+	lenBytes/(sizeof(short)*sonicGetNumChannels(stream)));
+    bytesRead = samplesRead*sizeof(short)*sonicGetNumChannels(stream); 
+    //LOGV("Returning %d", samplesRead);
+    (*env)->SetByteArrayRegion(env, ret, 0, bytesRead, (jbyte *)inst->byteBuf);
+    updateAllocatedBytes(inst);
+    return bytesRead;
+}
+
+// Put 16-bit samples into the input buffer of the sound alteration object.
+// The samples are copied out of the array before they are processed, holding
+// the array with GetPrimitiveArrayCritical would block the garbage collector
+// for the whole pitch search and overlap-add.
+jboolean Java_org_vinuxproject_sonic_Sonic_putShortsNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jshortArray buffer,
+    jint lenShorts)
+{
+    sonicInst inst = getInst(sonicID);
+    sonicStream stream = inst->stream;
+    int samples = lenShorts/sonicGetNumChannels(stream);
+    int result;
+
+    LOGV("Writing %d shorts to stream", lenShorts);
+    if(!enlargeByteBufIfNeeded(inst, lenShorts)) {
+        return 0;
+    }
+    (*env)->GetShortArrayRegion(env, buffer, 0, lenShorts, (jshort *)inst->byteBuf);
+    result = sonicWriteShortToStream(stream, inst->byteBuf, samples);
+    updateAllocatedBytes(inst);
+    return result;
+}
+
+// Read up to lenShorts 16-bit values of sped up/slowed down sound into ret.
+// Returns number of values read, or -1 if we can't access the array.
+jint Java_org_vinuxproject_sonic_Sonic_receiveShortsNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jshortArray ret,
+    jint lenShorts)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    int numChannels = sonicGetNumChannels(stream);
+    short *data;
+    int samplesRead;
+
+    LOGV("Reading %d shorts from stream", lenShorts);
+    data = (short *)(*env)->GetPrimitiveArrayCritical(env, ret, NULL);
+    if(data == NULL) {
+        return -1;
+    }
+    samplesRead = sonicReadShortFromStream(stream, data, lenShorts/numChannels);
+    (*env)->ReleasePrimitiveArrayCritical(env, ret, data, 0);
+    return samplesRead*numChannels;
+}
+
+// Put floating point samples into the input buffer of the sound alteration
+// object.  Like putShortsNative, the samples are copied out of the array
+// first so the garbage collector isn't held off while they are processed.
+jboolean Java_org_vinuxproject_sonic_Sonic_putFloatsNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jfloatArray buffer,
+    jint lenFloats)
+{
+    sonicInst inst = getInst(sonicID);
+    sonicStream stream = inst->stream;
+    int samples = lenFloats/sonicGetNumChannels(stream);
+    int result;
+
+    LOGV("Writing %d floats to stream", lenFloats);
+    if(!enlargeFloatBufIfNeeded(inst, lenFloats)) {
+        return 0;
+    }
+    (*env)->GetFloatArrayRegion(env, buffer, 0, lenFloats, inst->floatBuf);
+    result = sonicWriteFloatToStream(stream, inst->floatBuf, samples);
+    updateAllocatedBytes(inst);
+    return result;
+}
+
+// Read up to lenFloats floating point values of sped up/slowed down sound
+// into ret.  Returns number of values read, or -1 if we can't access the array.
+jint Java_org_vinuxproject_sonic_Sonic_receiveFloatsNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jfloatArray ret,
+    jint lenFloats)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    int numChannels = sonicGetNumChannels(stream);
+    float *data;
+    int samplesRead;
+
+    LOGV("Reading %d floats from stream", lenFloats);
+    data = (float *)(*env)->GetPrimitiveArrayCritical(env, ret, NULL);
+    if(data == NULL) {
+        return -1;
+    }
+    samplesRead = sonicReadFloatFromStream(stream, data, lenFloats/numChannels);
+    (*env)->ReleasePrimitiveArrayCritical(env, ret, data, 0);
+    return samplesRead*numChannels;
+}
+
+// Returns the number of values (samples times channels) that can be read
+// from the speed alteration object
+jint Java_org_vinuxproject_sonic_Sonic_availableSamplesNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+
+    return sonicSamplesAvailable(stream)*sonicGetNumChannels(stream);
+}
+
+/* Write lenBytes of samples straight from a direct ByteBuffer, starting at
+   offset.  The buffer memory is handed to the stream without going through
+   byteBuf, so there is no intermediate copy. */
+static int writeDirectBuffer(
+    JNIEnv *env,
+    sonicStream stream,
+    jobject buffer,
+    jint offset,
+    jint lenBytes)
+{
+    char *data = (char *)(*env)->GetDirectBufferAddress(env, buffer);
+    int samples = lenBytes/(sizeof(short)*sonicGetNumChannels(stream));
+
+    if(data == NULL) {
+        return 0;
+    }
+    LOGV("Writing %d direct bytes to stream", lenBytes);
+    return sonicWriteShortToStream(stream, (short *)(data + offset), samples);
+}
+
+/* Read up to lenBytes of samples straight into a direct ByteBuffer, starting
+   at offset.  Returns number of bytes read, or -1 if the buffer address is not
+   available. */
+static int readDirectBuffer(
+    JNIEnv *env,
+    sonicStream stream,
+    jobject ret,
+    jint offset,
+    jint lenBytes)
+{
+    char *data = (char *)(*env)->GetDirectBufferAddress(env, ret);
+    int frameBytes = sizeof(short)*sonicGetNumChannels(stream);
+    int samplesRead;
+
+    if(data == NULL) {
+        return -1;
+    }
+    LOGV("Reading %d direct bytes from stream", lenBytes);
+    samplesRead = sonicReadShortFromStream(stream, (short *)(data + offset),
+        lenBytes/frameBytes);
+    return samplesRead*frameBytes;
+}
+
+// Put bytes from a direct ByteBuffer into the input buffer of the sound
+// alteration object, without copying them through byteBuf.
+jboolean Java_org_vinuxproject_sonic_Sonic_putBufferNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jobject buffer,
+    jint offset,
+    jint lenBytes)
+{
+    sonicInst inst = getInst(sonicID);
+    int result = writeDirectBuffer(env, inst->stream, buffer, offset, lenBytes);
+
+    updateAllocatedBytes(inst);
+    return result;
+}
+
+// Get bytes representing sped up/slowed down sound and put up to lenBytes
+// directly into a direct ByteBuffer.
+// Returns number of bytes read, or -1 if the buffer is not direct.
+jint Java_org_vinuxproject_sonic_Sonic_receiveBufferNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jobject ret,
+    jint offset,
+    jint lenBytes)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+
+    return readDirectBuffer(env, stream, ret, offset, lenBytes);
+}
+
+// Write inLenBytes from one direct ByteBuffer and read up to outLenBytes of
+// processed sound into another, in a single call.
+// Returns number of bytes read, or -1 if we run out of memory.
+jint Java_org_vinuxproject_sonic_Sonic_processNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jobject in,
+    jint inOffset,
+    jint inLenBytes,
+    jobject out,
+    jint outOffset,
+    jint outLenBytes)
+{
+    sonicInst inst = getInst(sonicID);
+    sonicStream stream = inst->stream;
+    int result = 1;
+
+    if(inLenBytes > 0) {
+        result = writeDirectBuffer(env, stream, in, inOffset, inLenBytes);
+        updateAllocatedBytes(inst);
+    }
+    if(!result) {
+        return -1;
+    }
+    return readDirectBuffer(env, stream, out, outOffset, outLenBytes);
+}
+
+// Set pitch in sound alteration object
+void Java_org_vinuxproject_sonic_Sonic_setPitchNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jfloat newPitch)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Set pitch to %f", newPitch);
+    sonicSetPitch(stream, newPitch);
+}
+
+// Get the current pitch.
+jfloat Java_org_vinuxproject_sonic_Sonic_getPitchNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Reading pitch");
+    return sonicGetPitch(stream);
+}
+
+// Speed up the sound and increase the pitch, or slow down the sound and
+// decrease the pitch.
+void Java_org_vinuxproject_sonic_Sonic_setRateNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jfloat newRate)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Set rate to %f", newRate);
+    sonicSetRate(stream, newRate);
+}
+
+// Return the current playback rate.
+jfloat Java_org_vinuxproject_sonic_Sonic_getRateNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Reading rate");
+    return sonicGetRate(stream);
+}
+
+// Get the current sample rate.
+jint Java_org_vinuxproject_sonic_Sonic_getSampleRateNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Reading sample rate");
+    return sonicGetSampleRate(stream);
+}
+
+// Set the sample rate.
+void Java_org_vinuxproject_sonic_Sonic_setSampleRateNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jint newSampleRate)
+{
+    sonicInst inst = getInst(sonicID);
+    sonicStream stream = inst->stream;
+    LOGV("Set sample rate to %d", newSampleRate);
+    sonicSetSampleRate(stream, newSampleRate);
+    updateAllocatedBytes(inst);
+}
+
+// Get the current number of channels.
+jint Java_org_vinuxproject_sonic_Sonic_getNumChannelsNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Reading num channels");
+    return sonicGetNumChannels(stream);
+}
+
+// Set the number of channels.
+void Java_org_vinuxproject_sonic_Sonic_setNumChannelsNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jint newNumChannels)
+{
+    sonicInst inst = getInst(sonicID);
+    sonicStream stream = inst->stream;
+    LOGV("Set sample rate to %d", newNumChannels);
+    sonicSetNumChannels(stream, newNumChannels);
+    updateAllocatedBytes(inst);
+}
+
+// Get the current speed.
+jfloat Java_org_vinuxproject_sonic_Sonic_getSpeedNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Reading speed");
+    return sonicGetSpeed(stream);
+}
+
+// Change the speed.
+void Java_org_vinuxproject_sonic_Sonic_setSpeedNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jfloat newSpeed)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Set speed to %f", newSpeed);
+    sonicSetSpeed(stream, newSpeed);
+}
+
+// Get the current volume.
+jfloat Java_org_vinuxproject_sonic_Sonic_getVolumeNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Reading volume");
+    return sonicGetVolume(stream);
+}
+
+// Change the volume.
+void Java_org_vinuxproject_sonic_Sonic_setVolumeNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jfloat newVolume)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Set volume to %f", newVolume);
+    sonicSetVolume(stream, newVolume);
+}
+
+// Get the current quality setting.
+jint Java_org_vinuxproject_sonic_Sonic_getQualityNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Reading quality");
+    return sonicGetQuality(stream);
+}
+
+// Set the quality.  Default 0 is virtually as good as 1, but very much faster.
+void Java_org_vinuxproject_sonic_Sonic_setQualityNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jint quality)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Set quality to %d", quality);
+    sonicSetQuality(stream, quality);
+}
+
+// Get the pitch period search method.
+jint Java_org_vinuxproject_sonic_Sonic_getPitchMethodNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Reading pitch method");
+    return sonicGetPitchMethod(stream);
+}
+
+// Set the pitch period search method.  The FFT of the autocorrelation method
+// is allocated when the next pitch period is searched.
+void Java_org_vinuxproject_sonic_Sonic_setPitchMethodNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jint method)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Set pitch method to %d", method);
+    sonicSetPitchMethod(stream, method);
+}
+
+// Get the lowest pitch searched.
+jint Java_org_vinuxproject_sonic_Sonic_getMinPitchNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Reading min pitch");
+    return sonicGetMinPitch(stream);
+}
+
+// Get the highest pitch searched.
+jint Java_org_vinuxproject_sonic_Sonic_getMaxPitchNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Reading max pitch");
+    return sonicGetMaxPitch(stream);
+}
+
+// Set the range of pitch searched.  This will drop any samples that have not
+// been read.
+void Java_org_vinuxproject_sonic_Sonic_setPitchRangeNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jint minPitch,
+    jint maxPitch)
+{
+    sonicInst inst = getInst(sonicID);
+    sonicStream stream = inst->stream;
+    LOGV("Set pitch range to %d - %d", minPitch, maxPitch);
+    sonicSetPitchRange(stream, minPitch, maxPitch);
+    updateAllocatedBytes(inst);
+}
+
+// Get the current chord pitch setting.
+jboolean Java_org_vinuxproject_sonic_Sonic_getChordPitchNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Reading chord pitch");
+    return sonicGetChordPitch(stream);
+}
+
+// Set chord pitch mode on or off.  Default is off.
+void Java_org_vinuxproject_sonic_Sonic_setChordPitchNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID,
+    jboolean useChordPitch)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Set chord pitch to %d", useChordPitch);
+    sonicSetChordPitch(stream, useChordPitch);
+}
+
+// Returns the number of bytes that can be read from the speed alteration
+// object
+jint Java_org_vinuxproject_sonic_Sonic_availableBytesNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID)
+{
+    sonicStream stream = getInst(sonicID)->stream;
+    LOGV("Reading samples available = %d", sonicSamplesAvailable(stream)*sizeof(short)*sonicGetNumChannels(stream));
+
+    return sonicSamplesAvailable(stream)*sizeof(short)*sonicGetNumChannels(stream);
+}
+
+// Process any samples still in a sonic buffer.
+void Java_org_vinuxproject_sonic_Sonic_flushNative(
+    JNIEnv *env,
+    jobject thiz,
+    jlong sonicID)
+{
+    sonicInst inst = getInst(sonicID);
+    sonicStream stream = inst->stream;
+    LOGV("Flushing stream");
+    sonicFlushStream(stream);
+    updateAllocatedBytes(inst);
+}
+
+// Returns the number of streams that were created and not closed yet.
+jint Java_org_vinuxproject_sonic_Sonic_getLiveStreamsNative(
+    JNIEnv *env,
+    jclass clazz)
+{
+    return __sync_add_and_fetch(&liveStreams, 0);
+}
+
+// Returns the number of bytes held by all open streams.
+jlong Java_org_vinuxproject_sonic_Sonic_getAllocatedBytesNative(
+    JNIEnv *env,
+    jclass clazz)
+{
+    return __sync_add_and_fetch(&allocatedBytes, 0);
+}
+
+// Switch all streams between the vector and scalar kernels.
+void Java_org_vinuxproject_sonic_Sonic_setSimdEnabledNative(
+    JNIEnv *env,
+    jclass clazz,
+    jboolean enabled)
+{
+    sonicSetSimdEnabled(enabled);
+}
+
+// Returns the name of the vector instructions in use.
+jstring Java_org_vinuxproject_sonic_Sonic_getSimdNameNative(
+    JNIEnv *env,
+    jclass clazz)
+{
+    return (*env)->NewStringUTF(env, sonicGetSimdName());
+}
@@ -20,7 +20,7 @@ jlong Java_org_vinuxproject_sonic_Sonic_initNativeNative
  * Signature: (J)V
  */
 void Java_org_vinuxproject_sonic_Sonic_closeNative
-  (JNIEnv *, jobject, jlong);
+  (JNIEnv *, jclass, jlong);
 
 /*
  * Class:     org_vinuxproject_sonic_Sonic
@@ -126,6 +126,62 @@ void Java_org_vinuxproject_sonic_Sonic_setChordPitchNative
 jboolean Java_org_vinuxproject_sonic_Sonic_getChordPitchNative
   (JNIEnv *, jobject, jlong);
 
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _setQuality
+ * Signature: (JI)V
+ */
+void Java_org_vinuxproject_sonic_Sonic_setQualityNative
+  (JNIEnv *, jobject, jlong, jint);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _getQuality
+ * Signature: (J)I
+ */
+jint Java_org_vinuxproject_sonic_Sonic_getQualityNative
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _setPitchMethod
+ * Signature: (JI)V
+ */
+void Java_org_vinuxproject_sonic_Sonic_setPitchMethodNative
+  (JNIEnv *, jobject, jlong, jint);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _getPitchMethod
+ * Signature: (J)I
+ */
+jint Java_org_vinuxproject_sonic_Sonic_getPitchMethodNative
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _setPitchRange
+ * Signature: (JII)V
+ */
+void Java_org_vinuxproject_sonic_Sonic_setPitchRangeNative
+  (JNIEnv *, jobject, jlong, jint, jint);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _getMinPitch
+ * Signature: (J)I
+ */
+jint Java_org_vinuxproject_sonic_Sonic_getMinPitchNative
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _getMaxPitch
+ * Signature: (J)I
+ */
+jint Java_org_vinuxproject_sonic_Sonic_getMaxPitchNative
+  (JNIEnv *, jobject, jlong);
+
 /*
  * Class:     org_vinuxproject_sonic_Sonic
  * Method:    _putBytes
@@ -142,6 +198,70 @@ jboolean Java_org_vinuxproject_sonic_Sonic_putBytesNative
 jint Java_org_vinuxproject_sonic_Sonic_receiveBytesNative
   (JNIEnv *, jobject, jlong, jbyteArray, jint);
 
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _putShorts
+ * Signature: (J[SI)Z
+ */
+jboolean Java_org_vinuxproject_sonic_Sonic_putShortsNative
+  (JNIEnv *, jobject, jlong, jshortArray, jint);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _receiveShorts
+ * Signature: (J[SI)I
+ */
+jint Java_org_vinuxproject_sonic_Sonic_receiveShortsNative
+  (JNIEnv *, jobject, jlong, jshortArray, jint);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _putFloats
+ * Signature: (J[FI)Z
+ */
+jboolean Java_org_vinuxproject_sonic_Sonic_putFloatsNative
+  (JNIEnv *, jobject, jlong, jfloatArray, jint);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _receiveFloats
+ * Signature: (J[FI)I
+ */
+jint Java_org_vinuxproject_sonic_Sonic_receiveFloatsNative
+  (JNIEnv *, jobject, jlong, jfloatArray, jint);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _availableSamples
+ * Signature: (J)I
+ */
+jint Java_org_vinuxproject_sonic_Sonic_availableSamplesNative
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _putBuffer
+ * Signature: (JLjava/nio/ByteBuffer;II)Z
+ */
+jboolean Java_org_vinuxproject_sonic_Sonic_putBufferNative
+  (JNIEnv *, jobject, jlong, jobject, jint, jint);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _receiveBuffer
+ * Signature: (JLjava/nio/ByteBuffer;II)I
+ */
+jint Java_org_vinuxproject_sonic_Sonic_receiveBufferNative
+  (JNIEnv *, jobject, jlong, jobject, jint, jint);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _process
+ * Signature: (JLjava/nio/ByteBuffer;IILjava/nio/ByteBuffer;II)I
+ */
+jint Java_org_vinuxproject_sonic_Sonic_processNative
+  (JNIEnv *, jobject, jlong, jobject, jint, jint, jobject, jint, jint);
+
 /*
  * Class:     org_vinuxproject_sonic_Sonic
  * Method:    _availableBytes
@@ -165,3 +285,35 @@ void Java_org_vinuxproject_sonic_Sonic_setVolumeNative
  */
 jfloat Java_org_vinuxproject_sonic_Sonic_getVolumeNative
   (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _getLiveStreams
+ * Signature: ()I
+ */
+jint Java_org_vinuxproject_sonic_Sonic_getLiveStreamsNative
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _getAllocatedBytes
+ * Signature: ()J
+ */
+jlong Java_org_vinuxproject_sonic_Sonic_getAllocatedBytesNative
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _setSimdEnabled
+ * Signature: (Z)V
+ */
+void Java_org_vinuxproject_sonic_Sonic_setSimdEnabledNative
+  (JNIEnv *, jclass, jboolean);
+
+/*
+ * Class:     org_vinuxproject_sonic_Sonic
+ * Method:    _getSimdName
+ * Signature: ()Ljava/lang/String;
+ */
+jstring Java_org_vinuxproject_sonic_Sonic_getSimdNameNative
+  (JNIEnv *, jclass);
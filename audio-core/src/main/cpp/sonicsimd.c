@@ -0,0 +1,483 @@
+/* Sonic library
+   Copyright 2010
+   Bill Cox
+   This file is part of the Sonic Library.
+
+   This file is licensed under the Apache 2.0 license.
+*/
+
+#include "sonic.h"
+#include "sonicsimd.h"
+
+#include <stddef.h>
+
+/* NEON is part of every Android arm64 device, and of armeabi-v7a builds since
+   NDK r21, so it is chosen at compile time.  On x86 SSE4.1 and AVX2 are
+   checked at run time, as host builds run on many CPUs. */
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#define SONIC_NEON
+#include <arm_neon.h>
+#elif defined(__GNUC__) && (defined(__x86_64__) || defined(__i386__))
+#define SONIC_X86
+#include <immintrin.h>
+#endif
+
+#define SIMD_SCALAR 0
+#define SIMD_NEON 1
+#define SIMD_SSE41 2
+#define SIMD_AVX2 3
+
+static const char* simdNames[] = {"scalar", "neon", "sse4.1", "avx2"};
+
+/* Best level the CPU supports, and the level in use.  -1 until detected.
+   Detection writes the same value from any thread, so no lock is needed. */
+static volatile int supportedLevel = -1;
+static volatile int enabledLevel = -1;
+
+/* Lane i of a vector of interleaved samples belongs to frame offset
+   i/numChannels.  Return 0 if the frames don't fill the vector evenly. */
+static int findFrameOffsets(int* offsets, int lanes, int numChannels) {
+  int i;
+
+  if (lanes % numChannels != 0) {
+    return 0;
+  }
+  for (i = 0; i < lanes; i++) {
+    offsets[i] = i / numChannels;
+  }
+  return 1;
+}
+
+static int maxAbs(int a, int b) {
+  a = a < 0 ? -a : a;
+  b = b < 0 ? -b : b;
+  return a > b ? a : b;
+}
+
+/* The vector division is exact while quotients stay within 17 bits: the float
+   estimate is then off by less than one.  Weights summing to the divisor, as in
+   every overlap-add of Sonic, always qualify. */
+static int isVectorDivisionExact(int numFrames, short* rampDown, int downWeight,
+                                 short* rampUp, int upWeight, int divisor) {
+  int weight = 0;
+
+  if (rampDown != NULL) {
+    weight += maxAbs(downWeight, downWeight - numFrames);
+  }
+  if (rampUp != NULL) {
+    weight += maxAbs(upWeight, upWeight + numFrames);
+  }
+  return weight <= 2 * divisor && weight < 65536;
+}
+
+/* Scalar versions, also used for what doesn't fill a vector. */
+
+static unsigned long absDiffSumScalar(short* a, short* b, int numSamples) {
+  unsigned long diff = 0;
+  short aVal, bVal;
+  int i;
+
+  for (i = 0; i < numSamples; i++) {
+    aVal = *a++;
+    bVal = *b++;
+    diff += aVal >= bVal ? (unsigned short)(aVal - bVal)
+                         : (unsigned short)(bVal - aVal);
+  }
+  return diff;
+}
+
+/* Samples from index start of the flat interleaved arrays. */
+static void overlapAddRangeScalar(int start, int numSamples, int numChannels,
+                                  short* out, short* rampDown, int downWeight,
+                                  short* rampUp, int upWeight, int divisor) {
+  int i, frame, value;
+
+  for (i = start; i < numSamples; i++) {
+    frame = i / numChannels;
+    value = 0;
+    if (rampDown != NULL) {
+      value += rampDown[i] * (downWeight - frame);
+    }
+    if (rampUp != NULL) {
+      value += rampUp[i] * (upWeight + frame);
+    }
+    out[i] = value / divisor;
+  }
+}
+
+#ifdef SONIC_NEON
+
+static unsigned long absDiffSumNeon(short* a, short* b, int numSamples) {
+  uint32x4_t sum = vdupq_n_u32(0);
+  uint32_t lanes[4];
+  int i;
+
+  /* vabdq_s16 wraps to 16 bits, read as unsigned that is the difference the
+     scalar code takes.  Pairs are added into 32 bit lanes. */
+  for (i = 0; i + 8 <= numSamples; i += 8) {
+    int16x8_t aVal = vld1q_s16(a + i);
+    int16x8_t bVal = vld1q_s16(b + i);
+    sum = vpadalq_u16(sum, vreinterpretq_u16_s16(vabdq_s16(aVal, bVal)));
+  }
+  vst1q_u32(lanes, sum);
+  return (unsigned long)lanes[0] + lanes[1] + lanes[2] + lanes[3] +
+         absDiffSumScalar(a + i, b + i, numSamples - i);
+}
+
+/* Truncating division of 4 lanes by divisor: an estimate through the float
+   reciprocal is off by at most one, and is corrected with the remainder. */
+static int32x4_t divideNeon(int32x4_t value, int divisor, float reciprocal) {
+  int32x4_t zero = vdupq_n_s32(0);
+  int32x4_t quotient = vcvtq_s32_f32(
+      vmulq_n_f32(vcvtq_f32_s32(value), reciprocal));
+  int32x4_t remainder =
+      vsubq_s32(value, vmulq_n_s32(quotient, divisor));
+  uint32x4_t negative = vcltq_s32(value, zero);
+  uint32x4_t decrement = vbslq_u32(
+      negative, vcleq_s32(remainder, vdupq_n_s32(-divisor)),
+      vcltq_s32(remainder, zero));
+  uint32x4_t increment =
+      vbslq_u32(negative, vcgtq_s32(remainder, zero),
+                vcgeq_s32(remainder, vdupq_n_s32(divisor)));
+
+  /* Masks are -1 where set */
+  quotient = vaddq_s32(quotient, vreinterpretq_s32_u32(decrement));
+  return vsubq_s32(quotient, vreinterpretq_s32_u32(increment));
+}
+
+static void overlapAddRangeNeon(int numFrames, int numChannels, short* out,
+                                short* rampDown, int downWeight,
+                                short* rampUp, int upWeight, int divisor) {
+  int numSamples = numFrames * numChannels;
+  float reciprocal = 1.0f / divisor;
+  int offsets[8];
+  int32x4_t frameLow, frameHigh, step;
+  int i;
+
+  if (!findFrameOffsets(offsets, 8, numChannels) ||
+      !isVectorDivisionExact(numFrames, rampDown, downWeight, rampUp, upWeight,
+                             divisor)) {
+    overlapAddRangeScalar(0, numSamples, numChannels, out, rampDown,
+                          downWeight, rampUp, upWeight, divisor);
+    return;
+  }
+  frameLow = vld1q_s32(offsets);
+  frameHigh = vld1q_s32(offsets + 4);
+  step = vdupq_n_s32(8 / numChannels);
+  for (i = 0; i + 8 <= numSamples; i += 8) {
+    int32x4_t low = vdupq_n_s32(0);
+    int32x4_t high = vdupq_n_s32(0);
+    if (rampDown != NULL) {
+      int16x8_t down = vld1q_s16(rampDown + i);
+      int32x4_t weight = vdupq_n_s32(downWeight);
+      low = vmlaq_s32(low, vmovl_s16(vget_low_s16(down)),
+                      vsubq_s32(weight, frameLow));
+      high = vmlaq_s32(high, vmovl_s16(vget_high_s16(down)),
+                       vsubq_s32(weight, frameHigh));
+    }
+    if (rampUp != NULL) {
+      int16x8_t up = vld1q_s16(rampUp + i);
+      int32x4_t weight = vdupq_n_s32(upWeight);
+      low = vmlaq_s32(low, vmovl_s16(vget_low_s16(up)),
+                      vaddq_s32(weight, frameLow));
+      high = vmlaq_s32(high, vmovl_s16(vget_high_s16(up)),
+                       vaddq_s32(weight, frameHigh));
+    }
+    /* vmovn keeps the low 16 bits, as the scalar store does */
+    vst1q_s16(out + i,
+              vcombine_s16(vmovn_s32(divideNeon(low, divisor, reciprocal)),
+                           vmovn_s32(divideNeon(high, divisor, reciprocal))));
+    frameLow = vaddq_s32(frameLow, step);
+    frameHigh = vaddq_s32(frameHigh, step);
+  }
+  overlapAddRangeScalar(i, numSamples, numChannels, out, rampDown, downWeight,
+                        rampUp, upWeight, divisor);
+}
+
+#endif /* SONIC_NEON */
+
+#ifdef SONIC_X86
+
+__attribute__((target("sse4.1"))) static unsigned long absDiffSumSse41(
+    short* a, short* b, int numSamples) {
+  __m128i zero = _mm_setzero_si128();
+  __m128i sum = zero;
+  unsigned int lanes[4];
+  int i;
+
+  /* max - min wraps to 16 bits, read as unsigned that is the difference the
+     scalar code takes */
+  for (i = 0; i + 8 <= numSamples; i += 8) {
+    __m128i aVal = _mm_loadu_si128((__m128i*)(a + i));
+    __m128i bVal = _mm_loadu_si128((__m128i*)(b + i));
+    __m128i diff = _mm_sub_epi16(_mm_max_epi16(aVal, bVal),
+                                 _mm_min_epi16(aVal, bVal));
+    sum = _mm_add_epi32(sum, _mm_unpacklo_epi16(diff, zero));
+    sum = _mm_add_epi32(sum, _mm_unpackhi_epi16(diff, zero));
+  }
+  _mm_storeu_si128((__m128i*)lanes, sum);
+  return (unsigned long)lanes[0] + lanes[1] + lanes[2] + lanes[3] +
+         absDiffSumScalar(a + i, b + i, numSamples - i);
+}
+
+/* Truncating division of 4 lanes by divisor: an estimate through the float
+   reciprocal is off by at most one, and is corrected with the remainder. */
+__attribute__((target("sse4.1"))) static __m128i divideSse41(
+    __m128i value, int divisor, __m128 reciprocal) {
+  __m128i zero = _mm_setzero_si128();
+  __m128i quotient =
+      _mm_cvttps_epi32(_mm_mul_ps(_mm_cvtepi32_ps(value), reciprocal));
+  __m128i remainder = _mm_sub_epi32(
+      value, _mm_mullo_epi32(quotient, _mm_set1_epi32(divisor)));
+  __m128i negative = _mm_cmplt_epi32(value, zero);
+  __m128i decrement = _mm_blendv_epi8(
+      _mm_cmplt_epi32(remainder, zero),
+      _mm_cmplt_epi32(remainder, _mm_set1_epi32(1 - divisor)), negative);
+  __m128i increment = _mm_blendv_epi8(
+      _mm_cmpgt_epi32(remainder, _mm_set1_epi32(divisor - 1)),
+      _mm_cmpgt_epi32(remainder, zero), negative);
+
+  /* Masks are -1 where set */
+  quotient = _mm_add_epi32(quotient, decrement);
+  quotient = _mm_sub_epi32(quotient, increment);
+
+  /* Sign extend the low 16 bits, so the saturating pack keeps them as the
+     scalar store does */
+  return _mm_srai_epi32(_mm_slli_epi32(quotient, 16), 16);
+}
+
+__attribute__((target("sse4.1"))) static void overlapAddRangeSse41(
+    int numFrames, int numChannels, short* out, short* rampDown,
+    int downWeight, short* rampUp, int upWeight, int divisor) {
+  int numSamples = numFrames * numChannels;
+  __m128 reciprocal = _mm_set1_ps(1.0f / divisor);
+  int offsets[8];
+  __m128i frameLow, frameHigh, step, low, high, samples, weight;
+  int i;
+
+  if (!findFrameOffsets(offsets, 8, numChannels) ||
+      !isVectorDivisionExact(numFrames, rampDown, downWeight, rampUp, upWeight,
+                             divisor)) {
+    overlapAddRangeScalar(0, numSamples, numChannels, out, rampDown,
+                          downWeight, rampUp, upWeight, divisor);
+    return;
+  }
+  frameLow = _mm_loadu_si128((__m128i*)offsets);
+  frameHigh = _mm_loadu_si128((__m128i*)(offsets + 4));
+  step = _mm_set1_epi32(8 / numChannels);
+  for (i = 0; i + 8 <= numSamples; i += 8) {
+    low = _mm_setzero_si128();
+    high = _mm_setzero_si128();
+    if (rampDown != NULL) {
+      samples = _mm_loadu_si128((__m128i*)(rampDown + i));
+      weight = _mm_set1_epi32(downWeight);
+      low = _mm_mullo_epi32(_mm_cvtepi16_epi32(samples),
+                            _mm_sub_epi32(weight, frameLow));
+      high = _mm_mullo_epi32(_mm_cvtepi16_epi32(_mm_srli_si128(samples, 8)),
+                             _mm_sub_epi32(weight, frameHigh));
+    }
+    if (rampUp != NULL) {
+      samples = _mm_loadu_si128((__m128i*)(rampUp + i));
+      weight = _mm_set1_epi32(upWeight);
+      low = _mm_add_epi32(low, _mm_mullo_epi32(_mm_cvtepi16_epi32(samples),
+                                               _mm_add_epi32(weight, frameLow)));
+      high = _mm_add_epi32(
+          high, _mm_mullo_epi32(_mm_cvtepi16_epi32(_mm_srli_si128(samples, 8)),
+                                _mm_add_epi32(weight, frameHigh)));
+    }
+    _mm_storeu_si128((__m128i*)(out + i),
+                     _mm_packs_epi32(divideSse41(low, divisor, reciprocal),
+                                     divideSse41(high, divisor, reciprocal)));
+    frameLow = _mm_add_epi32(frameLow, step);
+    frameHigh = _mm_add_epi32(frameHigh, step);
+  }
+  overlapAddRangeScalar(i, numSamples, numChannels, out, rampDown, downWeight,
+                        rampUp, upWeight, divisor);
+}
+
+__attribute__((target("avx2"))) static unsigned long absDiffSumAvx2(
+    short* a, short* b, int numSamples) {
+  __m256i zero = _mm256_setzero_si256();
+  __m256i sum = zero;
+  unsigned int lanes[8];
+  unsigned long diff;
+  int i;
+
+  for (i = 0; i + 16 <= numSamples; i += 16) {
+    __m256i aVal = _mm256_loadu_si256((__m256i*)(a + i));
+    __m256i bVal = _mm256_loadu_si256((__m256i*)(b + i));
+    __m256i diff16 = _mm256_sub_epi16(_mm256_max_epi16(aVal, bVal),
+                                      _mm256_min_epi16(aVal, bVal));
+    sum = _mm256_add_epi32(sum, _mm256_unpacklo_epi16(diff16, zero));
+    sum = _mm256_add_epi32(sum, _mm256_unpackhi_epi16(diff16, zero));
+  }
+  _mm256_storeu_si256((__m256i*)lanes, sum);
+  diff = (unsigned long)lanes[0] + lanes[1] + lanes[2] + lanes[3] + lanes[4] +
+         lanes[5] + lanes[6] + lanes[7];
+  return diff + absDiffSumScalar(a + i, b + i, numSamples - i);
+}
+
+__attribute__((target("avx2"))) static __m256i divideAvx2(__m256i value,
+                                                          int divisor,
+                                                          __m256 reciprocal) {
+  __m256i zero = _mm256_setzero_si256();
+  __m256i quotient =
+      _mm256_cvttps_epi32(_mm256_mul_ps(_mm256_cvtepi32_ps(value), reciprocal));
+  __m256i remainder = _mm256_sub_epi32(
+      value, _mm256_mullo_epi32(quotient, _mm256_set1_epi32(divisor)));
+  __m256i negative = _mm256_cmpgt_epi32(zero, value);
+  __m256i decrement = _mm256_blendv_epi8(
+      _mm256_cmpgt_epi32(zero, remainder),
+      _mm256_cmpgt_epi32(_mm256_set1_epi32(1 - divisor), remainder), negative);
+  __m256i increment = _mm256_blendv_epi8(
+      _mm256_cmpgt_epi32(remainder, _mm256_set1_epi32(divisor - 1)),
+      _mm256_cmpgt_epi32(remainder, zero), negative);
+
+  quotient = _mm256_add_epi32(quotient, decrement);
+  quotient = _mm256_sub_epi32(quotient, increment);
+  return _mm256_srai_epi32(_mm256_slli_epi32(quotient, 16), 16);
+}
+
+__attribute__((target("avx2"))) static void overlapAddRangeAvx2(
+    int numFrames, int numChannels, short* out, short* rampDown,
+    int downWeight, short* rampUp, int upWeight, int divisor) {
+  int numSamples = numFrames * numChannels;
+  __m256 reciprocal = _mm256_set1_ps(1.0f / divisor);
+  int offsets[16];
+  __m256i frameLow, frameHigh, step, low, high, samples, weight;
+  int i;
+
+  if (!findFrameOffsets(offsets, 16, numChannels) ||
+      !isVectorDivisionExact(numFrames, rampDown, downWeight, rampUp, upWeight,
+                             divisor)) {
+    overlapAddRangeScalar(0, numSamples, numChannels, out, rampDown,
+                          downWeight, rampUp, upWeight, divisor);
+    return;
+  }
+  frameLow = _mm256_loadu_si256((__m256i*)offsets);
+  frameHigh = _mm256_loadu_si256((__m256i*)(offsets + 8));
+  step = _mm256_set1_epi32(16 / numChannels);
+  for (i = 0; i + 16 <= numSamples; i += 16) {
+    low = _mm256_setzero_si256();
+    high = _mm256_setzero_si256();
+    if (rampDown != NULL) {
+      samples = _mm256_loadu_si256((__m256i*)(rampDown + i));
+      weight = _mm256_set1_epi32(downWeight);
+      low = _mm256_mullo_epi32(
+          _mm256_cvtepi16_epi32(_mm256_castsi256_si128(samples)),
+          _mm256_sub_epi32(weight, frameLow));
+      high = _mm256_mullo_epi32(
+          _mm256_cvtepi16_epi32(_mm256_extracti128_si256(samples, 1)),
+          _mm256_sub_epi32(weight, frameHigh));
+    }
+    if (rampUp != NULL) {
+      samples = _mm256_loadu_si256((__m256i*)(rampUp + i));
+      weight = _mm256_set1_epi32(upWeight);
+      low = _mm256_add_epi32(
+          low, _mm256_mullo_epi32(
+                   _mm256_cvtepi16_epi32(_mm256_castsi256_si128(samples)),
+                   _mm256_add_epi32(weight, frameLow)));
+      high = _mm256_add_epi32(
+          high, _mm256_mullo_epi32(
+                    _mm256_cvtepi16_epi32(_mm256_extracti128_si256(samples, 1)),
+                    _mm256_add_epi32(weight, frameHigh)));
+    }
+    /* The pack works within 128 bit halves, put the 64 bit quarters back in
+       order */
+    _mm256_storeu_si256(
+        (__m256i*)(out + i),
+        _mm256_permute4x64_epi64(
+            _mm256_packs_epi32(divideAvx2(low, divisor, reciprocal),
+                               divideAvx2(high, divisor, reciprocal)),
+            0xd8));
+    frameLow = _mm256_add_epi32(frameLow, step);
+    frameHigh = _mm256_add_epi32(frameHigh, step);
+  }
+  overlapAddRangeScalar(i, numSamples, numChannels, out, rampDown, downWeight,
+                        rampUp, upWeight, divisor);
+}
+
+#endif /* SONIC_X86 */
+
+static int detectLevel(void) {
+#if defined(SONIC_NEON)
+  return SIMD_NEON;
+#elif defined(SONIC_X86)
+  __builtin_cpu_init();
+  if (__builtin_cpu_supports("avx2")) {
+    return SIMD_AVX2;
+  }
+  if (__builtin_cpu_supports("sse4.1")) {
+    return SIMD_SSE41;
+  }
+  return SIMD_SCALAR;
+#else
+  return SIMD_SCALAR;
+#endif
+}
+
+static int getLevel(void) {
+  int level = enabledLevel;
+
+  if (level < 0) {
+    if (supportedLevel < 0) {
+      supportedLevel = detectLevel();
+    }
+    level = enabledLevel = supportedLevel;
+  }
+  return level;
+}
+
+/* Use vector instructions when the CPU has them, or the scalar code. */
+void sonicSetSimdEnabled(int enabled) {
+  if (supportedLevel < 0) {
+    supportedLevel = detectLevel();
+  }
+  enabledLevel = enabled ? supportedLevel : SIMD_SCALAR;
+}
+
+/* Return the name of the instruction set in use. */
+const char* sonicGetSimdName(void) { return simdNames[getLevel()]; }
+
+unsigned long sonicAbsDiffSum(short* a, short* b, int numSamples) {
+  switch (getLevel()) {
+#ifdef SONIC_NEON
+    case SIMD_NEON:
+      return absDiffSumNeon(a, b, numSamples);
+#endif
+#ifdef SONIC_X86
+    case SIMD_AVX2:
+      return absDiffSumAvx2(a, b, numSamples);
+    case SIMD_SSE41:
+      return absDiffSumSse41(a, b, numSamples);
+#endif
+    default:
+      return absDiffSumScalar(a, b, numSamples);
+  }
+}
+
+void sonicOverlapAddRange(int numFrames, int numChannels, short* out,
+                          short* rampDown, int downWeight, short* rampUp,
+                          int upWeight, int divisor) {
+  switch (getLevel()) {
+#ifdef SONIC_NEON
+    case SIMD_NEON:
+      overlapAddRangeNeon(numFrames, numChannels, out, rampDown, downWeight,
+                          rampUp, upWeight, divisor);
+      return;
+#endif
+#ifdef SONIC_X86
+    case SIMD_AVX2:
+      overlapAddRangeAvx2(numFrames, numChannels, out, rampDown, downWeight,
+                          rampUp, upWeight, divisor);
+      return;
+    case SIMD_SSE41:
+      overlapAddRangeSse41(numFrames, numChannels, out, rampDown, downWeight,
+                           rampUp, upWeight, divisor);
+      return;
+#endif
+    default:
+      overlapAddRangeScalar(0, numFrames * numChannels, numChannels, out,
+                            rampDown, downWeight, rampUp, upWeight, divisor);
+  }
+}
@@ -0,0 +1,23 @@
+/* Sonic library
+   Copyright 2010
+   Bill Cox
+   This file is part of the Sonic Library.
+
+   This file is licensed under the Apache 2.0 license.
+*/
+
+/* Inner loops of pitch detection and overlap-add, with vector versions picked
+   for the CPU at run time.  The vector versions return exactly what the scalar
+   versions return. */
+
+/* Return the sum of |a[i] - b[i]| for i = 0 to numSamples - 1, with each
+   difference taken as an unsigned short, as the AMDF pitch search does. */
+unsigned long sonicAbsDiffSum(short* a, short* b, int numSamples);
+
+/* For each of numFrames frames j and each channel, set
+     out = (rampDown*(downWeight - j) + rampUp*(upWeight + j))/divisor
+   with C integer division.  rampDown or rampUp may be NULL to leave its term
+   out.  Frames are interleaved, numChannels samples each. */
+void sonicOverlapAddRange(int numFrames, int numChannels, short* out,
+                          short* rampDown, int downWeight, short* rampUp,
+                          int upWeight, int divisor);
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.arbuz.mp3sonicplayer.core;
+
+import org.vinuxproject.sonic.Sonic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Time-stretches many WAV files with the same speed, pitch and rate on a bounded pool of worker threads.
+ * <p>
+ * Every file is processed by one Sonic stream from a {@link SonicPool}, so once each worker has had a file of a format
+ * no more native streams are created. Each worker also keeps its own direct buffers.
+ */
+public class BatchTimeStretcher implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ExecutorService mExecutor;
+    private final SonicPool       mSonicPool;
+
+    private final ThreadLocal<ByteBuffer[]> mBuffers = new ThreadLocal<ByteBuffer[]>() {
+        @Override
+        protected ByteBuffer[] initialValue() {
+            return new ByteBuffer[]{allocateDirect(BUFFER_SIZE), allocateDirect(BUFFER_SIZE)};
+        }
+    };
+
+    private float mSpeed = 1.0f;
+    private float mPitch = 1.0f;
+    private float mRate  = 1.0f;
+
+    public static class Job {
+
+        public final File input;
+        public final File output;
+
+        public Job(File input, File output) {
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    public static class FileResult {
+
+        public final Job job;
+
+        // Time from submitting the batch to the file being done, and time spent processing it
+        public final long latencyNs;
+        public final long processingNs;
+
+        public final long inputFrames;
+        public final long outputFrames;
+        public final int  sampleRate;
+
+        // Set when the file failed, the other values are 0
+        public final Exception error;
+
+        FileResult(Job job, long latencyNs, long processingNs, long inputFrames, long outputFrames, int sampleRate,
+                   Exception error) {
+            this.job = job;
+            this.latencyNs = latencyNs;
+            this.processingNs = processingNs;
+            this.inputFrames = inputFrames;
+            this.outputFrames = outputFrames;
+            this.sampleRate = sampleRate;
+            this.error = error;
+        }
+
+        /**
+         * Input audio time processed per processing time
+         */
+        public float getRealTimeFactor() {
+            return processingNs == 0 ? 0 : inputFrames * 1e9f / sampleRate / processingNs;
+        }
+    }
+
+    public static class BatchResult {
+
+        /**
+         * Results in the order of the jobs
+         */
+        public final List<FileResult> files;
+        public final long             elapsedNs;
+
+        BatchResult(List<FileResult> files, long elapsedNs) {
+            this.files = Collections.unmodifiableList(files);
+            this.elapsedNs = elapsedNs;
+        }
+
+        /**
+         * Seconds of input audio processed per wall clock second, over all workers
+         */
+        public float getThroughput() {
+            double audioSeconds = 0;
+            for (FileResult file : files)
+            {
+                if (file.error == null)
+                {
+                    audioSeconds += (double) file.inputFrames / file.sampleRate;
+                }
+            }
+            return elapsedNs == 0 ? 0 : (float) (audioSeconds * 1e9 / elapsedNs);
+        }
+
+        public long getMaxLatencyNs() {
+            long maxLatencyNs = 0;
+            for (FileResult file : files)
+            {
+                maxLatencyNs = Math.max(maxLatencyNs, file.latencyNs);
+            }
+            return maxLatencyNs;
+        }
+
+        public int getFailedCount() {
+            int failedCount = 0;
+            for (FileResult file : files)
+            {
+                if (file.error != null)
+                {
+                    failedCount++;
+                }
+            }
+            return failedCount;
+        }
+    }
+
+    /**
+     * @param numOfThreads workers, usually the number of cores
+     */
+    public BatchTimeStretcher(int numOfThreads) {
+        mExecutor = Executors.newFixedThreadPool(numOfThreads);
+        mSonicPool = new SonicPool(numOfThreads);
+    }
+
+    public void setSpeed(float speed) {
+        mSpeed = speed;
+    }
+
+    public void setPitch(float pitch) {
+        mPitch = pitch;
+    }
+
+    public void setRate(float rate) {
+        mRate = rate;
+    }
+
+    public SonicPool getSonicPool() {
+        return mSonicPool;
+    }
+
+    /**
+     * Process all jobs and wait for them. A failed file doesn't stop the batch, its error is in the result.
+     */
+    public BatchResult process(List<Job> jobs) throws InterruptedException {
+        final long startNs = System.nanoTime();
+        final float speed = mSpeed;
+        final float pitch = mPitch;
+        final float rate = mRate;
+
+        List<Future<FileResult>> futures = new ArrayList<>(jobs.size());
+        for (final Job job : jobs)
+        {
+            futures.add(mExecutor.submit(() -> processFile(job, startNs, speed, pitch, rate)));
+        }
+
+        List<FileResult> results = new ArrayList<>(jobs.size());
+        for (Future<FileResult> future : futures)
+        {
+            try
+            {
+                results.add(future.get());
+            } catch (ExecutionException e)
+            {
+                throw new IllegalStateException("Batch worker failed", e.getCause());
+            }
+        }
+        return new BatchResult(results, System.nanoTime() - startNs);
+    }
+
+    /**
+     * Stop the workers and free the pooled streams
+     */
+    @Override
+    public void close() {
+        mExecutor.shutdown();
+        mSonicPool.clear();
+    }
+
+    private FileResult processFile(Job job, long batchStartNs, float speed, float pitch, float rate) {
+        final long startNs = System.nanoTime();
+        final ByteBuffer[] buffers = mBuffers.get();
+        final ByteBuffer input = buffers[0];
+        final ByteBuffer output = buffers[1];
+
+        try (WavFileSource source = new WavFileSource(job.input);
+             WavFileSink sink = new WavFileSink(job.output, source.getSampleRate(), source.getNumOfChannels(), false))
+        {
+            Sonic sonic = mSonicPool.acquire(source.getSampleRate(), source.getNumOfChannels());
+            try
+            {
+                sonic.setSpeed(speed);
+                sonic.setPitch(pitch);
+                sonic.setRate(rate);
+
+                // Read whole frames only
+                int frameSize = 2 * source.getNumOfChannels();
+                int inputLimit = input.capacity() - input.capacity() % frameSize;
+
+                input.clear().limit(inputLimit);
+                while (source.read(input) > 0)
+                {
+                    input.flip();
+                    output.clear();
+                    writeOutput(sink, output, sonic.process(input, input.remaining(), output));
+                    drain(sonic, sink, output);
+                    input.clear().limit(inputLimit);
+                }
+
+                sonic.flush();
+                drain(sonic, sink, output);
+            } finally
+            {
+                mSonicPool.release(sonic);
+            }
+
+            long endNs = System.nanoTime();
+            long frameSize = 2 * source.getNumOfChannels();
+            return new FileResult(job, endNs - batchStartNs, endNs - startNs, source.getNumOfFrames(),
+                    sink.getDataSize() / frameSize, source.getSampleRate(), null);
+        } catch (IOException | RuntimeException e)
+        {
+            return new FileResult(job, System.nanoTime() - batchStartNs, 0, 0, 0, 0, e);
+        }
+    }
+
+    private static void drain(Sonic sonic, WavFileSink sink, ByteBuffer output) {
+        while (sonic.availableBytes() > 0)
+        {
+            output.clear();
+            writeOutput(sink, output, sonic.receiveBuffer(output, output.remaining()));
+        }
+    }
+
+    private static void writeOutput(WavFileSink sink, ByteBuffer output, int sizeInBytes) {
+        if (sizeInBytes > 0)
+        {
+            output.flip();
+            sink.write(output, sizeInBytes);
+        }
+    }
+
+    private static ByteBuffer allocateDirect(int capacity) {
+        // Sonic reads and writes 16-bit samples in native byte order
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+}
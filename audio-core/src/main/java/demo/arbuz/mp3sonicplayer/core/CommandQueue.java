@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue of commands, for any number of producer threads and exactly one consumer thread.
+ * <p>
+ * A command is an int and a long argument, kept in preallocated slots, so posting and draining don't allocate. A
+ * producer claims a slot with a compare-and-set of the tail and publishes it by advancing the slot's sequence
+ * (D. Vyukov's bounded queue). The consumer runs the published commands in order with {@link #drain(Consumer)}, for
+ * example between blocks of an audio thread. Neither side blocks, a full queue rejects the command.
+ */
+public class CommandQueue {
+
+    public interface Consumer {
+
+        void onCommand(int command, long argument);
+    }
+
+    private final int mCapacity;
+    private final int mMask;
+
+    // Sequence of each slot, equal to its position when free and position + 1 when published
+    private final AtomicLongArray mSequences;
+    private final int[]           mCommands;
+    private final long[]          mArguments;
+
+    // Next position to claim, shared by producers
+    private final AtomicLong mTail = new AtomicLong();
+    // Next position to run, used by the consumer only
+    private long mHead;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public CommandQueue(int capacity) {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+
+        int roundedCapacity = 1;
+        while (roundedCapacity < capacity)
+        {
+            roundedCapacity <<= 1;
+        }
+        mCapacity = roundedCapacity;
+        mMask = mCapacity - 1;
+        mSequences = new AtomicLongArray(mCapacity);
+        mCommands = new int[mCapacity];
+        mArguments = new long[mCapacity];
+        for (int i = 0; i < mCapacity; i++)
+        {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Called by any thread
+     *
+     * @return false if the queue is full and the command was not added
+     */
+    public boolean offer(int command, long argument) {
+        long tail = mTail.get();
+        while (true)
+        {
+            int index = (int) (tail & mMask);
+            long difference = mSequences.get(index) - tail;
+            if (difference == 0)
+            {
+                if (mTail.compareAndSet(tail, tail + 1))
+                {
+                    mCommands[index] = command;
+                    mArguments[index] = argument;
+                    mSequences.lazySet(index, tail + 1);
+                    return true;
+                }
+                tail = mTail.get();
+            }
+            else if (difference < 0)
+            {
+                // Slot still holds a command of the last lap
+                return false;
+            }
+            else
+            {
+                // Another producer claimed the slot
+                tail = mTail.get();
+            }
+        }
+    }
+
+    /**
+     * Run the published commands in the order they were claimed, called by the consumer thread
+     *
+     * @return number of commands run
+     */
+    public int drain(Consumer consumer) {
+        int count = 0;
+        while (true)
+        {
+            long head = mHead;
+            int index = (int) (head & mMask);
+            if (mSequences.get(index) != head + 1)
+            {
+                // Empty, or the next producer didn't publish yet
+                return count;
+            }
+
+            int command = mCommands[index];
+            long argument = mArguments[index];
+            mSequences.lazySet(index, head + mCapacity);
+            mHead = head + 1;
+
+            consumer.onCommand(command, argument);
+            count++;
+        }
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+}
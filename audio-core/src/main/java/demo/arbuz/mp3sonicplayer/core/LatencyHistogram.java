@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations, recorded without locks or allocations so it can stay on in real-time threads.
+ * <p>
+ * Buckets are logarithmic, four per power of two microseconds, so a percentile is within 25% of the real value.
+ * Any thread can record and read. Reads while recording are not a consistent snapshot, which is fine for monitoring.
+ */
+public class LatencyHistogram {
+
+    // Values are counted in units of 1024ns, close to a microsecond
+    private static final int UNIT_SHIFT = 10;
+
+    // Up to about a minute
+    private static final int BUCKET_COUNT = 104;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong      mCount   = new AtomicLong();
+    private final AtomicLong      mSumNs   = new AtomicLong();
+    private final AtomicLong      mMaxNs   = new AtomicLong();
+
+    public void record(long durationNs) {
+        if (durationNs < 0)
+        {
+            durationNs = 0;
+        }
+
+        mBuckets.incrementAndGet(getBucket(durationNs));
+        mCount.incrementAndGet();
+        mSumNs.addAndGet(durationNs);
+
+        long max;
+        while (durationNs > (max = mMaxNs.get()) && !mMaxNs.compareAndSet(max, durationNs))
+        {
+            // Another thread changed the max, check again
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMaxNs() {
+        return mMaxNs.get();
+    }
+
+    public long getMeanNs() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSumNs.get() / count;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return upper bound of the bucket the percentile falls in, or 0 if nothing was recorded
+     */
+    public long getPercentileNs(double percentile) {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            count += mBuckets.get(i);
+        }
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            seen += mBuckets.get(i);
+            if (seen >= rank && seen > 0)
+            {
+                return Math.min(getBucketLimit(i) << UNIT_SHIFT, mMaxNs.get());
+            }
+        }
+        return mMaxNs.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSumNs.set(0);
+        mMaxNs.set(0);
+    }
+
+    // Values under 4 units have a bucket each, then four buckets per power of two
+    static int getBucket(long durationNs) {
+        long value = durationNs >>> UNIT_SHIFT;
+        if (value < 4)
+        {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int fraction = (int) (value >>> (exponent - 2)) & 3;
+        return Math.min(BUCKET_COUNT - 1, (exponent - 1) * 4 + fraction);
+    }
+
+    // First value of the next bucket, in units
+    static long getBucketLimit(int bucket) {
+        if (bucket < 4)
+        {
+            return bucket + 1;
+        }
+        int exponent = bucket / 4 + 1;
+        return (4L + bucket % 4 + 1) << (exponent - 2);
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.arbuz.mp3sonicplayer.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Byte offsets of MP3 frames by sample position, for fast and exact seeking in VBR files.
+ * <p>
+ * The index is built by reading the frame headers once. Every {@link #INDEX_STEP}th frame is kept, a seek jumps to the
+ * closest entry with a binary search and decodes the few frames up to the target. {@link #load(File, File)} keeps
+ * indexes on disk, keyed by the file's path, size and modification time.
+ * <p>
+ * Positions count samples (frames of PCM) from the first audio frame, a Xing or VBRI header frame is not part of the
+ * stream. Offsets are relative to the start of the MP3 data.
+ */
+public class Mp3FrameIndex {
+
+    // Frames per index entry, a seek decodes up to this many extra frames
+    public static final int INDEX_STEP = 16;
+
+    private static final int CACHE_MAGIC   = 0x4D503349; // "MP3I"
+    private static final int CACHE_VERSION = 1;
+
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private static final int[] BITRATES_V1 = {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 0};
+    private static final int[] BITRATES_V2 = {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, 0};
+    private static final int[] SAMPLE_RATES = {44100, 48000, 32000, 0};
+
+    private final int    mSampleRate;
+    private final long   mTotalSamples;
+    private final long   mDataEnd;
+    private final long[] mPositions;
+    private final long[] mOffsets;
+
+    private Mp3FrameIndex(int sampleRate, long totalSamples, long dataEnd, long[] positions, long[] offsets) {
+        mSampleRate = sampleRate;
+        mTotalSamples = totalSamples;
+        mDataEnd = dataEnd;
+        mPositions = positions;
+        mOffsets = offsets;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public long getTotalSamples() {
+        return mTotalSamples;
+    }
+
+    /**
+     * Offset after the last audio frame, tags that follow are not read
+     */
+    public long getDataEnd() {
+        return mDataEnd;
+    }
+
+    public int getEntryCount() {
+        return mPositions.length;
+    }
+
+    public long getSamplePosition(int entry) {
+        return mPositions[entry];
+    }
+
+    public long getOffset(int entry) {
+        return mOffsets[entry];
+    }
+
+    /**
+     * @return last entry at or before the sample position
+     */
+    public int findEntry(long samplePosition) {
+        int entry = Arrays.binarySearch(mPositions, samplePosition);
+        if (entry < 0)
+        {
+            // Insertion point is the first entry after the position
+            entry = -entry - 2;
+        }
+        return Math.max(0, entry);
+    }
+
+    /**
+     * Get the index of a file from the cache directory, or build it and store it there
+     */
+    public static Mp3FrameIndex load(File cacheDir, File file) throws IOException {
+        String path = file.getAbsolutePath();
+        File cacheFile = new File(cacheDir, "mp3index-" + Integer.toHexString(path.hashCode()) + ".idx");
+
+        Mp3FrameIndex index = readCache(cacheFile, path, file.length(), file.lastModified());
+        if (index != null)
+        {
+            return index;
+        }
+
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel())
+        {
+            index = build(channel, 0, channel.size());
+        }
+        writeCache(cacheFile, path, file.length(), file.lastModified(), index);
+        return index;
+    }
+
+    /**
+     * Scan the frames of MP3 data that starts at start and is length bytes long
+     */
+    public static Mp3FrameIndex build(FileChannel channel, long start, long length) throws IOException {
+        ScanReader reader = new ScanReader(channel, start, length);
+
+        long offset = skipId3v2(reader);
+        offset = findFrame(reader, offset);
+        if (offset < 0)
+        {
+            throw new IOException("No MP3 frames found");
+        }
+
+        int firstHeader = reader.getInt(offset);
+        int sampleRate = getSampleRate(firstHeader);
+        if (isInfoFrame(reader, offset, firstHeader))
+        {
+            offset += getFrameLength(firstHeader);
+        }
+
+        int capacity = 1024;
+        long[] positions = new long[capacity];
+        long[] offsets = new long[capacity];
+        int count = 0;
+        int frame = 0;
+        long position = 0;
+        long dataEnd = offset;
+
+        while (offset + 4 <= length)
+        {
+            int header = reader.getInt(offset);
+            if (!isValidHeader(header) || offset + getFrameLength(header) > length)
+            {
+                // Damaged data or a tag at the end, continue at the next frame if there is one
+                offset = findFrame(reader, offset + 1);
+                if (offset < 0)
+                {
+                    break;
+                }
+                continue;
+            }
+
+            if (frame % INDEX_STEP == 0)
+            {
+                if (count == capacity)
+                {
+                    capacity *= 2;
+                    positions = Arrays.copyOf(positions, capacity);
+                    offsets = Arrays.copyOf(offsets, capacity);
+                }
+                positions[count] = position;
+                offsets[count] = offset;
+                count++;
+            }
+
+            frame++;
+            position += getSamplesPerFrame(header);
+            offset += getFrameLength(header);
+            dataEnd = offset;
+        }
+
+        return new Mp3FrameIndex(sampleRate, position, dataEnd, Arrays.copyOf(positions, count),
+                Arrays.copyOf(offsets, count));
+    }
+
+    static boolean isValidHeader(int header) {
+        return (header & 0xFFE00000) == 0xFFE00000 &&
+                // Version 01 is reserved, layer must be III
+                ((header >> 19) & 3) != 1 && ((header >> 17) & 3) == 1 &&
+                // Free and bad bitrates, reserved sample rate
+                ((header >> 12) & 0xF) != 0 && ((header >> 12) & 0xF) != 0xF && ((header >> 10) & 3) != 3;
+    }
+
+    static int getSampleRate(int header) {
+        int version = (header >> 19) & 3;
+        int sampleRate = SAMPLE_RATES[(header >> 10) & 3];
+        // MPEG-2 halves the rate, MPEG-2.5 quarters it
+        return version == 3 ? sampleRate : version == 2 ? sampleRate / 2 : sampleRate / 4;
+    }
+
+    static int getSamplesPerFrame(int header) {
+        return ((header >> 19) & 3) == 3 ? 1152 : 576;
+    }
+
+    static int getFrameLength(int header) {
+        boolean isVersion1 = ((header >> 19) & 3) == 3;
+        int bitrate = (isVersion1 ? BITRATES_V1 : BITRATES_V2)[(header >> 12) & 0xF] * 1000;
+        int padding = (header >> 9) & 1;
+        return (isVersion1 ? 144 : 72) * bitrate / getSampleRate(header) + padding;
+    }
+
+    private static boolean isInfoFrame(ScanReader reader, long offset, int header) throws IOException {
+        boolean isVersion1 = ((header >> 19) & 3) == 3;
+        boolean isMono = ((header >> 6) & 3) == 3;
+        int sideInfoSize = isVersion1 ? (isMono ? 17 : 32) : (isMono ? 9 : 17);
+
+        int tag = reader.getInt(offset + 4 + sideInfoSize);
+        // "Xing" and "Info" follow the side info, "VBRI" is always at 32 bytes
+        return tag == 0x58696E67 || tag == 0x496E666F || reader.getInt(offset + 4 + 32) == 0x56425249;
+    }
+
+    private static long skipId3v2(ScanReader reader) throws IOException {
+        long offset = 0;
+        // Some files have more than one tag
+        while (reader.getLength() >= offset + 10 && (reader.getInt(offset) >>> 8) == 0x494433) // "ID3"
+        {
+            int flags = reader.getByte(offset + 5);
+            int size = 0;
+            for (int i = 6; i < 10; i++)
+            {
+                // Sync-safe integer, 7 bits per byte
+                size = (size << 7) | (reader.getByte(offset + i) & 0x7F);
+            }
+            offset += 10 + size + ((flags & 0x10) != 0 ? 10 : 0);
+        }
+        return offset;
+    }
+
+    /**
+     * Find a valid header that is followed by another one, a single match may be random data
+     *
+     * @return offset of the frame or -1
+     */
+    private static long findFrame(ScanReader reader, long offset) throws IOException {
+        long length = reader.getLength();
+        for (; offset + 4 <= length; offset++)
+        {
+            if (reader.getByte(offset) != (byte) 0xFF)
+            {
+                continue;
+            }
+            int header = reader.getInt(offset);
+            if (!isValidHeader(header))
+            {
+                continue;
+            }
+            long next = offset + getFrameLength(header);
+            if (next + 4 > length)
+            {
+                // Last frame of the file
+                return next <= length ? offset : -1;
+            }
+            int nextHeader = reader.getInt(next);
+            if (isValidHeader(nextHeader) && getSampleRate(nextHeader) == getSampleRate(header))
+            {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private static Mp3FrameIndex readCache(File cacheFile, String path, long fileLength, long lastModified) {
+        if (!cacheFile.exists())
+        {
+            return null;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile))))
+        {
+            if (input.readInt() != CACHE_MAGIC || input.readInt() != CACHE_VERSION ||
+                    !input.readUTF().equals(path) || input.readLong() != fileLength || input.readLong() != lastModified)
+            {
+                // Another file with the same hash or the file changed
+                return null;
+            }
+
+            int sampleRate = input.readInt();
+            long totalSamples = input.readLong();
+            long dataEnd = input.readLong();
+            int count = input.readInt();
+            long[] positions = new long[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++)
+            {
+                positions[i] = input.readLong();
+                offsets[i] = input.readLong();
+            }
+            return new Mp3FrameIndex(sampleRate, totalSamples, dataEnd, positions, offsets);
+        } catch (IOException e)
+        {
+            // Damaged cache is rebuilt
+            return null;
+        }
+    }
+
+    private static void writeCache(File cacheFile, String path, long fileLength, long lastModified, Mp3FrameIndex index)
+            throws IOException {
+        // Written to a temporary file first, so a reader never sees a partial index
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile))))
+        {
+            output.writeInt(CACHE_MAGIC);
+            output.writeInt(CACHE_VERSION);
+            output.writeUTF(path);
+            output.writeLong(fileLength);
+            output.writeLong(lastModified);
+            output.writeInt(index.mSampleRate);
+            output.writeLong(index.mTotalSamples);
+            output.writeLong(index.mDataEnd);
+            output.writeInt(index.mPositions.length);
+            for (int i = 0; i < index.mPositions.length; i++)
+            {
+                output.writeLong(index.mPositions[i]);
+                output.writeLong(index.mOffsets[i]);
+            }
+        }
+        if (!tempFile.renameTo(cacheFile))
+        {
+            tempFile.delete();
+            throw new IOException("Can't write " + cacheFile);
+        }
+    }
+
+    /**
+     * Reads the channel through a window, the scan moves forward so the window is rarely reloaded
+     */
+    private static class ScanReader {
+
+        private final FileChannel mChannel;
+        private final long        mStart;
+        private final long        mLength;
+        private final ByteBuffer  mWindow = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+
+        private long mWindowOffset = 0;
+        private int  mWindowSize   = 0;
+
+        ScanReader(FileChannel channel, long start, long length) {
+            mChannel = channel;
+            mStart = start;
+            mLength = length;
+        }
+
+        long getLength() {
+            return mLength;
+        }
+
+        byte getByte(long offset) throws IOException {
+            load(offset, 1);
+            return mWindow.get((int) (offset - mWindowOffset));
+        }
+
+        /**
+         * Big-endian int at offset, bytes past the end read as 0
+         */
+        int getInt(long offset) throws IOException {
+            load(offset, 4);
+            int index = (int) (offset - mWindowOffset);
+            int value = 0;
+            for (int i = 0; i < 4; i++)
+            {
+                value = (value << 8) | (index + i < mWindowSize ? mWindow.get(index + i) & 0xFF : 0);
+            }
+            return value;
+        }
+
+        private void load(long offset, int size) throws IOException {
+            if (offset >= mWindowOffset && offset + size <= mWindowOffset + mWindowSize)
+            {
+                return;
+            }
+            if (offset >= mWindowOffset && offset < mWindowOffset + mWindowSize &&
+                    mWindowOffset + mWindowSize == mLength)
+            {
+                // Partial read at the end of the data
+                return;
+            }
+
+            mWindow.clear();
+            mWindow.limit((int) Math.min(SCAN_BUFFER_SIZE, Math.max(0, mLength - offset)));
+            while (mWindow.hasRemaining())
+            {
+                if (mChannel.read(mWindow, mStart + offset + mWindow.position()) < 0)
+                {
+                    break;
+                }
+            }
+            mWindowOffset = offset;
+            mWindowSize = mWindow.position();
+        }
+    }
+}
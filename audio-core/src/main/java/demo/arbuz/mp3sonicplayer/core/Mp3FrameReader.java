@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.arbuz.mp3sonicplayer.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads MP3 frames one by one, starting at any entry of a {@link Mp3FrameIndex}.
+ * <p>
+ * Used instead of the platform extractor after a seek, each frame can be queued to the decoder as one input buffer.
+ */
+public class Mp3FrameReader implements Closeable {
+
+    private final FileChannel   mChannel;
+    private final long          mStart;
+    private final Mp3FrameIndex mIndex;
+
+    private final ByteBuffer mHeader = ByteBuffer.allocate(4);
+
+    private long mOffset;
+    private long mSamplePosition;
+
+    /**
+     * @param start offset of the MP3 data in the channel, the index offsets are relative to it
+     */
+    public Mp3FrameReader(FileChannel channel, long start, Mp3FrameIndex index) {
+        mChannel = channel;
+        mStart = start;
+        mIndex = index;
+        seekToEntry(0);
+    }
+
+    public Mp3FrameIndex getIndex() {
+        return mIndex;
+    }
+
+    public void seekToEntry(int entry) {
+        mOffset = mIndex.getOffset(entry);
+        mSamplePosition = mIndex.getSamplePosition(entry);
+    }
+
+    /**
+     * Position of the first sample of the next frame
+     */
+    public long getSamplePosition() {
+        return mSamplePosition;
+    }
+
+    /**
+     * Read the next frame into the buffer at its position, the position is advanced by the frame length
+     *
+     * @return frame length, or -1 at end of data
+     */
+    public int readFrame(ByteBuffer buffer) throws IOException {
+        boolean isResyncing = false;
+        while (mOffset + 4 <= mIndex.getDataEnd())
+        {
+            int header = readHeader(mOffset);
+            int length = Mp3FrameIndex.isValidHeader(header) ? Mp3FrameIndex.getFrameLength(header) : 0;
+
+            if (length == 0 || mOffset + length > mIndex.getDataEnd() ||
+                    isResyncing && !isFollowedByFrame(mOffset + length, header))
+            {
+                // Damaged data, the index scan skipped it the same way: after damage a header only counts if
+                // another one follows it, a single match may be random data
+                mOffset++;
+                isResyncing = true;
+                continue;
+            }
+            if (length > buffer.remaining())
+            {
+                throw new IOException("Frame of " + length + " bytes doesn't fit the buffer");
+            }
+
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + length);
+            readFully(buffer, mOffset);
+            buffer.limit(limit);
+
+            mOffset += length;
+            mSamplePosition += Mp3FrameIndex.getSamplesPerFrame(header);
+            return length;
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    private int readHeader(long offset) throws IOException {
+        mHeader.clear();
+        readFully(mHeader, offset);
+        return mHeader.getInt(0);
+    }
+
+    private boolean isFollowedByFrame(long next, int header) throws IOException {
+        if (next + 4 > mIndex.getDataEnd())
+        {
+            // Last frame of the data
+            return true;
+        }
+        int nextHeader = readHeader(next);
+        return Mp3FrameIndex.isValidHeader(nextHeader) &&
+                Mp3FrameIndex.getSampleRate(nextHeader) == Mp3FrameIndex.getSampleRate(header);
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        long position = mStart + offset;
+        while (buffer.hasRemaining())
+        {
+            int read = mChannel.read(buffer, position);
+            if (read < 0)
+            {
+                throw new IOException("Unexpected end of MP3 data");
+            }
+            position += read;
+        }
+    }
+}
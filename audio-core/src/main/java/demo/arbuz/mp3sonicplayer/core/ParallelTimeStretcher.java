@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.arbuz.mp3sonicplayer.core;
+
+import org.vinuxproject.sonic.Sonic;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Time-stretches one long 16-bit PCM stream on several cores.
+ * <p>
+ * A single Sonic stream is sequential, so the input is split into segments that are extended by an overlap on both
+ * sides, and every segment is processed by its own Sonic stream on a {@link ForkJoinPool}. Segments are joined in
+ * order: the joint is aligned by cross-correlation within one pitch period, so the two renders are in phase, and
+ * crossfaded over the overlap. The overlap is long enough for Sonic to settle, so away from the joints the output is
+ * the same as a single stream render.
+ * <p>
+ * Only a window of segments is in memory at a time, the output is written to a {@link PcmSink} in order.
+ */
+public class ParallelTimeStretcher {
+
+    private static final int DEFAULT_SEGMENT_MS = 20000;
+    private static final int DEFAULT_OVERLAP_MS = 250;
+
+    // Lowest pitch Sonic looks for, as SONIC_MIN_PITCH in sonic.h
+    private static final int MIN_PITCH = 65;
+
+    // Frames passed to the sink at once
+    private static final int OUTPUT_CHUNK_FRAMES = 4096;
+
+    private final int mSampleRate;
+    private final int mNumOfChannels;
+
+    private float mSpeed = 1.0f;
+    private float mPitch = 1.0f;
+    private float mRate  = 1.0f;
+
+    private int mSegmentFrames;
+    private int mOverlapFrames;
+
+    private ForkJoinPool mPool = ForkJoinPool.commonPool();
+
+    // Streams are created per segment when not set
+    private SonicPool mSonicPool;
+
+    public ParallelTimeStretcher(int sampleRate, int numOfChannels) {
+        mSampleRate = sampleRate;
+        mNumOfChannels = numOfChannels;
+        mSegmentFrames = toFrames(sampleRate, DEFAULT_SEGMENT_MS);
+        mOverlapFrames = toFrames(sampleRate, DEFAULT_OVERLAP_MS);
+    }
+
+    public void setSpeed(float speed) {
+        mSpeed = speed;
+    }
+
+    public void setPitch(float pitch) {
+        mPitch = pitch;
+    }
+
+    public void setRate(float rate) {
+        mRate = rate;
+    }
+
+    /**
+     * Set input length of a segment and of the overlap added on each side of it.
+     * The segment must be at least four times longer than the overlap.
+     */
+    public void setSegmentDuration(int segmentMs, int overlapMs) {
+        int segmentFrames = toFrames(mSampleRate, segmentMs);
+        int overlapFrames = toFrames(mSampleRate, overlapMs);
+        if (overlapFrames < mSampleRate / MIN_PITCH * 2 || segmentFrames < overlapFrames * 4)
+        {
+            throw new IllegalArgumentException("Invalid segment " + segmentMs + "ms with overlap " + overlapMs + "ms");
+        }
+        mSegmentFrames = segmentFrames;
+        mOverlapFrames = overlapFrames;
+    }
+
+    public void setPool(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Take the segments' Sonic streams from a pool instead of creating one per segment
+     */
+    public void setSonicPool(SonicPool sonicPool) {
+        mSonicPool = sonicPool;
+    }
+
+    /**
+     * Process interleaved samples from the input's position to its limit and write the result to the sink.
+     * Blocks until all output was written.
+     */
+    public void process(ShortBuffer input, PcmSink sink) {
+        final int numOfFrames = input.remaining() / mNumOfChannels;
+        final int numOfSegments = (numOfFrames + mSegmentFrames - 1) / mSegmentFrames;
+        // Output length is input length divided by speed times rate, pitch doesn't change it
+        final double factor = (double) mSpeed * mRate;
+        final ShortBuffer source = input.slice();
+
+        Stitcher stitcher = new Stitcher(numOfFrames, factor, sink);
+
+        // Keep the pool busy, but only a few segments in memory
+        int window = mPool.getParallelism() * 2;
+        ArrayDeque<ForkJoinTask<short[]>> pending = new ArrayDeque<>();
+        int nextSegment = 0;
+
+        for (int segment = 0; segment < numOfSegments; segment++)
+        {
+            while (nextSegment < numOfSegments && pending.size() < window)
+            {
+                final int index = nextSegment++;
+                pending.add(mPool.submit(() -> renderSegment(source, index, numOfFrames)));
+            }
+            stitcher.add(segment, pending.poll().join(), segment == numOfSegments - 1);
+        }
+
+        input.position(input.limit());
+    }
+
+    private static int toFrames(int sampleRate, int ms) {
+        return (int) ((long) sampleRate * ms / 1000);
+    }
+
+    private int getExtendedStart(int segment) {
+        return Math.max(0, segment * mSegmentFrames - mOverlapFrames);
+    }
+
+    private short[] renderSegment(ShortBuffer source, int segment, int numOfFrames) {
+        int start = getExtendedStart(segment);
+        int end = (int) Math.min(numOfFrames, (long) (segment + 1) * mSegmentFrames + mOverlapFrames);
+
+        short[] samples = new short[(end - start) * mNumOfChannels];
+        ShortBuffer segmentSource = source.duplicate();
+        segmentSource.position(start * mNumOfChannels);
+        segmentSource.get(samples);
+
+        Sonic sonic = mSonicPool != null ? mSonicPool.acquire(mSampleRate, mNumOfChannels)
+                : new Sonic(mSampleRate, mNumOfChannels);
+        try
+        {
+            sonic.setSpeed(mSpeed);
+            sonic.setPitch(mPitch);
+            sonic.setRate(mRate);
+            sonic.putShorts(samples, samples.length);
+            sonic.flush();
+
+            short[] output = new short[sonic.availableSamples()];
+            int received = sonic.receiveShorts(output, output.length);
+            if (received != output.length)
+            {
+                throw new IllegalStateException("Sonic failed to process segment " + segment);
+            }
+            return output;
+        } finally
+        {
+            if (mSonicPool != null)
+            {
+                mSonicPool.release(sonic);
+            }
+            else
+            {
+                sonic.close();
+            }
+        }
+    }
+
+    /**
+     * Joins rendered segments in order and writes them to the sink
+     */
+    private class Stitcher {
+
+        private final int     mNumOfFrames;
+        private final double  mFactor;
+        private final PcmSink mSink;
+
+        private final int mCrossfadeFrames;
+        private final int mMaxShift;
+
+        private final short[]    mChunk;
+        private final ByteBuffer mChunkBuffer;
+        private int              mChunkFrames = 0;
+
+        private short[] mPrevious;
+        private int     mPreviousOrigin;
+
+        // Next output frame to write
+        private long mPosition = 0;
+
+        Stitcher(int numOfFrames, double factor, PcmSink sink) {
+            mNumOfFrames = numOfFrames;
+            mFactor = factor;
+            mSink = sink;
+
+            mCrossfadeFrames = Math.max(1, (int) (mOverlapFrames / factor));
+            mMaxShift = mSampleRate / MIN_PITCH;
+
+            mChunk = new short[OUTPUT_CHUNK_FRAMES * mNumOfChannels];
+            mChunkBuffer = ByteBuffer.allocateDirect(mChunk.length * 2).order(ByteOrder.nativeOrder());
+        }
+
+        void add(int segment, short[] output, boolean isLast) {
+            // Output frame that matches the first frame of the segment's extended input
+            int origin = (int) Math.round(getExtendedStart(segment) / mFactor);
+            long end = isLast ? Math.round(mNumOfFrames / mFactor) : Math.round((long) (segment + 1) * mSegmentFrames / mFactor);
+
+            if (mPrevious != null)
+            {
+                // Search the shift that puts the new segment in phase with the previous one, then crossfade
+                int shift = findBestShift(output, origin);
+                origin -= shift;
+
+                // A short last segment can end within the crossfade
+                int crossfadeFrames = (int) Math.min(mCrossfadeFrames, end - mPosition);
+                for (int i = 0; i < crossfadeFrames; i++)
+                {
+                    float weight = (float) i / crossfadeFrames;
+                    for (int channel = 0; channel < mNumOfChannels; channel++)
+                    {
+                        int previous = sample(mPrevious, mPosition - mPreviousOrigin, channel);
+                        int current = sample(output, mPosition - origin, channel);
+                        put(channel, (short) (previous * (1 - weight) + current * weight));
+                    }
+                    nextFrame();
+                }
+            }
+
+            // Leave the end for the crossfade with the next segment
+            long stop = isLast ? Math.min(end, origin + output.length / mNumOfChannels) : end - mCrossfadeFrames / 2;
+            while (mPosition < stop)
+            {
+                for (int channel = 0; channel < mNumOfChannels; channel++)
+                {
+                    put(channel, (short) sample(output, mPosition - origin, channel));
+                }
+                nextFrame();
+            }
+
+            mPrevious = output;
+            mPreviousOrigin = origin;
+
+            if (isLast)
+            {
+                flushChunk();
+            }
+        }
+
+        private int findBestShift(short[] output, int origin) {
+            int bestShift = 0;
+            double bestScore = Double.NEGATIVE_INFINITY;
+
+            for (int shift = -mMaxShift; shift <= mMaxShift; shift++)
+            {
+                double correlation = 0;
+                double energy = 1;
+                // Every other frame of the first channel is precise enough
+                for (int i = 0; i < mCrossfadeFrames; i += 2)
+                {
+                    long position = mPosition + i;
+                    int previous = sample(mPrevious, position - mPreviousOrigin, 0);
+                    int current = sample(output, position - origin + shift, 0);
+                    correlation += (double) previous * current;
+                    energy += (double) current * current;
+                }
+                double score = correlation / Math.sqrt(energy);
+                if (score > bestScore)
+                {
+                    bestScore = score;
+                    bestShift = shift;
+                }
+            }
+            return bestShift;
+        }
+
+        private int sample(short[] samples, long frame, int channel) {
+            long index = frame * mNumOfChannels + channel;
+            return index >= 0 && index < samples.length ? samples[(int) index] : 0;
+        }
+
+        private void put(int channel, short value) {
+            mChunk[mChunkFrames * mNumOfChannels + channel] = value;
+        }
+
+        private void nextFrame() {
+            mPosition++;
+            mChunkFrames++;
+            if (mChunkFrames == OUTPUT_CHUNK_FRAMES)
+            {
+                flushChunk();
+            }
+        }
+
+        private void flushChunk() {
+            if (mChunkFrames == 0)
+            {
+                return;
+            }
+            mChunkBuffer.clear();
+            mChunkBuffer.asShortBuffer().put(mChunk, 0, mChunkFrames * mNumOfChannels);
+            mChunkBuffer.limit(mChunkFrames * mNumOfChannels * 2);
+            mSink.write(mChunkBuffer, mChunkBuffer.limit());
+            mChunkFrames = 0;
+        }
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Disk cache of decoded PCM, so a file that plays again doesn't have to be decoded again.
+ * <p>
+ * The first play writes the decoded blocks to a {@link Writer}, which adds the file to the cache when the whole stream
+ * was written. Later plays read the PCM from a memory-mapped {@link Entry}. The cache keeps its size under a budget by
+ * deleting the least recently used files, use is kept in the files' modification time so it survives restarts.
+ * <p>
+ * Keys identify the source and the PCM format, for example path, size and modification time of the file and the
+ * encoding. Methods are thread safe.
+ */
+public class PcmCache {
+
+    private static final int FILE_MAGIC   = 0x50434D43; // "PCMC"
+    private static final int FILE_VERSION = 1;
+
+    private static final String FILE_PREFIX = "pcm-";
+    private static final String FILE_SUFFIX = ".pcm";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Offset of the data size in the header, written when the stream is complete
+    private static final int DATA_SIZE_OFFSET = 20;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    // File name to size, in access order
+    private final LinkedHashMap<String, Long> mFiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize = 0;
+
+    private long mHitCount      = 0;
+    private long mMissCount     = 0;
+    private long mEvictionCount = 0;
+
+    /**
+     * @param directory can be shared with other files, the cache uses only files named pcm-*.pcm and their
+     *                  pcm-*.pcm.tmp files while they are written
+     * @param maxSize   size budget of all files in bytes
+     */
+    public PcmCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+
+        mDirectory.mkdirs();
+
+        File[] files = mDirectory.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+
+        // Oldest first, so the map starts in use order
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (!name.startsWith(FILE_PREFIX))
+            {
+                continue;
+            }
+            if (name.endsWith(FILE_SUFFIX))
+            {
+                mFiles.put(name, file.length());
+                mSize += file.length();
+            }
+            else if (name.endsWith(FILE_SUFFIX + TEMP_SUFFIX))
+            {
+                // Left by a write that didn't finish
+                file.delete();
+            }
+        }
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Get the cached PCM of the key
+     *
+     * @return mapped PCM, or null on a miss
+     */
+    public Entry open(String key) {
+        String fileName = getFileName(key);
+        synchronized (this)
+        {
+            if (mFiles.get(fileName) == null)
+            {
+                mMissCount++;
+                return null;
+            }
+        }
+
+        File file = new File(mDirectory, fileName);
+        Entry entry = Entry.map(file, key);
+
+        synchronized (this)
+        {
+            if (entry == null)
+            {
+                // Damaged, or another key with the same hash
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    /**
+     * Start writing the PCM of the key, the entry is added when {@link Writer#commit()} is called
+     */
+    public Writer createWriter(String key, int sampleRate, int numOfChannels, boolean isFloat) throws IOException {
+        return new Writer(this, key, new File(mDirectory, getFileName(key) + TEMP_SUFFIX), sampleRate, numOfChannels,
+                isFloat);
+    }
+
+    /**
+     * Delete all cached files
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int getEntryCount() {
+        return mFiles.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Number of files deleted to stay under the size budget
+     */
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    private synchronized void add(File tempFile, String key) throws IOException {
+        String fileName = getFileName(key);
+        File file = new File(mDirectory, fileName);
+
+        Long oldSize = mFiles.remove(fileName);
+        if (oldSize != null)
+        {
+            mSize -= oldSize;
+        }
+
+        if (!tempFile.renameTo(file))
+        {
+            tempFile.delete();
+            throw new IOException("Can't write " + file);
+        }
+
+        mFiles.put(fileName, file.length());
+        mSize += file.length();
+        trimToSize(mMaxSize);
+    }
+
+    private void trimToSize(long maxSize) {
+        Iterator<Map.Entry<String, Long>> iterator = mFiles.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext())
+        {
+            Map.Entry<String, Long> file = iterator.next();
+            // Mapped entries stay readable after the file is deleted
+            new File(mDirectory, file.getKey()).delete();
+            mSize -= file.getValue();
+            iterator.remove();
+            mEvictionCount++;
+        }
+    }
+
+    private static String getFileName(String key) {
+        return FILE_PREFIX + Integer.toHexString(key.hashCode()) + FILE_SUFFIX;
+    }
+
+    /**
+     * Cached PCM of one stream, mapped read only
+     */
+    public static class Entry {
+
+        private final int        mSampleRate;
+        private final int        mNumOfChannels;
+        private final boolean    mIsFloat;
+        private final ByteBuffer mData;
+
+        private Entry(int sampleRate, int numOfChannels, boolean isFloat, ByteBuffer data) {
+            mSampleRate = sampleRate;
+            mNumOfChannels = numOfChannels;
+            mIsFloat = isFloat;
+            mData = data;
+        }
+
+        public int getSampleRate() {
+            return mSampleRate;
+        }
+
+        public int getNumOfChannels() {
+            return mNumOfChannels;
+        }
+
+        public boolean isFloat() {
+            return mIsFloat;
+        }
+
+        public int getFrameSize() {
+            return mNumOfChannels * (mIsFloat ? 4 : 2);
+        }
+
+        public long getNumOfFrames() {
+            return mData.capacity() / getFrameSize();
+        }
+
+        /**
+         * PCM in native byte order, each call returns a buffer with its own position
+         */
+        public ByteBuffer getData() {
+            return mData.duplicate().order(ByteOrder.nativeOrder());
+        }
+
+        private static Entry map(File file, String key) {
+            try (FileChannel channel = new RandomAccessFile(file, "r").getChannel())
+            {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.getInt() != FILE_MAGIC || buffer.getInt() != FILE_VERSION)
+                {
+                    return null;
+                }
+
+                int headerSize = buffer.getInt();
+                int sampleRate = buffer.getInt();
+                int numOfChannels = buffer.getInt();
+                long dataSize = buffer.getLong();
+                boolean isFloat = buffer.get() != 0;
+
+                byte[] keyBytes = new byte[buffer.getShort()];
+                buffer.get(keyBytes);
+                if (!key.equals(new String(keyBytes, StandardCharsets.UTF_8)) || headerSize + dataSize != channel.size())
+                {
+                    return null;
+                }
+
+                // The mapping stays valid after the channel is closed
+                buffer.position(headerSize);
+                return new Entry(sampleRate, numOfChannels, isFloat, buffer.slice());
+            } catch (IOException | RuntimeException e)
+            {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Writes PCM of one stream to a temporary file. Data of the stream is written in order, from the start to the end.
+     * If the stream doesn't reach the end, abort the writer instead of committing it.
+     */
+    public static class Writer implements Closeable {
+
+        private final PcmCache    mCache;
+        private final String      mKey;
+        private final File        mFile;
+        private final FileChannel mChannel;
+        private final int         mHeaderSize;
+
+        private final ByteBuffer  mBuffer    = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+        private final FloatBuffer mFloatView = mBuffer.asFloatBuffer();
+
+        private long    mDataSize = 0;
+        private boolean mIsClosed = false;
+
+        private Writer(PcmCache cache, String key, File file, int sampleRate, int numOfChannels, boolean isFloat)
+                throws IOException {
+            mCache = cache;
+            mKey = key;
+            mFile = file;
+            mChannel = new RandomAccessFile(file, "rw").getChannel();
+            mChannel.truncate(0);
+
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            mHeaderSize = DATA_SIZE_OFFSET + 8 + 1 + 2 + keyBytes.length;
+
+            ByteBuffer header = ByteBuffer.allocate(mHeaderSize);
+            header.putInt(FILE_MAGIC);
+            header.putInt(FILE_VERSION);
+            header.putInt(mHeaderSize);
+            header.putInt(sampleRate);
+            header.putInt(numOfChannels);
+            header.putLong(0);
+            header.put((byte) (isFloat ? 1 : 0));
+            header.putShort((short) keyBytes.length);
+            header.put(keyBytes);
+            header.flip();
+            writeFully(header, 0);
+        }
+
+        public void write(byte[] data, int sizeInBytes) throws IOException {
+            int offset = 0;
+            while (offset < sizeInBytes)
+            {
+                int length = Math.min(mBuffer.remaining(), sizeInBytes - offset);
+                mBuffer.put(data, offset, length);
+                offset += length;
+                flushIfFull();
+            }
+        }
+
+        public void write(float[] data, int sizeInFloats) throws IOException {
+            int offset = 0;
+            while (offset < sizeInFloats)
+            {
+                int length = Math.min(mBuffer.remaining() / 4, sizeInFloats - offset);
+                mFloatView.position(mBuffer.position() / 4);
+                mFloatView.put(data, offset, length);
+                mBuffer.position(mBuffer.position() + length * 4);
+                offset += length;
+                flushIfFull();
+            }
+        }
+
+        /**
+         * Bytes written so far, without the header
+         */
+        public long getDataSize() {
+            return mDataSize + mBuffer.position();
+        }
+
+        /**
+         * The whole stream was written, add it to the cache
+         */
+        public void commit() throws IOException {
+            if (mIsClosed)
+            {
+                throw new IllegalStateException("Writer is closed");
+            }
+
+            flush();
+            ByteBuffer dataSize = ByteBuffer.allocate(8);
+            dataSize.putLong(0, mDataSize);
+            writeFully(dataSize, DATA_SIZE_OFFSET);
+
+            close();
+            if (mHeaderSize + mDataSize > mCache.getMaxSize())
+            {
+                // Would only push everything else out
+                mFile.delete();
+                return;
+            }
+            mCache.add(mFile, mKey);
+        }
+
+        /**
+         * Drop what was written
+         */
+        public void abort() {
+            try
+            {
+                close();
+            } catch (IOException e)
+            {
+                // Deleted anyway
+            }
+            mFile.delete();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!mIsClosed)
+            {
+                mIsClosed = true;
+                mChannel.close();
+            }
+        }
+
+        private void flushIfFull() throws IOException {
+            // Keep room for at least one float
+            if (mBuffer.remaining() < 4)
+            {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            mBuffer.flip();
+            int length = mBuffer.remaining();
+            writeFully(mBuffer, mHeaderSize + mDataSize);
+            mDataSize += length;
+            mBuffer.clear();
+        }
+
+        private void writeFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining())
+            {
+                position += mChannel.write(buffer, position);
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free ring of preallocated PCM blocks, for exactly one producer thread and one consumer thread.
+ * <p>
+ * The producer takes a free block with {@link #awaitWriteBlock()}, fills it and publishes it with {@link #commitWrite()}.
+ * The consumer takes the oldest block with {@link #awaitReadBlock()} and returns it with {@link #releaseRead()}.
+ * Blocks are never allocated after construction. A thread that finds the ring full (or empty) parks for a short time,
+ * and the other side unparks it as soon as it makes progress. A consumer that also has other work, like commands, can
+ * be woken up with {@link #wakeUpConsumer()} while it waits.
+ */
+public class PcmRingBuffer {
+
+    // Upper bound for a park, in case an unpark raced with the check before parking
+    private static final long PARK_TIMEOUT_NS = 2_000_000;
+
+    public static class Block {
+
+        // Only one is allocated, depending on the encoding. 16-bit blocks are direct buffers in native byte order, so
+        // the consumer can hand them to native code, like Sonic, without copying them first. Their position and limit
+        // are not used, the valid bytes start at 0.
+        public final ByteBuffer buffer;
+        public final float[]    floats;
+
+        // Number of valid bytes or floats
+        public int size;
+
+        // New sample rate that applies from this block on, or 0 if unchanged
+        public int sampleRate;
+
+        // Index of the stream the block belongs to, when several streams are played one after the other
+        public int streamIndex;
+
+        // Incremented by the producer at a jump in the stream, like a seek. The consumer drops what it holds from
+        // before the jump when the epoch changes.
+        public int epoch;
+
+        // Position of the first frame in its stream, in frames
+        public long position;
+
+        Block(int sizeInBytes, boolean isFloat) {
+            buffer = isFloat ? null : ByteBuffer.allocateDirect(sizeInBytes).order(ByteOrder.nativeOrder());
+            floats = isFloat ? new float[sizeInBytes / 4] : null;
+        }
+    }
+
+    private final Block[] mBlocks;
+
+    // Written by producer only
+    private volatile long mWriteIndex = 0;
+    // Written by consumer only
+    private volatile long mReadIndex  = 0;
+
+    private volatile boolean mClosed    = false;
+    private volatile boolean mCancelled = false;
+    // Set by any thread, cleared by the consumer when it returns from a wait without a block
+    private volatile boolean mWakeUp    = false;
+
+    private volatile Thread mParkedProducer;
+    private volatile Thread mParkedConsumer;
+
+    // Metrics, each counter is written by one thread only
+    private volatile int  mMinFillLevel;
+    private volatile long mStarvationCount = 0;
+    private volatile long mFullCount       = 0;
+
+    // Read index at which the consumer found the ring empty, until it gets a block there. Consumer only.
+    private          long mEmptyIndex         = -1;
+    // Read index at which the ring is expected to run empty, see expectGap()
+    private volatile long mExpectedEmptyIndex = -1;
+
+    /**
+     * @param depth       number of blocks
+     * @param sizeInBytes size of a block
+     * @param isFloat     blocks hold floats instead of bytes
+     */
+    public PcmRingBuffer(int depth, int sizeInBytes, boolean isFloat) {
+        if (depth < 1)
+        {
+            throw new IllegalArgumentException("Invalid depth " + depth);
+        }
+
+        mBlocks = new Block[depth];
+        for (int i = 0; i < depth; i++)
+        {
+            mBlocks[i] = new Block(sizeInBytes, isFloat);
+        }
+        mMinFillLevel = depth;
+    }
+
+    /**
+     * Wait for a free block, called by the producer.
+     *
+     * @return block to fill or null if the ring was cancelled
+     */
+    public Block awaitWriteBlock() {
+        long writeIndex = mWriteIndex;
+        boolean isFull = false;
+
+        while (writeIndex - mReadIndex == mBlocks.length)
+        {
+            if (mCancelled)
+            {
+                return null;
+            }
+            if (!isFull)
+            {
+                isFull = true;
+                mFullCount++;
+            }
+            mParkedProducer = Thread.currentThread();
+            if (writeIndex - mReadIndex == mBlocks.length)
+            {
+                LockSupport.parkNanos(this, PARK_TIMEOUT_NS);
+            }
+            mParkedProducer = null;
+        }
+
+        if (mCancelled)
+        {
+            return null;
+        }
+
+        Block block = mBlocks[(int) (writeIndex % mBlocks.length)];
+        block.size = 0;
+        block.sampleRate = 0;
+        return block;
+    }
+
+    /**
+     * Publish the block returned by {@link #awaitWriteBlock()} to the consumer.
+     */
+    public void commitWrite() {
+        mWriteIndex = mWriteIndex + 1;
+
+        Thread consumer = mParkedConsumer;
+        if (consumer != null)
+        {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Wait for a filled block, called by the consumer.
+     *
+     * @return oldest block or null when the ring is closed and drained, or cancelled. Also null when the consumer was
+     * woken up by {@link #wakeUpConsumer()}, {@link #isFinished()} tells the two apart.
+     */
+    public Block awaitReadBlock() {
+        long readIndex = mReadIndex;
+
+        while (mWriteIndex == readIndex)
+        {
+            if (mClosed || mCancelled)
+            {
+                // Closed flag is set after the last commit, check once more for a late block
+                if (mCancelled || mWriteIndex == readIndex)
+                {
+                    return null;
+                }
+                break;
+            }
+            if (mWakeUp)
+            {
+                mWakeUp = false;
+                return null;
+            }
+            // Waiting for the first block is not starvation. The wait is counted when it ends, a gap that is expected
+            // may be announced while the consumer already waits.
+            if (readIndex > 0)
+            {
+                mEmptyIndex = readIndex;
+            }
+            mParkedConsumer = Thread.currentThread();
+            if (mWriteIndex == readIndex && !mClosed && !mWakeUp)
+            {
+                LockSupport.parkNanos(this, PARK_TIMEOUT_NS);
+            }
+            mParkedConsumer = null;
+        }
+
+        if (mCancelled)
+        {
+            return null;
+        }
+
+        // Waits that were cut into several calls by wake ups count once
+        if (mEmptyIndex == readIndex)
+        {
+            if (readIndex != mExpectedEmptyIndex)
+            {
+                mStarvationCount++;
+            }
+            mEmptyIndex = -1;
+        }
+
+        int fillLevel = (int) (mWriteIndex - readIndex);
+        if (fillLevel < mMinFillLevel)
+        {
+            mMinFillLevel = fillLevel;
+        }
+
+        return mBlocks[(int) (readIndex % mBlocks.length)];
+    }
+
+    /**
+     * Return the block returned by {@link #awaitReadBlock()} to the producer.
+     */
+    public void releaseRead() {
+        mReadIndex = mReadIndex + 1;
+
+        Thread producer = mParkedProducer;
+        if (producer != null)
+        {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * No more blocks will be written, the consumer drains the remaining blocks.
+     */
+    public void close() {
+        mClosed = true;
+        unparkAll();
+    }
+
+    /**
+     * Stop both sides immediately, remaining blocks are dropped.
+     */
+    public void cancel() {
+        mCancelled = true;
+        unparkAll();
+    }
+
+    /**
+     * Make the consumer's current or next wait for an empty ring return without a block, called by any thread.
+     */
+    public void wakeUpConsumer() {
+        mWakeUp = true;
+
+        Thread consumer = mParkedConsumer;
+        if (consumer != null)
+        {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * The consumer is expected to find the ring empty after the blocks written so far, like after a seek or at the end
+     * of a stream, and the wait isn't counted as starvation. Called by the producer.
+     */
+    public void expectGap() {
+        mExpectedEmptyIndex = mWriteIndex;
+    }
+
+    /**
+     * True when the consumer will get no more blocks, the ring is closed and drained, or cancelled
+     */
+    public boolean isFinished() {
+        return mCancelled || (mClosed && mWriteIndex == mReadIndex);
+    }
+
+    public int getCapacity() {
+        return mBlocks.length;
+    }
+
+    /**
+     * Number of filled blocks waiting for the consumer
+     */
+    public int getFillLevel() {
+        return (int) (mWriteIndex - mReadIndex);
+    }
+
+    /**
+     * Lowest fill level seen by the consumer when taking a block
+     */
+    public int getMinFillLevel() {
+        return mMinFillLevel;
+    }
+
+    /**
+     * Number of times the consumer found the ring empty and waited for the producer, not counting the first block and
+     * gaps announced with {@link #expectGap()}. A wait is counted when it ends.
+     */
+    public long getStarvationCount() {
+        return mStarvationCount;
+    }
+
+    /**
+     * Number of times the producer found the ring full
+     */
+    public long getFullCount() {
+        return mFullCount;
+    }
+
+    private void unparkAll() {
+        Thread producer = mParkedProducer;
+        if (producer != null)
+        {
+            LockSupport.unpark(producer);
+        }
+        Thread consumer = mParkedConsumer;
+        if (consumer != null)
+        {
+            LockSupport.unpark(consumer);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.arbuz.mp3sonicplayer.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for processed PCM, like an audio device or a file
+ */
+public interface PcmSink {
+
+    /**
+     * Write 16-bit PCM in native byte order, from the buffer's position. The position is advanced by the written bytes.
+     */
+    void write(ByteBuffer audioData, int sizeInBytes);
+
+    /**
+     * Write float PCM, values between -1 and 1
+     */
+    void write(float[] audioData, int sizeInFloats);
+}
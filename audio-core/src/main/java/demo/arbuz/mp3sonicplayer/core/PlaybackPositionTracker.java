@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package demo.arbuz.mp3sonicplayer.core;
+
+/**
+ * Maps frames played by the output back to the position in the source stream, through a time stretcher that holds
+ * samples and plays them at another speed.
+ * <p>
+ * The device tells what goes in ({@link #onInput(int)}) and what goes out at which speed ({@link #onOutput(int, double)}).
+ * Output frames are mapped to source frames with anchors that are kept when the speed changes, so a position that is
+ * still in the output buffer is mapped with the speed it was processed at. Samples the stretcher holds are not played
+ * yet, so they don't move the position.
+ * <p>
+ * Recording and queries don't allocate. Methods are synchronized, the lock is held for a few array accesses.
+ */
+public class PlaybackPositionTracker {
+
+    // Speed changes kept, older ones have been played long ago
+    private static final int ANCHOR_COUNT = 32;
+    // Jumps in the stream kept, like seeks, track changes and cut pauses
+    private static final int SEGMENT_COUNT = 32;
+
+    // Output frame, source frame (of all input) and speed where each anchor starts
+    private final long[]   mAnchorOutput = new long[ANCHOR_COUNT];
+    private final double[] mAnchorSource = new double[ANCHOR_COUNT];
+    private final double[] mAnchorSpeed  = new double[ANCHOR_COUNT];
+    private       int      mAnchorCount  = 0;
+    private       int      mLastAnchor   = -1;
+
+    // Input frame and stream position where each segment starts
+    private final long[] mSegmentInput  = new long[SEGMENT_COUNT];
+    private final long[] mSegmentStream = new long[SEGMENT_COUNT];
+    private       int    mSegmentCount  = 1;
+    private       int    mLastSegment   = 0;
+
+    // Frames given to the stretcher
+    private long   mInputFrames  = 0;
+    // Frames written to the output
+    private long   mOutputFrames = 0;
+    // Input frames the output stands for
+    private double mSourceFrames = 0;
+
+    public synchronized void onInput(int frames) {
+        mInputFrames += frames;
+    }
+
+    /**
+     * @param speed source frames per output frame
+     */
+    public synchronized void onOutput(int frames, double speed) {
+        if (mLastAnchor < 0 || mAnchorSpeed[mLastAnchor] != speed)
+        {
+            mLastAnchor = (mLastAnchor + 1) % ANCHOR_COUNT;
+            mAnchorOutput[mLastAnchor] = mOutputFrames;
+            mAnchorSource[mLastAnchor] = mSourceFrames;
+            mAnchorSpeed[mLastAnchor] = speed;
+            mAnchorCount = Math.min(mAnchorCount + 1, ANCHOR_COUNT);
+        }
+
+        mOutputFrames += frames;
+        mSourceFrames += frames * speed;
+    }
+
+    /**
+     * Output was flushed and the stretcher dropped what it held, the next output frame is outputPosition
+     */
+    public synchronized void onFlush(long outputPosition) {
+        mOutputFrames = outputPosition;
+        mSourceFrames = mInputFrames;
+        mAnchorCount = 0;
+        mLastAnchor = -1;
+    }
+
+    /**
+     * The next input frame is streamFrame of the stream, after a seek or when the next stream starts
+     */
+    public synchronized void markStreamPosition(long streamFrame) {
+        mLastSegment = (mLastSegment + 1) % SEGMENT_COUNT;
+        mSegmentInput[mLastSegment] = mInputFrames;
+        mSegmentStream[mLastSegment] = streamFrame;
+        mSegmentCount = Math.min(mSegmentCount + 1, SEGMENT_COUNT);
+    }
+
+    public synchronized long getOutputFrames() {
+        return mOutputFrames;
+    }
+
+    /**
+     * @param playedFrames output frames played
+     * @return stream position of the frame being played
+     */
+    public synchronized long getStreamFrame(long playedFrames) {
+        double source = mSourceFrames;
+        if (playedFrames < mOutputFrames)
+        {
+            for (int i = 0; i < mAnchorCount; i++)
+            {
+                int anchor = (mLastAnchor - i + ANCHOR_COUNT) % ANCHOR_COUNT;
+                if (mAnchorOutput[anchor] <= playedFrames || i == mAnchorCount - 1)
+                {
+                    long output = Math.max(playedFrames, mAnchorOutput[anchor]);
+                    source = Math.min(source, mAnchorSource[anchor] + (output - mAnchorOutput[anchor]) * mAnchorSpeed[anchor]);
+                    break;
+                }
+            }
+        }
+
+        long sourceFrame = (long) source;
+        for (int i = 0; i < mSegmentCount; i++)
+        {
+            int segment = (mLastSegment - i + SEGMENT_COUNT) % SEGMENT_COUNT;
+            if (mSegmentInput[segment] <= sourceFrame || i == mSegmentCount - 1)
+            {
+                return mSegmentStream[segment] + Math.max(0, sourceFrame - mSegmentInput[segment]);
+            }
+        }
+        return sourceFrame;
+    }
+}
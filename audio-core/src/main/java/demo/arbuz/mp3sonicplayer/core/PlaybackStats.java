@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing of the playback pipeline: how long each stage takes per block and how much faster than real time the
+ * decoder and Sonic run.
+ * <p>
+ * Stages record into it from their own threads. Recording doesn't lock or allocate, so it can stay on in production.
+ */
+public class PlaybackStats {
+
+    private final LatencyHistogram mCodecDequeue    = new LatencyHistogram();
+    private final LatencyHistogram mSonicProcessing = new LatencyHistogram();
+    private final LatencyHistogram mTrackWrite      = new LatencyHistogram();
+
+    // Audio time produced and the time it took, per stage
+    private final AtomicLong mDecodedUs    = new AtomicLong();
+    private final AtomicLong mDecodeNs     = new AtomicLong();
+    private final AtomicLong mProcessedUs  = new AtomicLong();
+    private final AtomicLong mProcessingNs = new AtomicLong();
+
+    private final AtomicLong mUnderruns = new AtomicLong();
+
+    private volatile PcmRingBuffer mRingBuffer;
+
+    /**
+     * Time the decoding thread waits for the codec to return an output buffer
+     */
+    public LatencyHistogram getCodecDequeueHistogram() {
+        return mCodecDequeue;
+    }
+
+    /**
+     * Time Sonic takes to process a block, without the time its output waits for the device
+     */
+    public LatencyHistogram getSonicProcessingHistogram() {
+        return mSonicProcessing;
+    }
+
+    /**
+     * Time a write to AudioTrack blocks
+     */
+    public LatencyHistogram getTrackWriteHistogram() {
+        return mTrackWrite;
+    }
+
+    public void recordDecodedBlock(int frames, int sampleRate, long durationNs) {
+        mDecodedUs.addAndGet(frames * 1000000L / sampleRate);
+        mDecodeNs.addAndGet(durationNs);
+    }
+
+    public void recordProcessedBlock(int frames, int sampleRate, long durationNs) {
+        mSonicProcessing.record(durationNs);
+        mProcessedUs.addAndGet(frames * 1000000L / sampleRate);
+        mProcessingNs.addAndGet(durationNs);
+    }
+
+    /**
+     * Audio time decoded per time spent decoding, 10 means ten times faster than playback
+     */
+    public float getDecodeRealTimeFactor() {
+        return realTimeFactor(mDecodedUs.get(), mDecodeNs.get());
+    }
+
+    /**
+     * Audio time passed through Sonic per time spent in Sonic
+     */
+    public float getProcessingRealTimeFactor() {
+        return realTimeFactor(mProcessedUs.get(), mProcessingNs.get());
+    }
+
+    /**
+     * Ring buffer between decoder and device, the buffer metrics are read from it
+     */
+    public void setRingBuffer(PcmRingBuffer ringBuffer) {
+        mRingBuffer = ringBuffer;
+    }
+
+    /**
+     * Add underruns the audio device reported
+     */
+    public void recordUnderruns(int count) {
+        mUnderruns.addAndGet(count);
+    }
+
+    /**
+     * Number of times the audio device ran out of data while playing, each is an audible glitch. Pauses aren't
+     * counted. Reported by the device from Android 7.0 on, 0 before.
+     */
+    public long getUnderrunCount() {
+        return mUnderruns.get();
+    }
+
+    /**
+     * Number of times the audio thread found the ring buffer empty and waited for the decoder, while data was expected.
+     * The device still had its own buffer to play, it is an underrun only when {@link #getUnderrunCount()} grows too.
+     */
+    public long getRingStarvationCount() {
+        PcmRingBuffer ringBuffer = mRingBuffer;
+        return ringBuffer == null ? 0 : ringBuffer.getStarvationCount();
+    }
+
+    public int getBufferFillLevel() {
+        PcmRingBuffer ringBuffer = mRingBuffer;
+        return ringBuffer == null ? 0 : ringBuffer.getFillLevel();
+    }
+
+    public int getBufferCapacity() {
+        PcmRingBuffer ringBuffer = mRingBuffer;
+        return ringBuffer == null ? 0 : ringBuffer.getCapacity();
+    }
+
+    public void reset() {
+        mCodecDequeue.reset();
+        mSonicProcessing.reset();
+        mTrackWrite.reset();
+        mDecodedUs.set(0);
+        mDecodeNs.set(0);
+        mProcessedUs.set(0);
+        mProcessingNs.set(0);
+        mUnderruns.set(0);
+        mRingBuffer = null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "dequeue p50/p99 %d/%dus, sonic p50/p99 %d/%dus, write p50/p99 %d/%dus, underruns %d, " +
+                        "ring starvations %d, decode %.1fx, sonic %.1fx",
+                mCodecDequeue.getPercentileNs(50) / 1000, mCodecDequeue.getPercentileNs(99) / 1000,
+                mSonicProcessing.getPercentileNs(50) / 1000, mSonicProcessing.getPercentileNs(99) / 1000,
+                mTrackWrite.getPercentileNs(50) / 1000, mTrackWrite.getPercentileNs(99) / 1000,
+                getUnderrunCount(), getRingStarvationCount(), getDecodeRealTimeFactor(), getProcessingRealTimeFactor());
+    }
+
+    private static float realTimeFactor(long audioUs, long elapsedNs) {
+        return elapsedNs == 0 ? 0 : audioUs * 1000f / elapsedNs;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package demo.arbuz.mp3sonicplayer.core;
+
+/**
+ * Steps Sonic's quality down when processing takes too much of the real-time budget, and back up when there is
+ * headroom.
+ * <p>
+ * The audio thread records how long Sonic took for each block against how long the block plays. The load, processing
+ * time over play time, is smoothed over blocks. The level steps down when the load stays over the high mark and up
+ * when it stays under the low mark, for a while of play time. The gap between the marks and the wait keep the level
+ * from flapping. When the load sends the level back down soon after a step up, the next step up waits twice as long,
+ * so a device that can't afford a level stops trying it.
+ * <p>
+ * Recording is done by one thread, the getters can be called from any thread.
+ */
+public class QualityGovernor {
+
+    // Levels, each one costs more than the one below
+    public static final int LEVEL_LOW    = 0;
+    public static final int LEVEL_NORMAL = 1;
+    public static final int LEVEL_HIGH   = 2;
+
+    public static final float DEFAULT_HIGH_LOAD = 0.4f;
+    public static final float DEFAULT_LOW_LOAD  = 0.1f;
+
+    // Weight of each block in the smoothed load
+    private static final float SMOOTHING = 0.1f;
+
+    // Play time the load has to stay past a mark before the level changes
+    private static final long STEP_DOWN_WAIT_US   = 500_000;
+    private static final long STEP_UP_WAIT_US     = 5_000_000;
+    private static final long MAX_STEP_UP_WAIT_US = 120_000_000;
+
+    public interface Listener {
+
+        /**
+         * Called on the audio thread when the level changes
+         *
+         * @param load smoothed load that caused the change, processing time over play time
+         */
+        void onLevelChanged(int oldLevel, int newLevel, float load);
+    }
+
+    private final float mHighLoad;
+    private final float mLowLoad;
+
+    private volatile int      mLevel;
+    private volatile float    mLoad = 0;
+    private volatile Listener mListener;
+
+    // Play time the load has been over the high mark or under the low mark
+    private long mOverUs  = 0;
+    private long mUnderUs = 0;
+
+    private long mStepUpWaitUs = STEP_UP_WAIT_US;
+    // Play time since the last step up, -1 after a step down
+    private long mSinceStepUpUs = -1;
+
+    public QualityGovernor() {
+        this(LEVEL_NORMAL, DEFAULT_HIGH_LOAD, DEFAULT_LOW_LOAD);
+    }
+
+    /**
+     * @param highLoad load over which the level steps down, 1 means Sonic takes as long as the audio plays
+     * @param lowLoad  load under which the level steps up, keep it well under the high load divided by how much
+     *                 more the next level costs
+     */
+    public QualityGovernor(int initialLevel, float highLoad, float lowLoad) {
+        if (initialLevel < LEVEL_LOW || initialLevel > LEVEL_HIGH)
+        {
+            throw new IllegalArgumentException("Invalid level " + initialLevel);
+        }
+        if (lowLoad <= 0 || highLoad <= lowLoad)
+        {
+            throw new IllegalArgumentException("Invalid loads " + lowLoad + " - " + highLoad);
+        }
+
+        mLevel = initialLevel;
+        mHighLoad = highLoad;
+        mLowLoad = lowLoad;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Smoothed processing time over play time
+     */
+    public float getLoad() {
+        return mLoad;
+    }
+
+    /**
+     * Record a block processed at the current level
+     *
+     * @param frames      input frames of the block
+     * @param speedFactor input frames played per output frame, the block plays for frames / speedFactor
+     * @return true if the level changed, the caller applies the new level
+     */
+    public boolean recordBlock(int frames, int sampleRate, double speedFactor, long processingNs) {
+        long playUs = (long) (frames * 1000000L / sampleRate / speedFactor);
+        if (playUs <= 0)
+        {
+            return false;
+        }
+
+        float load = mLoad + SMOOTHING * (processingNs / 1000f / playUs - mLoad);
+        mLoad = load;
+
+        if (mSinceStepUpUs >= 0)
+        {
+            mSinceStepUpUs += playUs;
+        }
+        if (load > mHighLoad)
+        {
+            mOverUs += playUs;
+            mUnderUs = 0;
+        }
+        else if (load < mLowLoad)
+        {
+            mUnderUs += playUs;
+            mOverUs = 0;
+        }
+        else
+        {
+            mOverUs = 0;
+            mUnderUs = 0;
+        }
+
+        int level = mLevel;
+        if (mOverUs >= STEP_DOWN_WAIT_US && level > LEVEL_LOW)
+        {
+            if (mSinceStepUpUs >= 0 && mSinceStepUpUs < mStepUpWaitUs)
+            {
+                // The level up was too much, try it less often
+                mStepUpWaitUs = Math.min(2 * mStepUpWaitUs, MAX_STEP_UP_WAIT_US);
+            }
+            mSinceStepUpUs = -1;
+            changeLevel(level, level - 1, load);
+            return true;
+        }
+        if (mUnderUs >= mStepUpWaitUs && level < LEVEL_HIGH)
+        {
+            mSinceStepUpUs = 0;
+            changeLevel(level, level + 1, load);
+            return true;
+        }
+        return false;
+    }
+
+    private void changeLevel(int oldLevel, int newLevel, float load) {
+        mLevel = newLevel;
+        mOverUs = 0;
+        mUnderUs = 0;
+
+        Listener listener = mListener;
+        if (listener != null)
+        {
+            listener.onLevelChanged(oldLevel, newLevel, load);
+        }
+    }
+}
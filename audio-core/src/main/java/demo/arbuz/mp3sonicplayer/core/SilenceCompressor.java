@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package demo.arbuz.mp3sonicplayer.core;
+
+/**
+ * Finds long pauses in decoded PCM and tells which frames to drop, so speech plays with shorter pauses and the time
+ * stretcher doesn't process silence.
+ * <p>
+ * The PCM is split into windows of {@link #WINDOW_MS} and the RMS of each window is compared with two thresholds. A
+ * window under the silence threshold starts a pause, a window over the speech threshold ends it, windows between the
+ * two keep the state, so noise around one level doesn't toggle it. The first hangover of each pause is kept and the
+ * rest of it is dropped, until speech comes back.
+ * <p>
+ * The caller asks for runs of frames with {@link #nextRun(byte[], int, int)} and skips the dropped runs, moving its
+ * stream position past them so positions still map to the source. Processing doesn't allocate and is done by one
+ * thread, the time saved can be read from any thread.
+ */
+public class SilenceCompressor {
+
+    public static final float DEFAULT_SILENCE_THRESHOLD_DB = -45;
+    public static final float DEFAULT_SPEECH_THRESHOLD_DB  = -40;
+    public static final int   DEFAULT_HANGOVER_MS          = 300;
+
+    // Length of the windows the RMS is measured on
+    public static final int WINDOW_MS = 10;
+
+    // Mean square of the thresholds, full scale is 1
+    private final float mSilenceLevel;
+    private final float mSpeechLevel;
+    private final int   mHangoverMs;
+
+    private int mSampleRate;
+    private int mChannels;
+    private int mWindowFrames;
+    private int mHangoverFrames;
+
+    private boolean mIsSilent = false;
+    // Frames of the current pause
+    private long    mSilentFrames = 0;
+
+    // Decision of the window that ended the last run, it starts the next run
+    private int     mHeldFrames = 0;
+    private boolean mHeldKeep;
+
+    private volatile long mRemovedFrames = 0;
+    private volatile long mTimeSavedUs   = 0;
+
+    public SilenceCompressor() {
+        this(DEFAULT_SILENCE_THRESHOLD_DB, DEFAULT_SPEECH_THRESHOLD_DB, DEFAULT_HANGOVER_MS);
+    }
+
+    /**
+     * @param silenceThresholdDb RMS under which a window is silent, in dB of full scale
+     * @param speechThresholdDb  RMS over which speech starts again, at least the silence threshold
+     * @param hangoverMs         silence kept at the start of each pause
+     */
+    public SilenceCompressor(float silenceThresholdDb, float speechThresholdDb, int hangoverMs) {
+        if (silenceThresholdDb >= 0 || speechThresholdDb < silenceThresholdDb)
+        {
+            throw new IllegalArgumentException("Invalid thresholds " + silenceThresholdDb + " - " + speechThresholdDb);
+        }
+        if (hangoverMs < 0)
+        {
+            throw new IllegalArgumentException("Invalid hangover " + hangoverMs);
+        }
+
+        mSilenceLevel = (float) Math.pow(10, silenceThresholdDb / 10);
+        mSpeechLevel = (float) Math.pow(10, speechThresholdDb / 10);
+        mHangoverMs = hangoverMs;
+    }
+
+    /**
+     * Start a stream, the previous one's pause is not continued
+     */
+    public void start(int sampleRate, int channels) {
+        mChannels = channels;
+        setSampleRate(sampleRate);
+        reset();
+    }
+
+    /**
+     * The stream's rate changed, following frames are measured with it
+     */
+    public void setSampleRate(int sampleRate) {
+        mSampleRate = sampleRate;
+        mWindowFrames = Math.max(1, sampleRate * WINDOW_MS / 1000);
+        mHangoverFrames = (int) ((long) sampleRate * mHangoverMs / 1000);
+    }
+
+    /**
+     * The stream jumped, after a seek
+     */
+    public void reset() {
+        mIsSilent = false;
+        mSilentFrames = 0;
+        mHeldFrames = 0;
+    }
+
+    /**
+     * Frames dropped since the compressor was created
+     */
+    public long getRemovedFrames() {
+        return mRemovedFrames;
+    }
+
+    /**
+     * Source time dropped since the compressor was created, listening time saved is this divided by the speed
+     */
+    public long getTimeSavedUs() {
+        return mTimeSavedUs;
+    }
+
+    /**
+     * Next run of 16-bit frames to keep or drop, starting at frameOffset. Call again from the end of the run, with the
+     * same buffer, until all frames are taken.
+     *
+     * @param frames frames in the buffer, from its start
+     * @return number of frames to keep, or minus the number of frames to drop
+     */
+    public int nextRun(byte[] data, int frameOffset, int frames) {
+        int run = 0;
+        boolean isKept = true;
+        while (frameOffset + run < frames)
+        {
+            int windowFrames;
+            boolean isWindowKept;
+            if (mHeldFrames > 0)
+            {
+                windowFrames = mHeldFrames;
+                isWindowKept = mHeldKeep;
+                mHeldFrames = 0;
+            }
+            else
+            {
+                windowFrames = getWindowFrames(frames - frameOffset - run);
+                isWindowKept = update(getMeanSquare(data, frameOffset + run, windowFrames), windowFrames);
+            }
+
+            if (run > 0 && isWindowKept != isKept)
+            {
+                holdWindow(windowFrames, isWindowKept);
+                break;
+            }
+            isKept = isWindowKept;
+            run += windowFrames;
+        }
+        return finishRun(run, isKept);
+    }
+
+    /**
+     * Same as {@link #nextRun(byte[], int, int)}, for float frames
+     */
+    public int nextRun(float[] data, int frameOffset, int frames) {
+        int run = 0;
+        boolean isKept = true;
+        while (frameOffset + run < frames)
+        {
+            int windowFrames;
+            boolean isWindowKept;
+            if (mHeldFrames > 0)
+            {
+                windowFrames = mHeldFrames;
+                isWindowKept = mHeldKeep;
+                mHeldFrames = 0;
+            }
+            else
+            {
+                windowFrames = getWindowFrames(frames - frameOffset - run);
+                isWindowKept = update(getMeanSquare(data, frameOffset + run, windowFrames), windowFrames);
+            }
+
+            if (run > 0 && isWindowKept != isKept)
+            {
+                holdWindow(windowFrames, isWindowKept);
+                break;
+            }
+            isKept = isWindowKept;
+            run += windowFrames;
+        }
+        return finishRun(run, isKept);
+    }
+
+    // A short rest of the buffer joins the last window, so no window is too short to measure
+    private int getWindowFrames(int remainingFrames) {
+        return remainingFrames < mWindowFrames + mWindowFrames / 2 ? remainingFrames : mWindowFrames;
+    }
+
+    private void holdWindow(int windowFrames, boolean isKept) {
+        mHeldFrames = windowFrames;
+        mHeldKeep = isKept;
+    }
+
+    private int finishRun(int run, boolean isKept) {
+        if (isKept)
+        {
+            return run;
+        }
+
+        mRemovedFrames += run;
+        mTimeSavedUs += (long) run * 1000000 / mSampleRate;
+        return -run;
+    }
+
+    /**
+     * Move the state past a window
+     *
+     * @return true if the window is kept
+     */
+    private boolean update(float meanSquare, int windowFrames) {
+        if (mIsSilent ? meanSquare > mSpeechLevel : meanSquare >= mSilenceLevel)
+        {
+            mIsSilent = false;
+            mSilentFrames = 0;
+            return true;
+        }
+
+        // Keep the window that reaches past the hangover, whole windows are dropped after it
+        boolean isKept = !mIsSilent || mSilentFrames < mHangoverFrames;
+        mIsSilent = true;
+        mSilentFrames += windowFrames;
+        return isKept;
+    }
+
+    // Android devices are little-endian
+    private float getMeanSquare(byte[] data, int frameOffset, int frames) {
+        int start = frameOffset * mChannels * 2;
+        int end = start + frames * mChannels * 2;
+        long sum = 0;
+        for (int i = start; i < end; i += 2)
+        {
+            int sample = (short) ((data[i] & 0xFF) | (data[i + 1] << 8));
+            sum += sample * sample;
+        }
+        return sum / (32768f * 32768f * frames * mChannels);
+    }
+
+    private float getMeanSquare(float[] data, int frameOffset, int frames) {
+        int start = frameOffset * mChannels;
+        int end = start + frames * mChannels;
+        float sum = 0;
+        for (int i = start; i < end; i++)
+        {
+            sum += data[i] * data[i];
+        }
+        return sum / (frames * mChannels);
+    }
+}
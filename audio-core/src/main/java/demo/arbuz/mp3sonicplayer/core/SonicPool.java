@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.arbuz.mp3sonicplayer.core;
+
+import org.vinuxproject.sonic.Sonic;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reuses native Sonic streams, keyed by sample rate and number of channels.
+ * <p>
+ * Creating a stream allocates its native buffers, which adds up when many short jobs run. A released stream is reset
+ * by flushing and draining it and goes back to the pool. Thread-safe.
+ */
+public class SonicPool {
+
+    private static final int DRAIN_BUFFER_SIZE = 4096;
+
+    private final int mMaxIdlePerFormat;
+
+    private final Map<Long, ArrayDeque<Sonic>> mIdleStreams = new HashMap<>();
+    private final Map<Sonic, Long>             mFormats     = new HashMap<>();
+
+    private final ThreadLocal<short[]> mDrainBuffer = new ThreadLocal<short[]>() {
+        @Override
+        protected short[] initialValue() {
+            return new short[DRAIN_BUFFER_SIZE];
+        }
+    };
+
+    private int mCreatedCount = 0;
+    private int mReusedCount  = 0;
+
+    /**
+     * @param maxIdlePerFormat idle streams kept for each format, more are closed when released
+     */
+    public SonicPool(int maxIdlePerFormat) {
+        mMaxIdlePerFormat = maxIdlePerFormat;
+    }
+
+    /**
+     * Get an idle stream of the format or create one. Speed, pitch, rate and volume are 1, quality is 0, the pitch is
+     * found with AMDF in the default range.
+     */
+    public Sonic acquire(int sampleRate, int numOfChannels) {
+        Long format = format(sampleRate, numOfChannels);
+        Sonic sonic;
+
+        synchronized (this)
+        {
+            ArrayDeque<Sonic> idleStreams = mIdleStreams.get(format);
+            sonic = idleStreams != null ? idleStreams.poll() : null;
+            if (sonic != null)
+            {
+                mReusedCount++;
+            }
+            else
+            {
+                mCreatedCount++;
+            }
+        }
+
+        if (sonic == null)
+        {
+            sonic = new Sonic(sampleRate, numOfChannels);
+            synchronized (this)
+            {
+                mFormats.put(sonic, format);
+            }
+        }
+        return sonic;
+    }
+
+    /**
+     * Return a stream taken with {@link #acquire(int, int)}, whatever it still holds is discarded
+     */
+    public void release(Sonic sonic) {
+        Long format;
+        synchronized (this)
+        {
+            format = mFormats.get(sonic);
+        }
+        if (format == null)
+        {
+            throw new IllegalArgumentException("Stream is not from this pool");
+        }
+
+        reset(sonic);
+
+        synchronized (this)
+        {
+            ArrayDeque<Sonic> idleStreams = mIdleStreams.get(format);
+            if (idleStreams == null)
+            {
+                idleStreams = new ArrayDeque<>();
+                mIdleStreams.put(format, idleStreams);
+            }
+            if (idleStreams.size() < mMaxIdlePerFormat)
+            {
+                idleStreams.add(sonic);
+                return;
+            }
+            mFormats.remove(sonic);
+        }
+        sonic.close();
+    }
+
+    /**
+     * Close all idle streams, streams in use go back to the pool when released
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<Sonic> idleStreams : mIdleStreams.values())
+        {
+            for (Sonic sonic : idleStreams)
+            {
+                mFormats.remove(sonic);
+                sonic.close();
+            }
+        }
+        mIdleStreams.clear();
+    }
+
+    /**
+     * Number of native streams created, a pool that works well stops creating once all workers have a stream
+     */
+    public synchronized int getCreatedCount() {
+        return mCreatedCount;
+    }
+
+    public synchronized int getReusedCount() {
+        return mReusedCount;
+    }
+
+    private void reset(Sonic sonic) {
+        // Flush what is buffered and throw the output away
+        sonic.flush();
+        short[] drainBuffer = mDrainBuffer.get();
+        while (sonic.availableSamples() > 0)
+        {
+            sonic.receiveShorts(drainBuffer, drainBuffer.length);
+        }
+
+        sonic.setSpeed(1.0f);
+        sonic.setPitch(1.0f);
+        sonic.setRate(1.0f);
+        sonic.setVolume(1.0f);
+        sonic.setQuality(0);
+        sonic.setChordPitch(false);
+        sonic.setPitchMethod(Sonic.PITCH_METHOD_AMDF);
+        // Changing the range reallocates the stream's buffers, so only when it was changed
+        if (sonic.getMinPitch() != Sonic.DEFAULT_MIN_PITCH || sonic.getMaxPitch() != Sonic.DEFAULT_MAX_PITCH)
+        {
+            sonic.setPitchRange(Sonic.DEFAULT_MIN_PITCH, Sonic.DEFAULT_MAX_PITCH);
+        }
+    }
+
+    private static Long format(int sampleRate, int numOfChannels) {
+        return ((long) sampleRate << 32) | numOfChannels;
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.arbuz.mp3sonicplayer.core;
+
+import org.vinuxproject.sonic.Sonic;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Passes PCM through a Sonic stream and writes the modified PCM to a {@link PcmSink}.
+ * <p>
+ * Platform independent, used by the player's audio device and can run anywhere libsonic is available.
+ * <p>
+ * Buffers are allocated once, writing doesn't allocate. Input of any size is passed to Sonic in chunks and output is
+ * drained in as many reads as needed, the output buffer is sized to take the output of a chunk at the slowest common
+ * speed in one read. At speed, pitch and rate of 1 Sonic is bypassed and the input goes straight to the sink.
+ */
+public class SonicProcessor {
+
+    // Input bytes passed to Sonic at once
+    private static final int INPUT_CHUNK_SIZE = 8 * 1024;
+
+    // Slowest speed times rate the output buffer is sized for, slower speeds take more reads
+    private static final float MIN_OUTPUT_FACTOR = 0.25f;
+
+    // Pitch range searched at the low quality level, fewer periods to compare but still most voices
+    private static final int LOW_LEVEL_MIN_PITCH = 80;
+    private static final int LOW_LEVEL_MAX_PITCH = 300;
+
+    // Sample rate from which the autocorrelation pitch search costs less than AMDF at quality 1
+    private static final int AUTOCORRELATION_MIN_SAMPLE_RATE = 44100;
+
+    private final PcmSink mSink;
+
+    private Sonic mSonic;
+
+    private int mSampleRate;
+    private int mQualityLevel = QualityGovernor.LEVEL_NORMAL;
+
+    // Direct buffers are shared with native code without copying
+    private ByteBuffer mInputSamples;
+    private ByteBuffer mModifiedSamples;
+
+    private float mModifiedFloatSamples[];
+
+    // Parameters are kept here too, to check for unity without calling native code
+    private volatile float mSpeed = 1.0f;
+    private volatile float mPitch = 1.0f;
+    private volatile float mRate  = 1.0f;
+
+    // True while Sonic is bypassed, it has nothing buffered then
+    private boolean mIsBypassed = false;
+
+    /**
+     * @param isFloat process float PCM instead of 16-bit
+     */
+    public SonicProcessor(int sampleRate, int numOfChannels, boolean isFloat, PcmSink sink) {
+        mSink = sink;
+        mSonic = new Sonic(sampleRate, numOfChannels);
+        mSampleRate = sampleRate;
+
+        // Output of a chunk, plus what Sonic may still hold: input, pitch and output buffers of two periods each
+        int sampleSize = isFloat ? 4 : 2;
+        int heldBytes = 3 * 2 * (sampleRate / Sonic.DEFAULT_MIN_PITCH) * numOfChannels * sampleSize;
+        int outputSize = (int) (INPUT_CHUNK_SIZE / MIN_OUTPUT_FACTOR) + heldBytes;
+
+        if (isFloat)
+        {
+            mModifiedFloatSamples = new float[outputSize / 4];
+        }
+        else
+        {
+            mInputSamples = allocateDirect(INPUT_CHUNK_SIZE - INPUT_CHUNK_SIZE % (2 * numOfChannels));
+            mModifiedSamples = allocateDirect(outputSize);
+        }
+
+        setSpeed(1.0f);
+        setPitch(1.0f);
+        setRate(1.0f);
+    }
+
+    public void setSpeed(float speed) {
+        checkState();
+
+        mSonic.setSpeed(speed);
+        mSpeed = speed;
+    }
+
+    public void setPitch(float pitch) {
+        checkState();
+
+        mSonic.setPitch(pitch);
+        mPitch = pitch;
+    }
+
+    public void setRate(float rate) {
+        checkState();
+
+        mSonic.setRate(rate);
+        mRate = rate;
+    }
+
+    /**
+     * Samples Sonic holds are processed and written at the old rate first, changing the rate would drop them
+     */
+    public void setSampleRate(int sampleRate) {
+        checkState();
+
+        flush();
+        mSonic.setSampleRate(sampleRate);
+        mSampleRate = sampleRate;
+        applyQualityLevel(mQualityLevel);
+    }
+
+    /**
+     * Set how hard Sonic looks for the pitch period, one of the {@link QualityGovernor} levels. Normal is Sonic's
+     * default. High searches at full resolution, low searches a narrower pitch range. Samples Sonic holds are written
+     * first when the range changes, changing it would drop them.
+     */
+    public void setQualityLevel(int level) {
+        checkState();
+
+        if (level < QualityGovernor.LEVEL_LOW || level > QualityGovernor.LEVEL_HIGH)
+        {
+            throw new IllegalArgumentException("Invalid quality level " + level);
+        }
+        applyQualityLevel(level);
+        mQualityLevel = level;
+    }
+
+    public int getQualityLevel() {
+        checkState();
+
+        return mQualityLevel;
+    }
+
+    public float getSpeed() {
+        checkState();
+
+        return mSpeed;
+    }
+
+    public float getPitch() {
+        checkState();
+
+        return mPitch;
+    }
+
+    public float getRate() {
+        checkState();
+
+        return mRate;
+    }
+
+    /**
+     * True if the last write went straight to the sink
+     */
+    public boolean isBypassed() {
+        checkState();
+
+        return mIsBypassed;
+    }
+
+    public void write(byte[] audioData, int sizeInBytes) {
+        checkState();
+
+        boolean isBypassed = updateBypass();
+
+        for (int offset = 0; offset < sizeInBytes; offset += mInputSamples.capacity())
+        {
+            int length = Math.min(mInputSamples.capacity(), sizeInBytes - offset);
+            mInputSamples.clear();
+            mInputSamples.put(audioData, offset, length);
+            mInputSamples.flip();
+            writeChunk(mInputSamples, length, isBypassed);
+        }
+    }
+
+    /**
+     * Write 16-bit PCM in native byte order from the buffer's position, the position is advanced by sizeInBytes. A
+     * direct buffer is read by Sonic in place, other buffers are copied in chunks like arrays.
+     */
+    public void write(ByteBuffer audioData, int sizeInBytes) {
+        checkState();
+
+        boolean isBypassed = updateBypass();
+
+        int end = audioData.position() + sizeInBytes;
+        while (audioData.position() < end)
+        {
+            int position = audioData.position();
+            int length = Math.min(mInputSamples.capacity(), end - position);
+            if (audioData.isDirect())
+            {
+                writeChunk(audioData, length, isBypassed);
+            }
+            else
+            {
+                ByteBuffer chunk = audioData.duplicate();
+                chunk.limit(position + length);
+                mInputSamples.clear();
+                mInputSamples.put(chunk);
+                mInputSamples.flip();
+                writeChunk(mInputSamples, length, isBypassed);
+            }
+            // The sink may leave a bypassed chunk's position anywhere
+            audioData.position(position + length);
+        }
+    }
+
+    public void write(float[] audioData, int sizeInFloats) {
+        checkState();
+
+        if (updateBypass())
+        {
+            mSink.write(audioData, sizeInFloats);
+            return;
+        }
+
+        // Float samples go through Sonic without converting to 16-bit on the Java side
+        if (sizeInFloats > 0)
+        {
+            mSonic.putFloats(audioData, sizeInFloats);
+        }
+
+        drain();
+    }
+
+    /**
+     * Process whatever Sonic has buffered and write it to the sink, use at end of stream
+     */
+    public void flush() {
+        checkState();
+
+        mSonic.flush();
+        drain();
+    }
+
+    /**
+     * Drop whatever Sonic has buffered without writing it, use when the input jumps to another position
+     */
+    public void discard() {
+        checkState();
+
+        if (mIsBypassed)
+        {
+            return;
+        }
+
+        mSonic.flush();
+        if (mModifiedFloatSamples != null)
+        {
+            while (mSonic.receiveFloats(mModifiedFloatSamples, mModifiedFloatSamples.length) > 0)
+            {
+                // Dropped
+            }
+        }
+        else
+        {
+            while (mSonic.availableBytes() > 0)
+            {
+                mModifiedSamples.clear();
+                mSonic.receiveBuffer(mModifiedSamples, mModifiedSamples.capacity());
+            }
+        }
+    }
+
+    /**
+     * Close the stream and free its native memory, buffered samples are lost
+     */
+    public void release() {
+        checkState();
+
+        mSonic.close();
+        mSonic = null;
+        mInputSamples = null;
+        mModifiedSamples = null;
+        mModifiedFloatSamples = null;
+    }
+
+    /**
+     * Start or stop bypassing Sonic when parameters reach or leave unity
+     *
+     * @return true if the block should go straight to the sink
+     */
+    private boolean updateBypass() {
+        boolean isUnity = mSpeed == 1.0f && mPitch == 1.0f && mRate == 1.0f;
+        if (isUnity && !mIsBypassed)
+        {
+            // Play what Sonic holds first, so samples stay in order
+            mSonic.flush();
+            drain();
+        }
+        mIsBypassed = isUnity;
+        return isUnity;
+    }
+
+    /**
+     * @param input direct buffer, read from its position
+     */
+    private void writeChunk(ByteBuffer input, int length, boolean isBypassed) {
+        if (isBypassed)
+        {
+            mSink.write(input, length);
+        }
+        else
+        {
+            // Write input and read output in one native call
+            mModifiedSamples.clear();
+            int received = mSonic.process(input, length, mModifiedSamples);
+            writeModifiedSamples(received);
+
+            drain();
+        }
+    }
+
+    private void applyQualityLevel(int level) {
+        int minPitch = level == QualityGovernor.LEVEL_LOW ? LOW_LEVEL_MIN_PITCH : Sonic.DEFAULT_MIN_PITCH;
+        int maxPitch = level == QualityGovernor.LEVEL_LOW ? LOW_LEVEL_MAX_PITCH : Sonic.DEFAULT_MAX_PITCH;
+        if (minPitch != mSonic.getMinPitch() || maxPitch != mSonic.getMaxPitch())
+        {
+            flush();
+            mSonic.setPitchRange(minPitch, maxPitch);
+        }
+
+        boolean isHigh = level == QualityGovernor.LEVEL_HIGH;
+        mSonic.setQuality(isHigh ? 1 : 0);
+        int pitchMethod = isHigh && mSampleRate >= AUTOCORRELATION_MIN_SAMPLE_RATE ?
+                Sonic.PITCH_METHOD_AUTOCORRELATION : Sonic.PITCH_METHOD_AMDF;
+        if (pitchMethod != mSonic.getPitchMethod())
+        {
+            mSonic.setPitchMethod(pitchMethod);
+        }
+    }
+
+    private void drain() {
+        if (mModifiedFloatSamples != null)
+        {
+            int received;
+            while ((received = mSonic.receiveFloats(mModifiedFloatSamples, mModifiedFloatSamples.length)) > 0)
+            {
+                mSink.write(mModifiedFloatSamples, received);
+            }
+        }
+        else
+        {
+            // Read whatever didn't fit in the last read
+            while (mSonic.availableBytes() > 0)
+            {
+                mModifiedSamples.clear();
+                writeModifiedSamples(mSonic.receiveBuffer(mModifiedSamples, mModifiedSamples.capacity()));
+            }
+        }
+    }
+
+    private void writeModifiedSamples(int sizeInBytes) {
+        if (sizeInBytes > 0)
+        {
+            mModifiedSamples.flip();
+            mSink.write(mModifiedSamples, sizeInBytes);
+        }
+    }
+
+    private static ByteBuffer allocateDirect(int capacity) {
+        // Sonic reads and writes 16-bit samples in native byte order
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    private void checkState() {
+        if (mSonic == null)
+        {
+            throw new IllegalStateException();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timeline of pipeline events, for finding out why one block glitched, exported as Chrome trace JSON that
+ * chrome://tracing and Perfetto open.
+ * <p>
+ * Events go to a preallocated ring that keeps the latest events. Recording claims a slot with one atomic increment and
+ * doesn't lock or allocate, any thread can record. When tracing is disabled, recording is a read of a static field.
+ * <pre>
+ * TraceRecorder.enable(64 * 1024);
+ * ...
+ * TraceRecorder.begin(TraceRecorder.TRACK_WRITE, sizeInBytes);
+ * track.write(...);
+ * TraceRecorder.end(TraceRecorder.TRACK_WRITE);
+ * ...
+ * TraceRecorder.writeChromeTrace(file);
+ * </pre>
+ */
+public class TraceRecorder {
+
+    // Events of the playback pipeline
+    public static final int DECODER_INPUT  = 0;
+    public static final int DECODER_OUTPUT = 1;
+    public static final int DECODER_FORMAT = 2;
+    public static final int SONIC_WRITE    = 3;
+    public static final int TRACK_WRITE    = 4;
+    public static final int SEEK           = 5;
+
+    private static final String[] EVENT_NAMES = {
+            "decoder input", "decoder output", "decoder format", "sonic write", "track write", "seek"};
+
+    private static final int PHASE_BEGIN   = 0;
+    private static final int PHASE_END     = 1;
+    private static final int PHASE_INSTANT = 2;
+
+    private static final char[] PHASE_NAMES = {'B', 'E', 'i'};
+
+    // Null while disabled
+    private static volatile TraceRecorder sRecorder;
+
+    private final int mMask;
+
+    // Slot of each event, the sequence is written last and tells a complete slot from one being written
+    private final long[]          mTimes;
+    private final long[]          mThreadIds;
+    private final long[]          mArgs;
+    private final int[]           mTypes;
+    private final AtomicLongArray mSequences;
+
+    private final AtomicLong mNextIndex = new AtomicLong();
+
+    private TraceRecorder(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mMask = size - 1;
+        mTimes = new long[size];
+        mThreadIds = new long[size];
+        mArgs = new long[size];
+        mTypes = new int[size];
+        mSequences = new AtomicLongArray(size);
+    }
+
+    /**
+     * Start recording into a new ring
+     *
+     * @param capacity number of events kept, rounded up to a power of two
+     */
+    public static void enable(int capacity) {
+        sRecorder = new TraceRecorder(capacity);
+    }
+
+    /**
+     * Stop recording and drop the events
+     */
+    public static void disable() {
+        sRecorder = null;
+    }
+
+    public static boolean isEnabled() {
+        return sRecorder != null;
+    }
+
+    public static void begin(int event) {
+        TraceRecorder recorder = sRecorder;
+        if (recorder != null)
+        {
+            recorder.record(event, PHASE_BEGIN, 0);
+        }
+    }
+
+    /**
+     * @param arg value shown with the event, like a size or an index
+     */
+    public static void begin(int event, long arg) {
+        TraceRecorder recorder = sRecorder;
+        if (recorder != null)
+        {
+            recorder.record(event, PHASE_BEGIN, arg);
+        }
+    }
+
+    public static void end(int event) {
+        TraceRecorder recorder = sRecorder;
+        if (recorder != null)
+        {
+            recorder.record(event, PHASE_END, 0);
+        }
+    }
+
+    public static void instant(int event, long arg) {
+        TraceRecorder recorder = sRecorder;
+        if (recorder != null)
+        {
+            recorder.record(event, PHASE_INSTANT, arg);
+        }
+    }
+
+    /**
+     * Write the recorded events as Chrome trace JSON, recording goes on meanwhile
+     */
+    public static void writeChromeTrace(File file) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8)))
+        {
+            writeChromeTrace(writer);
+        }
+    }
+
+    public static void writeChromeTrace(Writer writer) throws IOException {
+        TraceRecorder recorder = sRecorder;
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        if (recorder != null)
+        {
+            recorder.writeEvents(writer);
+        }
+        writer.write("]}\n");
+    }
+
+    private void record(int event, int phase, long arg) {
+        long index = mNextIndex.getAndIncrement();
+        int slot = (int) (index & mMask);
+
+        // Marks the slot as being written
+        mSequences.set(slot, -1);
+        mTimes[slot] = System.nanoTime();
+        mThreadIds[slot] = Thread.currentThread().getId();
+        mArgs[slot] = arg;
+        mTypes[slot] = event << 2 | phase;
+        mSequences.lazySet(slot, index);
+    }
+
+    private void writeEvents(Writer writer) throws IOException {
+        Map<Long, String> threadNames = new HashMap<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            threadNames.put(thread.getId(), thread.getName());
+        }
+
+        long end = mNextIndex.get();
+        long start = Math.max(0, end - mTimes.length);
+        Set<Long> threadIds = new HashSet<>();
+        boolean isFirst = true;
+
+        for (long index = start; index < end; index++)
+        {
+            int slot = (int) (index & mMask);
+            if (mSequences.get(slot) != index)
+            {
+                // Being written, or overwritten by a newer event
+                continue;
+            }
+            long time = mTimes[slot];
+            long threadId = mThreadIds[slot];
+            long arg = mArgs[slot];
+            int type = mTypes[slot];
+            if (mSequences.get(slot) != index)
+            {
+                // Overwritten while reading. Without fences this is best effort, a rare event may still be torn.
+                continue;
+            }
+
+            int event = type >> 2;
+            int phase = type & 3;
+            String name = event < EVENT_NAMES.length ? EVENT_NAMES[event] : "event " + event;
+
+            writer.write(isFirst ? "\n" : ",\n");
+            isFirst = false;
+            writer.write(String.format(Locale.US, "{\"name\":\"%s\",\"ph\":\"%c\",\"ts\":%.3f,\"pid\":1,\"tid\":%d",
+                    name, PHASE_NAMES[phase], time / 1000.0, threadId));
+            if (phase == PHASE_INSTANT)
+            {
+                writer.write(",\"s\":\"t\"");
+            }
+            if (phase != PHASE_END)
+            {
+                writer.write(",\"args\":{\"value\":" + arg + "}");
+            }
+            writer.write("}");
+
+            threadIds.add(threadId);
+        }
+
+        // Thread names of the threads still alive
+        for (Long threadId : threadIds)
+        {
+            String threadName = threadNames.get(threadId);
+            if (threadName != null)
+            {
+                writer.write(String.format(Locale.US,
+                        ",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":\"%s\"}}",
+                        threadId, threadName.replace("\\", "\\\\").replace("\"", "\\\"")));
+            }
+        }
+    }
+}
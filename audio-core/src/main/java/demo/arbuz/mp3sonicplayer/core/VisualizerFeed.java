@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Band levels of the audio being played, for drawing a visualizer at display rate.
+ * <p>
+ * The audio thread only copies its blocks into a preallocated sample ring, through the {@link PcmSink} methods. An
+ * analysis thread takes the samples a hop of 1/60 second at a time, mixes them to mono and finds the energy of
+ * log-spaced bands with an FFT of the last window. Each hop makes a frame of band levels in another preallocated
+ * ring, and the UI takes the newest one with {@link #getLatestFrame(float[])}. Nothing is allocated after
+ * {@link #start(int, int, boolean)} and neither thread waits for the other: when the analysis falls behind it skips
+ * to the newest samples, and a window the audio thread overwrote while it was read is dropped.
+ */
+public class VisualizerFeed implements PcmSink {
+
+    public static final int DEFAULT_NUM_OF_BANDS = 32;
+
+    // Frames of band levels per second of audio
+    private static final int FRAMES_PER_SECOND = 60;
+
+    // Samples of each FFT, a power of two
+    private static final int WINDOW_SIZE = 1024;
+
+    // Frames the sample ring holds, a power of two, more than a device block and a window
+    private static final int RING_FRAMES = 32768;
+
+    // Frames of band levels kept for readers that are late
+    private static final int FRAME_RING_SIZE = 8;
+
+    // Most hops analysed in one pass, older ones are skipped
+    private static final int MAX_HOPS_PER_PASS = 4;
+
+    private static final float MIN_FREQUENCY = 50;
+    private static final float MAX_FREQUENCY = 16000;
+
+    // Level 0 is this many dB under a full scale sine in the band, level 1 is full scale
+    private static final float DYNAMIC_RANGE_DB = 70;
+
+    // Level a band falls per frame at most, so peaks don't flicker
+    private static final float FALL_PER_FRAME = 0.03f;
+
+    private static final long PASS_INTERVAL_NS = 1_000_000_000L / FRAMES_PER_SECOND / 2;
+
+    private final int mNumOfBands;
+
+    // FFT tables and buffers, used by the analysis thread only
+    private final float[] mCos     = new float[WINDOW_SIZE / 2];
+    private final float[] mSin     = new float[WINDOW_SIZE / 2];
+    private final int[]   mReverse = new int[WINDOW_SIZE];
+    private final float[] mHann    = new float[WINDOW_SIZE];
+    private final float[] mReal    = new float[WINDOW_SIZE];
+    private final float[] mImag    = new float[WINDOW_SIZE];
+    private final int[]   mBandStart;
+    private final int[]   mBandEnd;
+    private final float[] mLevels;
+    // Power of a full scale sine, after the window
+    private final float   mFullScalePower;
+    private       int     mBandSampleRate = 0;
+
+    private final float[][] mFrames;
+    private volatile long   mFrameCount = 0;
+
+    // Sample ring, only one of the arrays is used, depending on the encoding. Positions are in bytes or floats.
+    private byte[]     mRingBytes;
+    private ByteBuffer mRingShorts;
+    private float[]    mRingFloats;
+    private int        mRingMask;
+    private int        mNumOfChannels;
+
+    // Written by the audio thread only. The limit is moved before copying a block and the written position after.
+    private volatile long mWriteLimit = 0;
+    private volatile long mWritten    = 0;
+    private volatile int  mSampleRate;
+
+    // Used by the analysis thread only
+    private long mAnalyzed;
+
+    private volatile Thread mThread;
+
+    public VisualizerFeed() {
+        this(DEFAULT_NUM_OF_BANDS);
+    }
+
+    public VisualizerFeed(int numOfBands) {
+        if (numOfBands < 1 || numOfBands > WINDOW_SIZE / 2)
+        {
+            throw new IllegalArgumentException("Invalid num of bands " + numOfBands);
+        }
+
+        mNumOfBands = numOfBands;
+        mBandStart = new int[numOfBands];
+        mBandEnd = new int[numOfBands];
+        mLevels = new float[numOfBands];
+        mFrames = new float[FRAME_RING_SIZE][numOfBands];
+
+        int bits = Integer.numberOfTrailingZeros(WINDOW_SIZE);
+        for (int i = 0; i < WINDOW_SIZE / 2; i++)
+        {
+            mCos[i] = (float) Math.cos(2 * Math.PI * i / WINDOW_SIZE);
+            mSin[i] = (float) -Math.sin(2 * Math.PI * i / WINDOW_SIZE);
+        }
+        float windowPower = 0;
+        for (int i = 0; i < WINDOW_SIZE; i++)
+        {
+            mReverse[i] = Integer.reverse(i) >>> (32 - bits);
+            mHann[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / WINDOW_SIZE));
+            windowPower += mHann[i] * mHann[i];
+        }
+        // A sine of amplitude 1 has power 1/2, half of it in the positive bins
+        mFullScalePower = WINDOW_SIZE * windowPower / 4;
+    }
+
+    public int getNumOfBands() {
+        return mNumOfBands;
+    }
+
+    /**
+     * Start analysing, called by the device the feed taps before it writes
+     */
+    public synchronized void start(int sampleRate, int numOfChannels, boolean isFloat) {
+        if (mThread != null)
+        {
+            throw new IllegalStateException("Already started");
+        }
+
+        // Positions wrap with a mask, so the size is a power of two
+        int ringSize = Integer.highestOneBit(RING_FRAMES * numOfChannels * (isFloat ? 1 : 2) - 1) << 1;
+        if (isFloat)
+        {
+            if (mRingFloats == null || mRingFloats.length != ringSize)
+            {
+                mRingFloats = new float[ringSize];
+            }
+            mRingBytes = null;
+            mRingShorts = null;
+        }
+        else
+        {
+            if (mRingBytes == null || mRingBytes.length != ringSize)
+            {
+                // The ring holds the device's samples as they are, in native byte order
+                mRingBytes = new byte[ringSize];
+                mRingShorts = ByteBuffer.wrap(mRingBytes).order(ByteOrder.nativeOrder());
+            }
+            mRingFloats = null;
+        }
+        mRingMask = ringSize - 1;
+        mNumOfChannels = numOfChannels;
+        mSampleRate = sampleRate;
+        mWriteLimit = 0;
+        mWritten = 0;
+        mAnalyzed = 0;
+
+        mThread = new Thread(this::analyze, "VisualizerFeed");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stop analysing, the last frame can still be read
+     */
+    public synchronized void stop() {
+        Thread thread = mThread;
+        if (thread == null)
+        {
+            return;
+        }
+
+        mThread = null;
+        LockSupport.unpark(thread);
+        try
+        {
+            thread.join();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Called by the audio thread when the sample rate changes, the bands follow from the next hop
+     */
+    public void setSampleRate(int sampleRate) {
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * Copy 16-bit PCM in native byte order, called by the audio thread
+     */
+    public void write(byte[] audioData, int offset, int sizeInBytes) {
+        // The ring is set before the thread, by start
+        if (mThread == null || mRingBytes == null)
+        {
+            return;
+        }
+        byte[] ring = mRingBytes;
+
+        // Only the end of a block bigger than the ring is kept
+        int skipped = Math.max(0, sizeInBytes - ring.length);
+        int length = sizeInBytes - skipped;
+        long written = mWritten;
+        mWriteLimit = written + sizeInBytes;
+
+        int ringOffset = (int) ((written + skipped) & mRingMask);
+        int first = Math.min(length, ring.length - ringOffset);
+        System.arraycopy(audioData, offset + skipped, ring, ringOffset, first);
+        System.arraycopy(audioData, offset + skipped + first, ring, 0, length - first);
+
+        mWritten = written + sizeInBytes;
+    }
+
+    /**
+     * Copy 16-bit PCM in native byte order from the buffer's position, called by the audio thread. The position is
+     * left where it was, the block can still be written to the device.
+     */
+    @Override
+    public void write(ByteBuffer audioData, int sizeInBytes) {
+        // The ring is set before the thread, by start
+        if (mThread == null || mRingBytes == null)
+        {
+            return;
+        }
+        byte[] ring = mRingBytes;
+
+        int position = audioData.position();
+        int skipped = Math.max(0, sizeInBytes - ring.length);
+        int length = sizeInBytes - skipped;
+        long written = mWritten;
+        mWriteLimit = written + sizeInBytes;
+
+        int ringOffset = (int) ((written + skipped) & mRingMask);
+        int first = Math.min(length, ring.length - ringOffset);
+        audioData.position(position + skipped);
+        audioData.get(ring, ringOffset, first);
+        audioData.get(ring, 0, length - first);
+        audioData.position(position);
+
+        mWritten = written + sizeInBytes;
+    }
+
+    /**
+     * Copy float PCM, called by the audio thread
+     */
+    @Override
+    public void write(float[] audioData, int sizeInFloats) {
+        if (mThread == null || mRingFloats == null)
+        {
+            return;
+        }
+        float[] ring = mRingFloats;
+
+        int skipped = Math.max(0, sizeInFloats - ring.length);
+        int length = sizeInFloats - skipped;
+        long written = mWritten;
+        mWriteLimit = written + sizeInFloats;
+
+        int ringOffset = (int) ((written + skipped) & mRingMask);
+        int first = Math.min(length, ring.length - ringOffset);
+        System.arraycopy(audioData, skipped, ring, ringOffset, first);
+        System.arraycopy(audioData, skipped + first, ring, 0, length - first);
+
+        mWritten = written + sizeInFloats;
+    }
+
+    /**
+     * Copy the newest band levels, between 0 and 1 from the lowest band to the highest. Doesn't block or allocate,
+     * meant to be called for every frame drawn.
+     *
+     * @param levels at least {@link #getNumOfBands()} long
+     * @return number of the frame, the same number means nothing changed, or -1 before the first frame
+     */
+    public long getLatestFrame(float[] levels) {
+        while (true)
+        {
+            long count = mFrameCount;
+            if (count == 0)
+            {
+                return -1;
+            }
+
+            System.arraycopy(mFrames[(int) ((count - 1) % FRAME_RING_SIZE)], 0, levels, 0, mNumOfBands);
+
+            // The frame was read whole unless the analysis came around to it again meanwhile
+            if (mFrameCount - count < FRAME_RING_SIZE - 1)
+            {
+                return count - 1;
+            }
+        }
+    }
+
+    private void analyze() {
+        Thread thread = Thread.currentThread();
+        while (mThread == thread)
+        {
+            int sampleRate = mSampleRate;
+            if (sampleRate != mBandSampleRate)
+            {
+                updateBands(sampleRate);
+            }
+
+            int hopSize = Math.max(1, sampleRate / FRAMES_PER_SECOND) * samplesPerFrame();
+            long written = mWritten;
+            if (written - mAnalyzed > (long) MAX_HOPS_PER_PASS * hopSize)
+            {
+                mAnalyzed = written - (long) MAX_HOPS_PER_PASS * hopSize;
+            }
+            while (written - mAnalyzed >= hopSize)
+            {
+                mAnalyzed += hopSize;
+                analyzeWindow(mAnalyzed);
+            }
+
+            LockSupport.parkNanos(this, PASS_INTERVAL_NS);
+        }
+    }
+
+    private int samplesPerFrame() {
+        return mNumOfChannels * (mRingBytes != null ? 2 : 1);
+    }
+
+    /**
+     * Make a frame of the window that ends at the position
+     */
+    private void analyzeWindow(long end) {
+        int frameSize = samplesPerFrame();
+        long start = end - (long) WINDOW_SIZE * frameSize;
+        if (start < 0)
+        {
+            return;
+        }
+
+        mixWindow(start);
+        if (mWriteLimit - start > mRingMask + 1)
+        {
+            // Overwritten while it was read
+            return;
+        }
+
+        for (int i = 0; i < WINDOW_SIZE; i++)
+        {
+            mReal[i] *= mHann[i];
+            mImag[i] = 0;
+        }
+        transform();
+
+        long frameCount = mFrameCount;
+        float[] frame = mFrames[(int) (frameCount % FRAME_RING_SIZE)];
+        for (int band = 0; band < mNumOfBands; band++)
+        {
+            float power = 0;
+            for (int bin = mBandStart[band]; bin < mBandEnd[band]; bin++)
+            {
+                power += mReal[bin] * mReal[bin] + mImag[bin] * mImag[bin];
+            }
+            float db = 10 * (float) Math.log10(power / mFullScalePower + 1e-12);
+            float level = Math.max(0, Math.min(1, 1 + db / DYNAMIC_RANGE_DB));
+            mLevels[band] = Math.max(level, mLevels[band] - FALL_PER_FRAME);
+            frame[band] = mLevels[band];
+        }
+        mFrameCount = frameCount + 1;
+    }
+
+    /**
+     * Mix the window's channels to mono, into the real part
+     */
+    private void mixWindow(long start) {
+        int numOfChannels = mNumOfChannels;
+        float scale = 1f / numOfChannels;
+        if (mRingBytes != null)
+        {
+            scale /= 32768;
+            for (int i = 0; i < WINDOW_SIZE; i++)
+            {
+                long position = start + 2L * i * numOfChannels;
+                int sum = 0;
+                for (int channel = 0; channel < numOfChannels; channel++)
+                {
+                    sum += mRingShorts.getShort((int) ((position + 2 * channel) & mRingMask));
+                }
+                mReal[i] = sum * scale;
+            }
+        }
+        else
+        {
+            for (int i = 0; i < WINDOW_SIZE; i++)
+            {
+                long position = start + (long) i * numOfChannels;
+                float sum = 0;
+                for (int channel = 0; channel < numOfChannels; channel++)
+                {
+                    sum += mRingFloats[(int) ((position + channel) & mRingMask)];
+                }
+                mReal[i] = sum * scale;
+            }
+        }
+    }
+
+    /**
+     * Split the spectrum in bands of equal width in log frequency, each at least one bin wide
+     */
+    private void updateBands(int sampleRate) {
+        float binWidth = (float) sampleRate / WINDOW_SIZE;
+        float maxFrequency = Math.min(MAX_FREQUENCY, sampleRate / 2f);
+        double ratio = Math.pow(maxFrequency / MIN_FREQUENCY, 1.0 / mNumOfBands);
+
+        int bin = Math.max(1, Math.round(MIN_FREQUENCY / binWidth));
+        for (int band = 0; band < mNumOfBands; band++)
+        {
+            int end = (int) Math.round(MIN_FREQUENCY * Math.pow(ratio, band + 1) / binWidth);
+            end = Math.min(WINDOW_SIZE / 2, Math.max(bin + 1, end));
+            mBandStart[band] = Math.min(bin, end - 1);
+            mBandEnd[band] = end;
+            bin = end;
+        }
+        mBandSampleRate = sampleRate;
+    }
+
+    /**
+     * Radix-2 FFT of the real and imaginary parts in place
+     */
+    private void transform() {
+        float[] real = mReal;
+        float[] imag = mImag;
+        for (int i = 0; i < WINDOW_SIZE; i++)
+        {
+            int j = mReverse[i];
+            if (j > i)
+            {
+                float temp = real[i];
+                real[i] = real[j];
+                real[j] = temp;
+                temp = imag[i];
+                imag[i] = imag[j];
+                imag[j] = temp;
+            }
+        }
+        for (int half = 1; half < WINDOW_SIZE; half <<= 1)
+        {
+            int step = WINDOW_SIZE / (half << 1);
+            for (int start = 0; start < WINDOW_SIZE; start += half << 1)
+            {
+                for (int k = 0; k < half; k++)
+                {
+                    int i = start + k;
+                    int j = i + half;
+                    float wr = mCos[k * step];
+                    float wi = mSin[k * step];
+                    float tr = wr * real[j] - wi * imag[j];
+                    float ti = wr * imag[j] + wi * real[j];
+                    real[j] = real[i] - tr;
+                    imag[j] = imag[i] - ti;
+                    real[i] += tr;
+                    imag[i] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.arbuz.mp3sonicplayer.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams PCM to a WAV file through a {@link FileChannel}.
+ * <p>
+ * Header sizes are unknown while streaming, the header is written when the sink is closed.
+ * Write errors are thrown as {@link IllegalStateException} with the {@link IOException} as cause.
+ */
+public class WavFileSink implements PcmSink, Closeable {
+
+    private static final int HEADER_SIZE = 44;
+
+    private static final short FORMAT_PCM        = 1;
+    private static final short FORMAT_IEEE_FLOAT = 3;
+
+    // Bytes written in one go when converting floats
+    private static final int FLOAT_CHUNK_SIZE = 16 * 1024;
+
+    private final FileChannel mChannel;
+
+    private final int     mNumOfChannels;
+    private final boolean mIsFloat;
+
+    private int  mSampleRate;
+    private long mDataSize = 0;
+
+    // Converts samples to little-endian, allocated on first use
+    private ByteBuffer mConvertBuffer;
+
+    /**
+     * @param isFloat write 32-bit float samples instead of 16-bit
+     */
+    public WavFileSink(File file, int sampleRate, int numOfChannels, boolean isFloat) throws IOException {
+        mSampleRate = sampleRate;
+        mNumOfChannels = numOfChannels;
+        mIsFloat = isFloat;
+
+        mChannel = new RandomAccessFile(file, "rw").getChannel();
+        mChannel.truncate(0);
+        mChannel.position(HEADER_SIZE);
+    }
+
+    /**
+     * Sample rate written to the header, can be changed until the sink is closed
+     */
+    public void setSampleRate(int sampleRate) {
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * Number of PCM bytes written so far, without the header
+     */
+    public long getDataSize() {
+        return mDataSize;
+    }
+
+    @Override
+    public void write(ByteBuffer audioData, int sizeInBytes) {
+        if (mIsFloat)
+        {
+            throw new IllegalStateException("Sink expects float samples");
+        }
+
+        // Samples are in native byte order, WAV is little-endian
+        if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)
+        {
+            int limit = audioData.limit();
+            audioData.limit(audioData.position() + sizeInBytes);
+            writeFully(audioData);
+            audioData.limit(limit);
+        }
+        else
+        {
+            // Big-endian host, swap bytes of each sample
+            audioData.order(ByteOrder.nativeOrder());
+            ByteBuffer convertBuffer = getConvertBuffer();
+            for (int i = 0; i < sizeInBytes / 2; i++)
+            {
+                if (!convertBuffer.hasRemaining())
+                {
+                    flushConvertBuffer();
+                }
+                convertBuffer.putShort(audioData.getShort());
+            }
+            flushConvertBuffer();
+        }
+
+        mDataSize += sizeInBytes;
+    }
+
+    @Override
+    public void write(float[] audioData, int sizeInFloats) {
+        if (!mIsFloat)
+        {
+            throw new IllegalStateException("Sink expects 16-bit samples");
+        }
+
+        ByteBuffer convertBuffer = getConvertBuffer();
+        for (int i = 0; i < sizeInFloats; i++)
+        {
+            if (!convertBuffer.hasRemaining())
+            {
+                flushConvertBuffer();
+            }
+            convertBuffer.putFloat(audioData[i]);
+        }
+        flushConvertBuffer();
+
+        mDataSize += sizeInFloats * 4;
+    }
+
+    /**
+     * Write the header and close the file
+     */
+    @Override
+    public void close() throws IOException {
+        if (!mChannel.isOpen())
+        {
+            return;
+        }
+
+        try
+        {
+            int bytesPerSample = mIsFloat ? 4 : 2;
+            // Sizes are 32-bit in WAV, clamp very long files
+            int dataSize = (int) Math.min(mDataSize, 0xFFFFFFFFL - (HEADER_SIZE - 8));
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(new byte[]{'R', 'I', 'F', 'F'});
+            header.putInt(HEADER_SIZE - 8 + dataSize);
+            header.put(new byte[]{'W', 'A', 'V', 'E'});
+            header.put(new byte[]{'f', 'm', 't', ' '});
+            header.putInt(16);
+            header.putShort(mIsFloat ? FORMAT_IEEE_FLOAT : FORMAT_PCM);
+            header.putShort((short) mNumOfChannels);
+            header.putInt(mSampleRate);
+            header.putInt(mSampleRate * mNumOfChannels * bytesPerSample);
+            header.putShort((short) (mNumOfChannels * bytesPerSample));
+            header.putShort((short) (bytesPerSample * 8));
+            header.put(new byte[]{'d', 'a', 't', 'a'});
+            header.putInt(dataSize);
+            header.flip();
+
+            mChannel.position(0);
+            while (header.hasRemaining())
+            {
+                mChannel.write(header);
+            }
+        } finally
+        {
+            mChannel.close();
+        }
+    }
+
+    private ByteBuffer getConvertBuffer() {
+        if (mConvertBuffer == null)
+        {
+            mConvertBuffer = ByteBuffer.allocateDirect(FLOAT_CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return mConvertBuffer;
+    }
+
+    private void flushConvertBuffer() {
+        mConvertBuffer.flip();
+        writeFully(mConvertBuffer);
+        mConvertBuffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) {
+        try
+        {
+            while (buffer.hasRemaining())
+            {
+                mChannel.write(buffer);
+            }
+        } catch (IOException e)
+        {
+            throw new IllegalStateException("Failed writing to WAV file", e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.arbuz.mp3sonicplayer.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads 16-bit PCM from a WAV file through a {@link FileChannel}, the counterpart of {@link WavFileSink}.
+ */
+public class WavFileSource implements Closeable {
+
+    private static final short FORMAT_PCM        = 1;
+    private static final short FORMAT_EXTENSIBLE = (short) 0xFFFE;
+
+    private final FileChannel mChannel;
+
+    private int  mSampleRate;
+    private int  mNumOfChannels;
+    private long mDataSize;
+    private long mDataRemaining;
+
+    public WavFileSource(File file) throws IOException {
+        mChannel = new RandomAccessFile(file, "r").getChannel();
+        try
+        {
+            readHeader();
+        } catch (IOException e)
+        {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getNumOfChannels() {
+        return mNumOfChannels;
+    }
+
+    public long getNumOfFrames() {
+        return mDataSize / (2 * mNumOfChannels);
+    }
+
+    /**
+     * Read samples in native byte order into the buffer, from its position up to its limit.
+     * The position is advanced by the number of bytes read.
+     *
+     * @return bytes read, a whole number of samples, or -1 at end of data
+     */
+    public int read(ByteBuffer buffer) throws IOException {
+        if (mDataRemaining == 0)
+        {
+            return -1;
+        }
+
+        int start = buffer.position();
+        int limit = buffer.limit();
+        int length = (int) Math.min(mDataRemaining, (limit - start) & ~1);
+        buffer.limit(start + length);
+        try
+        {
+            while (buffer.hasRemaining())
+            {
+                if (mChannel.read(buffer) < 0)
+                {
+                    // Truncated file, data size in the header was wrong
+                    mDataRemaining = 0;
+                    length = (buffer.position() - start) & ~1;
+                    buffer.position(start + length);
+                    break;
+                }
+            }
+        } finally
+        {
+            buffer.limit(limit);
+        }
+        mDataRemaining -= length;
+
+        // WAV is little-endian, swap bytes of each sample on a big-endian host
+        if (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN)
+        {
+            for (int i = start; i < start + length; i += 2)
+            {
+                byte low = buffer.get(i);
+                buffer.put(i, buffer.get(i + 1));
+                buffer.put(i + 1, low);
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    private void readHeader() throws IOException {
+        ByteBuffer header = readChunk(12);
+        if (header.getInt(0) != fourCC("RIFF") || header.getInt(8) != fourCC("WAVE"))
+        {
+            throw new IOException("Not a WAV file");
+        }
+
+        boolean hasFormat = false;
+        while (true)
+        {
+            ByteBuffer chunkHeader = readChunk(8);
+            int id = chunkHeader.getInt(0);
+            long size = chunkHeader.getInt(4) & 0xFFFFFFFFL;
+
+            if (id == fourCC("fmt "))
+            {
+                if (size < 16)
+                {
+                    throw new IOException("Invalid format chunk");
+                }
+                ByteBuffer format = readChunk((int) size);
+                short formatTag = format.getShort(0);
+                int bitsPerSample = format.getShort(14);
+                if ((formatTag != FORMAT_PCM && formatTag != FORMAT_EXTENSIBLE) || bitsPerSample != 16)
+                {
+                    throw new IOException("Only 16-bit PCM is supported");
+                }
+                mNumOfChannels = format.getShort(2);
+                mSampleRate = format.getInt(4);
+                hasFormat = true;
+                // Chunks are word aligned
+                skip(size & 1);
+            }
+            else if (id == fourCC("data"))
+            {
+                if (!hasFormat)
+                {
+                    throw new IOException("Data before format chunk");
+                }
+                // Streaming writers leave the size unset, use the rest of the file
+                mDataSize = Math.min(size, mChannel.size() - mChannel.position());
+                mDataRemaining = mDataSize;
+                return;
+            }
+            else
+            {
+                skip(size + (size & 1));
+            }
+        }
+    }
+
+    private ByteBuffer readChunk(int size) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (chunk.hasRemaining())
+        {
+            if (mChannel.read(chunk) < 0)
+            {
+                throw new IOException("Unexpected end of WAV file");
+            }
+        }
+        return chunk;
+    }
+
+    private void skip(long bytes) throws IOException {
+        mChannel.position(mChannel.position() + bytes);
+    }
+
+    private static int fourCC(String id) {
+        return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16 | id.charAt(3) << 24;
+    }
+}
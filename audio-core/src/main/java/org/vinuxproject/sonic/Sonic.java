@@ -0,0 +1,464 @@
+// This file was written by Bill Cox in 2011.
+// I place this file into the public domain.  Feel free to copy from it.
+// Note, however that libsonic.so, which this application links to,
+// is licensed under LGPL.  You can use it for free in your commercial
+// application, but any changes you make to sonic.c or sonic.h need to
+// be shared under the LGPL license.
+
+package org.vinuxproject.sonic;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Sonic implements AutoCloseable
+{
+    // Sonic is thread-safe, but to have multiple instances of it, we have to
+    // store a pointer to it's data. We store that here as a long, just in case
+    // someone wants to port this JNI wapper to a 64-bit JVM.
+    long sonicID = 0;
+
+    // Streams that are never closed are freed after their Sonic object is garbage
+    // collected.  A phantom reference keeps the pointer, so this works without a
+    // finalizer, and the references are checked whenever a new stream is created.
+    private static final ReferenceQueue<Sonic> unreachableStreams = new ReferenceQueue<Sonic>();
+    private static final Set<NativeStream> openStreams =
+        Collections.synchronizedSet(new HashSet<NativeStream>());
+    private static final AtomicInteger leakedStreams = new AtomicInteger();
+
+    private static class NativeStream extends PhantomReference<Sonic>
+    {
+        final long sonicID;
+
+        NativeStream(Sonic sonic, long sonicID)
+        {
+            super(sonic, unreachableStreams);
+            this.sonicID = sonicID;
+        }
+    }
+
+    private NativeStream nativeStream;
+    
+    // Create a sonic stream.  Throws OutOfMemoryError if we cannot allocate the
+    // stream. Set numChannels to 1 for mono, and 2 for stereo.
+    public Sonic(int sampleRate, int numChannels)
+    {
+        freeUnreachableStreams();
+        sonicID = initNative(sampleRate, numChannels);
+        if(sonicID == 0) {
+            throw new OutOfMemoryError("Unable to allocate sonic stream");
+        }
+        nativeStream = new NativeStream(this, sonicID);
+        openStreams.add(nativeStream);
+    }
+    
+    // Call this to clean up memory after you're done processing sound.  It is
+    // safe to call this twice.  Any other call after the stream is closed throws
+    // IllegalStateException.  The methods are synchronized, so a close on another
+    // thread waits for a call in progress instead of freeing the stream under it.
+    @Override
+    public synchronized void close()
+    {
+        if(sonicID != 0) {
+            openStreams.remove(nativeStream);
+            nativeStream.clear();
+            closeNative(sonicID);
+            sonicID = 0;
+        }
+    }
+
+    // Free streams whose Sonic objects were garbage collected without close being
+    // called.  This also happens on each new stream, so it only needs to be called
+    // to release memory earlier.  Returns the number of streams freed.
+    public static int freeUnreachableStreams()
+    {
+        int freed = 0;
+        NativeStream stream;
+
+        while((stream = (NativeStream)unreachableStreams.poll()) != null) {
+            if(openStreams.remove(stream)) {
+                closeNative(stream.sonicID);
+                freed++;
+            }
+        }
+        leakedStreams.addAndGet(freed);
+        return freed;
+    }
+
+    // Return the number of native streams that are open in this process.
+    public static int getLiveStreamCount()
+    {
+        return getLiveStreamsNative();
+    }
+
+    // Return the number of bytes of native memory held by all open streams.
+    public static long getNativeAllocatedBytes()
+    {
+        return getAllocatedBytesNative();
+    }
+
+    // Use vector instructions (NEON, SSE4.1 or AVX2) for pitch detection and
+    // overlap-add when the CPU has them.  Default is on, and the output is the
+    // same either way.  Applies to all streams in the process.
+    public static void setSimdEnabled(boolean enabled)
+    {
+        setSimdEnabledNative(enabled);
+    }
+
+    // Return the name of the vector instructions in use, or "scalar".
+    public static String getSimdName()
+    {
+        return getSimdNameNative();
+    }
+
+    // Return the number of streams that were freed without close being called.
+    // Anything but 0 means a Sonic object was dropped without being closed.
+    public static int getLeakedStreamCount()
+    {
+        return leakedStreams.get();
+    }
+
+    // Force the sonic stream to generate output using whatever data it currently
+    // has.  No extra delay will be added to the output, but flushing in the middle of
+    // words could introduce distortion.
+    public synchronized void flush()
+    {
+        flushNative(checkOpen());
+    }
+
+    // Set the sample rate of the stream.  This will drop any samples that have not been read.
+    public synchronized void setSampleRate(int newSampleRate)
+    {
+        setSampleRateNative(checkOpen(), newSampleRate);
+    }
+
+    // Get the sample rate of the stream.
+    public synchronized int getSampleRate()
+    {
+        return getSampleRateNative(checkOpen());
+    }
+
+    // Set the number of channels.  This will drop any samples that have not been read.
+    public synchronized void setNumChannels(int newNumChannels)
+    {
+        setNumChannelsNative(checkOpen(), newNumChannels);
+    }
+
+    // Get the number of channels.
+    public synchronized int getNumChannels()
+    {
+        return getNumChannelsNative(checkOpen());
+    }
+
+    // Set the pitch of the stream.
+    public synchronized void setPitch(float newPitch)
+    {
+        setPitchNative(checkOpen(), newPitch);
+    }
+
+    // Get the pitch of the stream.
+    public synchronized float getPitch()
+    {
+        return getPitchNative(checkOpen());
+    }
+
+    //Set the speed of the stream.
+    public synchronized void setSpeed(float newSpeed)
+    {
+        setSpeedNative(checkOpen(), newSpeed);
+    }
+
+    // Get the speed of the stream.
+    public synchronized float getSpeed()
+    {
+        return getSpeedNative(checkOpen());
+    }
+
+    // Set the rate of the stream.  Rate means how fast we play, without pitch correction
+    // You probably just want to use setSpeed and setPitch instead.
+    public synchronized void setRate(float newRate)
+    {
+        setRateNative(checkOpen(), newRate);
+    }
+    
+    // Get the rate of the stream.
+    public synchronized float getRate()
+    {
+        return getRateNative(checkOpen());
+    }
+
+    // Set chord pitch mode on or off.  Default is off.  See the documentation
+    // page for a description of this feature.
+    public synchronized void setChordPitch(boolean useChordPitch)
+    {
+        setChordPitchNative(checkOpen(), useChordPitch);
+    }
+    
+    // Get the chord pitch setting.
+    public synchronized boolean getChordPitch()
+    {
+        return getChordPitchNative(checkOpen());
+    }
+
+    // Set the "quality".  Default 0 is virtually as good as 1, but very much faster.
+    public synchronized void setQuality(int quality)
+    {
+        setQualityNative(checkOpen(), quality);
+    }
+
+    // Get the quality setting.
+    public synchronized int getQuality()
+    {
+        return getQualityNative(checkOpen());
+    }
+
+    // Find the pitch period with the Average Magnitude Difference Function, at
+    // the speed and accuracy set by the quality.  This is the default.
+    public static final int PITCH_METHOD_AMDF = 0;
+    // Find the pitch period with the normalized autocorrelation of the whole
+    // range at full resolution, using an FFT.  Costs less than quality 1 at high
+    // sample rates, and is less prone to finding a multiple of the period.
+    public static final int PITCH_METHOD_AUTOCORRELATION = 1;
+
+    // Set how the pitch period is found, PITCH_METHOD_AMDF or
+    // PITCH_METHOD_AUTOCORRELATION.
+    public synchronized void setPitchMethod(int method)
+    {
+        if(method != PITCH_METHOD_AMDF && method != PITCH_METHOD_AUTOCORRELATION) {
+            throw new IllegalArgumentException("Invalid pitch method " + method);
+        }
+        setPitchMethodNative(checkOpen(), method);
+    }
+
+    // Get the pitch period search method.
+    public synchronized int getPitchMethod()
+    {
+        return getPitchMethodNative(checkOpen());
+    }
+
+    // Default range of voice pitch searched, in Hz, as SONIC_MIN_PITCH and
+    // SONIC_MAX_PITCH in sonic.h.
+    public static final int DEFAULT_MIN_PITCH = 65;
+    public static final int DEFAULT_MAX_PITCH = 400;
+
+    // Set the range of voice pitch searched, in Hz.  Default 65 to 400, a
+    // narrower range is faster.  Going below 65 may overflow the AMDF search.
+    // This will drop any samples that have not been read.
+    public synchronized void setPitchRange(int minPitch, int maxPitch)
+    {
+        if(minPitch <= 0 || maxPitch <= minPitch) {
+            throw new IllegalArgumentException("Invalid pitch range " + minPitch + " - " + maxPitch);
+        }
+        setPitchRangeNative(checkOpen(), minPitch, maxPitch);
+    }
+
+    // Get the lowest pitch searched.
+    public synchronized int getMinPitch()
+    {
+        return getMinPitchNative(checkOpen());
+    }
+
+    // Get the highest pitch searched.
+    public synchronized int getMaxPitch()
+    {
+        return getMaxPitchNative(checkOpen());
+    }
+
+    // Use this to write 16-bit data to be speed up or down into the stream.
+    // Return false if memory realloc failed, otherwise true.
+    public synchronized boolean putBytes(byte[] buffer, int lenBytes)
+    {
+        return putBytesNative(checkOpen(), buffer, lenBytes);
+    }
+
+    // Use this to read 16-bit data out of the stream.  Sometimes no data will
+    // be available, and zero is returned, which is not an error condition.
+    public synchronized int receiveBytes(byte[] ret, int lenBytes)
+    {
+        return receiveBytesNative(checkOpen(), ret, lenBytes);
+    }
+
+    // Use this to write 16-bit samples to be speed up or down into the stream.
+    // lenShorts is the number of values, so for stereo it is twice the number of frames.
+    // Return false if memory realloc failed, otherwise true.
+    public synchronized boolean putShorts(short[] buffer, int lenShorts)
+    {
+        checkArray(buffer.length, lenShorts);
+        return putShortsNative(checkOpen(), buffer, lenShorts);
+    }
+
+    // Use this to read 16-bit samples out of the stream.  Returns the number of values
+    // read, which is zero when no data is available, or -1 if we run out of memory.
+    public synchronized int receiveShorts(short[] ret, int lenShorts)
+    {
+        checkArray(ret.length, lenShorts);
+        return receiveShortsNative(checkOpen(), ret, lenShorts);
+    }
+
+    // Use this to write floating point samples to be speed up or down into the stream.
+    // Values must be between -1 and 1.  lenFloats is the number of values.
+    // Return false if memory realloc failed, otherwise true.
+    public synchronized boolean putFloats(float[] buffer, int lenFloats)
+    {
+        checkArray(buffer.length, lenFloats);
+        return putFloatsNative(checkOpen(), buffer, lenFloats);
+    }
+
+    // Use this to read floating point samples out of the stream.  Returns the number of
+    // values read, which is zero when no data is available, or -1 if we run out of memory.
+    public synchronized int receiveFloats(float[] ret, int lenFloats)
+    {
+        checkArray(ret.length, lenFloats);
+        return receiveFloatsNative(checkOpen(), ret, lenFloats);
+    }
+
+    // Return the number of values (samples times channels) in the output buffer
+    public synchronized int availableSamples()
+    {
+        return availableSamplesNative(checkOpen());
+    }
+
+    // Use this to write 16-bit data from a direct ByteBuffer into the stream.  The
+    // samples are read in place starting at the buffer's position, so there is no
+    // intermediate copy, and the position is advanced by lenBytes.
+    // Return false if memory realloc failed, otherwise true.
+    public synchronized boolean putBuffer(ByteBuffer buffer, int lenBytes)
+    {
+        checkDirectBuffer(buffer, lenBytes);
+        int position = buffer.position();
+        boolean result = putBufferNative(checkOpen(), buffer, position, lenBytes);
+        buffer.position(position + lenBytes);
+        return result;
+    }
+
+    // Use this to read 16-bit data out of the stream into a direct ByteBuffer.  Up to
+    // lenBytes are written in place starting at the buffer's position, and the position
+    // is advanced by the number of bytes read.  Returns the number of bytes read, or -1
+    // if we run out of memory.
+    public synchronized int receiveBuffer(ByteBuffer ret, int lenBytes)
+    {
+        checkDirectBuffer(ret, lenBytes);
+        int position = ret.position();
+        int bytesRead = receiveBufferNative(checkOpen(), ret, position, lenBytes);
+        if(bytesRead > 0) {
+            ret.position(position + bytesRead);
+        }
+        return bytesRead;
+    }
+
+    // Write lenBytes of 16-bit data from in and read as much processed data as fits
+    // into the remaining space of out, with a single call into the native stream.
+    // Both buffers must be direct.  Data that does not fit stays in the stream and
+    // can be read with receiveBuffer.  Returns the number of bytes written to out, or
+    // -1 if we run out of memory.
+    public synchronized int process(ByteBuffer in, int lenBytes, ByteBuffer out)
+    {
+        checkDirectBuffer(in, lenBytes);
+        checkDirectBuffer(out, 0);
+        int inPosition = in.position();
+        int outPosition = out.position();
+        int bytesRead = processNative(checkOpen(), in, inPosition, lenBytes, out, outPosition, out.remaining());
+        in.position(inPosition + lenBytes);
+        if(bytesRead > 0) {
+            out.position(outPosition + bytesRead);
+        }
+        return bytesRead;
+    }
+
+    private static void checkDirectBuffer(ByteBuffer buffer, int lenBytes)
+    {
+        if(!buffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer must be direct");
+        }
+        if(lenBytes < 0 || lenBytes > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid length " + lenBytes + ", remaining " + buffer.remaining());
+        }
+    }
+
+    // The native side dereferences the stream without checking it, so a closed
+    // stream must never get there.  Called with the lock held.
+    private long checkOpen()
+    {
+        if(sonicID == 0) {
+            throw new IllegalStateException("Sonic stream is closed");
+        }
+        return sonicID;
+    }
+
+    // The native side trusts the length, receiving writes through a critical pointer to the array
+    private static void checkArray(int arrayLength, int len)
+    {
+        if(len < 0 || len > arrayLength) {
+            throw new IllegalArgumentException("Invalid length " + len + ", array length " + arrayLength);
+        }
+    }
+
+    // Return the number of samples in the output buffer
+    public synchronized int availableBytes()
+    {
+        return availableBytesNative(checkOpen());
+    }
+    
+    // Set the scaling factor of the stream.
+    public synchronized void setVolume(float newVolume)
+    {
+        setVolumeNative(checkOpen(), newVolume);
+    }
+    
+    // Get the scaling factor of the stream.
+    public synchronized float getVolume()
+    {
+        return getVolumeNative(checkOpen());
+    }
+    
+    private native long initNative(int sampleRate, int channels);
+    // When done with sound processing, it's best to call this method to clean up memory.
+    private static native void closeNative(long sonicID);
+    private native void flushNative(long sonicID);
+    // Note that changing the sample rate or num channels will cause a flush.
+    private native void setSampleRateNative(long sonicID, int newSampleRate);
+    private native int getSampleRateNative(long sonicID);
+    private native void setNumChannelsNative(long sonicID, int newNumChannels);
+    private native int getNumChannelsNative(long sonicID);
+    private native void setPitchNative(long sonicID, float newPitch);
+    private native float getPitchNative(long sonicID);
+    private native void setSpeedNative(long sonicID, float newSpeed);
+    private native float getSpeedNative(long sonicID);
+    private native void setRateNative(long sonicID, float newRate);
+    private native float getRateNative(long sonicID);
+    private native void setChordPitchNative(long sonicID, boolean useChordPitch);
+    private native boolean getChordPitchNative(long sonicID);
+    private native void setQualityNative(long sonicID, int quality);
+    private native int getQualityNative(long sonicID);
+    private native void setPitchMethodNative(long sonicID, int method);
+    private native int getPitchMethodNative(long sonicID);
+    private native void setPitchRangeNative(long sonicID, int minPitch, int maxPitch);
+    private native int getMinPitchNative(long sonicID);
+    private native int getMaxPitchNative(long sonicID);
+    private native boolean putBytesNative(long sonicID, byte[] buffer, int lenBytes);
+    private native int receiveBytesNative(long sonicID, byte[] ret, int lenBytes);
+    private native boolean putShortsNative(long sonicID, short[] buffer, int lenShorts);
+    private native int receiveShortsNative(long sonicID, short[] ret, int lenShorts);
+    private native boolean putFloatsNative(long sonicID, float[] buffer, int lenFloats);
+    private native int receiveFloatsNative(long sonicID, float[] ret, int lenFloats);
+    private native int availableSamplesNative(long sonicID);
+    private native boolean putBufferNative(long sonicID, ByteBuffer buffer, int offset, int lenBytes);
+    private native int receiveBufferNative(long sonicID, ByteBuffer ret, int offset, int lenBytes);
+    private native int processNative(long sonicID, ByteBuffer in, int inOffset, int inLenBytes,
+        ByteBuffer out, int outOffset, int outLenBytes);
+    private native int availableBytesNative(long sonicID);
+    private native void setVolumeNative(long sonicID, float newVolume);
+    private native float getVolumeNative(long sonicID);
+    private static native int getLiveStreamsNative();
+    private static native long getAllocatedBytesNative();
+    private static native void setSimdEnabledNative(boolean enabled);
+    private static native String getSimdNameNative();
+
+    static {
+        System.loadLibrary("sonic");
+    }
+}
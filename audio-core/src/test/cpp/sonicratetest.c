@@ -0,0 +1,228 @@
+/* Sonic library
+   Copyright 2010
+   Bill Cox
+   This file is part of the Sonic Library.
+
+   This file is licensed under the Apache 2.0 license.
+*/
+
+/* Checks that the rate path with cached filter weights gives the same output
+   as computing every weight with findSincCoefficient, as Sonic did before the
+   weights were cached.  The stream's static functions are tested directly, so
+   sonic.c is compiled into the test. */
+
+#include "sonic.c"
+
+/* Streams are fed in chunks of different sizes, like a decoder would */
+static const int chunkSizes[] = {1, 37, 256, 1152, 4096};
+static const int sampleRates[] = {8000, 11025, 16000, 22050, 44100, 48000};
+/* Rates times pitches, 1.1 at 44.1 KHz has too many phases for a table */
+static const float rates[] = {0.5f, 0.8f, 0.9f, 1.1f, 1.2f, 1.5f, 2.0f};
+
+#define NUM_CHUNK_SIZES (sizeof(chunkSizes) / sizeof(chunkSizes[0]))
+#define NUM_SAMPLE_RATES (sizeof(sampleRates) / sizeof(sampleRates[0]))
+#define NUM_RATES (sizeof(rates) / sizeof(rates[0]))
+#define MAX_CHANNELS 2
+#define INPUT_FRAMES 20000
+
+static int numFailures = 0;
+
+/* Return 1 if value >= 0, else -1. */
+static int referenceGetSign(int value) { return value >= 0 ? 1 : -1; }
+
+/* Interpolate the new output sample, computing each weight.  The sum wraps
+   and the wraps are counted, as Sonic did, but in unsigned math so the
+   compiler can't assume it doesn't wrap. */
+static short referenceInterpolate(sonicStream stream, short* in,
+                                  int oldSampleRate, int newSampleRate) {
+  int i;
+  int total = 0;
+  int position = stream->newRatePosition * oldSampleRate;
+  int leftPosition = stream->oldRatePosition * newSampleRate;
+  int rightPosition = (stream->oldRatePosition + 1) * newSampleRate;
+  int ratio = rightPosition - position - 1;
+  int width = rightPosition - leftPosition;
+  int weight, value;
+  int oldSign;
+  int overflowCount = 0;
+
+  for (i = 0; i < SINC_FILTER_POINTS; i++) {
+    weight = findSincCoefficient(i, ratio, width);
+    value = in[i * stream->numChannels] * weight;
+    oldSign = referenceGetSign(total);
+    total = (int)((unsigned int)total + (unsigned int)value);
+    if (oldSign != referenceGetSign(total) &&
+        referenceGetSign(value) == oldSign) {
+      overflowCount += oldSign;
+    }
+  }
+  if (overflowCount > 0) {
+    return SHRT_MAX;
+  } else if (overflowCount < 0) {
+    return SHRT_MIN;
+  }
+  return total >> 16;
+}
+
+/* Change the rate, computing each weight. */
+static int referenceAdjustRate(sonicStream stream, float rate,
+                               int originalNumOutputSamples) {
+  int newSampleRate = stream->sampleRate / rate;
+  int oldSampleRate = stream->sampleRate;
+  int numChannels = stream->numChannels;
+  int position = 0;
+  short *in, *out;
+  int i;
+  int N = SINC_FILTER_POINTS;
+
+  while (newSampleRate > (1 << 14) || oldSampleRate > (1 << 14)) {
+    newSampleRate >>= 1;
+    oldSampleRate >>= 1;
+  }
+  if (stream->numOutputSamples == originalNumOutputSamples) {
+    return 1;
+  }
+  if (!moveNewSamplesToPitchBuffer(stream, originalNumOutputSamples)) {
+    return 0;
+  }
+  for (position = 0; position < stream->numPitchSamples - N; position++) {
+    while ((stream->oldRatePosition + 1) * newSampleRate >
+           stream->newRatePosition * oldSampleRate) {
+      if (!enlargeOutputBufferIfNeeded(stream, 1)) {
+        return 0;
+      }
+      out = stream->outputBuffer + stream->numOutputSamples * numChannels;
+      in = stream->pitchBuffer + position * numChannels;
+      for (i = 0; i < numChannels; i++) {
+        *out++ = referenceInterpolate(stream, in, oldSampleRate,
+                                      newSampleRate);
+        in++;
+      }
+      stream->newRatePosition++;
+      stream->numOutputSamples++;
+    }
+    stream->oldRatePosition++;
+    if (stream->oldRatePosition == oldSampleRate) {
+      stream->oldRatePosition = 0;
+      stream->newRatePosition = 0;
+    }
+  }
+  removePitchSamples(stream, position);
+  return 1;
+}
+
+/* Fill the input with a tone and noise.  When loud is set, the tone is well
+   over full scale and clipped, so the filter's sum overflows. */
+static void makeInput(short* input, int numChannels, int sampleRate,
+                      int loud) {
+  double amplitude = loud ? 3.0 * SHRT_MAX : 0.4 * SHRT_MAX;
+  double value;
+  int i, j;
+
+  srand(sampleRate + numChannels);
+  for (i = 0; i < INPUT_FRAMES; i++) {
+    for (j = 0; j < numChannels; j++) {
+      value = amplitude * sin(2.0 * M_PI * (220.0 + 110.0 * j) * i /
+                              sampleRate) +
+              (rand() % 2001 - 1000);
+      value = value > SHRT_MAX ? SHRT_MAX : value;
+      value = value < SHRT_MIN ? SHRT_MIN : value;
+      input[i * numChannels + j] = (short)value;
+    }
+  }
+}
+
+/* Append samples to the stream's output, as processStreamInput does at speed
+   1 before it changes the rate. */
+static int appendOutput(sonicStream stream, short* samples, int numSamples) {
+  if (!enlargeOutputBufferIfNeeded(stream, numSamples)) {
+    return 0;
+  }
+  memcpy(stream->outputBuffer + stream->numOutputSamples * stream->numChannels,
+         samples, numSamples * sizeof(short) * stream->numChannels);
+  stream->numOutputSamples += numSamples;
+  return 1;
+}
+
+/* Run the input through both paths, switching to the second rate halfway, and
+   compare the output of every chunk. */
+static void compareRates(int sampleRate, int numChannels, float firstRate,
+                         float secondRate, int chunkSize, int loud) {
+  static short input[INPUT_FRAMES * MAX_CHANNELS];
+  sonicStream cached = sonicCreateStream(sampleRate, numChannels);
+  sonicStream reference = sonicCreateStream(sampleRate, numChannels);
+  int position, numSamples, originalNumOutputSamples;
+  float rate = firstRate;
+
+  if (cached == NULL || reference == NULL) {
+    fprintf(stderr, "Out of memory\n");
+    exit(1);
+  }
+  makeInput(input, numChannels, sampleRate, loud);
+  sonicSetRate(cached, rate);
+  sonicSetRate(reference, rate);
+  for (position = 0; position < INPUT_FRAMES; position += numSamples) {
+    numSamples = INPUT_FRAMES - position < chunkSize ? INPUT_FRAMES - position
+                                                     : chunkSize;
+    if (rate != secondRate && position >= INPUT_FRAMES / 2) {
+      rate = secondRate;
+      sonicSetRate(cached, rate);
+      sonicSetRate(reference, rate);
+    }
+    originalNumOutputSamples = cached->numOutputSamples;
+    if (!appendOutput(cached, input + position * numChannels, numSamples) ||
+        !adjustRate(cached, rate, originalNumOutputSamples) ||
+        !appendOutput(reference, input + position * numChannels,
+                      numSamples) ||
+        !referenceAdjustRate(reference, rate, originalNumOutputSamples)) {
+      fprintf(stderr, "Out of memory\n");
+      exit(1);
+    }
+    if (cached->numOutputSamples != reference->numOutputSamples ||
+        memcmp(cached->outputBuffer, reference->outputBuffer,
+               cached->numOutputSamples * numChannels * sizeof(short)) != 0) {
+      fprintf(stderr,
+              "Output differs at %d Hz, %d channels, rate %g then %g, "
+              "chunks of %d, %s input, frame %d\n",
+              sampleRate, numChannels, firstRate, secondRate, chunkSize,
+              loud ? "clipping" : "normal", position);
+      numFailures++;
+      break;
+    }
+    cached->numOutputSamples = 0;
+    reference->numOutputSamples = 0;
+  }
+  sonicDestroyStream(cached);
+  sonicDestroyStream(reference);
+}
+
+int main(void) {
+  unsigned int i, j, k, l;
+  int numChannels, loud;
+
+  for (i = 0; i < NUM_SAMPLE_RATES; i++) {
+    for (numChannels = 1; numChannels <= MAX_CHANNELS; numChannels++) {
+      for (j = 0; j < NUM_RATES; j++) {
+        for (loud = 0; loud <= 1; loud++) {
+          for (k = 0; k < NUM_CHUNK_SIZES; k++) {
+            compareRates(sampleRates[i], numChannels, rates[j], rates[j],
+                         chunkSizes[k], loud);
+          }
+          /* The rate changes mid-stream to each other rate */
+          for (l = 0; l < NUM_RATES; l++) {
+            if (l != j) {
+              compareRates(sampleRates[i], numChannels, rates[j], rates[l],
+                           1152, loud);
+            }
+          }
+        }
+      }
+    }
+  }
+  if (numFailures > 0) {
+    fprintf(stderr, "%d comparisons failed\n", numFailures);
+    return 1;
+  }
+  printf("Cached rate weights match the reference\n");
+  return 0;
+}
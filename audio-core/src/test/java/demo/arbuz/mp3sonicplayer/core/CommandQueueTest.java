@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Commands pass through a small queue many times over its capacity: a full queue rejects without losing what it
+ * holds, and under producers that race each other every command arrives exactly once, in the order its producer
+ * posted it.
+ */
+public class CommandQueueTest {
+
+    private static final int NUM_OF_PRODUCERS      = 4;
+    private static final int COMMANDS_PER_PRODUCER = 200_000;
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(1, new CommandQueue(1).getCapacity());
+        assertEquals(8, new CommandQueue(5).getCapacity());
+        assertEquals(8, new CommandQueue(8).getCapacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroCapacityIsRejected() {
+        new CommandQueue(0);
+    }
+
+    @Test
+    public void fullQueueRejectsAndKeepsItsCommands() {
+        CommandQueue queue = new CommandQueue(4);
+        long[] next = {0};
+        long posted = 0;
+        // Fill and empty the queue many laps, half way through a lap each time so the slots wrap at every index
+        for (int lap = 0; lap < 1000; lap++)
+        {
+            int count = lap % 2 == 0 ? queue.getCapacity() : queue.getCapacity() / 2 + 1;
+            for (int i = 0; i < count; i++)
+            {
+                assertTrue(queue.offer(1, posted++));
+            }
+            if (count == queue.getCapacity())
+            {
+                assertFalse(queue.offer(1, -1));
+            }
+
+            int drained = queue.drain((command, argument) -> {
+                assertEquals(1, command);
+                assertEquals(next[0]++, argument);
+            });
+            assertEquals(count, drained);
+        }
+        assertEquals(posted, next[0]);
+        assertEquals(0, queue.drain((command, argument) -> {
+            throw new AssertionError("Queue is empty");
+        }));
+    }
+
+    @Test(timeout = 60_000)
+    public void producersRacingLoseNothing() throws InterruptedException {
+        // Small, so producers keep finding it full and the slots wrap thousands of times
+        CommandQueue queue = new CommandQueue(16);
+        CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] producers = new Thread[NUM_OF_PRODUCERS];
+        for (int i = 0; i < NUM_OF_PRODUCERS; i++)
+        {
+            int producer = i;
+            producers[i] = new Thread(() -> {
+                try
+                {
+                    start.await();
+                } catch (InterruptedException e)
+                {
+                    return;
+                }
+                for (long sequence = 0; sequence < COMMANDS_PER_PRODUCER; sequence++)
+                {
+                    while (!queue.offer(producer, sequence))
+                    {
+                        Thread.yield();
+                    }
+                }
+            });
+            producers[i].start();
+        }
+
+        long[] next = new long[NUM_OF_PRODUCERS];
+        long total = (long) NUM_OF_PRODUCERS * COMMANDS_PER_PRODUCER;
+        long received = 0;
+        start.countDown();
+        while (received < total)
+        {
+            int drained = queue.drain((command, argument) -> {
+                // Each producer's commands arrive once and in order
+                assertEquals("Producer " + command, next[command], argument);
+                next[command]++;
+            });
+            if (drained == 0)
+            {
+                Thread.yield();
+            }
+            received += drained;
+        }
+
+        for (Thread producer : producers)
+        {
+            producer.join();
+        }
+        assertEquals(0, queue.drain((command, argument) -> {
+            throw new AssertionError("Command " + command + " after all were received");
+        }));
+        for (int i = 0; i < NUM_OF_PRODUCERS; i++)
+        {
+            assertEquals(COMMANDS_PER_PRODUCER, next[i]);
+        }
+    }
+}
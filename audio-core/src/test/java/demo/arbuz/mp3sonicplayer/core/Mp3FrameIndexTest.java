@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Frame scans of synthetic MP3 data: every MPEG version at constant and variable bitrate, the tags and Xing frame
+ * before the audio, false syncs in frame data and garbage, and entry lookups by sample position. The on-disk cache
+ * is reused while the file is unchanged and rebuilt once it changes.
+ */
+public class Mp3FrameIndexTest {
+
+    private static final int[] VERSIONS = {TestMp3Stream.MPEG1, TestMp3Stream.MPEG2, TestMp3Stream.MPEG25};
+
+    private static final int NUM_OF_FRAMES = 100;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void constantBitrateOfEveryVersion() throws IOException {
+        for (int version : VERSIONS)
+        {
+            TestMp3Stream stream = new TestMp3Stream();
+            for (int i = 0; i < NUM_OF_FRAMES; i++)
+            {
+                stream.frame(version, 9, false);
+            }
+            assertIndexMatches(stream, build(stream.toByteArray()), version);
+        }
+    }
+
+    @Test
+    public void variableBitrateOfEveryVersion() throws IOException {
+        for (int version : VERSIONS)
+        {
+            TestMp3Stream stream = new TestMp3Stream();
+            for (int i = 0; i < NUM_OF_FRAMES; i++)
+            {
+                stream.frame(version, 1 + (i * 7) % 14, i % 3 == 0);
+            }
+            assertIndexMatches(stream, build(stream.toByteArray()), version);
+        }
+    }
+
+    @Test
+    public void tagsAndXingFrameAreSkipped() throws IOException {
+        TestMp3Stream stream = new TestMp3Stream()
+                .id3v2(1000, false)
+                .id3v2(300, true)
+                .xingFrame(TestMp3Stream.MPEG1, 9);
+        for (int i = 0; i < NUM_OF_FRAMES; i++)
+        {
+            stream.frame(TestMp3Stream.MPEG1, 1 + i % 14, false);
+        }
+        stream.id3v1();
+
+        Mp3FrameIndex index = build(stream.toByteArray());
+        assertIndexMatches(stream, index, TestMp3Stream.MPEG1);
+        assertEquals(0, index.getSamplePosition(0));
+    }
+
+    @Test
+    public void falseSyncIsNotAFrame() throws IOException {
+        for (int version : VERSIONS)
+        {
+            TestMp3Stream stream = new TestMp3Stream()
+                    .id3v2(100, false)
+                    .garbageWithFalseSync(version, 300);
+            for (int i = 0; i < NUM_OF_FRAMES; i++)
+            {
+                if (i == NUM_OF_FRAMES / 2)
+                {
+                    stream.garbageWithFalseSync(version, 300);
+                }
+                if (i % 5 == 0)
+                {
+                    stream.frameWithFalseSync(version, 9);
+                } else
+                {
+                    stream.frame(version, 9, false);
+                }
+            }
+            assertIndexMatches(stream, build(stream.toByteArray()), version);
+        }
+    }
+
+    @Test
+    public void findEntryIsLastEntryAtOrBefore() throws IOException {
+        TestMp3Stream stream = new TestMp3Stream();
+        for (int i = 0; i < NUM_OF_FRAMES; i++)
+        {
+            stream.frame(TestMp3Stream.MPEG2, 1 + i % 14, false);
+        }
+        Mp3FrameIndex index = build(stream.toByteArray());
+
+        for (int entry = 0; entry < index.getEntryCount(); entry++)
+        {
+            long position = index.getSamplePosition(entry);
+            assertEquals(entry, index.findEntry(position));
+            assertEquals(entry, index.findEntry(position + 1));
+            if (entry > 0)
+            {
+                assertEquals(entry - 1, index.findEntry(position - 1));
+            }
+        }
+        assertEquals(0, index.findEntry(-1));
+        assertEquals(index.getEntryCount() - 1, index.findEntry(index.getTotalSamples()));
+    }
+
+    @Test
+    public void cacheIsReusedUntilTheFileChanges() throws IOException {
+        File cacheDir = mFolder.newFolder("cache");
+        File file = mFolder.newFile("track.mp3");
+
+        TestMp3Stream original = new TestMp3Stream();
+        for (int i = 0; i < NUM_OF_FRAMES; i++)
+        {
+            original.frame(TestMp3Stream.MPEG1, 9, false);
+        }
+        Files.write(file.toPath(), original.toByteArray());
+        long lastModified = file.lastModified();
+
+        assertIndexMatches(original, Mp3FrameIndex.load(cacheDir, file), TestMp3Stream.MPEG1);
+        assertEquals(1, cacheDir.listFiles().length);
+        assertIndexMatches(original, Mp3FrameIndex.load(cacheDir, file), TestMp3Stream.MPEG1);
+
+        // A tag was added in place of two frames, the size is the same but the stored index no longer fits
+        int frameLength = TestMp3Stream.getFrameLength(TestMp3Stream.MPEG1, 9, false);
+        TestMp3Stream retagged = new TestMp3Stream().id3v2(2 * frameLength - 10, false);
+        for (int i = 0; i < NUM_OF_FRAMES - 2; i++)
+        {
+            retagged.frame(TestMp3Stream.MPEG1, 9, false);
+        }
+        assertEquals(original.toByteArray().length, retagged.toByteArray().length);
+        Files.write(file.toPath(), retagged.toByteArray());
+        file.setLastModified(lastModified + 10_000);
+
+        assertIndexMatches(retagged, Mp3FrameIndex.load(cacheDir, file), TestMp3Stream.MPEG1);
+        // The rebuilt index replaced the stale one
+        assertIndexMatches(retagged, Mp3FrameIndex.load(cacheDir, file), TestMp3Stream.MPEG1);
+        assertEquals(1, cacheDir.listFiles().length);
+    }
+
+    @Test
+    public void damagedCacheIsRebuilt() throws IOException {
+        File cacheDir = mFolder.newFolder("cache");
+        File file = mFolder.newFile("track.mp3");
+
+        TestMp3Stream stream = new TestMp3Stream();
+        for (int i = 0; i < NUM_OF_FRAMES; i++)
+        {
+            stream.frame(TestMp3Stream.MPEG1, 1 + i % 14, false);
+        }
+        Files.write(file.toPath(), stream.toByteArray());
+        Mp3FrameIndex.load(cacheDir, file);
+
+        File cacheFile = cacheDir.listFiles()[0];
+        try (RandomAccessFile cache = new RandomAccessFile(cacheFile, "rw"))
+        {
+            cache.setLength(cache.length() / 2);
+        }
+        assertIndexMatches(stream, Mp3FrameIndex.load(cacheDir, file), TestMp3Stream.MPEG1);
+    }
+
+    private Mp3FrameIndex build(byte[] data) throws IOException {
+        File file = mFolder.newFile();
+        Files.write(file.toPath(), data);
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel())
+        {
+            return Mp3FrameIndex.build(channel, 0, channel.size());
+        }
+    }
+
+    private static void assertIndexMatches(TestMp3Stream stream, Mp3FrameIndex index, int version) {
+        assertEquals(TestMp3Stream.getSampleRate(version), index.getSampleRate());
+        assertEquals(stream.getTotalSamples(), index.getTotalSamples());
+        assertEquals(stream.getDataEnd(), index.getDataEnd());
+
+        int entryCount = (stream.getFrameCount() + Mp3FrameIndex.INDEX_STEP - 1) / Mp3FrameIndex.INDEX_STEP;
+        assertEquals(entryCount, index.getEntryCount());
+        for (int entry = 0; entry < entryCount; entry++)
+        {
+            int frame = entry * Mp3FrameIndex.INDEX_STEP;
+            assertEquals("Entry " + entry, stream.getFrameOffset(frame), index.getOffset(entry));
+            assertEquals("Entry " + entry, stream.getSamplePosition(frame), index.getSamplePosition(entry));
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Frames read back from synthetic VBR data that sits at an offset in its file, as in an APK asset: the frames in
+ * order past tags, damage and false syncs, and seeks that land on the frame holding a sample position.
+ */
+public class Mp3FrameReaderTest {
+
+    private static final int VERSION       = TestMp3Stream.MPEG1;
+    private static final int NUM_OF_FRAMES = 200;
+    // Bytes of the file before the MP3 data
+    private static final int START = 333;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final TestMp3Stream mStream = new TestMp3Stream();
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(2048);
+
+    private Mp3FrameReader mReader;
+
+    @After
+    public void tearDown() throws IOException {
+        if (mReader != null)
+        {
+            mReader.close();
+        }
+    }
+
+    @Test
+    public void readsEveryFrameInOrder() throws IOException {
+        mStream.id3v2(500, false).xingFrame(VERSION, 9);
+        for (int i = 0; i < NUM_OF_FRAMES; i++)
+        {
+            if (i == NUM_OF_FRAMES / 3)
+            {
+                mStream.garbageWithFalseSync(VERSION, 300);
+            }
+            if (i % 7 == 0)
+            {
+                mStream.frameWithFalseSync(VERSION, 1 + i % 14);
+            } else
+            {
+                mStream.frame(VERSION, 1 + i % 14, i % 2 == 0);
+            }
+        }
+        mStream.id3v1();
+        open();
+
+        for (int frame = 0; frame < NUM_OF_FRAMES; frame++)
+        {
+            assertEquals(mStream.getSamplePosition(frame), mReader.getSamplePosition());
+            assertEquals(frame, readFrame());
+        }
+        assertEquals(mStream.getTotalSamples(), mReader.getSamplePosition());
+        assertEquals(-1, mReader.readFrame(mBuffer));
+    }
+
+    @Test
+    public void seekLandsOnFrameOfPosition() throws IOException {
+        for (int i = 0; i < NUM_OF_FRAMES; i++)
+        {
+            mStream.frame(VERSION, 1 + (i * 5) % 14, false);
+        }
+        open();
+
+        int samplesPerFrame = TestMp3Stream.getSamplesPerFrame(VERSION);
+        long[] targets = {0, 1, samplesPerFrame * Mp3FrameIndex.INDEX_STEP - 1,
+                samplesPerFrame * Mp3FrameIndex.INDEX_STEP, mStream.getTotalSamples() / 2,
+                mStream.getTotalSamples() - 1};
+        for (long target : targets)
+        {
+            int entry = mReader.getIndex().findEntry(target);
+            mReader.seekToEntry(entry);
+
+            int skipped = 0;
+            int frame;
+            while (true)
+            {
+                long position = mReader.getSamplePosition();
+                frame = readFrame();
+                if (position + samplesPerFrame > target)
+                {
+                    break;
+                }
+                skipped++;
+            }
+            String message = "Target " + target;
+            assertEquals(message, target / samplesPerFrame, frame);
+            assertTrue(message + ", " + skipped + " frames before it", skipped < Mp3FrameIndex.INDEX_STEP);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void frameLargerThanBufferThrows() throws IOException {
+        mStream.frame(VERSION, 14, false).frame(VERSION, 14, false);
+        open();
+        mBuffer.limit(100);
+        mReader.readFrame(mBuffer);
+    }
+
+    private void open() throws IOException {
+        File file = mFolder.newFile();
+        byte[] data = mStream.toByteArray();
+        byte[] contents = new byte[START + data.length];
+        System.arraycopy(data, 0, contents, START, data.length);
+        Files.write(file.toPath(), contents);
+
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        mReader = new Mp3FrameReader(channel, START, Mp3FrameIndex.build(channel, START, data.length));
+    }
+
+    /**
+     * @return number of the frame that was read
+     */
+    private int readFrame() throws IOException {
+        mBuffer.clear();
+        int length = mReader.readFrame(mBuffer);
+        assertEquals(mBuffer.position(), length);
+        return TestMp3Stream.getFrameNumber(mBuffer.array(), 0);
+    }
+}
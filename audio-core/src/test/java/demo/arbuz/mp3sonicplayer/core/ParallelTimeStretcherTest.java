@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.vinuxproject.sonic.Sonic;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Segmented rendering against one Sonic stream over the whole input, at speeds both ways: the output length is the
+ * input length over the speed, and the level of every 50 ms window follows the single stream. The input ends with
+ * a segment shorter than the overlap, whose crossfade must not run past the end.
+ */
+public class ParallelTimeStretcherTest {
+
+    private static final int SAMPLE_RATE     = 22050;
+    private static final int NUM_OF_CHANNELS = 2;
+
+    private static final int SEGMENT_MS = 2000;
+    private static final int OVERLAP_MS = 250;
+
+    private static final int WINDOW_FRAMES = SAMPLE_RATE / 20;
+    // Sonic itself ends within a few pitch periods of the exact length
+    private static final int LENGTH_TOLERANCE_FRAMES = SAMPLE_RATE / 50;
+    private static final double LEVEL_TOLERANCE_DB = 3;
+    private static final double MIN_CORRELATION    = 0.995;
+
+    private static final float[] SPEEDS = {0.5f, 0.75f, 1.5f, 2.0f, 3.0f};
+
+    private static final ForkJoinPool sPool = new ForkJoinPool(4);
+
+    @AfterClass
+    public static void tearDownClass() {
+        sPool.shutdown();
+    }
+
+    @Test
+    public void shortLastSegmentMatchesSingleStream() {
+        assertMatchesSingleStream(5 * SEGMENT_MS + 40);
+    }
+
+    @Test
+    public void longLastSegmentMatchesSingleStream() {
+        assertMatchesSingleStream(5 * SEGMENT_MS + SEGMENT_MS / 2);
+    }
+
+    private static void assertMatchesSingleStream(int durationMs) {
+        int numOfFrames = (int) ((long) SAMPLE_RATE * durationMs / 1000);
+        short[] input = TestSignals.toShorts(TestSignals.glide(SAMPLE_RATE, NUM_OF_CHANNELS, numOfFrames, 7));
+        for (float speed : SPEEDS)
+        {
+            short[] single = renderSingle(input, speed);
+            short[] parallel = renderParallel(input, speed);
+            String message = "Speed " + speed;
+
+            int expectedFrames = Math.round(numOfFrames / speed);
+            assertEquals(message, expectedFrames, parallel.length / NUM_OF_CHANNELS, LENGTH_TOLERANCE_FRAMES);
+            assertEquals(message, single.length / NUM_OF_CHANNELS, parallel.length / NUM_OF_CHANNELS,
+                    LENGTH_TOLERANCE_FRAMES);
+
+            double[] singleLevels = windowRms(single);
+            double[] parallelLevels = windowRms(parallel);
+            // The last window is partial and its length differs between the two
+            int numOfWindows = Math.min(singleLevels.length, parallelLevels.length) - 1;
+            for (int i = 0; i < numOfWindows; i++)
+            {
+                double differenceDb = 20 * Math.log10((parallelLevels[i] + 1) / (singleLevels[i] + 1));
+                assertEquals(message + ", window " + i, 0, differenceDb, LEVEL_TOLERANCE_DB);
+            }
+            double correlation = correlate(singleLevels, parallelLevels, numOfWindows);
+            assertTrue(message + ", correlation " + correlation, correlation > MIN_CORRELATION);
+        }
+    }
+
+    private static short[] renderSingle(short[] input, float speed) {
+        try (Sonic sonic = new Sonic(SAMPLE_RATE, NUM_OF_CHANNELS))
+        {
+            sonic.setSpeed(speed);
+            sonic.putShorts(input, input.length);
+            sonic.flush();
+            short[] output = new short[sonic.availableSamples()];
+            int numOfShorts = sonic.receiveShorts(output, output.length);
+            return Arrays.copyOf(output, numOfShorts);
+        }
+    }
+
+    private static short[] renderParallel(short[] input, float speed) {
+        ParallelTimeStretcher stretcher = new ParallelTimeStretcher(SAMPLE_RATE, NUM_OF_CHANNELS);
+        stretcher.setSpeed(speed);
+        stretcher.setSegmentDuration(SEGMENT_MS, OVERLAP_MS);
+        stretcher.setPool(sPool);
+
+        ShortBuffer output = ShortBuffer.allocate(input.length * 4);
+        stretcher.process(ShortBuffer.wrap(input), new PcmSink() {
+            @Override
+            public void write(ByteBuffer audioData, int sizeInBytes) {
+                ShortBuffer shorts = audioData.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+                shorts.limit(sizeInBytes / 2);
+                output.put(shorts);
+            }
+
+            @Override
+            public void write(float[] audioData, int sizeInFloats) {
+                throw new AssertionError("Segments are rendered as 16-bit");
+            }
+        });
+        return Arrays.copyOf(output.array(), output.position());
+    }
+
+    private static double[] windowRms(short[] samples) {
+        int windowSamples = WINDOW_FRAMES * NUM_OF_CHANNELS;
+        double[] levels = new double[(samples.length + windowSamples - 1) / windowSamples];
+        for (int i = 0; i < levels.length; i++)
+        {
+            int start = i * windowSamples;
+            int end = Math.min(samples.length, start + windowSamples);
+            double sum = 0;
+            for (int j = start; j < end; j++)
+            {
+                sum += (double) samples[j] * samples[j];
+            }
+            levels[i] = Math.sqrt(sum / (end - start));
+        }
+        return levels;
+    }
+
+    private static double correlate(double[] a, double[] b, int length) {
+        double meanA = 0;
+        double meanB = 0;
+        for (int i = 0; i < length; i++)
+        {
+            meanA += a[i];
+            meanB += b[i];
+        }
+        meanA /= length;
+        meanB /= length;
+
+        double covariance = 0;
+        double varianceA = 0;
+        double varianceB = 0;
+        for (int i = 0; i < length; i++)
+        {
+            covariance += (a[i] - meanA) * (b[i] - meanB);
+            varianceA += (a[i] - meanA) * (a[i] - meanA);
+            varianceB += (b[i] - meanB) * (b[i] - meanB);
+        }
+        return covariance / Math.sqrt(varianceA * varianceB);
+    }
+}
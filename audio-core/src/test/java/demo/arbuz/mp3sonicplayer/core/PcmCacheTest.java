@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The cache opens a directory it shares with other files, like the app's cache directory that also holds MP3 frame
+ * indexes, and only touches its own files.
+ */
+public class PcmCacheTest {
+
+    private static final long MAX_SIZE = 1024 * 1024;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void otherFilesAreKept() throws IOException {
+        File frameIndex = mFolder.newFile("track.mp3idx");
+        File other = mFolder.newFile("other.tmp");
+
+        PcmCache cache = new PcmCache(mFolder.getRoot(), MAX_SIZE);
+
+        assertTrue(frameIndex.exists());
+        assertTrue(other.exists());
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void unfinishedWriteIsDeleted() throws IOException {
+        PcmCache cache = new PcmCache(mFolder.getRoot(), MAX_SIZE);
+        PcmCache.Writer writer = cache.createWriter("track", 44100, 2, false);
+        writer.write(new byte[4096], 4096);
+        // Not committed, as if the app was killed while writing
+
+        File[] files = mFolder.getRoot().listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith(".pcm.tmp"));
+
+        new PcmCache(mFolder.getRoot(), MAX_SIZE);
+        assertFalse(files[0].exists());
+        writer.abort();
+    }
+
+    @Test
+    public void committedEntryIsFoundAgain() throws IOException {
+        mFolder.newFile("track.mp3idx");
+        PcmCache cache = new PcmCache(mFolder.getRoot(), MAX_SIZE);
+        PcmCache.Writer writer = cache.createWriter("track", 44100, 2, false);
+        writer.write(new byte[4096], 4096);
+        writer.commit();
+
+        PcmCache reopened = new PcmCache(mFolder.getRoot(), MAX_SIZE);
+        assertEquals(1, reopened.getEntryCount());
+        PcmCache.Entry entry = reopened.open("track");
+        assertNotNull(entry);
+        assertEquals(1024, entry.getNumOfFrames());
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The ring between a producer and a consumer thread: blocks arrive in order, close() lets a waiting consumer drain
+ * and finish, cancel() stops both sides at once, and a wake up ends a wait without finishing. The counters see the
+ * waits the way the output thread reports them, a wait the consumer was woken up from counts once and an announced
+ * gap not at all.
+ * <p>
+ * All consumer calls run on one executor thread, as the ring requires. A wait is checked by waiting for that thread
+ * to park.
+ */
+public class PcmRingBufferTest {
+
+    private static final int DEPTH      = 4;
+    private static final int BLOCK_SIZE = 64;
+
+    private static final long TIMEOUT_MS = 2000;
+
+    private final PcmRingBuffer mRing = new PcmRingBuffer(DEPTH, BLOCK_SIZE, false);
+
+    private volatile Thread mConsumerThread;
+
+    private final ExecutorService mProducer = Executors.newSingleThreadExecutor();
+    private final ExecutorService mConsumer = Executors.newSingleThreadExecutor(runnable -> {
+        mConsumerThread = new Thread(runnable);
+        return mConsumerThread;
+    });
+
+    @After
+    public void tearDown() {
+        mRing.cancel();
+        mProducer.shutdownNow();
+        mConsumer.shutdownNow();
+    }
+
+    @Test(timeout = 60_000)
+    public void blocksArriveInOrder() throws Exception {
+        final int numOfBlocks = 100_000;
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < numOfBlocks; i++)
+            {
+                PcmRingBuffer.Block block = mRing.awaitWriteBlock();
+                block.position = i;
+                block.buffer.put(0, (byte) i);
+                block.size = BLOCK_SIZE;
+                mRing.commitWrite();
+            }
+            mRing.close();
+        });
+        producer.start();
+
+        mConsumer.submit(() -> {
+            for (int i = 0; i < numOfBlocks; i++)
+            {
+                PcmRingBuffer.Block block = mRing.awaitReadBlock();
+                assertNotNull("Block " + i, block);
+                assertEquals(i, block.position);
+                assertEquals((byte) i, block.buffer.get(0));
+                assertEquals(BLOCK_SIZE, block.size);
+                mRing.releaseRead();
+            }
+            assertNull(mRing.awaitReadBlock());
+            assertTrue(mRing.isFinished());
+            return null;
+        }).get();
+        producer.join();
+    }
+
+    @Test
+    public void closeLetsWaitingConsumerDrainAndFinish() throws Exception {
+        write(1);
+        assertEquals(1, get(read()).position);
+        release();
+
+        Future<PcmRingBuffer.Block> read = read();
+        awaitConsumerParked();
+        write(2);
+        mRing.close();
+        assertEquals(2, get(read).position);
+        assertFalse("A block is still held", mRing.isFinished());
+        release();
+
+        read = read();
+        assertNull(get(read));
+        assertTrue(mRing.isFinished());
+    }
+
+    @Test
+    public void closeEndsWaitOfConsumer() throws Exception {
+        Future<PcmRingBuffer.Block> read = read();
+        awaitConsumerParked();
+        mRing.close();
+        assertNull(get(read));
+        assertTrue(mRing.isFinished());
+    }
+
+    @Test
+    public void cancelStopsBothSides() throws Exception {
+        for (int i = 0; i < DEPTH; i++)
+        {
+            write(i);
+        }
+        Future<PcmRingBuffer.Block> write = mProducer.submit(mRing::awaitWriteBlock);
+        Thread.sleep(50);
+        assertFalse("Producer waits for a free block", write.isDone());
+
+        mRing.cancel();
+        assertNull(get(write));
+        // The blocks that were written are dropped
+        assertNull(get(read()));
+        assertTrue(mRing.isFinished());
+    }
+
+    @Test
+    public void wakeUpEndsWaitWithoutFinishing() throws Exception {
+        Future<PcmRingBuffer.Block> read = read();
+        awaitConsumerParked();
+        mRing.wakeUpConsumer();
+        assertNull(get(read));
+        assertFalse(mRing.isFinished());
+
+        // The wake up is used up, the next call waits again
+        read = read();
+        awaitConsumerParked();
+        write(1);
+        assertEquals(1, get(read).position);
+        release();
+
+        // A wake up before the wait ends the next wait that finds the ring empty
+        mRing.wakeUpConsumer();
+        assertNull(get(read()));
+        assertFalse(mRing.isFinished());
+    }
+
+    @Test
+    public void starvationCountsWaitsAfterTheFirstBlock() throws Exception {
+        // Waiting for the first block is not starvation
+        Future<PcmRingBuffer.Block> read = read();
+        awaitConsumerParked();
+        write(0);
+        get(read);
+        release();
+        assertEquals(0, mRing.getStarvationCount());
+
+        // A wait cut into two by a wake up counts once, when it ends
+        read = read();
+        awaitConsumerParked();
+        mRing.wakeUpConsumer();
+        assertNull(get(read));
+        assertEquals(0, mRing.getStarvationCount());
+        read = read();
+        awaitConsumerParked();
+        write(1);
+        get(read);
+        release();
+        assertEquals(1, mRing.getStarvationCount());
+
+        // A gap announced by the producer, like after a seek, is not counted, even when announced during the wait
+        mRing.expectGap();
+        read = read();
+        awaitConsumerParked();
+        write(2);
+        get(read);
+        release();
+        read = read();
+        awaitConsumerParked();
+        mRing.expectGap();
+        write(3);
+        get(read);
+        release();
+        assertEquals(1, mRing.getStarvationCount());
+
+        // Blocks that are ready are not waited for
+        write(4);
+        write(5);
+        get(read());
+        release();
+        get(read());
+        release();
+        assertEquals(1, mRing.getStarvationCount());
+    }
+
+    @Test
+    public void fillLevelAndFullCount() throws Exception {
+        assertEquals(DEPTH, mRing.getMinFillLevel());
+        for (int i = 0; i < DEPTH; i++)
+        {
+            write(i);
+        }
+        assertEquals(DEPTH, mRing.getFillLevel());
+        assertEquals(0, mRing.getFullCount());
+
+        Future<PcmRingBuffer.Block> write = mProducer.submit(mRing::awaitWriteBlock);
+        Thread.sleep(50);
+        assertFalse("Producer waits for a free block", write.isDone());
+        assertEquals(1, mRing.getFullCount());
+
+        get(read());
+        assertEquals(DEPTH, mRing.getMinFillLevel());
+        release();
+        assertNotNull(get(write));
+        assertEquals(1, mRing.getFullCount());
+
+        get(read());
+        release();
+        assertEquals(DEPTH - 1, mRing.getMinFillLevel());
+        assertEquals(DEPTH - 2, mRing.getFillLevel());
+    }
+
+    private void write(long position) {
+        PcmRingBuffer.Block block = mRing.awaitWriteBlock();
+        assertNotNull(block);
+        block.position = position;
+        block.size = BLOCK_SIZE;
+        mRing.commitWrite();
+    }
+
+    private Future<PcmRingBuffer.Block> read() {
+        return mConsumer.submit(mRing::awaitReadBlock);
+    }
+
+    private void release() throws Exception {
+        get(mConsumer.submit(mRing::releaseRead, (PcmRingBuffer.Block) null));
+    }
+
+    private static <T> T get(Future<T> future) throws InterruptedException, ExecutionException, TimeoutException {
+        return future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void awaitConsumerParked() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mConsumerThread == null || mConsumerThread.getState() != Thread.State.TIMED_WAITING)
+        {
+            assertTrue("Consumer didn't wait", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
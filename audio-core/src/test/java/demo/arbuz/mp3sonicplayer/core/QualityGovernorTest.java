@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Level steps of {@link QualityGovernor} for loads recorded block by block, with the time a load has to hold before a
+ * step and the longer wait after a step up that didn't hold. Uses play time only, no Sonic stream.
+ */
+public class QualityGovernorTest {
+
+    private static final int SAMPLE_RATE  = 44100;
+    private static final int BLOCK_FRAMES = 1024;
+    // Play time of a block at speed 1
+    private static final long BLOCK_NS = BLOCK_FRAMES * 1_000_000_000L / SAMPLE_RATE;
+
+    @Test
+    public void stepsDownWhenLoadStaysHigh() {
+        QualityGovernor governor = new QualityGovernor();
+        long playedNs = recordUntilChange(governor, 0.8f, 10_000_000_000L);
+
+        assertEquals(QualityGovernor.LEVEL_LOW, governor.getLevel());
+        // Smoothing takes a few blocks, then the load has to stay high for half a second
+        assertTrue("Stepped down after " + playedNs + " ns", playedNs >= 500_000_000L && playedNs < 1_500_000_000L);
+    }
+
+    @Test
+    public void stepsUpWhenLoadStaysLow() {
+        QualityGovernor governor = new QualityGovernor();
+        long playedNs = recordUntilChange(governor, 0.01f, 60_000_000_000L);
+
+        assertEquals(QualityGovernor.LEVEL_HIGH, governor.getLevel());
+        assertTrue("Stepped up after " + playedNs + " ns", playedNs >= 5_000_000_000L && playedNs < 6_000_000_000L);
+    }
+
+    @Test
+    public void loadBetweenMarksKeepsLevel() {
+        QualityGovernor governor = new QualityGovernor();
+        recordUntilChange(governor, 0.2f, 60_000_000_000L);
+
+        assertEquals(QualityGovernor.LEVEL_NORMAL, governor.getLevel());
+    }
+
+    @Test
+    public void stepUpThatDoesNotHoldWaitsLongerNextTime() {
+        QualityGovernor governor = new QualityGovernor();
+        recordUntilChange(governor, 0.01f, 60_000_000_000L);
+        assertEquals(QualityGovernor.LEVEL_HIGH, governor.getLevel());
+
+        // The higher level costs too much right away
+        recordUntilChange(governor, 0.8f, 10_000_000_000L);
+        assertEquals(QualityGovernor.LEVEL_NORMAL, governor.getLevel());
+
+        long playedNs = recordUntilChange(governor, 0.01f, 60_000_000_000L);
+        assertEquals(QualityGovernor.LEVEL_HIGH, governor.getLevel());
+        assertTrue("Stepped up again after " + playedNs + " ns", playedNs >= 10_000_000_000L);
+    }
+
+    @Test
+    public void speedShortensPlayTime() {
+        QualityGovernor governor = new QualityGovernor();
+        // Same processing time against half the play time
+        for (int i = 0; i < 100; i++)
+        {
+            governor.recordBlock(BLOCK_FRAMES, SAMPLE_RATE, 2.0, (long) (BLOCK_NS * 0.15f));
+        }
+
+        assertEquals(0.3f, governor.getLoad(), 0.01f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidLoadsAreRejected() {
+        new QualityGovernor(QualityGovernor.LEVEL_NORMAL, 0.1f, 0.4f);
+    }
+
+    /**
+     * Record blocks that take load of their play time, until the level changes or maxNs are played
+     *
+     * @return play time until the change
+     */
+    private static long recordUntilChange(QualityGovernor governor, float load, long maxNs) {
+        long playedNs = 0;
+        while (playedNs < maxNs)
+        {
+            playedNs += BLOCK_NS;
+            if (governor.recordBlock(BLOCK_FRAMES, SAMPLE_RATE, 1.0, (long) (BLOCK_NS * load)))
+            {
+                break;
+            }
+        }
+        return playedNs;
+    }
+}
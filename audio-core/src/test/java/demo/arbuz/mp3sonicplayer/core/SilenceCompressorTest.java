@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs that {@link SilenceCompressor} keeps and drops for speech around a pause, taken buffer by buffer as the decoder
+ * passes them: the pause is cut to the hangover, speech is never dropped, and levels between the two thresholds keep
+ * the current state.
+ */
+public class SilenceCompressorTest {
+
+    private static final int SAMPLE_RATE     = 44100;
+    private static final int NUM_OF_CHANNELS = 2;
+    // Decoded buffers of an MP3 frame
+    private static final int BUFFER_FRAMES   = 1152;
+
+    // Speech for a second, a pause of two seconds and speech for another second
+    private static final int SPEECH_FRAMES = SAMPLE_RATE;
+    private static final int PAUSE_FRAMES  = 2 * SAMPLE_RATE;
+    private static final int TOTAL_FRAMES  = 2 * SPEECH_FRAMES + PAUSE_FRAMES;
+
+    // Dropping starts at a window boundary
+    private static final int WINDOW_FRAMES = SAMPLE_RATE * SilenceCompressor.WINDOW_MS / 1000;
+
+    @Test
+    public void pauseIsShortenedToHangover() {
+        SilenceCompressor compressor = new SilenceCompressor();
+        boolean[] kept = run(compressor, createBytes(0.3f, 0.0005f), null);
+
+        int hangoverFrames = SAMPLE_RATE * SilenceCompressor.DEFAULT_HANGOVER_MS / 1000;
+        long removedFrames = PAUSE_FRAMES - hangoverFrames;
+        assertEquals(removedFrames, compressor.getRemovedFrames(), 2 * WINDOW_FRAMES);
+        assertEquals(compressor.getRemovedFrames() * 1000000 / SAMPLE_RATE, compressor.getTimeSavedUs(), 100);
+        assertAllKept(kept, 0, SPEECH_FRAMES + hangoverFrames);
+        assertAllKept(kept, SPEECH_FRAMES + PAUSE_FRAMES, TOTAL_FRAMES);
+    }
+
+    @Test
+    public void floatsAreShortenedLikeBytes() {
+        SilenceCompressor byteCompressor = new SilenceCompressor();
+        run(byteCompressor, createBytes(0.3f, 0.0005f), null);
+        SilenceCompressor floatCompressor = new SilenceCompressor();
+        run(floatCompressor, null, createFloats(0.3f, 0.0005f));
+
+        assertEquals(byteCompressor.getRemovedFrames(), floatCompressor.getRemovedFrames(), WINDOW_FRAMES);
+    }
+
+    @Test
+    public void levelBetweenThresholdsKeepsState() {
+        // The pause is at -42 dB, over the silence threshold, so it is never silent
+        SilenceCompressor compressor = new SilenceCompressor();
+        run(compressor, null, createFloats(0.3f, 0.0079f));
+        assertEquals(0, compressor.getRemovedFrames());
+
+        // Once silent, the same level doesn't reach the speech threshold
+        compressor = new SilenceCompressor(-45, -30, 0);
+        boolean[] kept = run(compressor, null, createFloats(0.02f, 0.0005f));
+        assertTrue(compressor.getRemovedFrames() >= PAUSE_FRAMES);
+        assertTrue("Quiet speech after the pause is dropped", !kept[TOTAL_FRAMES - 1]);
+    }
+
+    @Test
+    public void resetStartsWithSpeech() {
+        SilenceCompressor compressor = new SilenceCompressor(-45, -40, 100);
+        compressor.start(SAMPLE_RATE, 1);
+        float[] silence = new float[SAMPLE_RATE];
+        int frames = 0;
+        while (frames < silence.length)
+        {
+            frames += Math.abs(compressor.nextRun(silence, frames, silence.length));
+        }
+        assertTrue(compressor.getRemovedFrames() > 0);
+
+        // After a seek the hangover is kept again
+        compressor.reset();
+        assertTrue(compressor.nextRun(silence, 0, silence.length) > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void speechThresholdUnderSilenceIsRejected() {
+        new SilenceCompressor(-40, -45, 100);
+    }
+
+    /**
+     * Take runs of all buffers of the input, bytes or floats
+     *
+     * @return for each frame, true if it was kept
+     */
+    private static boolean[] run(SilenceCompressor compressor, byte[] bytes, float[] floats) {
+        compressor.start(SAMPLE_RATE, NUM_OF_CHANNELS);
+        boolean[] kept = new boolean[TOTAL_FRAMES];
+        for (int bufferStart = 0; bufferStart < TOTAL_FRAMES; bufferStart += BUFFER_FRAMES)
+        {
+            int frames = Math.min(BUFFER_FRAMES, TOTAL_FRAMES - bufferStart);
+            byte[] byteBuffer = null;
+            float[] floatBuffer = null;
+            if (bytes != null)
+            {
+                byteBuffer = new byte[frames * NUM_OF_CHANNELS * 2];
+                System.arraycopy(bytes, bufferStart * NUM_OF_CHANNELS * 2, byteBuffer, 0, byteBuffer.length);
+            }
+            else
+            {
+                floatBuffer = new float[frames * NUM_OF_CHANNELS];
+                System.arraycopy(floats, bufferStart * NUM_OF_CHANNELS, floatBuffer, 0, floatBuffer.length);
+            }
+
+            int frameOffset = 0;
+            while (frameOffset < frames)
+            {
+                int run = byteBuffer != null ? compressor.nextRun(byteBuffer, frameOffset, frames) :
+                        compressor.nextRun(floatBuffer, frameOffset, frames);
+                assertTrue("Empty run", run != 0);
+                for (int frame = 0; frame < Math.abs(run); frame++)
+                {
+                    kept[bufferStart + frameOffset + frame] = run > 0;
+                }
+                frameOffset += Math.abs(run);
+            }
+            assertEquals(frames, frameOffset);
+        }
+        return kept;
+    }
+
+    private static void assertAllKept(boolean[] kept, int start, int end) {
+        for (int frame = start; frame < end; frame++)
+        {
+            assertTrue("Frame " + frame + " dropped", kept[frame]);
+        }
+    }
+
+    // A tone as speech, and noise in the pause
+    private static float[] createFloats(double speechAmplitude, double noiseAmplitude) {
+        float[] samples = TestSignals.tone(SAMPLE_RATE, NUM_OF_CHANNELS, TOTAL_FRAMES, 220, speechAmplitude);
+        float[] noise = TestSignals.noise(NUM_OF_CHANNELS, PAUSE_FRAMES, noiseAmplitude, 1);
+        System.arraycopy(noise, 0, samples, SPEECH_FRAMES * NUM_OF_CHANNELS, noise.length);
+        return samples;
+    }
+
+    private static byte[] createBytes(double speechAmplitude, double noiseAmplitude) {
+        return TestSignals.toBytes(createFloats(speechAmplitude, noiseAmplitude));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import org.junit.After;
+import org.junit.Test;
+import org.vinuxproject.sonic.Sonic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+/**
+ * A released stream comes back from the pool with the defaults, whatever was set on it, and with no samples left from
+ * its last use.
+ */
+public class SonicPoolTest {
+
+    private static final int SAMPLE_RATE     = 44100;
+    private static final int NUM_OF_CHANNELS = 2;
+
+    private final SonicPool mPool = new SonicPool(1);
+
+    @After
+    public void tearDown() {
+        mPool.clear();
+    }
+
+    @Test
+    public void reusedStreamHasDefaults() {
+        Sonic sonic = mPool.acquire(SAMPLE_RATE, NUM_OF_CHANNELS);
+        sonic.setSpeed(2.0f);
+        sonic.setPitch(1.5f);
+        sonic.setRate(0.5f);
+        sonic.setVolume(0.5f);
+        sonic.setQuality(1);
+        sonic.setChordPitch(true);
+        sonic.setPitchMethod(Sonic.PITCH_METHOD_AUTOCORRELATION);
+        sonic.setPitchRange(80, 300);
+        short[] samples = new short[SAMPLE_RATE * NUM_OF_CHANNELS / 10];
+        sonic.putShorts(samples, samples.length);
+        mPool.release(sonic);
+
+        Sonic reused = mPool.acquire(SAMPLE_RATE, NUM_OF_CHANNELS);
+        assertSame(sonic, reused);
+        assertEquals(1.0f, reused.getSpeed(), 0);
+        assertEquals(1.0f, reused.getPitch(), 0);
+        assertEquals(1.0f, reused.getRate(), 0);
+        assertEquals(1.0f, reused.getVolume(), 0);
+        assertEquals(0, reused.getQuality());
+        assertFalse(reused.getChordPitch());
+        assertEquals(Sonic.PITCH_METHOD_AMDF, reused.getPitchMethod());
+        assertEquals(Sonic.DEFAULT_MIN_PITCH, reused.getMinPitch());
+        assertEquals(Sonic.DEFAULT_MAX_PITCH, reused.getMaxPitch());
+        assertEquals(0, reused.availableSamples());
+        mPool.release(reused);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Writing a block through {@link SonicProcessor} must not allocate, at 16-bit from an array or a direct buffer and at
+ * float, through Sonic and when it is bypassed. Allocations are measured per thread after a warm-up, so the JIT and Sonic's buffer growth don't count.
+ */
+public class SonicProcessorAllocationTest {
+
+    private static final int SAMPLE_RATE     = 44100;
+    private static final int NUM_OF_CHANNELS = 2;
+    private static final int BLOCK_FRAMES    = 2048;
+
+    // Enough blocks for the JIT to compile the write path and for Sonic to reach its largest buffers
+    private static final int WARM_UP_BLOCKS  = 2000;
+    private static final int MEASURED_BLOCKS = 500;
+
+    private static final float[] SPEEDS = {1.0f, 0.5f, 1.5f, 2.0f, 3.0f};
+
+    private final com.sun.management.ThreadMXBean mThreadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final PcmSink mSink = new PcmSink() {
+
+        @Override
+        public void write(ByteBuffer audioData, int sizeInBytes) {
+            audioData.position(audioData.position() + sizeInBytes);
+        }
+
+        @Override
+        public void write(float[] audioData, int sizeInFloats) {
+        }
+    };
+
+    private SonicProcessor mProcessor;
+
+    @Before
+    public void setUp() {
+        mThreadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        if (mProcessor != null)
+        {
+            mProcessor.release();
+        }
+    }
+
+    @Test
+    public void writeBytesDoesNotAllocate() {
+        mProcessor = new SonicProcessor(SAMPLE_RATE, NUM_OF_CHANNELS, false, mSink);
+        byte[] block = TestSignals.toBytes(createBlock());
+        for (float speed : SPEEDS)
+        {
+            mProcessor.setSpeed(speed);
+            for (int i = 0; i < WARM_UP_BLOCKS; i++)
+            {
+                mProcessor.write(block, block.length);
+            }
+
+            long allocatedBytes = getAllocatedBytes();
+            for (int i = 0; i < MEASURED_BLOCKS; i++)
+            {
+                mProcessor.write(block, block.length);
+            }
+            // Measured before building the message, which allocates
+            allocatedBytes = getAllocatedBytes() - allocatedBytes;
+            assertEquals("Allocated at speed " + speed, 0, allocatedBytes);
+        }
+    }
+
+    @Test
+    public void writeDirectBufferDoesNotAllocate() {
+        mProcessor = new SonicProcessor(SAMPLE_RATE, NUM_OF_CHANNELS, false, mSink);
+        byte[] bytes = TestSignals.toBytes(createBlock());
+        ByteBuffer block = ByteBuffer.allocateDirect(bytes.length).order(ByteOrder.nativeOrder());
+        block.put(bytes);
+        for (float speed : SPEEDS)
+        {
+            mProcessor.setSpeed(speed);
+            for (int i = 0; i < WARM_UP_BLOCKS; i++)
+            {
+                block.clear();
+                mProcessor.write(block, block.capacity());
+            }
+
+            long allocatedBytes = getAllocatedBytes();
+            for (int i = 0; i < MEASURED_BLOCKS; i++)
+            {
+                block.clear();
+                mProcessor.write(block, block.capacity());
+            }
+            // Measured before building the message, which allocates
+            allocatedBytes = getAllocatedBytes() - allocatedBytes;
+            assertEquals("Allocated at speed " + speed, 0, allocatedBytes);
+        }
+    }
+
+    @Test
+    public void writeFloatsDoesNotAllocate() {
+        mProcessor = new SonicProcessor(SAMPLE_RATE, NUM_OF_CHANNELS, true, mSink);
+        float[] block = createBlock();
+        for (float speed : SPEEDS)
+        {
+            mProcessor.setSpeed(speed);
+            for (int i = 0; i < WARM_UP_BLOCKS; i++)
+            {
+                mProcessor.write(block, block.length);
+            }
+
+            long allocatedBytes = getAllocatedBytes();
+            for (int i = 0; i < MEASURED_BLOCKS; i++)
+            {
+                mProcessor.write(block, block.length);
+            }
+            // Measured before building the message, which allocates
+            allocatedBytes = getAllocatedBytes() - allocatedBytes;
+            assertEquals("Allocated at speed " + speed, 0, allocatedBytes);
+        }
+    }
+
+    private long getAllocatedBytes() {
+        return mThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static float[] createBlock() {
+        return TestSignals.voice(SAMPLE_RATE, NUM_OF_CHANNELS, BLOCK_FRAMES, 150, 0.4);
+    }
+}
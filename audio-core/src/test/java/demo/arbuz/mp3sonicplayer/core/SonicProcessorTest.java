@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 16-bit input written as an array, a direct buffer read in place and a heap buffer gives the same output, through
+ * Sonic and bypassed, and a buffer's position ends after what was written however the sink leaves it.
+ */
+public class SonicProcessorTest {
+
+    private static final int SAMPLE_RATE     = 44100;
+    private static final int NUM_OF_CHANNELS = 2;
+    // Not a multiple of the processor's input chunk
+    private static final int BLOCK_FRAMES    = 3001;
+    private static final int NUM_OF_BLOCKS   = 20;
+
+    private static final float[] SPEEDS = {1.0f, 0.75f, 2.0f};
+
+    @Test
+    public void buffersGiveSameOutputAsArrays() {
+        byte[] input = TestSignals.toBytes(TestSignals.voice(SAMPLE_RATE, NUM_OF_CHANNELS, BLOCK_FRAMES, 150, 0.4));
+        for (float speed : SPEEDS)
+        {
+            byte[] fromArray = render(speed, processor -> processor.write(input, input.length));
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(input.length + 10).order(ByteOrder.nativeOrder());
+            byte[] fromDirect = render(speed, processor -> writeAt(processor, direct, input));
+
+            ByteBuffer heap = ByteBuffer.allocate(input.length + 10).order(ByteOrder.nativeOrder());
+            byte[] fromHeap = render(speed, processor -> writeAt(processor, heap, input));
+
+            String message = "Speed " + speed;
+            assertTrue(message, fromArray.length > 0);
+            assertArrayEquals(message, fromArray, fromDirect);
+            assertArrayEquals(message, fromArray, fromHeap);
+        }
+    }
+
+    private interface Writer {
+
+        void write(SonicProcessor processor);
+    }
+
+    /**
+     * Write the input from an offset into the buffer, with bytes after it that must not be read
+     */
+    private static void writeAt(SonicProcessor processor, ByteBuffer buffer, byte[] input) {
+        buffer.clear();
+        buffer.position(7);
+        buffer.put(input);
+        buffer.put((byte) 0x7F);
+        buffer.position(7);
+        processor.write(buffer, input.length);
+        assertEquals(7 + input.length, buffer.position());
+    }
+
+    private static byte[] render(float speed, Writer writer) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        SonicProcessor processor = new SonicProcessor(SAMPLE_RATE, NUM_OF_CHANNELS, false, new PcmSink() {
+            @Override
+            public void write(ByteBuffer audioData, int sizeInBytes) {
+                byte[] bytes = new byte[sizeInBytes];
+                audioData.get(bytes);
+                output.write(bytes, 0, sizeInBytes);
+                // Left anywhere, the processor mustn't depend on it
+                audioData.position(0);
+            }
+
+            @Override
+            public void write(float[] audioData, int sizeInFloats) {
+                throw new AssertionError("16-bit processor wrote floats");
+            }
+        });
+        processor.setSpeed(speed);
+        for (int i = 0; i < NUM_OF_BLOCKS; i++)
+        {
+            writer.write(processor);
+        }
+        processor.flush();
+        processor.release();
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Synthetic MP3 data for the host tests: layer III frame headers with filler payloads, plus the tags, info frames and
+ * damage that the frame scan has to get past. Audio frames are numbered from 0, the number is written big-endian
+ * right after the header so a reader can tell which frame it got.
+ * <p>
+ * Frame lengths are worked out here from the bitrate tables, not with {@link Mp3FrameIndex}, so the tests don't
+ * check the index against itself.
+ */
+public final class TestMp3Stream {
+
+    public static final int MPEG1  = 3;
+    public static final int MPEG2  = 2;
+    public static final int MPEG25 = 0;
+
+    private static final int[] BITRATES_V1 = {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320};
+    private static final int[] BITRATES_V2 = {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160};
+
+    private static final byte FILLER = 0x55;
+
+    private final ByteArrayOutputStream mData      = new ByteArrayOutputStream();
+    private final List<Long>            mOffsets   = new ArrayList<>();
+    private final List<Long>            mPositions = new ArrayList<>();
+
+    private long mTotalSamples;
+    private long mDataEnd;
+
+    public static int getSampleRate(int version) {
+        return version == MPEG1 ? 44100 : version == MPEG2 ? 22050 : 11025;
+    }
+
+    public static int getSamplesPerFrame(int version) {
+        return version == MPEG1 ? 1152 : 576;
+    }
+
+    /**
+     * Stereo header without CRC at the version's 44.1 KHz based sample rate
+     */
+    public static int header(int version, int bitrateIndex, boolean isPadded) {
+        return 0xFFE00000 | version << 19 | 1 << 17 | 1 << 16 | bitrateIndex << 12 | (isPadded ? 1 << 9 : 0);
+    }
+
+    public static int getFrameLength(int version, int bitrateIndex, boolean isPadded) {
+        int bitrate = (version == MPEG1 ? BITRATES_V1 : BITRATES_V2)[bitrateIndex] * 1000;
+        return (version == MPEG1 ? 144 : 72) * bitrate / getSampleRate(version) + (isPadded ? 1 : 0);
+    }
+
+    /**
+     * ID3v2 tag with size bytes of frames, the footer flag adds 10 more bytes after them
+     */
+    public TestMp3Stream id3v2(int size, boolean hasFooter) {
+        writeAscii("ID3");
+        mData.write(4);
+        mData.write(0);
+        mData.write(hasFooter ? 0x10 : 0);
+        for (int shift = 21; shift >= 0; shift -= 7)
+        {
+            mData.write((size >> shift) & 0x7F);
+        }
+        writeFiller(size + (hasFooter ? 10 : 0));
+        return this;
+    }
+
+    /**
+     * ID3v1 tag, which ends the file
+     */
+    public TestMp3Stream id3v1() {
+        writeAscii("TAG");
+        writeFiller(125);
+        return this;
+    }
+
+    /**
+     * Xing info frame, it carries no audio
+     */
+    public TestMp3Stream xingFrame(int version, int bitrateIndex) {
+        int length = getFrameLength(version, bitrateIndex, false);
+        byte[] frame = new byte[length];
+        Arrays.fill(frame, FILLER);
+        putInt(frame, 0, header(version, bitrateIndex, false));
+        // Stereo side info is 32 bytes in MPEG-1 and 17 bytes otherwise
+        byte[] tag = {'X', 'i', 'n', 'g'};
+        System.arraycopy(tag, 0, frame, 4 + (version == MPEG1 ? 32 : 17), tag.length);
+        mData.write(frame, 0, length);
+        return this;
+    }
+
+    public TestMp3Stream frame(int version, int bitrateIndex, boolean isPadded) {
+        return writeFrame(version, bitrateIndex, isPadded, false);
+    }
+
+    /**
+     * Audio frame whose payload holds a valid header of the same version, 48 bytes in
+     */
+    public TestMp3Stream frameWithFalseSync(int version, int bitrateIndex) {
+        return writeFrame(version, bitrateIndex, false, true);
+    }
+
+    /**
+     * Bytes that aren't a frame, with a valid header 16 bytes in that isn't followed by another one. The length must
+     * leave room for the frame that header announces.
+     */
+    public TestMp3Stream garbageWithFalseSync(int version, int length) {
+        byte[] garbage = new byte[length];
+        Arrays.fill(garbage, FILLER);
+        putInt(garbage, 16, header(version, 1, false));
+        mData.write(garbage, 0, length);
+        return this;
+    }
+
+    public byte[] toByteArray() {
+        return mData.toByteArray();
+    }
+
+    public int getFrameCount() {
+        return mOffsets.size();
+    }
+
+    public long getFrameOffset(int frame) {
+        return mOffsets.get(frame);
+    }
+
+    public long getSamplePosition(int frame) {
+        return mPositions.get(frame);
+    }
+
+    public long getTotalSamples() {
+        return mTotalSamples;
+    }
+
+    /**
+     * Offset after the last audio frame
+     */
+    public long getDataEnd() {
+        return mDataEnd;
+    }
+
+    /**
+     * Number of the frame a test read, from its payload
+     */
+    public static int getFrameNumber(byte[] frame, int offset) {
+        return (frame[offset + 4] & 0xFF) << 24 | (frame[offset + 5] & 0xFF) << 16 |
+                (frame[offset + 6] & 0xFF) << 8 | (frame[offset + 7] & 0xFF);
+    }
+
+    private TestMp3Stream writeFrame(int version, int bitrateIndex, boolean isPadded, boolean hasFalseSync) {
+        int length = getFrameLength(version, bitrateIndex, isPadded);
+        byte[] frame = new byte[length];
+        Arrays.fill(frame, FILLER);
+        putInt(frame, 0, header(version, bitrateIndex, isPadded));
+        putInt(frame, 4, mOffsets.size());
+        if (hasFalseSync)
+        {
+            putInt(frame, 48, header(version, bitrateIndex, false));
+        }
+
+        mOffsets.add((long) mData.size());
+        mPositions.add(mTotalSamples);
+        mData.write(frame, 0, length);
+        mTotalSamples += getSamplesPerFrame(version);
+        mDataEnd = mData.size();
+        return this;
+    }
+
+    private void writeAscii(String text) {
+        for (int i = 0; i < text.length(); i++)
+        {
+            mData.write(text.charAt(i));
+        }
+    }
+
+    private void writeFiller(int length) {
+        for (int i = 0; i < length; i++)
+        {
+            mData.write(FILLER);
+        }
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Signals for the host tests. Samples are interleaved floats between -1 and 1, with the same value on every channel
+ * unless said otherwise, {@link #toShorts(float[])} and {@link #toBytes(float[])} convert them to 16-bit PCM.
+ */
+public final class TestSignals {
+
+    private TestSignals() {
+    }
+
+    public static float[] tone(int sampleRate, int numOfChannels, int frames, double frequency, double amplitude) {
+        float[] samples = new float[frames * numOfChannels];
+        for (int frame = 0; frame < frames; frame++)
+        {
+            float value = (float) (amplitude * Math.sin(2 * Math.PI * frequency * frame / sampleRate));
+            for (int channel = 0; channel < numOfChannels; channel++)
+            {
+                samples[frame * numOfChannels + channel] = value;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * A tone with its second and third harmonic at half and a quarter of its amplitude, Sonic finds its pitch period
+     * like in voiced speech
+     */
+    public static float[] voice(int sampleRate, int numOfChannels, int frames, double frequency, double amplitude) {
+        float[] samples = new float[frames * numOfChannels];
+        for (int frame = 0; frame < frames; frame++)
+        {
+            double phase = 2 * Math.PI * frequency * frame / sampleRate;
+            float value = (float) (amplitude * harmonics(phase, 0));
+            for (int channel = 0; channel < numOfChannels; channel++)
+            {
+                samples[frame * numOfChannels + channel] = value;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * A voice gliding from 90 to 260 Hz over the frames, with some noise, and a loud part from 70 to 80% of the frames
+     * that clips when converted. The fundamental of each channel has another phase, so mixed up channels show.
+     */
+    public static float[] glide(int sampleRate, int numOfChannels, int frames, long seed) {
+        Random random = new Random(seed);
+        float[] samples = new float[frames * numOfChannels];
+        double phase = 0;
+        for (int frame = 0; frame < frames; frame++)
+        {
+            double progress = (double) frame / frames;
+            phase += 2 * Math.PI * (90 + 170 * progress) / sampleRate;
+            double amplitude = progress > 0.7 && progress < 0.8 ? 0.75 : 0.2;
+            for (int channel = 0; channel < numOfChannels; channel++)
+            {
+                samples[frame * numOfChannels + channel] =
+                        (float) (amplitude * harmonics(phase, channel) + 0.01 * random.nextGaussian());
+            }
+        }
+        return samples;
+    }
+
+    public static float[] noise(int numOfChannels, int frames, double amplitude, long seed) {
+        Random random = new Random(seed);
+        float[] samples = new float[frames * numOfChannels];
+        for (int frame = 0; frame < frames; frame++)
+        {
+            float value = (float) (amplitude * random.nextGaussian());
+            for (int channel = 0; channel < numOfChannels; channel++)
+            {
+                samples[frame * numOfChannels + channel] = value;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * 16-bit values, clipped
+     */
+    public static short[] toShorts(float[] samples) {
+        short[] shorts = new short[samples.length];
+        for (int i = 0; i < samples.length; i++)
+        {
+            shorts[i] = toShort(samples[i]);
+        }
+        return shorts;
+    }
+
+    /**
+     * 16-bit values in native byte order, as Android passes decoded PCM and Sonic reads it
+     */
+    public static byte[] toBytes(float[] samples) {
+        ByteBuffer bytes = ByteBuffer.allocate(samples.length * 2).order(ByteOrder.nativeOrder());
+        for (float sample : samples)
+        {
+            bytes.putShort(toShort(sample));
+        }
+        return bytes.array();
+    }
+
+    private static double harmonics(double phase, double fundamentalOffset) {
+        return Math.sin(phase + fundamentalOffset) + 0.5 * Math.sin(2 * phase) + 0.25 * Math.sin(3 * phase);
+    }
+
+    private static short toShort(float sample) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample * Short.MAX_VALUE)));
+    }
+}
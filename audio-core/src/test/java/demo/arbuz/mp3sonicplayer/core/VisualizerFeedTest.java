@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package demo.arbuz.mp3sonicplayer.core;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Band levels of tones, read the way a UI would poll them: the band of a tone and its level in the display range,
+ * 16-bit and float input, and no frame before the first data. The analysis runs on the feed's thread, frames are
+ * awaited until they stop changing.
+ */
+public class VisualizerFeedTest {
+
+    private static final int SAMPLE_RATE     = 44100;
+    private static final int NUM_OF_CHANNELS = 2;
+    // Less than the feed's ring holds
+    private static final int FRAMES = SAMPLE_RATE / 2;
+
+    private static final long TIMEOUT_MS = 2000;
+
+    private final VisualizerFeed mFeed = new VisualizerFeed();
+
+    @After
+    public void tearDown() {
+        mFeed.stop();
+    }
+
+    @Test
+    public void toneOfMinusSixDbReadsInItsBand() throws InterruptedException {
+        mFeed.start(SAMPLE_RATE, NUM_OF_CHANNELS, true);
+        float[] tone = createTone(1000);
+        mFeed.write(tone, tone.length);
+
+        float[] levels = awaitFrame();
+        int loudest = findLoudest(levels);
+        // 1 KHz is in the middle of 50 Hz - 16 KHz in log frequency
+        assertTrue("Loudest band " + loudest, loudest > levels.length / 3 && loudest < 2 * levels.length / 3);
+        // 70 dB are shown, -6 dB is 1 - 6/70
+        assertEquals(0.91f, levels[loudest], 0.05f);
+        assertTrue(levels[0] < 0.5f);
+        assertTrue(levels[levels.length - 1] < 0.5f);
+    }
+
+    @Test
+    public void higherToneReadsInHigherBand() throws InterruptedException {
+        mFeed.start(SAMPLE_RATE, NUM_OF_CHANNELS, false);
+        byte[] lowTone = TestSignals.toBytes(createTone(200));
+        mFeed.write(lowTone, 0, lowTone.length);
+        int lowBand = findLoudest(awaitFrame());
+        mFeed.stop();
+
+        mFeed.start(SAMPLE_RATE, NUM_OF_CHANNELS, false);
+        ByteBuffer highTone = ByteBuffer.wrap(TestSignals.toBytes(createTone(4000)));
+        mFeed.write(highTone, highTone.remaining());
+        assertEquals("Position is restored", 0, highTone.position());
+        int highBand = findLoudest(awaitFrame());
+
+        assertTrue(lowBand + " then " + highBand, highBand > lowBand);
+    }
+
+    @Test
+    public void noFrameBeforeData() {
+        mFeed.start(SAMPLE_RATE, NUM_OF_CHANNELS, true);
+
+        assertEquals(-1, mFeed.getLatestFrame(new float[mFeed.getNumOfBands()]));
+    }
+
+    // Levels of the newest frame, once the whole input is analysed
+    private float[] awaitFrame() throws InterruptedException {
+        float[] levels = new float[mFeed.getNumOfBands()];
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        long frame = -1;
+        while (System.currentTimeMillis() < deadline)
+        {
+            long latestFrame = mFeed.getLatestFrame(levels);
+            if (latestFrame >= 0 && latestFrame == frame)
+            {
+                return levels;
+            }
+            frame = latestFrame;
+            Thread.sleep(100);
+        }
+        throw new AssertionError("No frame after " + TIMEOUT_MS + " ms");
+    }
+
+    private static int findLoudest(float[] levels) {
+        int loudest = 0;
+        for (int band = 1; band < levels.length; band++)
+        {
+            if (levels[band] > levels[loudest])
+            {
+                loudest = band;
+            }
+        }
+        return loudest;
+    }
+
+    private static float[] createTone(double frequency) {
+        // -6 dB
+        return TestSignals.tone(SAMPLE_RATE, NUM_OF_CHANNELS, FRAMES, frequency, 0.5);
+    }
+}
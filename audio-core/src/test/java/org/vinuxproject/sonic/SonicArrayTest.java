@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.vinuxproject.sonic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lengths of the short[] and float[] calls are checked against the array before native code gets it, receiving
+ * writes through a pointer to the array.
+ */
+public class SonicArrayTest {
+
+    private final Sonic mSonic = new Sonic(44100, 2);
+
+    @After
+    public void tearDown() {
+        mSonic.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void putShortsPastArrayIsRejected() {
+        mSonic.putShorts(new short[16], 4096);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void receiveShortsPastArrayIsRejected() {
+        mSonic.receiveShorts(new short[16], 4096);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void putFloatsPastArrayIsRejected() {
+        mSonic.putFloats(new float[16], 4096);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void receiveFloatsPastArrayIsRejected() {
+        mSonic.receiveFloats(new float[16], 4096);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeLengthIsRejected() {
+        mSonic.putShorts(new short[16], -1);
+    }
+
+    @Test
+    public void wholeArrayIsAccepted() {
+        short[] samples = new short[44100 * 2];
+        assertTrue(mSonic.putShorts(samples, samples.length));
+        mSonic.flush();
+        assertEquals(samples.length, mSonic.receiveShorts(samples, samples.length));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.vinuxproject.sonic;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * A closed stream is freed, every call on it after that throws instead of passing a null stream to native code.
+ */
+public class SonicCloseTest {
+
+    @Test
+    public void closeTwiceIsSafe() {
+        int liveStreams = Sonic.getLiveStreamCount();
+        Sonic sonic = new Sonic(44100, 2);
+        assertEquals(liveStreams + 1, Sonic.getLiveStreamCount());
+        sonic.close();
+        sonic.close();
+        assertEquals(liveStreams, Sonic.getLiveStreamCount());
+    }
+
+    @Test
+    public void callsAfterCloseThrow() {
+        Sonic sonic = new Sonic(44100, 2);
+        sonic.close();
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+        Runnable[] calls = {
+                () -> sonic.setSpeed(2),
+                sonic::getSpeed,
+                sonic::flush,
+                sonic::availableSamples,
+                () -> sonic.putShorts(new short[16], 16),
+                () -> sonic.receiveShorts(new short[16], 16),
+                () -> sonic.putFloats(new float[16], 16),
+                () -> sonic.putBytes(new byte[16], 16),
+                () -> sonic.putBuffer(buffer, 16),
+                () -> sonic.receiveBuffer(buffer, 16),
+                () -> sonic.process(buffer, 16, ByteBuffer.allocateDirect(4096)),
+        };
+        for (int i = 0; i < calls.length; i++)
+        {
+            try
+            {
+                calls[i].run();
+                fail("Call " + i + " on a closed stream");
+            } catch (IllegalStateException e)
+            {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.vinuxproject.sonic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import demo.arbuz.mp3sonicplayer.core.TestSignals;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * The vector kernels of pitch detection and overlap-add must give the same output as the scalar ones, bit for bit.
+ * Compares the two with the kernels of the CPU the test runs on, so each CPU family the app ships for needs a run.
+ */
+public class SonicSimdTest {
+
+    private static final int[]   SAMPLE_RATES = {8000, 16000, 22050, 44100, 48000};
+    private static final float[] SPEEDS       = {0.5f, 0.8f, 1.5f, 2.0f, 3.0f, 4.0f};
+    private static final int[]   QUALITIES    = {0, 1};
+    private static final int[]   PITCH_METHODS = {Sonic.PITCH_METHOD_AMDF, Sonic.PITCH_METHOD_AUTOCORRELATION};
+
+    private static final int MAX_CHANNELS = 4;
+    // Input is written in blocks of this many frames, like a decoder would
+    private static final int BLOCK_FRAMES = 1152;
+
+    @After
+    public void tearDown() {
+        Sonic.setSimdEnabled(true);
+    }
+
+    @Test
+    public void vectorOutputMatchesScalar() {
+        for (int channels = 1; channels <= MAX_CHANNELS; channels++)
+        {
+            for (int sampleRate : SAMPLE_RATES)
+            {
+                // A second of gliding voice, with a part that clips
+                short[] input = TestSignals.toShorts(TestSignals.glide(sampleRate, channels, sampleRate,
+                        sampleRate * 10 + channels));
+                for (float speed : SPEEDS)
+                {
+                    for (int quality : QUALITIES)
+                    {
+                        for (int pitchMethod : PITCH_METHODS)
+                        {
+                            Sonic.setSimdEnabled(false);
+                            short[] scalarOutput = process(input, sampleRate, channels, speed, quality, pitchMethod);
+                            Sonic.setSimdEnabled(true);
+                            short[] vectorOutput = process(input, sampleRate, channels, speed, quality, pitchMethod);
+
+                            assertArrayEquals(Sonic.getSimdName() + " differs from scalar at " + channels + " channels, "
+                                            + sampleRate + " Hz, speed " + speed + ", quality " + quality
+                                            + ", pitch method " + pitchMethod,
+                                    scalarOutput, vectorOutput);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static short[] process(short[] input, int sampleRate, int channels, float speed, int quality,
+                                   int pitchMethod) {
+        try (Sonic sonic = new Sonic(sampleRate, channels))
+        {
+            sonic.setSpeed(speed);
+            sonic.setQuality(quality);
+            sonic.setPitchMethod(pitchMethod);
+
+            short[] output = new short[(int) (input.length / speed) + sampleRate * channels];
+            short[] buffer = new short[BLOCK_FRAMES * channels * 4];
+            int outputLength = 0;
+            int blockLength = BLOCK_FRAMES * channels;
+            for (int offset = 0; offset < input.length; offset += blockLength)
+            {
+                int length = Math.min(blockLength, input.length - offset);
+                sonic.putShorts(Arrays.copyOfRange(input, offset, offset + length), length);
+                outputLength = receive(sonic, buffer, output, outputLength);
+            }
+            sonic.flush();
+            outputLength = receive(sonic, buffer, output, outputLength);
+            return Arrays.copyOf(output, outputLength);
+        }
+    }
+
+    private static int receive(Sonic sonic, short[] buffer, short[] output, int outputLength) {
+        int received;
+        while ((received = sonic.receiveShorts(buffer, buffer.length)) > 0)
+        {
+            System.arraycopy(buffer, 0, output, outputLength, received);
+            outputLength += received;
+        }
+        return outputLength;
+    }
+}
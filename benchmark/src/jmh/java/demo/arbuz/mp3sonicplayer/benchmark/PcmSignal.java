@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package demo.arbuz.mp3sonicplayer.benchmark;
+
+import java.util.Random;
+
+/**
+ * Synthetic 16-bit PCM test signals
+ */
+final class PcmSignal {
+
+    private PcmSignal() {
+    }
+
+    /**
+     * Voiced-speech-like signal: harmonics of a gliding 100-250Hz fundamental, syllable envelope and some noise.
+     * The pitch search in Sonic behaves on it much like on real speech. Same seed, same signal.
+     *
+     * @return little-endian interleaved samples
+     */
+    static byte[] speechLike(int sampleRate, int numOfChannels, int seconds) {
+        Random random = new Random(42);
+        int numOfFrames = sampleRate * seconds;
+        byte[] data = new byte[numOfFrames * numOfChannels * 2];
+
+        double phase = 0;
+        int index = 0;
+        for (int i = 0; i < numOfFrames; i++)
+        {
+            double t = (double) i / sampleRate;
+            double pitch = 175 + 75 * Math.sin(2 * Math.PI * 0.7 * t);
+            phase += 2 * Math.PI * pitch / sampleRate;
+
+            double value = 0;
+            for (int harmonic = 1; harmonic <= 8 && harmonic * pitch < sampleRate / 2; harmonic++)
+            {
+                value += Math.sin(harmonic * phase) / harmonic;
+            }
+            // About four syllables per second
+            double envelope = Math.max(0, Math.sin(2 * Math.PI * 2 * t));
+            value = value * envelope * 0.5 + random.nextGaussian() * 0.01;
+
+            short sample = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value * Short.MAX_VALUE));
+            for (int channel = 0; channel < numOfChannels; channel++)
+            {
+                data[index++] = (byte) sample;
+                data[index++] = (byte) (sample >> 8);
+            }
+        }
+        return data;
+    }
+}
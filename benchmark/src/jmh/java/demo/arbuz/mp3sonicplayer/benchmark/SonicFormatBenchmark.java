@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package demo.arbuz.mp3sonicplayer.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sonic putBytes/receiveBytes throughput over channels, sample rate, buffer size and quality, at a fixed 2x speed
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SonicFormatBenchmark {
+
+    private static final float SPEED = 2.0f;
+
+    @Param({"1", "2"})
+    public int numOfChannels;
+
+    @Param({"8000", "16000", "22050", "44100", "48000"})
+    public int sampleRate;
+
+    @Param({"1024", "4096", "16384"})
+    public int bufferSize;
+
+    @Param({"0", "1"})
+    public int quality;
+
+    private SonicStreamRunner mRunner;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mRunner = new SonicStreamRunner(sampleRate, numOfChannels, bufferSize);
+        mRunner.getSonic().setSpeed(SPEED);
+        mRunner.getSonic().setQuality(quality);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mRunner.close();
+    }
+
+    @Benchmark
+    public int processBlock(ProcessedSamples processedSamples) {
+        int frames = mRunner.processBlock();
+        processedSamples.samples += frames;
+        return frames;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package demo.arbuz.mp3sonicplayer.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.vinuxproject.sonic.Sonic;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sonic throughput at 2x speed with each pitch period search, over sample rates and pitch ranges. AMDF cost grows with
+ * the square of the longest period at quality 1, the autocorrelation search with the FFT size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SonicPitchBenchmark {
+
+    private static final int   NUM_OF_CHANNELS = 2;
+    private static final int   BUFFER_SIZE     = 4096;
+    private static final float SPEED           = 2.0f;
+
+    // Pitch method and quality
+    @Param({"amdf-0", "amdf-1", "autocorrelation"})
+    public String method;
+
+    @Param({"16000", "22050", "44100", "48000", "96000"})
+    public int sampleRate;
+
+    // Lowest and highest pitch searched, in Hz
+    @Param({"65-400", "80-250", "100-1000"})
+    public String pitchRange;
+
+    private SonicStreamRunner mRunner;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mRunner = new SonicStreamRunner(sampleRate, NUM_OF_CHANNELS, BUFFER_SIZE);
+        Sonic sonic = mRunner.getSonic();
+
+        String[] range = pitchRange.split("-");
+        sonic.setPitchRange(Integer.parseInt(range[0]), Integer.parseInt(range[1]));
+        sonic.setSpeed(SPEED);
+
+        switch (method)
+        {
+            case "amdf-0":
+                sonic.setPitchMethod(Sonic.PITCH_METHOD_AMDF);
+                sonic.setQuality(0);
+                break;
+            case "amdf-1":
+                sonic.setPitchMethod(Sonic.PITCH_METHOD_AMDF);
+                sonic.setQuality(1);
+                break;
+            case "autocorrelation":
+                sonic.setPitchMethod(Sonic.PITCH_METHOD_AUTOCORRELATION);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown method " + method);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mRunner.close();
+    }
+
+    @Benchmark
+    public int processBlock(ProcessedSamples processedSamples) {
+        int frames = mRunner.processBlock();
+        processedSamples.samples += frames;
+        return frames;
+    }
+}
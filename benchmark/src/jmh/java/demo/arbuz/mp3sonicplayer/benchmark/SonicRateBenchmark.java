@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package demo.arbuz.mp3sonicplayer.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sonic throughput of the resampling path, taken when rate or pitch is not 1. Rates with few filter phases use the
+ * cached weight table, 1.1 at 44.1KHz has too many and computes the weights per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SonicRateBenchmark {
+
+    private static final int NUM_OF_CHANNELS = 2;
+    private static final int BUFFER_SIZE     = 4096;
+
+    @Param({"44100", "48000"})
+    public int sampleRate;
+
+    @Param({"0.5", "0.9", "1.1", "1.25", "1.5"})
+    public float rate;
+
+    @Param({"1.0", "1.2"})
+    public float pitch;
+
+    private SonicStreamRunner mRunner;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mRunner = new SonicStreamRunner(sampleRate, NUM_OF_CHANNELS, BUFFER_SIZE);
+        mRunner.getSonic().setRate(rate);
+        mRunner.getSonic().setPitch(pitch);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mRunner.close();
+    }
+
+    @Benchmark
+    public int processBlock(ProcessedSamples processedSamples) {
+        int frames = mRunner.processBlock();
+        processedSamples.samples += frames;
+        return frames;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package demo.arbuz.mp3sonicplayer.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sonic putBytes/receiveBytes throughput over speed, pitch and rate, with the player's default format
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SonicSpeedBenchmark {
+
+    private static final int SAMPLE_RATE      = 44100;
+    private static final int NUM_OF_CHANNELS  = 2;
+    private static final int BUFFER_SIZE      = 4096;
+
+    @Param({"0.5", "1.0", "2.0", "3.0", "4.0"})
+    public float speed;
+
+    @Param({"0.5", "1.0", "2.0"})
+    public float pitch;
+
+    @Param({"0.5", "1.0", "2.0"})
+    public float rate;
+
+    private SonicStreamRunner mRunner;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mRunner = new SonicStreamRunner(SAMPLE_RATE, NUM_OF_CHANNELS, BUFFER_SIZE);
+        mRunner.getSonic().setSpeed(speed);
+        mRunner.getSonic().setPitch(pitch);
+        mRunner.getSonic().setRate(rate);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mRunner.close();
+    }
+
+    @Benchmark
+    public int processBlock(ProcessedSamples processedSamples) {
+        int frames = mRunner.processBlock();
+        processedSamples.samples += frames;
+        return frames;
+    }
+}
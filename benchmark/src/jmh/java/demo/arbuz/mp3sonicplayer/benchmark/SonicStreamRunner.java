@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2018 Oleg Shnaydman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package demo.arbuz.mp3sonicplayer.benchmark;
+
+import org.vinuxproject.sonic.Sonic;
+
+/**
+ * Feeds a prepared signal to a Sonic stream block by block, the way the player does
+ */
+class SonicStreamRunner {
+
+    private static final int SIGNAL_SECONDS = 10;
+
+    // Output can be up to 4 times bigger than input with the slowest speed and rate
+    private static final int OUTPUT_EXPANSION = 4;
+
+    private final Sonic    mSonic;
+    private final byte[][] mBlocks;
+    private final byte[]   mOutput;
+    private final int      mFrameSize;
+
+    private int mBlockIndex = 0;
+
+    SonicStreamRunner(int sampleRate, int numOfChannels, int bufferSizeInBytes) {
+        mSonic = new Sonic(sampleRate, numOfChannels);
+        mFrameSize = 2 * numOfChannels;
+
+        byte[] signal = PcmSignal.speechLike(sampleRate, numOfChannels, SIGNAL_SECONDS);
+        int blockSize = bufferSizeInBytes - bufferSizeInBytes % mFrameSize;
+        mBlocks = new byte[signal.length / blockSize][];
+        for (int i = 0; i < mBlocks.length; i++)
+        {
+            mBlocks[i] = new byte[blockSize];
+            System.arraycopy(signal, i * blockSize, mBlocks[i], 0, blockSize);
+        }
+        mOutput = new byte[blockSize * OUTPUT_EXPANSION];
+    }
+
+    Sonic getSonic() {
+        return mSonic;
+    }
+
+    /**
+     * Write one block and read everything that is available
+     *
+     * @return number of input frames processed
+     */
+    int processBlock() {
+        byte[] block = mBlocks[mBlockIndex];
+        mBlockIndex = (mBlockIndex + 1) % mBlocks.length;
+
+        mSonic.putBytes(block, block.length);
+
+        int available;
+        while ((available = mSonic.availableBytes()) > 0)
+        {
+            mSonic.receiveBytes(mOutput, Math.min(available, mOutput.length));
+        }
+
+        return block.length / mFrameSize;
+    }
+
+    void close() {
+        mSonic.close();
+    }
+}